@@ -0,0 +1,64 @@
+package com.nikhilm.hourglass.dashboard.benchmarks;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.nikhilm.hourglass.dashboard.EventDecoder;
+import com.nikhilm.hourglass.dashboard.models.Event;
+import com.nikhilm.hourglass.dashboard.models.Goal;
+import com.nikhilm.hourglass.dashboard.models.GoalLevel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the old consumer path, where the binder built a generic map and every message then
+ * created its own ObjectMapper to convert it, with the shared typed readers of {@link EventDecoder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventDecodingBenchmark {
+
+    private static final TypeReference<Event<String, Object>> GENERIC_EVENT = new TypeReference<>() {};
+
+    private ObjectMapper binderMapper;
+    private EventDecoder eventDecoder;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws IOException {
+        binderMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+        eventDecoder = new EventDecoder();
+
+        Goal goal = new Goal();
+        goal.setId("5fb7d8f1c2a94e2b8c6f1a3d");
+        goal.setUserId("abc");
+        goal.setName("Run a half marathon");
+        goal.setDescription("Train three times a week and run the city half marathon in under two hours");
+        goal.setNotes(Arrays.asList("Bought new shoes", "Long run on Sundays", "Rest day after intervals"));
+        goal.setLevel(GoalLevel.EXTREME);
+        goal.setDueDate(LocalDate.of(2020, 12, 20));
+        goal.setVotes(12);
+        payload = binderMapper.writeValueAsBytes(new Event<String, Object>(Event.Type.GOAL_COMPLETED, goal.getId(), goal));
+    }
+
+    @Benchmark
+    public Goal mapThenConvert() throws IOException {
+        Event<String, Object> event = binderMapper.readValue(payload, GENERIC_EVENT);
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new JavaTimeModule());
+        return objectMapper.convertValue(event.getData(), Goal.class);
+    }
+
+    @Benchmark
+    public Goal sharedTypedReader() {
+        return eventDecoder.decodeGoalEvent(payload).getData();
+    }
+}
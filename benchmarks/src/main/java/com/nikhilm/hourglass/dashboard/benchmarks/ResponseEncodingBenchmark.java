@@ -0,0 +1,101 @@
+package com.nikhilm.hourglass.dashboard.benchmarks;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.nikhilm.hourglass.dashboard.models.GoalTrend;
+import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encoding the GET /metrics response as JSON, CBOR and Smile, with and without gzip, for responses
+ * with 3 and 36 trend months. The encoded and gzipped sizes are printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseEncodingBenchmark {
+
+    @Param({"3", "36"})
+    private int months;
+
+    @Param({"json", "cbor", "smile"})
+    private String format;
+
+    private ObjectWriter writer;
+    private MetricResponse response;
+
+    @Setup
+    public void setup() throws IOException {
+        JsonFactory factory = "cbor".equals(format) ? new CBORFactory()
+                : "smile".equals(format) ? new SmileFactory() : new JsonFactory();
+        // Built once, as the service builds its codecs, with Boot's ISO dates.
+        writer = Jackson2ObjectMapperBuilder.json()
+                .factory(factory)
+                .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .build()
+                .writerFor(MetricResponse.class);
+        response = response(months);
+        System.out.println(format + " " + months + " months: " + encode().length + " bytes, "
+                + gzip().length + " bytes gzipped");
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return writer.writeValueAsBytes(response);
+    }
+
+    @Benchmark
+    public byte[] gzip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            writer.writeValue(out, response);
+        }
+        return bytes.toByteArray();
+    }
+
+    static MetricResponse response(int months) {
+        MetricResponse response = new MetricResponse();
+        response.setGoalScore(1250);
+        response.setAverageScore(34.72);
+        response.setGoalScorePercentile(88.4);
+        response.setAverageScorePercentile(61.9);
+        response.setTotalGoalsCompleted(54);
+        response.setTotalGoalsInProgress(25);
+        response.setTotalGoalsDeferred(6);
+        response.setGoalsCompletedOnTime(41);
+        response.setGoalsCompletedAfterTime(13);
+        response.setEasyGoalsCompleted(22);
+        response.setModerateGoalsCompleted(24);
+        response.setExtremeGoalsCompleted(8);
+        response.setGoalsPlanned(9);
+        response.setGoalsAccomplished(4);
+        response.setTasksPlanned(31);
+        response.setTasksCompleted(17);
+        LocalDate month = LocalDate.of(2020, 11, 2);
+        List<GoalTrend> trends = new ArrayList<>();
+        for (int i = months - 1; i >= 0; i--) {
+            trends.add(new GoalTrend(month.minusMonths(i).getMonth().getDisplayName(TextStyle.SHORT, Locale.ENGLISH), 20 + i % 40));
+        }
+        response.setTrends(trends);
+        response.setActiveMonth(month);
+        response.setFallback("");
+        return response;
+    }
+}
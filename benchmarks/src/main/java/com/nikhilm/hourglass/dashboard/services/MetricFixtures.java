@@ -0,0 +1,34 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricSummary;
+
+import java.time.LocalDate;
+
+final class MetricFixtures {
+
+    private MetricFixtures() {
+    }
+
+    /**
+     * A user with the given number of monthly summaries, ending with the current month.
+     */
+    static DashboardMetric metric(int months) {
+        DashboardMetric metric = new DashboardMetric();
+        metric.setUserId("abc");
+        metric.setGoalScore(1250);
+        metric.setTotalGoalsCompleted(54);
+        metric.setTotalGoalsInProgress(25);
+        LocalDate month = LocalDate.now();
+        for (int i = 0; i < months; i++) {
+            MetricSummary summary = new MetricSummary(MetricSummary.monthOf(MetricSummary.monthKey(month.minusMonths(i))));
+            summary.setScore(20 + i % 40);
+            summary.setGoalsPlanned(5 + i % 7);
+            summary.setGoalsAccomplished(3 + i % 5);
+            summary.setTasksPlanned(10 + i % 11);
+            summary.setTasksCompleted(8 + i % 9);
+            metric.getMetricSummaries().put(MetricSummary.monthKey(summary.getMonth()), summary);
+        }
+        return metric;
+    }
+}
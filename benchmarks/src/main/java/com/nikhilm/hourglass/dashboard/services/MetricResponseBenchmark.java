@@ -0,0 +1,49 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the GET /metrics response from a stored document, for users with 1 to 120 months of history.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricResponseBenchmark {
+
+    @Param({"1", "12", "36", "120"})
+    private int months;
+
+    private DashboardService dashboardService;
+    private DashboardMetricToMetricResponseMapper mapper;
+    private DashboardMetric metric;
+
+    @Setup
+    public void setup() {
+        mapper = new DashboardMetricToMetricResponseMapperImpl();
+        dashboardService = new DashboardService();
+        dashboardService.mapper = mapper;
+        metric = MetricFixtures.metric(months);
+    }
+
+    @Benchmark
+    public MetricResponse toMetricResponse() {
+        return dashboardService.toMetricResponse(metric);
+    }
+
+    @Benchmark
+    public MetricResponse mapper() {
+        return mapper.dashboardMetricToMetricResponse(metric);
+    }
+
+    @Benchmark
+    public double computeAverageScore() {
+        return dashboardService.computeAverageScore(metric.getMetricSummaries().values());
+    }
+}
@@ -0,0 +1,141 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.Goal;
+import com.nikhilm.hourglass.dashboard.models.GoalLevel;
+import com.nikhilm.hourglass.dashboard.models.MetricDelta;
+import com.nikhilm.hourglass.dashboard.models.Operation;
+import com.nikhilm.hourglass.dashboard.models.ScoreDelta;
+import com.nikhilm.hourglass.dashboard.models.Task;
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Proxy;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scoring of a single event per {@link Operation}: building the delta and deriving the average score of
+ * the returned document. The repository is a stub that hands back a fixed document, so Mongo is not
+ * part of the measurement. {@code kernel} measures the scoring rules alone, into a reused delta, and
+ * {@code delta} the production path from an event to the {@link MetricDelta} that is written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoringBenchmark {
+
+    @Param({"GOAL_ADDED", "GOAL_DEFERRED", "GOAL_RESUMED", "GOAL_COMPLETED", "TASK_ADDED", "TASK_COMPLETED"})
+    private Operation operation;
+
+    private DashboardService dashboardService;
+    private Goal goal;
+    private Task task;
+    private ScoringKernel scoringKernel;
+    private EpochDayClock epochDayClock;
+    private ScoreDelta scoreDelta;
+
+    @Setup
+    public void setup() {
+        DashboardMetric metric = MetricFixtures.metric(24);
+        Mono<DashboardMetric> applied = Mono.just(metric);
+        dashboardService = new DashboardService();
+        dashboardService.dashboardMetricRepository = (DashboardMetricRepository) Proxy.newProxyInstance(
+                DashboardMetricRepository.class.getClassLoader(), new Class<?>[]{DashboardMetricRepository.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("applyDelta")) {
+                        return applied;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        // Same distribution settings as application.yaml, so the timers cost what they cost in production.
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        meterRegistry.config().meterFilter(new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                return DistributionStatisticConfig.builder()
+                        .percentilesHistogram(true)
+                        .percentiles(0.5, 0.95, 0.99)
+                        .build()
+                        .merge(config);
+            }
+        });
+        dashboardService.pipelineMetrics = new PipelineMetrics(meterRegistry);
+        dashboardService.setEasyGoalScore(10);
+        dashboardService.setModerateGoalScore(25);
+        dashboardService.setExtremeGoalScore(50);
+        dashboardService.setDeferPenalty(6);
+        dashboardService.setResumeBonus(1);
+
+        scoringKernel = new ScoringKernel(10, 25, 50, 1, 6);
+        epochDayClock = new EpochDayClock(Clock.systemDefaultZone());
+        scoreDelta = new ScoreDelta();
+
+        goal = new Goal();
+        goal.setId("g1");
+        goal.setUserId("abc");
+        goal.setLevel(GoalLevel.MODERATE);
+        goal.setDueDate(LocalDate.now().minusDays(3));
+        task = new Task();
+        task.setId("t1");
+        task.setUserId("abc");
+        task.setDueDate(LocalDate.now().plusDays(3));
+    }
+
+    @Benchmark
+    public DashboardMetric score() {
+        switch (operation) {
+            case GOAL_ADDED:
+                return dashboardService.computeScoreOnGoalAdd(goal).block();
+            case GOAL_DEFERRED:
+                return dashboardService.computeScoreOnGoalDeferred(goal).block();
+            case GOAL_RESUMED:
+                return dashboardService.computeScoreOnGoalResumed(goal).block();
+            case GOAL_COMPLETED:
+                return dashboardService.computeScoreOnGoalComplete(goal).block();
+            case TASK_ADDED:
+                return dashboardService.computeScoreOnTaskAdd(task).block();
+            default:
+                return dashboardService.computeScoreOnTaskComplete(task).block();
+        }
+    }
+
+    @Benchmark
+    public MetricDelta delta() {
+        LocalDate today = LocalDate.now();
+        switch (operation) {
+            case GOAL_ADDED:
+                return dashboardService.deltaOnGoalAdd(goal, null);
+            case GOAL_DEFERRED:
+                return dashboardService.deltaOnGoalDeferred(goal, null, today);
+            case GOAL_RESUMED:
+                return dashboardService.deltaOnGoalResumed(goal, null, today);
+            case GOAL_COMPLETED:
+                return dashboardService.deltaOnGoalComplete(goal, null, today);
+            case TASK_ADDED:
+                return dashboardService.deltaOnTaskAdd(task, null);
+            default:
+                return dashboardService.deltaOnTaskComplete(task, null, today);
+        }
+    }
+
+    @Benchmark
+    public ScoreDelta kernel() {
+        switch (operation) {
+            case TASK_ADDED:
+            case TASK_COMPLETED:
+                return scoringKernel.score(operation, task, epochDayClock.today(), scoreDelta);
+            default:
+                return scoringKernel.score(operation, goal, epochDayClock.today(), scoreDelta);
+        }
+    }
+}
@@ -6,7 +6,6 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cloud.circuitbreaker.resilience4j.ReactiveResilience4JCircuitBreakerFactory;
 import org.springframework.cloud.circuitbreaker.resilience4j.Resilience4JConfigBuilder;
-import org.springframework.cloud.client.circuitbreaker.ReactiveCircuitBreakerFactory;
 import org.springframework.context.annotation.Bean;
 
 import java.time.Duration;
@@ -18,8 +17,9 @@ public class DashboardServiceApplication {
 		SpringApplication.run(DashboardServiceApplication.class, args);
 	}
 
+	// Declared with the resilience4j type so its registry is bound to Micrometer (state, calls, rejections).
 	@Bean
-	ReactiveCircuitBreakerFactory circuitBreakerFactory()	{
+	ReactiveResilience4JCircuitBreakerFactory circuitBreakerFactory()	{
 		var factory = new ReactiveResilience4JCircuitBreakerFactory();
 		factory.configureDefault(s -> new Resilience4JConfigBuilder(s)
 				.timeLimiterConfig(TimeLimiterConfig.custom().timeoutDuration(Duration.ofSeconds(5L)).build())
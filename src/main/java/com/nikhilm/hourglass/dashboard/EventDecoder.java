@@ -0,0 +1,124 @@
+package com.nikhilm.hourglass.dashboard;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.nikhilm.hourglass.dashboard.exceptions.DashboardException;
+import com.nikhilm.hourglass.dashboard.models.Event;
+import com.nikhilm.hourglass.dashboard.models.Goal;
+import com.nikhilm.hourglass.dashboard.models.Task;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * Reads raw message bodies straight into typed events. The readers are built once and are thread
+ * safe; payload fields the dashboard never reads are skipped by the parser instead of being bound.
+ */
+@Component
+@Slf4j
+public class EventDecoder {
+
+    private final ObjectReader taskEventReader;
+    private final ObjectReader goalEventReader;
+    private final ObjectReader userEventReader;
+    private final JsonFactory jsonFactory;
+
+    public EventDecoder() {
+        ObjectMapper objectMapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .addMixIn(Goal.class, UnreadGoalFields.class)
+                .addMixIn(Task.class, UnreadTaskFields.class)
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        taskEventReader = objectMapper.readerFor(new TypeReference<Event<String, Task>>() {});
+        goalEventReader = objectMapper.readerFor(new TypeReference<Event<String, Goal>>() {});
+        userEventReader = objectMapper.readerFor(new TypeReference<Event<String, Object>>() {});
+        jsonFactory = objectMapper.getFactory();
+    }
+
+    public Event<String, Task> decodeTaskEvent(byte[] payload) {
+        Event<String, Task> event = read(taskEventReader, payload);
+        if (event.getData() == null) {
+            throw new DashboardException(500, "User record parse failed!");
+        }
+        if (event.getData().getUserId() == null) {
+            throw new DashboardException(500, "Data type error!");
+        }
+        return event;
+    }
+
+    public Event<String, Goal> decodeGoalEvent(byte[] payload) {
+        Event<String, Goal> event = read(goalEventReader, payload);
+        if (event.getData() == null) {
+            throw new DashboardException(500, "User record parse failed!");
+        }
+        if (event.getData().getUserId() == null) {
+            throw new DashboardException(500, "Data type error!");
+        }
+        return event;
+    }
+
+    public Event<String, Object> decodeUserEvent(byte[] payload) {
+        return read(userEventReader, payload);
+    }
+
+    /**
+     * Decodes an event of any kind, choosing the payload type by its event type. For sources that
+     * mix every kind of event in one stream, such as a replay file.
+     */
+    public Event<String, ?> decodeEvent(byte[] payload) {
+        String eventType = eventTypeOf(payload);
+        if (eventType.startsWith("GOAL_")) {
+            return decodeGoalEvent(payload);
+        }
+        if (eventType.startsWith("TASK_")) {
+            return decodeTaskEvent(payload);
+        }
+        return decodeUserEvent(payload);
+    }
+
+    private String eventTypeOf(byte[] payload) {
+        // Scans top level fields only, skipping nested ones, and stops at the event type.
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return "";
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("eventType".equals(field)) {
+                    return parser.getValueAsString("");
+                }
+                parser.skipChildren();
+            }
+            return "";
+        } catch (IOException e) {
+            log.error("Exception " + e.getMessage());
+            throw new DashboardException(500, "Data type error!");
+        }
+    }
+
+    private <T> T read(ObjectReader reader, byte[] payload) {
+        try {
+            return reader.readValue(payload);
+        } catch (IOException e) {
+            log.error("Exception " + e.getMessage());
+            throw new DashboardException(500, "Data type error!");
+        }
+    }
+
+    @JsonIgnoreProperties({"name", "description", "notes", "completedOn", "status", "votes"})
+    private abstract static class UnreadGoalFields {
+    }
+
+    @JsonIgnoreProperties({"name", "description"})
+    private abstract static class UnreadTaskFields {
+    }
+}
@@ -1,168 +1,624 @@
 package com.nikhilm.hourglass.dashboard;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.nikhilm.hourglass.dashboard.exceptions.DashboardException;
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
 import com.nikhilm.hourglass.dashboard.models.Event;
 import com.nikhilm.hourglass.dashboard.models.Goal;
+import com.nikhilm.hourglass.dashboard.models.ParkedEvent;
 import com.nikhilm.hourglass.dashboard.models.Task;
 import com.nikhilm.hourglass.dashboard.services.DashboardService;
+import com.nikhilm.hourglass.dashboard.services.EventDeduplicator;
+import com.nikhilm.hourglass.dashboard.services.EventJournal;
+import com.nikhilm.hourglass.dashboard.services.EventRetryQueue;
+import com.nikhilm.hourglass.dashboard.services.MetricDeltaBuffer;
+import com.nikhilm.hourglass.dashboard.services.ParkingLot;
+import com.nikhilm.hourglass.dashboard.services.PipelineMetrics;
+import com.nikhilm.hourglass.dashboard.services.UserOnboardingBuffer;
+import com.rabbitmq.client.Channel;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cloud.stream.annotation.EnableBinding;
-import org.springframework.cloud.stream.annotation.Input;
-import org.springframework.cloud.stream.annotation.Output;
-import org.springframework.cloud.stream.annotation.StreamListener;
-import org.springframework.cloud.stream.messaging.Sink;
-import org.springframework.integration.annotation.ServiceActivator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.lang.Nullable;
 import org.springframework.messaging.Message;
-import org.springframework.messaging.MessageChannel;
-
-
-@EnableBinding(MessageProcessor.MessageSink.class)
+import org.springframework.messaging.support.MessageBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.UnicastProcessor;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+
+@Configuration
 @Slf4j
 public class MessageProcessor {
 
     private final DashboardService dashboardService;
 
+    private final EventDecoder eventDecoder;
+
+    private final PipelineMetrics pipelineMetrics;
+
+    private final EventDeduplicator eventDeduplicator;
+
+    static final String TASKS = "tasks";
+    static final String GOALS = "goals";
+    static final String USERS = "dashboard";
+
+    @Autowired(required = false)
+    EventJournal eventJournal;
+
+    @Autowired(required = false)
+    EventRetryQueue eventRetryQueue;
+
+    @Autowired(required = false)
+    ParkingLot parkingLot;
+
+    @Autowired(required = false)
+    MetricDeltaBuffer metricDeltaBuffer;
+
+    @Autowired(required = false)
+    UserOnboardingBuffer userOnboardingBuffer;
+
+    private int lanes = 16;
+
+    private int maxAttempts = 3;
+
+    private long backOffInitialInterval = 1000;
+
+    private long backOffMaxInterval = 20000;
+
+    private int maxWaiting = 100;
+
+    private int maxBuffered = 250;
+
     @Autowired
-    public MessageProcessor(DashboardService dashboardService) {
+    public MessageProcessor(DashboardService dashboardService, EventDecoder eventDecoder,
+                            PipelineMetrics pipelineMetrics, EventDeduplicator eventDeduplicator) {
         this.dashboardService = dashboardService;
+        this.eventDecoder = eventDecoder;
+        this.pipelineMetrics = pipelineMetrics;
+        this.eventDeduplicator = eventDeduplicator;
     }
 
-    @StreamListener(target = MessageSink.INPUT_TASKS)
-    public void processTaskEvents(Event<String, Task> event) {
+    @Value("${dashboard.consumer.lanes:16}")
+    public void setLanes(int lanes) {
+        this.lanes = lanes;
+    }
 
-        log.info("Process message created at {}...", event.getEventCreatedAt());
-        Task task = null;
+    @Value("${dashboard.consumer.maxAttempts:3}")
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
 
-        if (event.getData() != null)    {
-            try {
-                ObjectMapper objectMapper = new ObjectMapper();
-                objectMapper.registerModule(new JavaTimeModule());
-                task = objectMapper.convertValue(event.getData(), Task.class);
+    @Value("${dashboard.consumer.backOffInitialInterval:1000}")
+    public void setBackOffInitialInterval(long backOffInitialInterval) {
+        this.backOffInitialInterval = backOffInitialInterval;
+    }
+
+    @Value("${dashboard.consumer.backOffMaxInterval:20000}")
+    public void setBackOffMaxInterval(long backOffMaxInterval) {
+        this.backOffMaxInterval = backOffMaxInterval;
+    }
+
+    /**
+     * Most events of one binding that may wait for their next attempt or be held behind one. Their
+     * messages stay unacknowledged, so it has to stay below the binding's prefetch or the broker
+     * stops delivering; beyond it failed events are parked right away.
+     */
+    @Value("${dashboard.retry.maxWaiting:100}")
+    public void setMaxWaiting(int maxWaiting) {
+        this.maxWaiting = maxWaiting;
+    }
+
+    /**
+     * Most attempts of one binding handed off to the delta or onboarding buffer that may be waiting
+     * for their window to be written. Lanes hold off once it is reached. It has to stay at or above
+     * the buffers' maxEvents and maxUsers, or a window never fills up and only closes on its delay.
+     */
+    @Value("${dashboard.consumer.maxBuffered:250}")
+    public void setMaxBuffered(int maxBuffered) {
+        this.maxBuffered = maxBuffered;
+    }
+
+    @Bean
+    public Function<Flux<Message<byte[]>>, Mono<Void>> taskEvents() {
+        return messages -> consume(messages, TASKS);
+    }
+
+    @Bean
+    public Function<Flux<Message<byte[]>>, Mono<Void>> goalEvents() {
+        return messages -> consume(messages, GOALS);
+    }
 
-            } catch(Exception e)   {
-                log.error("Exception " + e.getMessage());
-                throw new DashboardException(500, "Data type error!");
+    @Bean
+    public Function<Flux<Message<byte[]>>, Mono<Void>> userEvents() {
+        return messages -> consume(messages, USERS);
+    }
+
+    private Mono<Void> consume(Flux<Message<byte[]>> messages, String destination) {
+        // Events of one user always land in the same lane and a lane handles one event at a time,
+        // so per-user ordering holds while up to `lanes` users are processed concurrently. A failed
+        // event goes back through its lane when its next attempt is due, and the user's later events
+        // are held until it was applied or parked. Attempts handed off to a buffer are passed on
+        // instead of awaited, so a lane moves on rather than waiting out the buffer's window.
+        Backlog backlog = new Backlog();
+        return messages
+                .map(message -> backlog.received(decode(message, destination)))
+                .doOnComplete(backlog::sourceCompleted)
+                .mergeWith(backlog.due)
+                .groupBy(delivery -> laneOf(delivery.userId, lanes))
+                .flatMap(lane -> lane.concatMap(delivery -> inLane(delivery, backlog)), lanes)
+                .flatMap(Function.identity(), maxBuffered)
+                .then();
+    }
+
+    /**
+     * Processes the delivery in its lane, or emits its attempt if it goes to a buffer. The delta or
+     * user is added to the buffer when the attempt is subscribed to, which happens in lane order, and
+     * the message is acknowledged once the window was written.
+     */
+    private Mono<Mono<Void>> inLane(Delivery delivery, Backlog backlog) {
+        if (delivery.waiting) {
+            backlog.retryStarted(delivery);
+        } else if (backlog.hold(delivery)) {
+            return Mono.empty();
+        }
+        Mono<Void> processed = process(delivery, backlog).then(Mono.defer(() -> afterAttempt(delivery, backlog)));
+        return buffered(delivery) ? Mono.just(processed) : processed.then(Mono.empty());
+    }
+
+    private boolean buffered(Delivery delivery) {
+        if (delivery.event == null) {
+            return false;
+        }
+        return USERS.equals(delivery.destination) ? userOnboardingBuffer != null : metricDeltaBuffer != null;
+    }
+
+    // Once an event was applied or parked, the events of its user held behind it are processed in order.
+    private Mono<Void> afterAttempt(Delivery delivery, Backlog backlog) {
+        if (delivery.waiting) {
+            return Mono.empty();
+        }
+        backlog.settled(delivery);
+        Delivery next = backlog.nextHeld(delivery.userId);
+        if (next == null) {
+            return Mono.empty();
+        }
+        return process(next, backlog).then(Mono.defer(() -> afterAttempt(next, backlog)));
+    }
+
+    /**
+     * Lane of a user's events. When consumption is partitioned, an instance only receives the users
+     * whose {@code String.hashCode} modulo the instance count is its index, so lanes picked from the
+     * same hash modulo {@code lanes} would leave most of them idle, e.g. 2 of 8 with 4 instances. The
+     * hash is mixed first, so every bit of it takes part in picking the lane.
+     */
+    static int laneOf(String userId, int lanes) {
+        int hash = Objects.hashCode(userId);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, lanes);
+    }
+
+    private Delivery decode(Message<byte[]> message, String destination) {
+        Delivery delivery;
+        try {
+            delivery = decoderOf(destination).apply(message);
+        } catch (RuntimeException e) {
+            pipelineMetrics.unrecognized();
+            delivery = new Delivery(message, null, null, eventId -> Mono.error(e));
+        }
+        delivery.destination = destination;
+        return delivery;
+    }
+
+    private Function<Message<byte[]>, Delivery> decoderOf(String destination) {
+        switch (destination) {
+            case TASKS:
+                return this::toTaskDelivery;
+            case GOALS:
+                return this::toGoalDelivery;
+            default:
+                return this::toUserDelivery;
+        }
+    }
+
+    private Mono<Void> process(Delivery delivery, @Nullable Backlog backlog) {
+        return attempt(delivery)
+                .then(Mono.defer(() -> settle(delivery)))
+                .doOnSuccess(done -> log.info("Message processing done!"))
+                .onErrorResume(throwable -> {
+                    log.error("Message processing failed " + throwable.getMessage());
+                    return retryOrPark(delivery, throwable, backlog);
+                });
+    }
+
+    private Mono<?> attempt(Delivery delivery) {
+        Mono<?> action = Mono.defer(() -> {
+            if (eventJournal != null && delivery.event != null) {
+                // The day the event is scored on, journaled with it for replays to score it the same.
+                delivery.processedOn = dashboardService.today();
+            }
+            return delivery.action.apply(delivery.eventId);
+        });
+        // With the retry queue, attempts are spaced out on it instead of holding up the lane.
+        if (eventRetryQueue == null && maxAttempts > 1) {
+            action = action.retryWhen(Retry.backoff(maxAttempts - 1, Duration.ofMillis(backOffInitialInterval))
+                    .maxBackoff(Duration.ofMillis(backOffMaxInterval))
+                    .filter(throwable -> delivery.userId != null));
+        }
+        if (delivery.event != null) {
+            Event.Type eventType = delivery.event.getEventType();
+            LocalDateTime eventCreatedAt = delivery.event.getEventCreatedAt();
+            action = pipelineMetrics.timeEvent(eventType, action)
+                    .doOnSuccess(done -> pipelineMetrics.persisted(eventType, eventCreatedAt));
+            if (eventJournal != null) {
+                // Only applied events are journaled. Duplicates never reach this point, and events
+                // the document had applied before come back marked as replayed.
+                action = action.doOnSuccess(result -> {
+                    if (!(result instanceof DashboardMetric && ((DashboardMetric) result).isReplayed())) {
+                        eventJournal.append(delivery.processedOn, (byte[]) delivery.message.getPayload());
+                    }
+                });
             }
-        } else  {
-            throw new DashboardException(500, "User record parse failed!");
         }
+        if (delivery.eventId != null) {
+            action = screenDuplicates(delivery.eventId, action);
+        }
+        return action;
+    }
+
+    private Mono<Void> settle(Delivery delivery) {
+        acknowledge(delivery.message);
+        if (delivery.parkedId == null) {
+            return Mono.empty();
+        }
+        return parkingLot.remove(delivery.parkedId)
+                .onErrorResume(throwable -> {
+                    log.error("Removing parked event " + delivery.parkedId + " failed " + throwable.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Schedules the next attempt of a failed event, or parks it once it used up its attempts. Its
+     * message stays unacknowledged while attempts are pending and is acknowledged once the event is
+     * parked. Events that could not be decoded are rejected right away. Events replayed from the
+     * parking lot are outside any lane and are parked again if they fail.
+     */
+    private Mono<Void> retryOrPark(Delivery delivery, Throwable throwable, @Nullable Backlog backlog) {
+        if (delivery.userId == null) {
+            reject(delivery.message);
+            return Mono.empty();
+        }
+        // Without the retry queue all attempts were made inline.
+        delivery.attempts += eventRetryQueue != null ? 1 : Math.max(maxAttempts, 1);
+        if (backlog != null && eventRetryQueue != null && backlog.awaitRetry(delivery)) {
+            return Mono.empty();
+        }
+        if (parkingLot == null) {
+            reject(delivery.message);
+            return Mono.empty();
+        }
+        return parkingLot.park(parkedEventOf(delivery, throwable))
+                .doOnNext(parked -> acknowledge(delivery.message))
+                .onErrorResume(e -> {
+                    log.error("Parking failed " + e.getMessage());
+                    reject(delivery.message);
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private ParkedEvent parkedEventOf(Delivery delivery, Throwable throwable) {
+        return new ParkedEvent(delivery.parkedId, delivery.userId, delivery.destination,
+                delivery.event.getEventType().name(),
+                new String((byte[]) delivery.message.getPayload(), StandardCharsets.UTF_8),
+                delivery.attempts, throwable.getMessage(), Instant.now());
+    }
+
+    /**
+     * Processes parked events again, oldest first, of the user or of every user if none is given.
+     * An event leaves the parking lot once applied; if it fails again it is parked again. Emits the
+     * number of events replayed.
+     */
+    public Mono<Long> replayParked(@Nullable String userId) {
+        if (parkingLot == null) {
+            return Mono.just(0L);
+        }
+        return parkingLot.find(userId)
+                .concatMap(parked -> process(deliveryOf(parked), null).thenReturn(parked))
+                .count();
+    }
+
+    private Delivery deliveryOf(ParkedEvent parked) {
+        Delivery delivery = decode(MessageBuilder.withPayload(parked.getPayload().getBytes(StandardCharsets.UTF_8)).build(),
+                parked.getDestination());
+        delivery.parkedId = parked.getId();
+        return delivery;
+    }
+
+    // Events that failed because the user did not exist yet are tried again right away.
+    private Mono<Void> releaseWaiting(String userId) {
+        return Mono.defer(() -> {
+            if (eventRetryQueue != null) {
+                eventRetryQueue.release(userId);
+            }
+            return replayParked(userId);
+        }).doOnNext(count -> {
+            if (count > 0) {
+                log.info("Replayed " + count + " parked events of " + userId);
+            }
+        }).onErrorResume(throwable -> {
+            log.error("Replaying parked events of " + userId + " failed " + throwable.getMessage());
+            return Mono.empty();
+        }).then();
+    }
+
+    private Mono<?> screenDuplicates(String eventId, Mono<?> action) {
+        // Both copies of an event belong to the same user and lane, and a copy waiting for its next
+        // attempt holds back the user's later events, so the second one is only screened after the
+        // first has been applied and recorded.
+        return Mono.defer(() -> {
+            if (eventDeduplicator.isDuplicate(eventId)) {
+                log.info("Skipping duplicate event " + eventId);
+                return Mono.empty();
+            }
+            return action.doOnSuccess(done -> eventDeduplicator.applied(eventId));
+        });
+    }
+
+    private Delivery toTaskDelivery(Message<byte[]> message) {
+        Event<String, Task> event = eventDecoder.decodeTaskEvent(message.getPayload());
+        pipelineMetrics.received(event.getEventType());
+        log.info("Process message created at {}...", event.getEventCreatedAt());
+        Task task = event.getData();
 
         switch (event.getEventType()) {
 
         case TASK_ADDED:
-
             log.info("Added Task with ID: {}", task.getId());
-            dashboardService.computeScoreOnTaskAdd(task).subscribe();
-            break;
+            return new Delivery(message, event, task.getUserId(), eventId -> dashboardService.computeScoreOnTaskAdd(task, eventId));
 
         case TASK_COMPLETED:
             log.info("Completed Task with Id: {}", event.getKey());
-            dashboardService.computeScoreOnTaskComplete(event.getData()).subscribe();
-            break;
+            return new Delivery(message, event, task.getUserId(), eventId -> dashboardService.computeScoreOnTaskComplete(task, eventId));
 
         default:
             String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a relevant Task event";
            log.warn(errorMessage);
            throw new RuntimeException(errorMessage);
         }
-
-        log.info("Message processing done!");
     }
-    @StreamListener(target = MessageSink.INPUT_GOALS)
-    public void processGoalEvents(Event<String, Goal> event) {
 
+    private Delivery toGoalDelivery(Message<byte[]> message) {
+        Event<String, Goal> event = eventDecoder.decodeGoalEvent(message.getPayload());
+        pipelineMetrics.received(event.getEventType());
         log.info("Process message created at {}...", event.getEventCreatedAt());
-
-        Goal goal = null;
-
-        if (event.getData() != null)    {
-            try {
-                ObjectMapper objectMapper = new ObjectMapper();
-                objectMapper.registerModule(new JavaTimeModule());
-                goal = objectMapper.convertValue(event.getData(), Goal.class);
-
-            } catch(Exception e)   {
-                log.error("Exception " + e.getMessage());
-                throw new DashboardException(500, "Data type error!");
-            }
-        } else  {
-            throw new DashboardException(500, "User record parse failed!");
-        }
-
+        Goal goal = event.getData();
 
         switch (event.getEventType()) {
 
             case GOAL_ADDED:
-                Goal addedGoal = event.getData();
-                log.info("Added goal with ID: {}", addedGoal.getId());
-                dashboardService.computeScoreOnGoalAdd(addedGoal).block();
-                break;
+                log.info("Added goal with ID: {}", goal.getId());
+                return new Delivery(message, event, goal.getUserId(), eventId -> dashboardService.computeScoreOnGoalAdd(goal, eventId));
 
             case GOAL_DEFERRED:
-                Goal deferredGoal = event.getData();
                 log.info("Deferred goal with Id: {}", event.getKey());
-                dashboardService.computeScoreOnGoalDeferred(deferredGoal).block();
-                break;
+                return new Delivery(message, event, goal.getUserId(), eventId -> dashboardService.computeScoreOnGoalDeferred(goal, eventId));
 
             case GOAL_RESUMED:
-                Goal resumedGoal = event.getData();
                 log.info("Resumed goal with Id: {}", event.getKey());
-                dashboardService.computeScoreOnGoalResumed(resumedGoal).block();
-                break;
+                return new Delivery(message, event, goal.getUserId(), eventId -> dashboardService.computeScoreOnGoalResumed(goal, eventId));
+
             case GOAL_COMPLETED:
                 log.info("Completed goal with Id: {}", event.getKey());
-                dashboardService.computeScoreOnGoalComplete(event.getData()).block();
-                break;
+                return new Delivery(message, event, goal.getUserId(), eventId -> dashboardService.computeScoreOnGoalComplete(goal, eventId));
 
             default:
                 String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a relevant goal event";
                 log.warn(errorMessage);
                 throw new RuntimeException(errorMessage);
         }
-
-        log.info("Message processing done!");
     }
-    @StreamListener(target = MessageSink.INPUT_DASHBOARD)
-    public void processUserEvents(Event<String, Object> event) {
 
+    private Delivery toUserDelivery(Message<byte[]> message) {
+        Event<String, Object> event = eventDecoder.decodeUserEvent(message.getPayload());
+        pipelineMetrics.received(event.getEventType());
         log.info("Process message created at {}...", event.getEventCreatedAt());
 
         switch (event.getEventType()) {
 
             case USER_ADDED:
                 log.info("Added user with ID: {}", event.getKey());
-                dashboardService.initializeUser(event);
-                break;
-
+                return new Delivery(message, event, event.getKey(),
+                        eventId -> dashboardService.initializeUser(event).then(releaseWaiting(event.getKey())));
 
             default:
                 String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a relevant goal event";
                 log.warn(errorMessage);
                 throw new RuntimeException(errorMessage);
         }
+    }
+
+    private void acknowledge(Message<?> message) {
+        Channel channel = message.getHeaders().get(AmqpHeaders.CHANNEL, Channel.class);
+        Long deliveryTag = message.getHeaders().get(AmqpHeaders.DELIVERY_TAG, Long.class);
+        if (channel != null && deliveryTag != null) {
+            try {
+                channel.basicAck(deliveryTag, false);
+            } catch (IOException e) {
+                log.error("Ack failed " + e.getMessage());
+            }
+        }
+    }
 
+    private void reject(Message<?> message) {
+        Channel channel = message.getHeaders().get(AmqpHeaders.CHANNEL, Channel.class);
+        Long deliveryTag = message.getHeaders().get(AmqpHeaders.DELIVERY_TAG, Long.class);
+        if (channel != null && deliveryTag != null) {
+            try {
+                channel.basicNack(deliveryTag, false, false);
+            } catch (IOException e) {
+                log.error("Nack failed " + e.getMessage());
+            }
+        }
+    }
 
-        log.info("Message processing done!");
+    private static class Delivery {
+        private final Message<?> message;
+        private final Event<?, ?> event;
+        private final String eventId;
+        private final String userId;
+        private final Function<String, Mono<?>> action;
+        private String destination;
+        private int attempts;
+        private long processedOn;
+        private String parkedId;
+        private volatile boolean waiting;
+        private boolean blocking;
+
+        Delivery(Message<?> message, Event<?, ?> event, String userId, Function<String, Mono<?>> action) {
+            this.message = message;
+            this.event = event;
+            this.eventId = event != null ? EventDeduplicator.idOf(event) : null;
+            this.userId = userId;
+            this.action = action;
+        }
     }
 
-    public interface MessageSink {
+    /**
+     * Events of one binding that wait for their next attempt, and the events of their users held
+     * behind them. A waiting event is emitted into the lanes again when it is due. Consumption
+     * completes once the source did and every event was acknowledged, parked or rejected.
+     * <p>
+     * Attempts handed off to the delta buffer finish outside the lane, so the state is guarded by
+     * the backlog's lock.
+     */
+    private class Backlog {
+        private final UnicastProcessor<Delivery> due = UnicastProcessor.create();
+        private final FluxSink<Delivery> dueSink = due.sink();
+        // Keyed by user; present while an event of the user waits or is being tried again.
+        private final Map<String, Blocked> blocked = new HashMap<>();
+        private int backlogged;
+        private final AtomicInteger unsettled = new AtomicInteger();
+        private volatile boolean sourceCompleted;
+
+        Delivery received(Delivery delivery) {
+            unsettled.incrementAndGet();
+            return delivery;
+        }
+
+        void sourceCompleted() {
+            sourceCompleted = true;
+            completeIfDone();
+        }
+
+        void settled(Delivery delivery) {
+            synchronized (this) {
+                if (delivery.blocking) {
+                    delivery.blocking = false;
+                    blocked.get(delivery.userId).unresolved--;
+                }
+            }
+            unsettled.decrementAndGet();
+            completeIfDone();
+        }
 
-        String INPUT_TASKS = "input-tasks";
-        String INPUT_GOALS = "input-goals";
-        String INPUT_DASHBOARD = "input-dashboard";
+        private void completeIfDone() {
+            if (sourceCompleted && unsettled.get() == 0) {
+                dueSink.complete();
+            }
+        }
 
-        @Input(INPUT_TASKS)
-        MessageChannel inputTasks();
+        /**
+         * Schedules the next attempt of the event and blocks its user until it was applied or
+         * parked. Returns false if the event used up its attempts or too many events are waiting.
+         */
+        synchronized boolean awaitRetry(Delivery delivery) {
+            Blocked user = blocked.get(delivery.userId);
+            if ((user != null && user.lastAttempt) || backlogged >= maxWaiting) {
+                return false;
+            }
+            delivery.waiting = true;
+            if (!eventRetryQueue.schedule(delivery.userId, delivery.attempts, () -> dueSink.next(delivery))) {
+                delivery.waiting = false;
+                return false;
+            }
+            backlogged++;
+            if (!delivery.blocking) {
+                delivery.blocking = true;
+                blocked.computeIfAbsent(delivery.userId, userId -> new Blocked()).unresolved++;
+            }
+            return true;
+        }
 
-        @Input(INPUT_GOALS)
-        MessageChannel inputGoals();
+        synchronized void retryStarted(Delivery delivery) {
+            delivery.waiting = false;
+            backlogged--;
+        }
 
-        @Input(INPUT_DASHBOARD)
-        MessageChannel inputDashboard();
+        /**
+         * Holds the event back if an earlier event of its user waits for its next attempt. With too
+         * many events backlogged, the waiting events of the user are tried for the last time right
+         * away instead of at their due time.
+         */
+        boolean hold(Delivery delivery) {
+            boolean release = false;
+            synchronized (this) {
+                Blocked user = delivery.userId != null ? blocked.get(delivery.userId) : null;
+                if (user == null) {
+                    return false;
+                }
+                user.held.add(delivery);
+                if (++backlogged > maxWaiting && !user.lastAttempt) {
+                    user.lastAttempt = true;
+                    release = true;
+                }
+            }
+            if (release) {
+                eventRetryQueue.release(delivery.userId);
+            }
+            return true;
+        }
 
+        @Nullable
+        synchronized Delivery nextHeld(String userId) {
+            Blocked user = userId != null ? blocked.get(userId) : null;
+            if (user == null || user.unresolved > 0) {
+                return null;
+            }
+            Delivery next = user.held.poll();
+            if (next == null) {
+                blocked.remove(userId);
+                return null;
+            }
+            backlogged--;
+            return next;
+        }
+    }
 
+    private static class Blocked {
+        private final Deque<Delivery> held = new ArrayDeque<>();
+        private int unresolved;
+        private boolean lastAttempt;
     }
 }
@@ -2,12 +2,17 @@ package com.nikhilm.hourglass.dashboard.models;
 
 import lombok.*;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.web.bind.annotation.GetMapping;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 //goalTarget: 50,
 //        goalAccomplished: 28,
@@ -34,6 +39,7 @@ import java.util.List;
 public class DashboardMetric {
     @Id
     private String id;
+    @Indexed(unique = true)
     private String userId;
     private long goalScore = 0;
     private double averageScore = 0.0;
@@ -45,13 +51,42 @@ public class DashboardMetric {
     private long easyGoalsCompleted = 0;
     private long moderateGoalsCompleted = 0;
     private long extremeGoalsCompleted = 0;
-    private List<MetricSummary> metricSummaryList = new ArrayList<>();
+    private SortedMap<Integer, MetricSummary> metricSummaries = new TreeMap<>();
+    // Trend rollups, see TrendGranularity. Left out of the default reads and only loaded for trend queries.
+    private SortedMap<Integer, MetricSummary> weeklySummaries = new TreeMap<>();
+    private SortedMap<Integer, MetricSummary> quarterlySummaries = new TreeMap<>();
+    private SortedMap<Integer, MetricSummary> yearlySummaries = new TreeMap<>();
+    // Ids of the most recent events applied to this document, written by the same update as their counters.
+    private List<String> appliedEventIds = new ArrayList<>();
+    // Incremented by every update of the counters or scores, so an unchanged version means an unchanged
+    // document. Whole-document saves only succeed against the version they read.
+    @Version
+    private long version = 0;
+    // Set on the document returned for a write whose events had all been applied before, so nothing
+    // was written. Never stored.
+    @Transient
+    private boolean replayed = false;
 
     public static DashboardMetric from(DashboardMetric source) {
         return new DashboardMetric(source.id,source.userId, source.goalScore, source.averageScore,
                 source.totalGoalsCompleted, source.totalGoalsInProgress, source.totalGoalsDeferred,
                 source.goalsCompletedOnTime, source.goalsCompletedAfterTime, source.easyGoalsCompleted,
-                source.moderateGoalsCompleted, source.extremeGoalsCompleted, source.metricSummaryList);
+                source.moderateGoalsCompleted, source.extremeGoalsCompleted, source.metricSummaries,
+                source.weeklySummaries, source.quarterlySummaries, source.yearlySummaries,
+                source.appliedEventIds, source.version, source.replayed);
+    }
+
+    public SortedMap<Integer, MetricSummary> rollup(TrendGranularity granularity) {
+        switch (granularity) {
+            case WEEK:
+                return weeklySummaries;
+            case QUARTER:
+                return quarterlySummaries;
+            case YEAR:
+                return yearlySummaries;
+            default:
+                return metricSummaries;
+        }
     }
 
 }
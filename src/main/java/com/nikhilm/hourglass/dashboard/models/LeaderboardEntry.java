@@ -0,0 +1,15 @@
+package com.nikhilm.hourglass.dashboard.models;
+
+import lombok.*;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+@ToString
+public class LeaderboardEntry {
+    private long rank;
+    private String userId;
+    private long goalScore;
+    private double averageScore;
+}
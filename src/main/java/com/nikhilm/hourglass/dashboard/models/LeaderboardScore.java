@@ -0,0 +1,9 @@
+package com.nikhilm.hourglass.dashboard.models;
+
+/**
+ * Scores the leaderboard can rank users by.
+ */
+public enum LeaderboardScore {
+    GOAL,
+    AVERAGE
+}
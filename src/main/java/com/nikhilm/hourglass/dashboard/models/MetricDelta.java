@@ -0,0 +1,101 @@
+package com.nikhilm.hourglass.dashboard.models;
+
+import lombok.*;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+@NoArgsConstructor
+@Getter
+@Setter
+@ToString
+public class MetricDelta {
+    private String userId;
+    private long goalScore = 0;
+    private long totalGoalsCompleted = 0;
+    private long totalGoalsInProgress = 0;
+    private long totalGoalsDeferred = 0;
+    private long goalsCompletedOnTime = 0;
+    private long goalsCompletedAfterTime = 0;
+    private long easyGoalsCompleted = 0;
+    private long moderateGoalsCompleted = 0;
+    private long extremeGoalsCompleted = 0;
+    // Kept per day so the change can be added to the bucket of every trend granularity.
+    private Map<LocalDate, MetricSummary> days = new TreeMap<>();
+    private List<String> eventIds = new ArrayList<>();
+
+    public MetricDelta(String userId)   {
+        this.userId = userId;
+    }
+
+    public MetricDelta(String userId, String eventId)   {
+        this.userId = userId;
+        if (eventId != null) {
+            eventIds.add(eventId);
+        }
+    }
+
+    public MetricSummary summaryFor(LocalDate date)    {
+        return days.computeIfAbsent(date, MetricSummary::new);
+    }
+
+    /**
+     * The change summed per bucket of the granularity, keyed like the document's map for it.
+     */
+    public Map<Integer, MetricSummary> rollup(TrendGranularity granularity)    {
+        Map<Integer, MetricSummary> buckets = new TreeMap<>();
+        days.forEach((date, summary) -> buckets
+                .computeIfAbsent(granularity.keyOf(date), key -> new MetricSummary())
+                .add(summary));
+        return buckets;
+    }
+
+    /**
+     * The change summed per month, with each summary carrying its month like the stored ones do.
+     */
+    public Map<Integer, MetricSummary> getSummaries()   {
+        Map<Integer, MetricSummary> months = rollup(TrendGranularity.MONTH);
+        months.forEach((monthKey, summary) -> summary.setMonth(MetricSummary.monthOf(monthKey)));
+        return months;
+    }
+
+    /**
+     * Adds a scored event, its summary change going to the day it counts for.
+     */
+    public MetricDelta add(ScoreDelta scoreDelta) {
+        goalScore += scoreDelta.getScore();
+        totalGoalsCompleted += scoreDelta.getTotalGoalsCompleted();
+        totalGoalsInProgress += scoreDelta.getTotalGoalsInProgress();
+        totalGoalsDeferred += scoreDelta.getTotalGoalsDeferred();
+        goalsCompletedOnTime += scoreDelta.getGoalsCompletedOnTime();
+        goalsCompletedAfterTime += scoreDelta.getGoalsCompletedAfterTime();
+        easyGoalsCompleted += scoreDelta.getEasyGoalsCompleted();
+        moderateGoalsCompleted += scoreDelta.getModerateGoalsCompleted();
+        extremeGoalsCompleted += scoreDelta.getExtremeGoalsCompleted();
+        MetricSummary summary = summaryFor(LocalDate.ofEpochDay(scoreDelta.getEpochDay()));
+        summary.setScore(summary.getScore() + scoreDelta.getScore());
+        summary.setGoalsPlanned(summary.getGoalsPlanned() + scoreDelta.getGoalsPlanned());
+        summary.setGoalsAccomplished(summary.getGoalsAccomplished() + scoreDelta.getGoalsAccomplished());
+        summary.setTasksPlanned(summary.getTasksPlanned() + scoreDelta.getTasksPlanned());
+        summary.setTasksCompleted(summary.getTasksCompleted() + scoreDelta.getTasksCompleted());
+        return this;
+    }
+
+    public MetricDelta merge(MetricDelta other) {
+        goalScore += other.goalScore;
+        totalGoalsCompleted += other.totalGoalsCompleted;
+        totalGoalsInProgress += other.totalGoalsInProgress;
+        totalGoalsDeferred += other.totalGoalsDeferred;
+        goalsCompletedOnTime += other.goalsCompletedOnTime;
+        goalsCompletedAfterTime += other.goalsCompletedAfterTime;
+        easyGoalsCompleted += other.easyGoalsCompleted;
+        moderateGoalsCompleted += other.moderateGoalsCompleted;
+        extremeGoalsCompleted += other.extremeGoalsCompleted;
+        other.days.forEach((date, summary) -> summaryFor(date).add(summary));
+        eventIds.addAll(other.eventIds);
+        return this;
+    }
+}
@@ -14,6 +14,8 @@ import java.util.List;
 public class MetricResponse {
     private long goalScore;
     private double averageScore;
+    private Double goalScorePercentile;
+    private Double averageScorePercentile;
     private long totalGoalsCompleted;
     private long totalGoalsInProgress;
     private long totalGoalsDeferred;
@@ -29,4 +31,5 @@ public class MetricResponse {
     private List <GoalTrend> trends = new ArrayList<>();
     private LocalDate activeMonth;
     private String fallback;
+    private long version;
 }
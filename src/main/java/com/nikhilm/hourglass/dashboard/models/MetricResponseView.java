@@ -0,0 +1,17 @@
+package com.nikhilm.hourglass.dashboard.models;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@ToString
+@Document(collection = "metricResponses")
+public class MetricResponseView {
+    @Id
+    private String userId;
+    private MetricResponse response;
+}
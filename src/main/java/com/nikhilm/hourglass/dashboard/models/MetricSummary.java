@@ -21,4 +21,24 @@ public class MetricSummary {
     public MetricSummary(LocalDate month)   {
         this.month = month;
     }
+
+    /**
+     * Compact key of the month a date falls in, e.g. 202011 for any day of November 2020.
+     */
+    public static int monthKey(LocalDate date)  {
+        return date.getYear() * 100 + date.getMonthValue();
+    }
+
+    public static LocalDate monthOf(int monthKey)   {
+        return LocalDate.of(monthKey / 100, monthKey % 100, 2);
+    }
+
+    public MetricSummary add(MetricSummary other)    {
+        score += other.score;
+        goalsPlanned += other.goalsPlanned;
+        goalsAccomplished += other.goalsAccomplished;
+        tasksPlanned += other.tasksPlanned;
+        tasksCompleted += other.tasksCompleted;
+        return this;
+    }
 }
@@ -0,0 +1,29 @@
+package com.nikhilm.hourglass.dashboard.models;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * An event that kept failing, kept as received so it can be inspected and replayed.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@ToString(exclude = "payload")
+@Document(collection = "parkedEvents")
+public class ParkedEvent {
+    @Id
+    private String id;
+    private String userId;
+    // Destination the event was consumed from: tasks, goals or dashboard.
+    private String destination;
+    private String eventType;
+    private String payload;
+    private int attempts;
+    private String reason;
+    private Instant parkedAt;
+}
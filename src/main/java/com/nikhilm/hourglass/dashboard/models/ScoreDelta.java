@@ -0,0 +1,94 @@
+package com.nikhilm.hourglass.dashboard.models;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * What a single goal or task event adds to a user's metrics, as primitives only, so the same
+ * instance can be filled again for every event. {@code score} goes to both the goal score and the
+ * summary of {@code epochDay}, the day the event counts for.
+ */
+@Getter
+@ToString
+public class ScoreDelta {
+    private long score;
+    private long totalGoalsCompleted;
+    private long totalGoalsInProgress;
+    private long totalGoalsDeferred;
+    private long goalsCompletedOnTime;
+    private long goalsCompletedAfterTime;
+    private long easyGoalsCompleted;
+    private long moderateGoalsCompleted;
+    private long extremeGoalsCompleted;
+    private long goalsPlanned;
+    private long goalsAccomplished;
+    private long tasksPlanned;
+    private long tasksCompleted;
+    private long epochDay;
+    private int monthKey;
+
+    public ScoreDelta clear() {
+        score = 0;
+        totalGoalsCompleted = 0;
+        totalGoalsInProgress = 0;
+        totalGoalsDeferred = 0;
+        goalsCompletedOnTime = 0;
+        goalsCompletedAfterTime = 0;
+        easyGoalsCompleted = 0;
+        moderateGoalsCompleted = 0;
+        extremeGoalsCompleted = 0;
+        goalsPlanned = 0;
+        goalsAccomplished = 0;
+        tasksPlanned = 0;
+        tasksCompleted = 0;
+        epochDay = 0;
+        monthKey = 0;
+        return this;
+    }
+
+    public ScoreDelta on(long epochDay, int monthKey) {
+        this.epochDay = epochDay;
+        this.monthKey = monthKey;
+        return this;
+    }
+
+    public ScoreDelta score(long score) {
+        this.score = score;
+        return this;
+    }
+
+    public ScoreDelta goals(long completed, long inProgress, long deferred) {
+        totalGoalsCompleted = completed;
+        totalGoalsInProgress = inProgress;
+        totalGoalsDeferred = deferred;
+        return this;
+    }
+
+    public ScoreDelta completion(GoalLevel level, boolean onTime) {
+        switch (level) {
+            case EASY:
+                easyGoalsCompleted = 1;
+                break;
+            case MODERATE:
+                moderateGoalsCompleted = 1;
+                break;
+            case EXTREME:
+                extremeGoalsCompleted = 1;
+                break;
+        }
+        if (onTime) {
+            goalsCompletedOnTime = 1;
+        } else {
+            goalsCompletedAfterTime = 1;
+        }
+        return this;
+    }
+
+    public ScoreDelta summary(long goalsPlanned, long goalsAccomplished, long tasksPlanned, long tasksCompleted) {
+        this.goalsPlanned = goalsPlanned;
+        this.goalsAccomplished = goalsAccomplished;
+        this.tasksPlanned = tasksPlanned;
+        this.tasksCompleted = tasksCompleted;
+        return this;
+    }
+}
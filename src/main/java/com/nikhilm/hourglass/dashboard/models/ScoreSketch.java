@@ -0,0 +1,26 @@
+package com.nikhilm.hourglass.dashboard.models;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Checkpoint of the score percentile sketches, each serialized as a t-digest.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@ToString(exclude = {"goalScores", "averageScores"})
+@Document(collection = "scoreSketches")
+public class ScoreSketch {
+    @Id
+    private String id;
+    private long users;
+    private long updates;
+    private byte[] goalScores;
+    private byte[] averageScores;
+    private Instant savedAt;
+}
@@ -0,0 +1,115 @@
+package com.nikhilm.hourglass.dashboard.models;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.time.temporal.TemporalUnit;
+
+/**
+ * Periods trends can be rolled up by. Each one keeps its buckets in its own map on the metric
+ * document, keyed by a compact int that sorts chronologically, e.g. 202045 for ISO week 45 of 2020.
+ */
+public enum TrendGranularity {
+
+    WEEK("weeklySummaries", ChronoUnit.WEEKS) {
+        @Override
+        public int keyOf(LocalDate date) {
+            return date.get(IsoFields.WEEK_BASED_YEAR) * 100 + date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR);
+        }
+
+        @Override
+        public LocalDate startOf(int key) {
+            // January 4th always falls in week 1 of its week based year.
+            return LocalDate.of(key / 100, 1, 4)
+                    .with(IsoFields.WEEK_OF_WEEK_BASED_YEAR, key % 100)
+                    .with(DayOfWeek.MONDAY);
+        }
+
+        @Override
+        public String label(int key) {
+            return String.format("%d-W%02d", key / 100, key % 100);
+        }
+    },
+    MONTH("metricSummaries", ChronoUnit.MONTHS) {
+        @Override
+        public int keyOf(LocalDate date) {
+            return MetricSummary.monthKey(date);
+        }
+
+        @Override
+        public LocalDate startOf(int key) {
+            return LocalDate.of(key / 100, key % 100, 1);
+        }
+
+        @Override
+        public String label(int key) {
+            return String.format("%d-%02d", key / 100, key % 100);
+        }
+    },
+    QUARTER("quarterlySummaries", IsoFields.QUARTER_YEARS) {
+        @Override
+        public int keyOf(LocalDate date) {
+            return date.getYear() * 10 + date.get(IsoFields.QUARTER_OF_YEAR);
+        }
+
+        @Override
+        public LocalDate startOf(int key) {
+            return LocalDate.of(key / 10, (key % 10 - 1) * 3 + 1, 1);
+        }
+
+        @Override
+        public String label(int key) {
+            return (key / 10) + "-Q" + (key % 10);
+        }
+    },
+    YEAR("yearlySummaries", ChronoUnit.YEARS) {
+        @Override
+        public int keyOf(LocalDate date) {
+            return date.getYear();
+        }
+
+        @Override
+        public LocalDate startOf(int key) {
+            return LocalDate.of(key, 1, 1);
+        }
+
+        @Override
+        public String label(int key) {
+            return String.valueOf(key);
+        }
+    };
+
+    private final String field;
+
+    private final TemporalUnit unit;
+
+    TrendGranularity(String field, TemporalUnit unit) {
+        this.field = field;
+        this.unit = unit;
+    }
+
+    /**
+     * Name of the document field holding this granularity's buckets.
+     */
+    public String field() {
+        return field;
+    }
+
+    public abstract int keyOf(LocalDate date);
+
+    public abstract LocalDate startOf(int key);
+
+    public abstract String label(int key);
+
+    public LocalDate next(LocalDate periodStart) {
+        return periodStart.plus(1, unit);
+    }
+
+    /**
+     * Number of periods from the one holding {@code from} to the one holding {@code to}, both included.
+     */
+    public long periodsBetween(LocalDate from, LocalDate to) {
+        return unit.between(startOf(keyOf(from)), startOf(keyOf(to))) + 1;
+    }
+}
@@ -0,0 +1,20 @@
+package com.nikhilm.hourglass.dashboard.models;
+
+import lombok.*;
+
+import java.time.LocalDate;
+
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+public class TrendPoint {
+    private String period;
+    private LocalDate start;
+    private long score;
+    private long goalsPlanned;
+    private long goalsAccomplished;
+    private long tasksPlanned;
+    private long tasksCompleted;
+}
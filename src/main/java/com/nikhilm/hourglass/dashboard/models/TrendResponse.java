@@ -0,0 +1,19 @@
+package com.nikhilm.hourglass.dashboard.models;
+
+import lombok.*;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@ToString
+public class TrendResponse {
+    private TrendGranularity granularity;
+    private LocalDate from;
+    private LocalDate to;
+    private List<TrendPoint> points = new ArrayList<>();
+}
@@ -1,10 +1,32 @@
 package com.nikhilm.hourglass.dashboard.repositories;
 
 import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-public interface DashboardMetricRepository extends ReactiveMongoRepository<DashboardMetric, String> {
+import java.util.Collection;
 
+public interface DashboardMetricRepository extends ReactiveMongoRepository<DashboardMetric, String>,
+        DashboardMetricRepositoryCustom {
+
+    /**
+     * Projection leaving out the trend rollups, which only trend queries need.
+     */
+    String WITHOUT_ROLLUPS = "{ 'weeklySummaries' : 0, 'quarterlySummaries' : 0, 'yearlySummaries' : 0 }";
+
+    /**
+     * Projection of what the scores are computed from.
+     */
+    String SCORES = "{ 'userId' : 1, 'goalScore' : 1, 'metricSummaries' : 1 }";
+
+    @Query(value = "{ 'userId' : ?0 }", fields = WITHOUT_ROLLUPS)
     public Mono<DashboardMetric> findByUserId(String userId);
+
+    @Query(value = "{ 'userId' : { '$in' : ?0 } }", fields = WITHOUT_ROLLUPS)
+    public Flux<DashboardMetric> findByUserIdIn(Collection<String> userIds);
+
+    @Query(value = "{}", fields = SCORES)
+    public Flux<DashboardMetric> findAllScores();
 }
@@ -0,0 +1,47 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricDelta;
+import com.nikhilm.hourglass.dashboard.models.TrendGranularity;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+public interface DashboardMetricRepositoryCustom {
+
+    /**
+     * Applies the counter increments of the delta to the user's metrics document server side and
+     * emits the updated document, or completes empty if the user has no metrics document. A delta
+     * that changes anything also increments the document's version.
+     */
+    Mono<DashboardMetric> applyDelta(MetricDelta delta);
+
+    /**
+     * Applies one delta per user as a single unordered bulk write. Deltas of users without a metrics
+     * document match nothing and are dropped.
+     */
+    Mono<Void> applyDeltas(Collection<MetricDelta> deltas);
+
+    /**
+     * Overwrites the total score and the per period scores of each delta's user with the delta's
+     * values, as one unordered bulk write. Only documents still at the version given for their user
+     * are written; documents a concurrent write changed since are left alone. Counters are left alone,
+     * the version is incremented. Emits the number of users matched.
+     */
+    Mono<Long> replaceScores(Collection<MetricDelta> deltas, Map<String, Long> versions);
+
+    /**
+     * Creates an empty metrics document for each user that has none, as a single unordered bulk
+     * upsert. Users that already have one are left untouched. Emits the users whose document was
+     * created.
+     */
+    Mono<Set<String>> initializeUsers(Collection<String> userIds);
+
+    /**
+     * The user's document with only the buckets of the granularity loaded, or empty if the user has
+     * no metrics document.
+     */
+    Mono<DashboardMetric> findRollup(String userId, TrendGranularity granularity);
+}
@@ -0,0 +1,252 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricDelta;
+import com.nikhilm.hourglass.dashboard.models.MetricSummary;
+import com.nikhilm.hourglass.dashboard.models.TrendGranularity;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@Slf4j
+public class DashboardMetricRepositoryImpl implements DashboardMetricRepositoryCustom {
+
+    static final String SUMMARIES = "metricSummaries";
+
+    static final String APPLIED_EVENT_IDS = "appliedEventIds";
+
+    static final String VERSION = "version";
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private static final Document WITHOUT_ROLLUPS = Document.parse(DashboardMetricRepository.WITHOUT_ROLLUPS);
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    private final int appliedEventWindow;
+
+    @Autowired
+    public DashboardMetricRepositoryImpl(ReactiveMongoTemplate mongoTemplate,
+                                         @Value("${dashboard.idempotency.appliedEventWindow:100}") int appliedEventWindow) {
+        this.mongoTemplate = mongoTemplate;
+        this.appliedEventWindow = appliedEventWindow;
+    }
+
+    /**
+     * Applies the delta unless one of its events was already applied, in which case the document is
+     * returned unchanged. Empty means there is no document for the user.
+     */
+    @Override
+    public Mono<DashboardMetric> applyDelta(MetricDelta delta) {
+        Document update = counterUpdate(delta);
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions()
+                .returnDocument(ReturnDocument.AFTER)
+                .projection(WITHOUT_ROLLUPS);
+        Document userFilter = new Document("userId", delta.getUserId());
+        // No document matching the guard while the user's document exists means its events were applied before.
+        return collection()
+                .flatMap(collection -> update.isEmpty()
+                        ? Mono.from(collection.find(userFilter).projection(WITHOUT_ROLLUPS).first()).map(document -> toMetric(document, false))
+                        : Mono.from(collection.findOneAndUpdate(counterFilter(delta), update, options))
+                                .map(document -> toMetric(document, false))
+                                .switchIfEmpty(Mono.defer(() -> Mono.from(collection.find(userFilter).projection(WITHOUT_ROLLUPS).first())
+                                        .map(document -> toMetric(document, !delta.getEventIds().isEmpty())))));
+    }
+
+    private DashboardMetric toMetric(Document document, boolean replayed) {
+        DashboardMetric metric = mongoTemplate.getConverter().read(DashboardMetric.class, document);
+        metric.setReplayed(replayed);
+        return metric;
+    }
+
+    @Override
+    public Mono<Void> applyDeltas(Collection<MetricDelta> deltas) {
+        List<WriteModel<Document>> increments = new ArrayList<>();
+        for (MetricDelta delta : deltas) {
+            Document update = counterUpdate(delta);
+            if (!update.isEmpty()) {
+                increments.add(new UpdateOneModel<>(counterFilter(delta), update));
+            }
+        }
+        if (increments.isEmpty()) {
+            return Mono.empty();
+        }
+        return collection()
+                .flatMap(collection -> Mono.from(collection.bulkWrite(increments, new BulkWriteOptions().ordered(false))))
+                .doOnNext(result -> log.info("Bulk write matched " + result.getMatchedCount()
+                        + " modified " + result.getModifiedCount()))
+                .then();
+    }
+
+    @Override
+    public Mono<Long> replaceScores(Collection<MetricDelta> deltas, Map<String, Long> versions) {
+        if (deltas.isEmpty()) {
+            return Mono.just(0L);
+        }
+        List<WriteModel<Document>> replacements = new ArrayList<>();
+        for (MetricDelta delta : deltas) {
+            // The scores are absolute, so they may only land on the document they were checked against.
+            Document filter = new Document("userId", delta.getUserId())
+                    .append(VERSION, versions.get(delta.getUserId()));
+            replacements.add(new UpdateOneModel<>(filter,
+                    new Document("$set", scoreUpdate(delta)).append("$inc", new Document(VERSION, 1L))));
+        }
+        return collection()
+                .flatMap(collection -> Mono.from(collection.bulkWrite(replacements, new BulkWriteOptions().ordered(false))))
+                .map(result -> (long) result.getMatchedCount());
+    }
+
+    Document scoreUpdate(MetricDelta delta) {
+        Document set = new Document("goalScore", delta.getGoalScore());
+        for (TrendGranularity granularity : TrendGranularity.values()) {
+            for (Map.Entry<Integer, MetricSummary> entry : delta.rollup(granularity).entrySet()) {
+                String path = granularity.field() + "." + entry.getKey() + ".";
+                set.append(path + "score", entry.getValue().getScore());
+                if (granularity == TrendGranularity.MONTH) {
+                    set.append(path + "month", toMongo(MetricSummary.monthOf(entry.getKey())));
+                }
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public Mono<Set<String>> initializeUsers(Collection<String> userIds) {
+        if (userIds.isEmpty()) {
+            return Mono.just(Collections.emptySet());
+        }
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+        List<String> users = new ArrayList<>(userIds);
+        List<WriteModel<Document>> upserts = new ArrayList<>();
+        for (String userId : users) {
+            upserts.add(new UpdateOneModel<>(new Document("userId", userId),
+                    new Document("$setOnInsert", emptyMetric()), upsert));
+        }
+        return collection()
+                .flatMap(collection -> Mono.from(collection.bulkWrite(upserts, new BulkWriteOptions().ordered(false))))
+                .map(result -> createdOf(users, result))
+                // Two upserts for the same new user can race on the unique index; the loser's user
+                // was created by the winner.
+                .onErrorResume(MongoBulkWriteException.class, e -> onlyDuplicateKeys(e)
+                        ? Mono.just(createdOf(users, e.getWriteResult()))
+                        : Mono.error(e));
+    }
+
+    private static Set<String> createdOf(List<String> users, BulkWriteResult result) {
+        Set<String> created = new HashSet<>();
+        result.getUpserts().forEach(upserted -> created.add(users.get(upserted.getIndex())));
+        return created;
+    }
+
+    private boolean onlyDuplicateKeys(MongoBulkWriteException e) {
+        return e.getWriteConcernError() == null
+                && e.getWriteErrors().stream().map(BulkWriteError::getCode).allMatch(code -> code == DUPLICATE_KEY);
+    }
+
+    private Document emptyMetric() {
+        // Written like a document saved through the repository, minus the user id the filter supplies.
+        Document document = new Document();
+        mongoTemplate.getConverter().write(new DashboardMetric(), document);
+        document.remove("_id");
+        document.remove("userId");
+        return document;
+    }
+
+    @Override
+    public Mono<DashboardMetric> findRollup(String userId, TrendGranularity granularity) {
+        Query query = new Query(Criteria.where("userId").is(userId));
+        query.fields().include("userId").include(granularity.field());
+        return mongoTemplate.findOne(query, DashboardMetric.class);
+    }
+
+    Bson counterFilter(MetricDelta delta) {
+        Document filter = new Document("userId", delta.getUserId());
+        if (!delta.getEventIds().isEmpty()) {
+            filter.append(APPLIED_EVENT_IDS, new Document("$nin", delta.getEventIds()));
+        }
+        return filter;
+    }
+
+    Document counterUpdate(MetricDelta delta) {
+        Document inc = new Document();
+        incIfNonZero(inc, "goalScore", delta.getGoalScore());
+        incIfNonZero(inc, "totalGoalsCompleted", delta.getTotalGoalsCompleted());
+        incIfNonZero(inc, "totalGoalsInProgress", delta.getTotalGoalsInProgress());
+        incIfNonZero(inc, "totalGoalsDeferred", delta.getTotalGoalsDeferred());
+        incIfNonZero(inc, "goalsCompletedOnTime", delta.getGoalsCompletedOnTime());
+        incIfNonZero(inc, "goalsCompletedAfterTime", delta.getGoalsCompletedAfterTime());
+        incIfNonZero(inc, "easyGoalsCompleted", delta.getEasyGoalsCompleted());
+        incIfNonZero(inc, "moderateGoalsCompleted", delta.getModerateGoalsCompleted());
+        incIfNonZero(inc, "extremeGoalsCompleted", delta.getExtremeGoalsCompleted());
+
+        // $inc creates a bucket the first time it is addressed, so every field is incremented
+        // (possibly by 0) and month entries get their date set to keep them complete. The trend
+        // rollups change in the same update, so they can never disagree with the months.
+        Document set = new Document();
+        for (TrendGranularity granularity : TrendGranularity.values()) {
+            for (Map.Entry<Integer, MetricSummary> entry : delta.rollup(granularity).entrySet()) {
+                String path = granularity.field() + "." + entry.getKey() + ".";
+                MetricSummary summary = entry.getValue();
+                inc.append(path + "score", summary.getScore());
+                inc.append(path + "goalsPlanned", summary.getGoalsPlanned());
+                inc.append(path + "goalsAccomplished", summary.getGoalsAccomplished());
+                inc.append(path + "tasksPlanned", summary.getTasksPlanned());
+                inc.append(path + "tasksCompleted", summary.getTasksCompleted());
+                if (granularity == TrendGranularity.MONTH) {
+                    set.append(path + "month", toMongo(MetricSummary.monthOf(entry.getKey())));
+                }
+            }
+        }
+        Document update = new Document();
+        if (!inc.isEmpty()) {
+            update.append("$inc", inc.append(VERSION, 1L));
+        }
+        if (!set.isEmpty()) {
+            update.append("$set", set);
+        }
+        if (!update.isEmpty() && !delta.getEventIds().isEmpty()) {
+            update.append("$push", new Document(APPLIED_EVENT_IDS, new Document("$each", delta.getEventIds())
+                    .append("$slice", -appliedEventWindow)));
+        }
+        return update;
+    }
+
+    private void incIfNonZero(Document inc, String field, long value) {
+        if (value != 0) {
+            inc.append(field, value);
+        }
+    }
+
+    private Object toMongo(LocalDate date) {
+        return mongoTemplate.getConverter().convertToMongoType(date);
+    }
+
+    private Mono<MongoCollection<Document>> collection() {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(DashboardMetric.class));
+    }
+}
@@ -0,0 +1,75 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Creates the indexes declared on {@link DashboardMetric} when the service starts (Spring Data no longer
+ * does this by default) and reports how often each index is used.
+ */
+@Component
+@Slf4j
+public class MetricIndexManager {
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    @Autowired
+    public MetricIndexManager(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        ensureIndexes()
+                .thenMany(mongoTemplate.indexOps(DashboardMetric.class).getIndexInfo())
+                .subscribe(indexInfo -> log.info("Index " + indexInfo.getName() + " on " + indexInfo.getIndexFields()
+                                + (indexInfo.isUnique() ? " (unique)" : "")),
+                        throwable -> log.error("Index check failed " + throwable.getMessage()));
+    }
+
+    public Mono<Void> ensureIndexes() {
+        return Flux.fromIterable(indexDefinitions())
+                .concatMap(definition -> mongoTemplate.indexOps(DashboardMetric.class).ensureIndex(definition))
+                .doOnNext(name -> log.info("Ensured index " + name))
+                .then();
+    }
+
+    List<IndexDefinition> indexDefinitions() {
+        List<IndexDefinition> definitions = new ArrayList<>();
+        IndexResolver.create(mongoTemplate.getConverter().getMappingContext())
+                .resolveIndexFor(DashboardMetric.class)
+                .forEach(definitions::add);
+        return definitions;
+    }
+
+    public Flux<IndexInfo> indexes() {
+        return mongoTemplate.indexOps(DashboardMetric.class).getIndexInfo();
+    }
+
+    /**
+     * Per-index access counts since the index was created or the server restarted, from {@code $indexStats}.
+     */
+    public Flux<Document> indexUsage() {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(DashboardMetric.class))
+                .flatMapMany(collection -> Flux.from(collection.aggregate(
+                        Collections.singletonList(new Document("$indexStats", new Document())))))
+                .map(stats -> new Document("name", stats.get("name"))
+                        .append("key", stats.get("key"))
+                        .append("accesses", stats.get("accesses")));
+    }
+}
@@ -0,0 +1,7 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.nikhilm.hourglass.dashboard.models.MetricResponseView;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+
+public interface MetricResponseViewRepository extends ReactiveMongoRepository<MetricResponseView, String>, MetricResponseViewRepositoryCustom {
+}
@@ -0,0 +1,21 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.nikhilm.hourglass.dashboard.models.MetricResponseView;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+
+public interface MetricResponseViewRepositoryCustom {
+
+    /**
+     * Stores the view unless the stored one of the user was built from a later document version, or
+     * from the same version in a later month. Emits whether the view was stored.
+     */
+    Mono<Boolean> saveIfNewer(MetricResponseView view);
+
+    /**
+     * Stores each view on the same condition as {@link #saveIfNewer}, as one unordered bulk write.
+     * Emits the number of views stored.
+     */
+    Mono<Long> saveAllIfNewer(Collection<MetricResponseView> views);
+}
@@ -0,0 +1,97 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.nikhilm.hourglass.dashboard.models.MetricResponseView;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+public class MetricResponseViewRepositoryImpl implements MetricResponseViewRepositoryCustom {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private static final ReplaceOptions UPSERT = new ReplaceOptions().upsert(true);
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    @Autowired
+    public MetricResponseViewRepositoryImpl(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Mono<Boolean> saveIfNewer(MetricResponseView view) {
+        return collection()
+                .flatMap(views -> Mono.from(views.replaceOne(olderThan(view), documentOf(view), UPSERT)))
+                .map(result -> true)
+                // A stored view the filter did not match makes the upsert's insert collide with it.
+                .onErrorResume(MongoWriteException.class, e -> e.getError().getCode() == DUPLICATE_KEY
+                        ? Mono.just(false)
+                        : Mono.error(e));
+    }
+
+    @Override
+    public Mono<Long> saveAllIfNewer(Collection<MetricResponseView> views) {
+        if (views.isEmpty()) {
+            return Mono.just(0L);
+        }
+        List<WriteModel<Document>> replacements = new ArrayList<>();
+        for (MetricResponseView view : views) {
+            replacements.add(new ReplaceOneModel<>(olderThan(view), documentOf(view), UPSERT));
+        }
+        return collection()
+                .flatMap(collection -> Mono.from(collection.bulkWrite(replacements, new BulkWriteOptions().ordered(false))))
+                .map(MetricResponseViewRepositoryImpl::storedOf)
+                .onErrorResume(MongoBulkWriteException.class, e -> onlyDuplicateKeys(e)
+                        ? Mono.just(storedOf(e.getWriteResult()))
+                        : Mono.error(e));
+    }
+
+    /**
+     * Matches the user's view if it is older than the given one, i.e. built from an earlier document
+     * version or from the same version in an earlier or the same month. The same version is replaced
+     * so a view from before a month rollover, or with shifted percentiles, can be brought up to date.
+     */
+    Document olderThan(MetricResponseView view) {
+        long version = view.getResponse().getVersion();
+        Object activeMonth = mongoTemplate.getConverter().convertToMongoType(view.getResponse().getActiveMonth());
+        return new Document("_id", view.getUserId())
+                .append("$or", Arrays.asList(
+                        new Document("response.version", new Document("$lt", version)),
+                        new Document("response.version", version).append("response.activeMonth", new Document("$lte", activeMonth)),
+                        new Document("response.activeMonth", null)));
+    }
+
+    private Document documentOf(MetricResponseView view) {
+        Document document = new Document();
+        mongoTemplate.getConverter().write(view, document);
+        return document;
+    }
+
+    private static long storedOf(BulkWriteResult result) {
+        return result.getMatchedCount() + result.getUpserts().size();
+    }
+
+    private static boolean onlyDuplicateKeys(MongoBulkWriteException e) {
+        return e.getWriteConcernError() == null
+                && e.getWriteErrors().stream().map(BulkWriteError::getCode).allMatch(code -> code == DUPLICATE_KEY);
+    }
+
+    private Mono<MongoCollection<Document>> collection() {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(MetricResponseView.class));
+    }
+}
@@ -0,0 +1,176 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricSummary;
+import com.nikhilm.hourglass.dashboard.models.TrendGranularity;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Moves documents written before summaries were keyed by month from the old {@code metricSummaryList}
+ * array into the {@code metricSummaries} map. Entries are added with $inc, so events applied to a
+ * document while it is being migrated are kept, and documents already migrated are skipped.
+ * <p>
+ * Afterwards the quarterly and yearly trend rollups of documents written before they existed are
+ * rebuilt from the months. Weekly rollups cannot be derived from months and start with the first
+ * event applied after the upgrade. The rollups are set rather than incremented, so they are only
+ * written to the version of a document they were summed from; documents an event changed in between
+ * are read and summed again, a bounded number of times.
+ */
+@Component
+@ConditionalOnProperty(name = "dashboard.migration.summaries", havingValue = "true", matchIfMissing = true)
+@Slf4j
+public class MetricSummaryMigration {
+
+    static final String LEGACY_SUMMARY_LIST = "metricSummaryList";
+
+    static final String ROLLUPS_BACKFILLED = "rollupsBackfilled";
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final int MAX_BACKFILL_PASSES = 4;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    @Autowired
+    public MetricSummaryMigration(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        migrate()
+                .doOnNext(count -> log.info("Migrated " + count + " metric documents to month keyed summaries"))
+                .then(backfillRollups())
+                .subscribe(count -> log.info("Backfilled trend rollups of " + count + " metric documents"),
+                        throwable -> log.error("Summary migration failed " + throwable.getMessage()));
+    }
+
+    public Mono<Long> migrate() {
+        Document legacy = new Document(LEGACY_SUMMARY_LIST, new Document("$exists", true));
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(DashboardMetric.class))
+                .flatMap(collection -> Flux.from(collection.find(legacy).projection(new Document(LEGACY_SUMMARY_LIST, 1)))
+                        .map(this::migrationFor)
+                        .buffer(BATCH_SIZE)
+                        .concatMap(models -> Mono.from(collection.bulkWrite(models, new BulkWriteOptions().ordered(false))))
+                        .map(result -> (long) result.getModifiedCount())
+                        .reduce(0L, Long::sum));
+    }
+
+    public Mono<Long> backfillRollups() {
+        return backfillPass(1);
+    }
+
+    /**
+     * Backfills every document still pending and passes again over those that changed while it ran,
+     * as only they can still be pending.
+     */
+    private Mono<Long> backfillPass(int pass) {
+        Document pending = new Document(ROLLUPS_BACKFILLED, new Document("$exists", false))
+                .append(LEGACY_SUMMARY_LIST, new Document("$exists", false));
+        Document projection = new Document(DashboardMetricRepositoryImpl.SUMMARIES, 1)
+                .append(DashboardMetricRepositoryImpl.VERSION, 1);
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(DashboardMetric.class))
+                .flatMap(collection -> Flux.from(collection.find(pending).projection(projection))
+                        .map(this::backfillFor)
+                        .buffer(BATCH_SIZE)
+                        .concatMap(models -> Mono.from(collection.bulkWrite(models, new BulkWriteOptions().ordered(false)))
+                                .map(result -> new long[]{models.size(), result.getMatchedCount()}))
+                        .reduce(new long[2], (total, batch) -> new long[]{total[0] + batch[0], total[1] + batch[1]}))
+                .flatMap(total -> {
+                    long changed = total[0] - total[1];
+                    if (changed == 0) {
+                        return Mono.just(total[1]);
+                    }
+                    if (pass < MAX_BACKFILL_PASSES) {
+                        log.info(changed + " metric documents changed while their rollups were backfilled, reading them again");
+                        return backfillPass(pass + 1).map(count -> total[1] + count);
+                    }
+                    log.warn(changed + " metric documents kept changing, their rollups are backfilled on the next startup");
+                    return Mono.just(total[1]);
+                });
+    }
+
+    /**
+     * Sets the rollups to the sums of the months as read. The filter requires the version and the
+     * months to be unchanged, so a document an event updated in the meantime matches nothing rather
+     * than being given rollups that miss the event.
+     */
+    WriteModel<Document> backfillFor(Document metric) {
+        Document months = metric.get(DashboardMetricRepositoryImpl.SUMMARIES, new Document());
+        Document quarters = new Document();
+        Document years = new Document();
+        for (String monthKey : months.keySet()) {
+            MetricSummary summary = mongoTemplate.getConverter().read(MetricSummary.class, months.get(monthKey, Document.class));
+            LocalDate month = TrendGranularity.MONTH.startOf(Integer.parseInt(monthKey));
+            addAll(quarters, String.valueOf(TrendGranularity.QUARTER.keyOf(month)), summary);
+            addAll(years, String.valueOf(TrendGranularity.YEAR.keyOf(month)), summary);
+        }
+        // Documents written before they were versioned have no version, which a null filter matches.
+        Document filter = new Document("_id", metric.get("_id"))
+                .append(DashboardMetricRepositoryImpl.VERSION, metric.get(DashboardMetricRepositoryImpl.VERSION))
+                .append(DashboardMetricRepositoryImpl.SUMMARIES, metric.get(DashboardMetricRepositoryImpl.SUMMARIES))
+                .append(ROLLUPS_BACKFILLED, new Document("$exists", false));
+        Document update = new Document("$set", new Document(TrendGranularity.QUARTER.field(), quarters)
+                .append(TrendGranularity.YEAR.field(), years)
+                .append(ROLLUPS_BACKFILLED, true))
+                .append("$inc", new Document(DashboardMetricRepositoryImpl.VERSION, 1L));
+        return new UpdateOneModel<>(filter, update);
+    }
+
+    private void addAll(Document buckets, String key, MetricSummary summary) {
+        Document bucket = (Document) buckets.computeIfAbsent(key, k -> new Document());
+        add(bucket, "score", summary.getScore());
+        add(bucket, "goalsPlanned", summary.getGoalsPlanned());
+        add(bucket, "goalsAccomplished", summary.getGoalsAccomplished());
+        add(bucket, "tasksPlanned", summary.getTasksPlanned());
+        add(bucket, "tasksCompleted", summary.getTasksCompleted());
+    }
+
+    WriteModel<Document> migrationFor(Document metric) {
+        Document inc = new Document();
+        Document set = new Document();
+        List<Document> summaries = metric.getList(LEGACY_SUMMARY_LIST, Document.class, Collections.emptyList());
+        for (Document entry : summaries) {
+            MetricSummary summary = mongoTemplate.getConverter().read(MetricSummary.class, entry);
+            if (summary.getMonth() == null) {
+                continue;
+            }
+            int monthKey = MetricSummary.monthKey(summary.getMonth());
+            String path = DashboardMetricRepositoryImpl.SUMMARIES + "." + monthKey + ".";
+            add(inc, path + "score", summary.getScore());
+            add(inc, path + "goalsPlanned", summary.getGoalsPlanned());
+            add(inc, path + "goalsAccomplished", summary.getGoalsAccomplished());
+            add(inc, path + "tasksPlanned", summary.getTasksPlanned());
+            add(inc, path + "tasksCompleted", summary.getTasksCompleted());
+            set.append(path + "month", mongoTemplate.getConverter().convertToMongoType(MetricSummary.monthOf(monthKey)));
+        }
+        Document update = new Document("$unset", new Document(LEGACY_SUMMARY_LIST, ""));
+        if (!inc.isEmpty()) {
+            update.append("$inc", inc.append(DashboardMetricRepositoryImpl.VERSION, 1L)).append("$set", set);
+        }
+        Document filter = new Document("_id", metric.get("_id"))
+                .append(LEGACY_SUMMARY_LIST, new Document("$exists", true));
+        return new UpdateOneModel<>(filter, update);
+    }
+
+    private void add(Document inc, String field, long value) {
+        // Older documents can hold more than one entry for the same month; their counts are summed.
+        inc.merge(field, value, (current, added) -> (Long) current + (Long) added);
+    }
+}
@@ -0,0 +1,103 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonValue;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every command the Mongo driver sends and keeps the most recent ones that took longer than
+ * {@code dashboard.mongo.slowQueryMillis}.
+ */
+@Component
+@Slf4j
+public class MongoCommandStats implements CommandListener, MongoClientSettingsBuilderCustomizer {
+
+    private static final int RECENT_SLOW_COMMANDS = 20;
+
+    private final MeterRegistry meterRegistry;
+    private final long slowQueryMillis;
+    private final Counter slowCommandCounter;
+
+    private final Map<Integer, String> targets = new ConcurrentHashMap<>();
+    private final Deque<Map<String, Object>> slowCommands = new ArrayDeque<>();
+
+    @Autowired
+    public MongoCommandStats(MeterRegistry meterRegistry,
+                             @Value("${dashboard.mongo.slowQueryMillis:100}") long slowQueryMillis) {
+        this.meterRegistry = meterRegistry;
+        this.slowQueryMillis = slowQueryMillis;
+        this.slowCommandCounter = meterRegistry.counter("dashboard.mongo.slow");
+    }
+
+    @Override
+    public void customize(MongoClientSettings.Builder builder) {
+        builder.addCommandListener(this);
+    }
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        BsonValue target = event.getCommand().get(event.getCommandName());
+        targets.put(event.getRequestId(), target != null && target.isString() ? target.asString().getValue() : "");
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        record(event.getRequestId(), event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), "success");
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        record(event.getRequestId(), event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), "failure");
+    }
+
+    public List<Map<String, Object>> slowCommands() {
+        synchronized (slowCommands) {
+            return new ArrayList<>(slowCommands);
+        }
+    }
+
+    private void record(int requestId, String commandName, long elapsedNanos, String outcome) {
+        String target = targets.remove(requestId);
+        Timer.builder("dashboard.mongo.commands")
+                .tag("command", commandName)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        if (elapsedMillis >= slowQueryMillis) {
+            slowCommandCounter.increment();
+            log.warn("Slow mongo command " + commandName + " on " + target + " took " + elapsedMillis + "ms");
+            Map<String, Object> slowCommand = new LinkedHashMap<>();
+            slowCommand.put("command", commandName);
+            slowCommand.put("collection", target);
+            slowCommand.put("elapsedMillis", elapsedMillis);
+            slowCommand.put("outcome", outcome);
+            synchronized (slowCommands) {
+                if (slowCommands.size() == RECENT_SLOW_COMMANDS) {
+                    slowCommands.removeFirst();
+                }
+                slowCommands.addLast(slowCommand);
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.nikhilm.hourglass.dashboard.models.ParkedEvent;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Flux;
+
+public interface ParkedEventRepository extends ReactiveMongoRepository<ParkedEvent, String> {
+
+    public Flux<ParkedEvent> findByUserIdOrderByParkedAt(String userId);
+
+    public Flux<ParkedEvent> findAllByOrderByParkedAt();
+}
@@ -0,0 +1,7 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.nikhilm.hourglass.dashboard.models.ScoreSketch;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+
+public interface ScoreSketchRepository extends ReactiveMongoRepository<ScoreSketch, String> {
+}
@@ -0,0 +1,113 @@
+package com.nikhilm.hourglass.dashboard.resource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.web.codec.CodecCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.cbor.Jackson2CborEncoder;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.http.codec.json.Jackson2SmileDecoder;
+import org.springframework.http.codec.json.Jackson2SmileEncoder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.util.MimeType;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+
+@Configuration
+public class CodecConfiguration {
+
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+    public static final MediaType APPLICATION_NDJSON = MediaType.valueOf(APPLICATION_NDJSON_VALUE);
+
+    public static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+
+    public static final MediaType APPLICATION_SMILE = MediaType.valueOf(APPLICATION_SMILE_VALUE);
+
+    /**
+     * Adds newline delimited JSON to the JSON encoder, written and flushed one element at a time.
+     * JSON stays first, so it is still what a request without a specific Accept header gets. Ordered
+     * after Boot's Jackson customizer, which would otherwise replace this encoder.
+     */
+    @Bean
+    @Order(1)
+    CodecCustomizer ndjsonCodecCustomizer(ObjectMapper objectMapper) {
+        return configurer -> {
+            Jackson2JsonEncoder encoder = new Jackson2JsonEncoder(objectMapper,
+                    MediaType.APPLICATION_JSON, new MediaType("application", "*+json"), APPLICATION_NDJSON);
+            encoder.setStreamingMediaTypes(List.of(MediaType.APPLICATION_STREAM_JSON, APPLICATION_NDJSON));
+            configurer.defaultCodecs().jackson2JsonEncoder(encoder);
+        };
+    }
+
+    /**
+     * Replaces the default Smile codecs with ones whose mapper is built once from Boot's Jackson
+     * settings, so dates and naming match the JSON responses.
+     */
+    @Bean
+    @Order(1)
+    CodecCustomizer smileCodecCustomizer(ObjectProvider<Jackson2ObjectMapperBuilder> builders) {
+        ObjectMapper smileMapper = builders.getObject().factory(new SmileFactory()).build();
+        MediaType[] smileTypes = {APPLICATION_SMILE, new MediaType("application", "*+x-jackson-smile")};
+        return configurer -> {
+            configurer.defaultCodecs().jackson2SmileEncoder(new Jackson2SmileEncoder(smileMapper, smileTypes));
+            configurer.defaultCodecs().jackson2SmileDecoder(new Jackson2SmileDecoder(smileMapper, smileTypes));
+        };
+    }
+
+    /**
+     * Adds a CBOR encoder to the server, built once like the Smile codecs. There is no default slot
+     * for CBOR, and custom codecs are consulted before JSON, so it is left out of the clients and
+     * only endpoints that list their media types with JSON first should offer it.
+     */
+    @Bean
+    WebFluxConfigurer cborServerCodecConfigurer(ObjectProvider<Jackson2ObjectMapperBuilder> builders) {
+        ObjectMapper cborMapper = builders.getObject().factory(new CBORFactory()).build();
+        return new WebFluxConfigurer() {
+            @Override
+            public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+                configurer.customCodecs().register(new CborEncoder(cborMapper));
+            }
+        };
+    }
+
+    /**
+     * Spring's CBOR encoder only encodes single values and rejects every publisher, so this one
+     * encodes a Mono's value, or a Flux collected into one array as the JSON encoder does.
+     */
+    static class CborEncoder extends Jackson2CborEncoder {
+
+        CborEncoder(ObjectMapper mapper) {
+            super(mapper, MediaType.APPLICATION_CBOR);
+        }
+
+        @Override
+        public Flux<DataBuffer> encode(Publisher<?> inputStream, DataBufferFactory bufferFactory,
+                                       ResolvableType elementType, MimeType mimeType, Map<String, Object> hints) {
+            if (inputStream instanceof Mono) {
+                return Mono.from(inputStream)
+                        .map(value -> encodeValue(value, bufferFactory, elementType, mimeType, hints))
+                        .flux();
+            }
+            ResolvableType listType = ResolvableType.forClassWithGenerics(List.class, elementType);
+            return Flux.from(inputStream)
+                    .collectList()
+                    .map(list -> encodeValue(list, bufferFactory, listType, mimeType, hints))
+                    .flux();
+        }
+    }
+}
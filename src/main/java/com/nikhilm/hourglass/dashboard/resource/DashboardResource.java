@@ -2,8 +2,13 @@ package com.nikhilm.hourglass.dashboard.resource;
 
 import com.nikhilm.hourglass.dashboard.exceptions.ApiError;
 import com.nikhilm.hourglass.dashboard.exceptions.DashboardException;
+import com.nikhilm.hourglass.dashboard.models.LeaderboardEntry;
+import com.nikhilm.hourglass.dashboard.models.LeaderboardScore;
 import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import com.nikhilm.hourglass.dashboard.models.TrendGranularity;
+import com.nikhilm.hourglass.dashboard.models.TrendResponse;
 import com.nikhilm.hourglass.dashboard.services.DashboardService;
+import com.nikhilm.hourglass.dashboard.services.MetricUpdateBroadcaster;
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.info.Contact;
@@ -16,11 +21,22 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.client.circuitbreaker.ReactiveCircuitBreaker;
 import org.springframework.cloud.client.circuitbreaker.ReactiveCircuitBreakerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
 @RestController
 @Slf4j
 @OpenAPIDefinition(
@@ -36,29 +52,197 @@ public class DashboardResource {
     @Autowired
     DashboardService dashboardService;
 
+    @Autowired(required = false)
+    MetricUpdateBroadcaster metricUpdateBroadcaster;
+
     @Autowired
     ReactiveCircuitBreakerFactory factory;
 
     ReactiveCircuitBreaker rcb;
 
+    private int maxBatchSize = 5000;
+
+    private Set<String> batchCallers = Collections.emptySet();
+
     public DashboardResource(ReactiveCircuitBreakerFactory factory)  {
         this.factory = factory;
         rcb = factory.create("dashboard");
     }
 
+    @Value("${dashboard.batch.maxUsers:5000}")
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Value("${dashboard.batch.callers:}")
+    public void setBatchCallers(Set<String> batchCallers) {
+        this.batchCallers = batchCallers;
+    }
+
     @Operation(summary = "List all goal/ task metrics for the user")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "Metrics data received for user",
                     content = { @Content(mediaType = "application/json",
                             schema = @Schema(implementation = MetricResponse.class)) }),
+            @ApiResponse(responseCode = "304", description = "Metrics unchanged since the version in If-None-Match",
+                    content = { @Content }),
             @ApiResponse(responseCode = "401", description = "Unauthorized",
                     content = { @Content(mediaType = "application/json",
                             schema = @Schema(implementation = ApiError.class)) })})
-    @GetMapping("/metrics")
-    public Mono<MetricResponse> getMetrics(@RequestHeader("user") String user)  {
+    @GetMapping(value = "/metrics",
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, CodecConfiguration.APPLICATION_SMILE_VALUE})
+    public Mono<ResponseEntity<MetricResponse>> getMetrics(@RequestHeader("user") String user,
+                                                           @RequestHeader HttpHeaders headers)  {
         log.info("Request received " + user);
+        String eTag = dashboardService.getMetricsETag(user);
+        if (eTag != null && matches(headers.getIfNoneMatch(), eTag)) {
+            return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build());
+        }
         return rcb.run(dashboardService.getMetrics(user),
-                throwable -> Mono.error(new DashboardException(500, "Internal server error!")));
+                throwable -> Mono.error(new DashboardException(500, "Internal server error!")))
+                .map(metricResponse -> {
+                    String loadedETag = DashboardService.eTagOf(metricResponse);
+                    // Without a known version the response is loaded first, but still not sent if unchanged.
+                    if (matches(headers.getIfNoneMatch(), loadedETag)) {
+                        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(loadedETag).build();
+                    }
+                    return ResponseEntity.ok()
+                            .eTag(loadedETag)
+                            .varyBy(HttpHeaders.ACCEPT)
+                            .body(metricResponse);
+                });
+    }
+
+    // If-None-Match compares weakly, so tags match whether or not either is marked weak.
+    private static boolean matches(List<String> ifNoneMatch, String eTag) {
+        String opaqueTag = opaqueTag(eTag);
+        return ifNoneMatch.stream()
+                .anyMatch(candidate -> candidate.equals("*") || opaqueTag(candidate).equals(opaqueTag));
+    }
+
+    private static String opaqueTag(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+
+    @Operation(summary = "Goal/ task trends of the user per week, month, quarter or year")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "One point per period in the range",
+                    content = { @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = TrendResponse.class)) }),
+            @ApiResponse(responseCode = "400", description = "Invalid range or granularity",
+                    content = { @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ApiError.class)) })})
+    @GetMapping(value = "/metrics/trends",
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, CodecConfiguration.APPLICATION_SMILE_VALUE})
+    public Mono<TrendResponse> getTrends(@RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                         @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+                                         @RequestParam(value = "granularity", defaultValue = "month") String granularity,
+                                         @RequestHeader("user") String user)  {
+        log.info("Trends requested " + user + " " + granularity + " " + from + " to " + to);
+        TrendGranularity trendGranularity;
+        try {
+            trendGranularity = TrendGranularity.valueOf(granularity.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Mono.error(new DashboardException(400, "granularity must be one of week, month, quarter, year"));
+        }
+        return rcb.run(dashboardService.getTrends(user, from, to, trendGranularity),
+                throwable -> throwable instanceof DashboardException
+                        ? Mono.error(throwable)
+                        : Mono.error(new DashboardException(500, "Internal server error!")));
+    }
+
+    @Operation(summary = "Push goal/ task metrics for the user whenever they change")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Current metrics, then one event per update",
+                    content = { @Content(mediaType = "text/event-stream",
+                            schema = @Schema(implementation = MetricResponse.class)) })})
+    @GetMapping(value = "/metrics/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<MetricResponse>> streamMetrics(@RequestHeader("user") String user)  {
+        log.info("Stream opened for " + user);
+        Flux<ServerSentEvent<MetricResponse>> updates = dashboardService.streamMetrics(user)
+                .map(metricResponse -> ServerSentEvent.builder(metricResponse).event("metrics").build());
+        if (metricUpdateBroadcaster == null) {
+            return updates;
+        }
+        // Comments keep idle connections from being closed by proxies and let clients notice a dead one.
+        Flux<ServerSentEvent<MetricResponse>> heartbeats = metricUpdateBroadcaster.heartbeats()
+                .map(tick -> ServerSentEvent.<MetricResponse>builder().comment("heartbeat").build());
+        return Flux.merge(updates, heartbeats)
+                .doFinally(signal -> log.info("Stream closed for " + user));
+    }
+
+    @Operation(summary = "Stream goal/ task metrics for a list of users as newline delimited JSON")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "One metrics record per known user",
+                    content = { @Content(mediaType = CodecConfiguration.APPLICATION_NDJSON_VALUE,
+                            schema = @Schema(implementation = MetricResponse.class)) }),
+            @ApiResponse(responseCode = "400", description = "Too many users requested",
+                    content = { @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ApiError.class)) }),
+            @ApiResponse(responseCode = "403", description = "Metrics of other users requested by a caller not allowed to",
+                    content = { @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ApiError.class)) })})
+    @PostMapping(value = "/metrics/batch",
+            produces = {CodecConfiguration.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE})
+    public Flux<MetricResponse> getMetricsBatch(@RequestBody List<String> userIds,
+                                                @RequestHeader("user") String user)  {
+        log.info("Batch request received " + user + " for " + userIds.size() + " users");
+        if (userIds.size() > maxBatchSize) {
+            return Flux.error(new DashboardException(400, "At most " + maxBatchSize + " users per request"));
+        }
+        // Like any other read, a user only gets their own metrics; the internal callers configured in
+        // dashboard.batch.callers get those of any user.
+        if (!batchCallers.contains(user) && userIds.stream().anyMatch(userId -> !user.equalsIgnoreCase(userId))) {
+            return Flux.error(new DashboardException(403, "Forbidden access"));
+        }
+        return rcb.run(dashboardService.getMetrics(userIds),
+                throwable -> Flux.error(new DashboardException(500, "Internal server error!")));
+    }
+
+    @Operation(summary = "Users with the highest goal or average score")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Highest ranked users, best first",
+                    content = { @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = LeaderboardEntry.class)) }),
+            @ApiResponse(responseCode = "400", description = "Invalid limit or score",
+                    content = { @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ApiError.class)) })})
+    @GetMapping(value = "/leaderboard",
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, CodecConfiguration.APPLICATION_SMILE_VALUE})
+    public Flux<LeaderboardEntry> getLeaderboard(@RequestParam(value = "limit", defaultValue = "10") int limit,
+                                                 @RequestParam(value = "by", defaultValue = "goal") String by,
+                                                 @RequestHeader("user") String user)  {
+        log.info("Leaderboard requested " + user + " top " + limit + " by " + by);
+        LeaderboardScore score;
+        try {
+            score = LeaderboardScore.valueOf(by.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Flux.error(new DashboardException(400, "by must be one of goal, average"));
+        }
+        return dashboardService.getLeaderboard(score, limit);
+    }
+
+    @Operation(summary = "Rank of a user by goal or average score")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "The user's rank and scores",
+                    content = { @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = LeaderboardEntry.class)) }),
+            @ApiResponse(responseCode = "404", description = "Unknown user",
+                    content = { @Content(mediaType = "application/json",
+                            schema = @Schema(implementation = ApiError.class)) })})
+    @GetMapping(value = "/leaderboard/rank/{userId}",
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE, CodecConfiguration.APPLICATION_SMILE_VALUE})
+    public Mono<LeaderboardEntry> getLeaderboardRank(@PathVariable("userId") String userId,
+                                                     @RequestParam(value = "by", defaultValue = "goal") String by,
+                                                     @RequestHeader("user") String user)  {
+        log.info("Leaderboard rank requested " + user + " for " + userId + " by " + by);
+        LeaderboardScore score;
+        try {
+            score = LeaderboardScore.valueOf(by.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Mono.error(new DashboardException(400, "by must be one of goal, average"));
+        }
+        return dashboardService.getLeaderboardRank(userId, score);
     }
 
     @Operation(summary = "Initialize metrics resource for user")
@@ -75,7 +259,7 @@ public class DashboardResource {
             return Mono.just(ResponseEntity.status(HttpStatus.FORBIDDEN).build());
         }
         return dashboardService.initMetrics(userId)
-                .map(dashboardMetric -> ResponseEntity.ok().build())
+                .thenReturn(ResponseEntity.ok().build())
                 .onErrorReturn(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
     }
 }
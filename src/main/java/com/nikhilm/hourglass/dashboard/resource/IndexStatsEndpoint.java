@@ -0,0 +1,45 @@
+package com.nikhilm.hourglass.dashboard.resource;
+
+import com.nikhilm.hourglass.dashboard.repositories.MetricIndexManager;
+import com.nikhilm.hourglass.dashboard.repositories.MongoCommandStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Component
+@Endpoint(id = "indexstats")
+public class IndexStatsEndpoint {
+
+    private final MetricIndexManager metricIndexManager;
+
+    private final MongoCommandStats mongoCommandStats;
+
+    @Autowired
+    public IndexStatsEndpoint(MetricIndexManager metricIndexManager, MongoCommandStats mongoCommandStats) {
+        this.metricIndexManager = metricIndexManager;
+        this.mongoCommandStats = mongoCommandStats;
+    }
+
+    @ReadOperation
+    public Mono<Map<String, Object>> indexStats() {
+        return metricIndexManager.indexUsage()
+                .collectList()
+                .map(usage -> {
+                    Map<String, Object> stats = new LinkedHashMap<>();
+                    stats.put("indexes", usage);
+                    stats.put("slowCommands", mongoCommandStats.slowCommands());
+                    return stats;
+                });
+    }
+
+    @WriteOperation
+    public Mono<Void> ensureIndexes() {
+        return metricIndexManager.ensureIndexes();
+    }
+}
@@ -0,0 +1,54 @@
+package com.nikhilm.hourglass.dashboard.resource;
+
+import com.nikhilm.hourglass.dashboard.MessageProcessor;
+import com.nikhilm.hourglass.dashboard.models.ParkedEvent;
+import com.nikhilm.hourglass.dashboard.services.ParkingLot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+@Component
+@ConditionalOnProperty(name = "dashboard.parking.enabled", havingValue = "true")
+@Endpoint(id = "parkedevents")
+public class ParkedEventEndpoint {
+
+    private static final int DEFAULT_LIMIT = 100;
+
+    private final ParkingLot parkingLot;
+
+    private final MessageProcessor messageProcessor;
+
+    @Autowired
+    public ParkedEventEndpoint(ParkingLot parkingLot, MessageProcessor messageProcessor) {
+        this.parkingLot = parkingLot;
+        this.messageProcessor = messageProcessor;
+    }
+
+    /**
+     * Parked events of the user, or of every user, oldest first.
+     */
+    @ReadOperation
+    public Mono<List<ParkedEvent>> parked(@Nullable String userId, @Nullable Integer limit) {
+        return parkingLot.find(userId)
+                .take(limit != null ? limit : DEFAULT_LIMIT)
+                .collectList();
+    }
+
+    /**
+     * Processes the parked events of the user, or of every user, again.
+     */
+    @WriteOperation
+    public Mono<Map<String, Long>> replay(@Nullable String userId) {
+        return messageProcessor.replayParked(userId)
+                .map(count -> Collections.singletonMap("replayed", count));
+    }
+}
@@ -0,0 +1,34 @@
+package com.nikhilm.hourglass.dashboard.resource;
+
+import com.nikhilm.hourglass.dashboard.services.DashboardService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.Collections;
+import java.util.Map;
+
+@Component
+@ConditionalOnProperty(name = "dashboard.readModel.enabled", havingValue = "true")
+@Endpoint(id = "readmodel")
+public class ReadModelEndpoint {
+
+    private final DashboardService dashboardService;
+
+    @Autowired
+    public ReadModelEndpoint(DashboardService dashboardService) {
+        this.dashboardService = dashboardService;
+    }
+
+    /**
+     * Regenerates every stored response from the metrics collection.
+     */
+    @WriteOperation
+    public Mono<Map<String, Long>> rebuild() {
+        return dashboardService.rebuildReadModel()
+                .map(count -> Collections.singletonMap("rebuilt", count));
+    }
+}
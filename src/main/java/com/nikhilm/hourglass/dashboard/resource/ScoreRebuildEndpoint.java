@@ -0,0 +1,62 @@
+package com.nikhilm.hourglass.dashboard.resource;
+
+import com.nikhilm.hourglass.dashboard.services.ScoreRebuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+@Component
+@ConditionalOnProperty(name = "dashboard.rebuild.enabled", havingValue = "true")
+@Endpoint(id = "scorerebuild")
+public class ScoreRebuildEndpoint {
+
+    private final ScoreRebuilder scoreRebuilder;
+
+    @Autowired
+    public ScoreRebuildEndpoint(ScoreRebuilder scoreRebuilder) {
+        this.scoreRebuilder = scoreRebuilder;
+    }
+
+    @ReadOperation
+    public Map<String, Object> progress() {
+        return scoreRebuilder.progress();
+    }
+
+    /**
+     * Starts rescoring the events in the named file of the event directory, or in the event journal
+     * if no file is named. Progress is read back from the same endpoint; for the journal it states
+     * that users with events older than its retained segments are skipped.
+     */
+    @WriteOperation
+    public Map<String, Object> rebuild(@Nullable String file) {
+        Path events;
+        if (file == null) {
+            events = scoreRebuilder.journalDirectory();
+            if (events == null) {
+                return Collections.singletonMap("error", "The event journal is disabled");
+            }
+        } else {
+            try {
+                events = scoreRebuilder.eventFile(file);
+            } catch (IllegalArgumentException e) {
+                return Collections.singletonMap("error", e.getMessage());
+            }
+            if (!Files.isRegularFile(events)) {
+                return Collections.singletonMap("error", "No event file " + events);
+            }
+        }
+        if (!scoreRebuilder.start(events)) {
+            return Collections.singletonMap("error", "A rebuild is already running");
+        }
+        return scoreRebuilder.progress();
+    }
+}
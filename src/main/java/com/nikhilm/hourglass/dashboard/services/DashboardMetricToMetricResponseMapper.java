@@ -13,7 +13,9 @@ public interface DashboardMetricToMetricResponseMapper {
             @Mapping(target="goalsAccomplished", ignore = true),
             @Mapping(target="tasksPlanned", ignore = true),
             @Mapping(target="tasksCompleted", ignore = true),
-            @Mapping(target="trends", ignore = true)
+            @Mapping(target="trends", ignore = true),
+            @Mapping(target="goalScorePercentile", ignore = true),
+            @Mapping(target="averageScorePercentile", ignore = true)
     })
     MetricResponse dashboardMetricToMetricResponse(DashboardMetric metric);
 }
@@ -7,25 +7,26 @@ import lombok.extern.slf4j.Slf4j;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.text.DecimalFormat;
 import java.time.*;
-import java.time.format.DateTimeFormatter;
-
 import java.time.format.TextStyle;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
-import static com.nikhilm.hourglass.dashboard.models.Operation.GOAL_ADDED;
-import static java.util.Comparator.comparing;
-
 @Service
 @Slf4j
 public class DashboardService {
 
+    private static final int REBUILD_BATCH_SIZE = 500;
+
+    // Scored into and copied out of before deltaOf returns, so each thread can keep reusing its own.
+    private static final ThreadLocal<ScoreDelta> SCORE_DELTA = ThreadLocal.withInitial(ScoreDelta::new);
+
     @Autowired
     DashboardMetricRepository dashboardMetricRepository;
 
@@ -40,311 +41,489 @@ public class DashboardService {
 
     private int deferPenalty;
 
+    private int maxTrendPoints = 520;
+
+    private int maxLeaderboardLimit = 100;
+
+    private ScoringKernel scoringKernel = new ScoringKernel(0, 0, 0, 0, 0);
+
+    EpochDayClock epochDayClock = new EpochDayClock(Clock.systemDefaultZone());
+
     @Value("${deferPenalty}")
     public void setDeferPenalty(int deferPenalty)   {
         this.deferPenalty = deferPenalty;
+        updateScoringKernel();
     }
     @Value("${resumeBonus}")
     public void setResumeBonus(int resumeBonus)   {
         this.resumeBonus = resumeBonus;
+        updateScoringKernel();
+    }
+
+    @Value("${dashboard.trends.maxPoints:520}")
+    public void setMaxTrendPoints(int maxTrendPoints)   {
+        this.maxTrendPoints = maxTrendPoints;
+    }
+
+    @Value("${dashboard.leaderboard.maxLimit:100}")
+    public void setMaxLeaderboardLimit(int maxLeaderboardLimit)   {
+        this.maxLeaderboardLimit = maxLeaderboardLimit;
     }
 
     @Value("${goal.score.easy}")
     public void setEasyGoalScore(int easyGoalScore) {
         this.easyGoalScore = easyGoalScore;
+        updateScoringKernel();
     }
     @Value("${goal.score.moderate}")
     public void setModerateGoalScore(int moderateGoalScore) {
         this.moderateGoalScore = moderateGoalScore;
+        updateScoringKernel();
     }
     @Value("${goal.score.extreme}")
     public void setExtremeGoalScore(int extremeGoalScore)   {
         this.extremeGoalScore = extremeGoalScore;
+        updateScoringKernel();
     }
 
     @Autowired
     DashboardMetricToMetricResponseMapper mapper;
 
+    @Autowired
+    PipelineMetrics pipelineMetrics;
+
+    @Autowired(required = false)
+    MetricDeltaBuffer metricDeltaBuffer;
+
+    @Autowired(required = false)
+    MetricResponseCache metricResponseCache;
+
+    @Autowired(required = false)
+    MetricReadModel metricReadModel;
+
+    @Autowired(required = false)
+    MetricUpdateBroadcaster metricUpdateBroadcaster;
 
+    @Autowired(required = false)
+    UserOnboardingBuffer userOnboardingBuffer;
+
+    @Autowired(required = false)
+    Leaderboard leaderboard;
+
+    @Autowired(required = false)
+    ScorePercentiles scorePercentiles;
+
+    @Autowired(required = false)
+    MetricVersions metricVersions;
+
+
+
+    private void updateScoringKernel() {
+        scoringKernel = new ScoringKernel(easyGoalScore, moderateGoalScore, extremeGoalScore, resumeBonus, deferPenalty);
+    }
 
     public Mono<DashboardMetric> computeScoreOnGoalAdd(Goal addedGoal) {
-         return dashboardMetricRepository.findByUserId(addedGoal.getUserId())
-                .map(dashboardMetric -> {
-                    long inProgressGoals = dashboardMetric.getTotalGoalsInProgress();
-                    DashboardMetric updatedMetric = DashboardMetric.from(dashboardMetric);
-                    updatedMetric.setTotalGoalsInProgress(inProgressGoals + 1);
-                    log.info("Set total goals in progress " + updatedMetric.getTotalGoalsInProgress());
-                    return computeGoalSummary(updatedMetric, addedGoal, GOAL_ADDED, null);
+        return computeScoreOnGoalAdd(addedGoal, null);
+    }
 
-                })
-                 .switchIfEmpty(Mono.defer(()->Mono.error(new DashboardException(404, "User records not found!"))))
-                 .flatMap(dashboardMetricRepository::save);
+    public Mono<DashboardMetric> computeScoreOnGoalAdd(Goal addedGoal, String eventId) {
+        return applyDelta(deltaOnGoalAdd(addedGoal, eventId), "User records not found!");
+    }
 
+    public MetricDelta deltaOnGoalAdd(Goal addedGoal, String eventId) {
+        return deltaOf(addedGoal.getUserId(), eventId, Operation.GOAL_ADDED, addedGoal, epochDayClock.today());
     }
 
-    private LocalDate findMetricSummaryKey(LocalDate date) {
-        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("MM-yyyy");
-        LocalDate summaryDate = LocalDate.of(date.getYear(), date.getMonth(), 2);
-        log.info("Summary date " + summaryDate);
-        return summaryDate;
+    private MetricDelta deltaOf(String userId, String eventId, Operation operation, Goal goal, long today) {
+        return new MetricDelta(userId, eventId).add(scoringKernel.score(operation, goal, today, SCORE_DELTA.get()));
     }
 
-    private double computeAverageScore(List<MetricSummary> metricSummaryList) {
-        DecimalFormat decimalFormat = new DecimalFormat("#.##");
-        long totalScore = metricSummaryList.stream()
-                .map(metricSummary -> metricSummary.getScore())
-                .reduce((aLong, aLong2) -> aLong + aLong2).orElse(0L);
-        log.info("Metric summary " + metricSummaryList + " Size " + metricSummaryList.size());
-        log.info("total score " + totalScore);
-        return Double.parseDouble(decimalFormat.format(totalScore / metricSummaryList.size()));
+    private MetricDelta deltaOf(String userId, String eventId, Operation operation, Task task, long today) {
+        return new MetricDelta(userId, eventId).add(scoringKernel.score(operation, task, today, SCORE_DELTA.get()));
     }
 
-    private DashboardMetric computeGoalSummary(DashboardMetric dashboardMetric, Goal goal, Operation operation, Optional<Long> score) {
-        DashboardMetric metric = DashboardMetric.from(dashboardMetric);
-        MetricSummary metricSummary = null;
-        List<MetricSummary> metricSummaries = null;
+    double computeAverageScore(Collection<MetricSummary> metricSummaries) {
+        return averageScoreOf(metricSummaries);
+    }
 
-        switch (operation) {
-            case GOAL_ADDED:
-                metricSummary = metric.getMetricSummaryList().stream()
-                        .filter(summary -> summary.getMonth().isEqual(findMetricSummaryKey(goal.getDueDate())))
-                        .findAny().orElse(new MetricSummary(findMetricSummaryKey(goal.getDueDate())));
-                metricSummary.setGoalsPlanned(metricSummary.getGoalsPlanned() + 1);
-                metricSummaries = metric.getMetricSummaryList()
-                        .stream()
-                        .filter(summary ->
-                                !summary.getMonth().isEqual(findMetricSummaryKey(goal.getDueDate()))
-                        ).collect(Collectors.toList());
-                metricSummaries.add(metricSummary);
-                log.info("Metric summary " + metricSummary);
-                metric.setMetricSummaryList(metricSummaries);
-
-                break;
-            case GOAL_COMPLETED:
-                metricSummary = metric.getMetricSummaryList().stream()
-                        .filter(summary -> summary.getMonth().isEqual(findMetricSummaryKey(
-                                LocalDate.now())))
-                        .findAny().orElse(new MetricSummary(findMetricSummaryKey(LocalDate.now())));
-                metricSummary.setGoalsAccomplished(metricSummary.getGoalsAccomplished() + 1);
-                metricSummary.setScore(metricSummary.getScore() + score.orElse(0L));
-                metricSummaries = metric.getMetricSummaryList()
-                        .stream()
-                        .filter(summary ->
-                                !summary.getMonth().isEqual(findMetricSummaryKey(goal.getDueDate()))
-                        ).collect(Collectors.toList());
-                metricSummaries.add(metricSummary);
-                metric.setMetricSummaryList(metricSummaries);
-                metric.setAverageScore(computeAverageScore(metric.getMetricSummaryList()));
-                break;
-            case GOAL_DEFERRED:
-                metricSummary = metric.getMetricSummaryList().stream()
-                        .filter(summary -> summary.getMonth().isEqual(findMetricSummaryKey(goal.getDueDate())))
-                        .findAny().orElse(new MetricSummary(goal.getDueDate()));
-                metricSummary.setGoalsPlanned(metricSummary.getGoalsPlanned() - 1);
-                metricSummary.setScore(metricSummary.getScore() - score.orElse(0L));
-                metricSummaries = metric.getMetricSummaryList()
-                        .stream()
-                        .filter(summary ->
-                                !summary.getMonth().isEqual(findMetricSummaryKey(goal.getDueDate()))
-                        ).collect(Collectors.toList());
-                metricSummaries.add(metricSummary);
-                metric.setMetricSummaryList(metricSummaries);
-                metric.setAverageScore(computeAverageScore(metric.getMetricSummaryList()));
-                break;
-            case GOAL_RESUMED:
-                metricSummary = metric.getMetricSummaryList().stream()
-                        .filter(summary -> summary.getMonth().isEqual(findMetricSummaryKey(goal.getDueDate())))
-                        .findAny().orElse(new MetricSummary(findMetricSummaryKey(goal.getDueDate())));
-                metricSummary.setGoalsPlanned(metricSummary.getGoalsPlanned() + 1);
-                metricSummary.setScore(metricSummary.getScore() + score.orElse(0L));
-                metricSummaries = metric.getMetricSummaryList()
-                        .stream()
-                        .filter(summary ->
-                                !summary.getMonth().isEqual(findMetricSummaryKey(goal.getDueDate()))
-                        ).collect(Collectors.toList());
-                metricSummaries.add(metricSummary);
-                metric.setMetricSummaryList(metricSummaries);
-                metric.setAverageScore(computeAverageScore(metric.getMetricSummaryList()));
-                break;
+    static double averageScoreOf(Collection<MetricSummary> metricSummaries) {
+        if (metricSummaries.isEmpty()) {
+            return 0.0;
+        }
+        long totalScore = 0;
+        for (MetricSummary metricSummary : metricSummaries) {
+            totalScore += metricSummary.getScore();
         }
-        return metric;
+        // Whole points, as before: the division was always integral, rounding it to 2 decimals changed nothing.
+        return totalScore / metricSummaries.size();
     }
 
-    public Mono<DashboardMetric> computeScoreOnGoalComplete(Goal completedGoal) {
-        return dashboardMetricRepository.findByUserId(completedGoal.getUserId())
-                .map(dashboardMetric -> {
-                    DashboardMetric updatedMetric = DashboardMetric.from(dashboardMetric);
-                    long completedGoals = dashboardMetric.getTotalGoalsCompleted();
-                    long scoreToAdd = 0;
-                    switch (completedGoal.getLevel()) {
-                        case EASY:
-                            scoreToAdd = easyGoalScore;
-                            updatedMetric.setEasyGoalsCompleted(updatedMetric.getEasyGoalsCompleted() + 1);
-                            break;
-                        case MODERATE:
-                            log.info("Completing a moderate goal " + moderateGoalScore);
-                            scoreToAdd = moderateGoalScore;
-                            updatedMetric.setModerateGoalsCompleted(updatedMetric.getModerateGoalsCompleted() + 1);
-                            break;
-                        case EXTREME:
-                            scoreToAdd = extremeGoalScore;
-                            updatedMetric.setExtremeGoalsCompleted(updatedMetric.getExtremeGoalsCompleted() + 1);
-                            break;
-                    }
-                    //to update
-                    if (completedGoal.getDueDate().isBefore(LocalDate.now())) {
-                        long elapsed = ChronoUnit.DAYS.between(completedGoal.getDueDate(), LocalDate.now());
-                        scoreToAdd = scoreToAdd - elapsed;
-                        log.info("scoreToAdd " + scoreToAdd + " elapsed " + elapsed);
-                        updatedMetric.setGoalsCompletedAfterTime(updatedMetric.getGoalsCompletedAfterTime() + 1);
-                    } else {
-                        updatedMetric.setGoalsCompletedOnTime(updatedMetric.getGoalsCompletedOnTime() + 1);
+    private DashboardMetric withAverageScore(DashboardMetric dashboardMetric) {
+        dashboardMetric.setAverageScore(computeAverageScore(dashboardMetric.getMetricSummaries().values()));
+        return dashboardMetric;
+    }
+
+    private Mono<DashboardMetric> applyDelta(MetricDelta delta, String notFoundMessage) {
+        log.info("Applying delta " + delta);
+        Mono<DashboardMetric> applied = metricDeltaBuffer != null
+                ? metricDeltaBuffer.submit(delta)
+                : pipelineMetrics.timeRepository("applyDelta", Mono.defer(() -> dashboardMetricRepository.applyDelta(delta)));
+        return applied
+                .map(this::withAverageScore)
+                .flatMap(dashboardMetric -> publishResponse(dashboardMetric).thenReturn(dashboardMetric))
+                .doOnError(throwable -> {
+                    if (metricResponseCache != null) {
+                        metricResponseCache.invalidate(delta.getUserId());
                     }
-                    updatedMetric.setGoalScore(dashboardMetric.getGoalScore() + scoreToAdd);
-                    updatedMetric.setTotalGoalsCompleted(completedGoals + 1);
-                    updatedMetric.setTotalGoalsInProgress(updatedMetric.getTotalGoalsInProgress() - 1);
-                    return computeGoalSummary(updatedMetric, completedGoal, Operation.GOAL_COMPLETED, Optional.of(scoreToAdd));
                 })
-                .switchIfEmpty(Mono.defer(()->Mono.error(new DashboardException(404, "User records not found!"))))
-                .flatMap(dashboardMetricRepository::save);
+                .switchIfEmpty(Mono.defer(()->Mono.error(new DashboardException(404, notFoundMessage))));
+    }
+
+    private Mono<Void> publishResponse(DashboardMetric dashboardMetric) {
+        if (metricVersions != null) {
+            metricVersions.record(dashboardMetric.getUserId(), dashboardMetric.getVersion());
+        }
+        if (leaderboard != null) {
+            leaderboard.update(dashboardMetric.getUserId(), dashboardMetric.getGoalScore(), dashboardMetric.getAverageScore());
+        }
+        if (scorePercentiles != null) {
+            scorePercentiles.record(dashboardMetric.getGoalScore(), dashboardMetric.getAverageScore());
+        }
+        boolean watched = metricUpdateBroadcaster != null && metricUpdateBroadcaster.hasSubscribers(dashboardMetric.getUserId());
+        if (metricResponseCache == null && metricReadModel == null && !watched) {
+            return Mono.empty();
+        }
+        MetricResponse metricResponse = toMetricResponse(dashboardMetric);
+        if (metricResponseCache != null) {
+            metricResponseCache.put(dashboardMetric.getUserId(), metricResponse);
+        }
+        if (watched) {
+            metricUpdateBroadcaster.publish(dashboardMetric.getUserId(), metricResponse);
+        }
+        return metricReadModel != null
+                ? metricReadModel.save(dashboardMetric.getUserId(), metricResponse)
+                : Mono.empty();
+    }
+
+    public Mono<DashboardMetric> computeScoreOnGoalComplete(Goal completedGoal) {
+        return computeScoreOnGoalComplete(completedGoal, null);
+    }
 
+    public Mono<DashboardMetric> computeScoreOnGoalComplete(Goal completedGoal, String eventId) {
+        return applyDelta(deltaOnGoalComplete(completedGoal, eventId, epochDayClock.todayDate()), "User records not found!");
+    }
+
+    public MetricDelta deltaOnGoalComplete(Goal completedGoal, String eventId, LocalDate today) {
+        return deltaOf(completedGoal.getUserId(), eventId, Operation.GOAL_COMPLETED, completedGoal, today.toEpochDay());
     }
 
     public Mono<DashboardMetric> computeScoreOnGoalDeferred(Goal deferredGoal) {
-        return dashboardMetricRepository.findByUserId(deferredGoal.getUserId())
-                .map(dashboardMetric -> {
-                    DashboardMetric updatedMetric = DashboardMetric.from(dashboardMetric);
-                    long deferredGoals = dashboardMetric.getTotalGoalsDeferred();
-                    long scoreToDecrement = deferPenalty;
-
-                    if (deferredGoal.getDueDate().isBefore(LocalDate.now())) {
-                        long elapsed = ChronoUnit.DAYS.between(deferredGoal.getDueDate(), LocalDate.now());
-                        scoreToDecrement = scoreToDecrement + elapsed;
-                    }
-                    updatedMetric.setGoalScore(dashboardMetric.getGoalScore() - scoreToDecrement);
-                    updatedMetric.setTotalGoalsDeferred(deferredGoals + 1);
-                    updatedMetric.setTotalGoalsInProgress(updatedMetric.getTotalGoalsInProgress() - 1);
-                    return computeGoalSummary(updatedMetric, deferredGoal, Operation.GOAL_DEFERRED, Optional.of(scoreToDecrement));
-                })
-                .switchIfEmpty(Mono.defer(()->Mono.error(new DashboardException(404, "User records not found"))))
-                .flatMap(dashboardMetricRepository::save);
+        return computeScoreOnGoalDeferred(deferredGoal, null);
+    }
+
+    public Mono<DashboardMetric> computeScoreOnGoalDeferred(Goal deferredGoal, String eventId) {
+        return applyDelta(deltaOnGoalDeferred(deferredGoal, eventId, epochDayClock.todayDate()), "User records not found");
+    }
 
+    public MetricDelta deltaOnGoalDeferred(Goal deferredGoal, String eventId, LocalDate today) {
+        return deltaOf(deferredGoal.getUserId(), eventId, Operation.GOAL_DEFERRED, deferredGoal, today.toEpochDay());
     }
 
     public Mono<DashboardMetric> computeScoreOnGoalResumed(Goal resumedGoal) {
-        return dashboardMetricRepository.findByUserId(resumedGoal.getUserId())
-                .map(dashboardMetric -> {
-                    DashboardMetric updatedMetric = DashboardMetric.from(dashboardMetric);
-                    long inProgressGoals = dashboardMetric.getTotalGoalsInProgress();
-                    long scoreToAdd = resumeBonus;
-
-                    if (resumedGoal.getDueDate().isBefore(LocalDate.now())) {
-                        long elapsed = ChronoUnit.DAYS.between(resumedGoal.getDueDate(), LocalDate.now());
-                        scoreToAdd = scoreToAdd - elapsed;
-                    }
-                    updatedMetric.setGoalScore(dashboardMetric.getGoalScore() + scoreToAdd);
-                    updatedMetric.setTotalGoalsInProgress(inProgressGoals + 1);
-                    updatedMetric.setTotalGoalsDeferred(updatedMetric.getTotalGoalsDeferred() - 1);
+        return computeScoreOnGoalResumed(resumedGoal, null);
+    }
 
-                    return computeGoalSummary(updatedMetric, resumedGoal, Operation.GOAL_RESUMED, Optional.of(scoreToAdd));
-                })
-                .switchIfEmpty(Mono.defer(()->Mono.error(new DashboardException(404, "User records not found"))))
-                .flatMap(dashboardMetricRepository::save);
+    public Mono<DashboardMetric> computeScoreOnGoalResumed(Goal resumedGoal, String eventId) {
+        return applyDelta(deltaOnGoalResumed(resumedGoal, eventId, epochDayClock.todayDate()), "User records not found");
+    }
 
+    public MetricDelta deltaOnGoalResumed(Goal resumedGoal, String eventId, LocalDate today) {
+        return deltaOf(resumedGoal.getUserId(), eventId, Operation.GOAL_RESUMED, resumedGoal, today.toEpochDay());
     }
 
     public Mono<DashboardMetric> computeScoreOnTaskAdd(Task addedTask) {
-        return dashboardMetricRepository.findByUserId(addedTask.getUserId())
-                .map(dashboardMetric -> {
-                    DashboardMetric updatedMetric = DashboardMetric.from(dashboardMetric);
-                    MetricSummary metricSummary = updatedMetric.getMetricSummaryList().stream()
-                            .filter(summary -> summary.getMonth().isEqual(findMetricSummaryKey(addedTask.getDueDate())))
-                            .findAny().orElse(new MetricSummary(findMetricSummaryKey(addedTask.getDueDate())));
-                    metricSummary.setTasksPlanned(metricSummary.getTasksPlanned() + 1);
-                    log.info("Metricsummary " + metricSummary);
-                    List<MetricSummary> metricSummaries = updatedMetric.getMetricSummaryList()
-                                                            .stream()
-                                                            .filter(summary ->
-                                                                !summary.getMonth().isEqual(findMetricSummaryKey(addedTask.getDueDate()))
-                                                            ).collect(Collectors.toList());
-                    metricSummaries.add(metricSummary);
-                    updatedMetric.setMetricSummaryList(metricSummaries);
-                    log.info("Dashboardmetric " + dashboardMetric);
-                    return updatedMetric;
-                })
-                .switchIfEmpty(Mono.defer(()->Mono.error(new DashboardException(404, "User records not found"))))
-                .flatMap(dashboardMetricRepository::save);
+        return computeScoreOnTaskAdd(addedTask, null);
+    }
+
+    public Mono<DashboardMetric> computeScoreOnTaskAdd(Task addedTask, String eventId) {
+        return applyDelta(deltaOnTaskAdd(addedTask, eventId), "User records not found");
+    }
+
+    public MetricDelta deltaOnTaskAdd(Task addedTask, String eventId) {
+        return deltaOf(addedTask.getUserId(), eventId, Operation.TASK_ADDED, addedTask, epochDayClock.today());
     }
 
     public Mono<DashboardMetric> computeScoreOnTaskComplete(Task completedTask) {
-        return dashboardMetricRepository.findByUserId(completedTask.getUserId())
-                .map(dashboardMetric -> {
-                    DashboardMetric updatedMetric = DashboardMetric.from(dashboardMetric);
-                    MetricSummary metricSummary = updatedMetric.getMetricSummaryList().stream()
-                            .filter(summary -> summary.getMonth().isEqual(findMetricSummaryKey(LocalDate.now())))
-                            .findAny().orElse(new MetricSummary(findMetricSummaryKey(LocalDate.now())));
-                    metricSummary.setTasksCompleted(metricSummary.getTasksCompleted() + 1);
-                    List<MetricSummary> metricSummaries = updatedMetric.getMetricSummaryList()
-                            .stream()
-                            .filter(summary ->
-                                    !summary.getMonth().isEqual(findMetricSummaryKey(LocalDate.now()))
-                            ).collect(Collectors.toList());
-                    metricSummaries.add(metricSummary);
-                    updatedMetric.setMetricSummaryList(metricSummaries);
-                    return updatedMetric;
-                })
-                .switchIfEmpty(Mono.defer(()->Mono.error(new DashboardException(404, "User records not found"))))
-                .flatMap(dashboardMetricRepository::save);
+        return computeScoreOnTaskComplete(completedTask, null);
+    }
 
+    public Mono<DashboardMetric> computeScoreOnTaskComplete(Task completedTask, String eventId) {
+        return applyDelta(deltaOnTaskComplete(completedTask, eventId, epochDayClock.todayDate()), "User records not found");
     }
 
-    public Mono<MetricResponse> getMetrics(String userId) {
+    public MetricDelta deltaOnTaskComplete(Task completedTask, String eventId, LocalDate today) {
+        return deltaOf(completedTask.getUserId(), eventId, Operation.TASK_COMPLETED, completedTask, today.toEpochDay());
+    }
 
-        LocalDate currentMonth = LocalDate.now();
+    /**
+     * The change a goal or task event makes, scored as if it was applied on {@code today}, or null
+     * for event types that do not change metrics. Used to replay events outside the consumer.
+     */
+    public MetricDelta deltaFor(Event<String, ?> event, String eventId, LocalDate today) {
+        switch (event.getEventType()) {
+            case GOAL_ADDED:
+                return deltaOnGoalAdd((Goal) event.getData(), eventId);
+            case GOAL_COMPLETED:
+                return deltaOnGoalComplete((Goal) event.getData(), eventId, today);
+            case GOAL_DEFERRED:
+                return deltaOnGoalDeferred((Goal) event.getData(), eventId, today);
+            case GOAL_RESUMED:
+                return deltaOnGoalResumed((Goal) event.getData(), eventId, today);
+            case TASK_ADDED:
+                return deltaOnTaskAdd((Task) event.getData(), eventId);
+            case TASK_COMPLETED:
+                return deltaOnTaskComplete((Task) event.getData(), eventId, today);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Epoch day events applied now are scored on.
+     */
+    public long today() {
+        return epochDayClock.today();
+    }
 
-        return dashboardMetricRepository.findByUserId(userId)
-                .map(dashboardMetric -> {
-                    List<GoalTrend> trends = new ArrayList<>();
-                    trends.addAll(
-                    dashboardMetric.getMetricSummaryList()
-                            .stream()
-                            .filter(this::includeMetric)
-                            .sorted(comparing(summary -> summary.getMonth().getMonth().getValue()))
-                            .map(summary -> {
-                                return new GoalTrend
-                                        (summary.getMonth().getMonth()
-                                                .getDisplayName(TextStyle.SHORT, Locale.ENGLISH),
-                                                summary.getScore());
-
-                            })
-                            .collect(Collectors.toList()));
-                    MetricResponse metricResponse = mapper.dashboardMetricToMetricResponse(dashboardMetric);
-                    metricResponse.setTrends(trends);
-                    MetricSummary currentSummary = dashboardMetric.getMetricSummaryList().stream()
-                            .filter(summary -> {
-                                LocalDate monthStarting = LocalDate.of(currentMonth.getYear(), currentMonth.getMonth(), 2);
-                                return summary.getMonth().isEqual(monthStarting);
-                    }).findAny().orElse(new MetricSummary());
-                    metricResponse.setTasksPlanned(currentSummary.getTasksPlanned());
-                    metricResponse.setTasksCompleted(currentSummary.getTasksCompleted());
-                    metricResponse.setGoalsPlanned(currentSummary.getGoalsPlanned());
-                    metricResponse.setGoalsAccomplished(currentSummary.getGoalsAccomplished());
-                    metricResponse.setFallback(getFallbackValue(dashboardMetric));
-                    metricResponse.setActiveMonth(LocalDate.of(currentMonth.getYear(), currentMonth.getMonthValue(), 2));
-                    return metricResponse;
+    /**
+     * Settings the scores depend on, to tell whether two rebuilds scored events the same way.
+     */
+    public String scoringConfiguration() {
+        return "easy=" + easyGoalScore + ",moderate=" + moderateGoalScore + ",extreme=" + extremeGoalScore
+                + ",deferPenalty=" + deferPenalty + ",resumeBonus=" + resumeBonus;
+    }
+
+    public Mono<MetricResponse> getMetrics(String userId) {
+        Mono<MetricResponse> fromStore = Mono.defer(() -> pipelineMetrics.timeRepository("findByUserId", dashboardMetricRepository.findByUserId(userId))
+                .flatMap(dashboardMetric -> {
+                    MetricResponse metricResponse = toMetricResponse(dashboardMetric);
+                    return metricReadModel != null
+                            ? metricReadModel.save(userId, metricResponse).thenReturn(metricResponse)
+                            : Mono.just(metricResponse);
                 })
+                .switchIfEmpty(Mono.defer(()->Mono.error(new DashboardException(404, "User records not found")))));
+        Mono<MetricResponse> fromReadModel = metricReadModel != null
+                ? Mono.defer(() -> metricReadModel.find(userId)).switchIfEmpty(fromStore)
+                : fromStore;
+        Mono<MetricResponse> response = metricResponseCache != null
+                ? metricResponseCache.get(userId, knownVersion(userId), fromReadModel)
+                : fromReadModel;
+        return metricVersions != null
+                ? response.doOnNext(metricResponse -> metricVersions.record(userId, metricResponse.getVersion()))
+                : response;
+    }
+
+    private Long knownVersion(String userId) {
+        return metricVersions != null ? metricVersions.get(userId) : null;
+    }
+
+    /**
+     * The entity tag of the user's current response if the user's version is known, without loading
+     * anything, or null.
+     */
+    public String getMetricsETag(String userId) {
+        Long version = metricVersions != null ? metricVersions.get(userId) : null;
+        return version != null ? eTagOf(version, LocalDate.now()) : null;
+    }
+
+    public static String eTagOf(MetricResponse metricResponse) {
+        LocalDate activeMonth = metricResponse.getActiveMonth();
+        return eTagOf(metricResponse.getVersion(), activeMonth != null ? activeMonth : LocalDate.now());
+    }
+
+    /**
+     * Weak entity tag of a response built from the given document version. It is weak as the JSON,
+     * CBOR and Smile representations of one version share it while their bytes differ. The month is
+     * part of it as the current month's counters and the trend window change when it rolls over.
+     * Score percentiles are left out, they shift with the scores of other users.
+     */
+    static String eTagOf(long version, LocalDate activeMonth) {
+        return "W/\"" + version + "-" + YearMonth.from(activeMonth) + "\"";
+    }
+
+    /**
+     * Responses for the given users, from the same sources as a single user's read, each asked once
+     * for all users it still has to answer: cached responses, then the read model, then the documents
+     * with a single $in query. Responses are emitted as they arrive; unknown users are left out.
+     */
+    public Flux<MetricResponse> getMetrics(Collection<String> userIds) {
+        Set<String> missing = Collections.synchronizedSet(new LinkedHashSet<>(userIds));
+        Flux<MetricResponse> cached = metricResponseCache == null ? Flux.empty()
+                : Flux.defer(() -> Flux.fromIterable(new ArrayList<>(missing)))
+                        .concatMap(userId -> Mono.justOrEmpty(metricResponseCache.getIfCurrent(userId, knownVersion(userId)))
+                                .doOnNext(response -> missing.remove(userId)));
+        Flux<MetricResponse> viewed = metricReadModel == null ? Flux.empty()
+                : Flux.defer(() -> missing.isEmpty() ? Flux.empty() : metricReadModel.findAll(new ArrayList<>(missing)))
+                        .map(view -> {
+                            missing.remove(view.getUserId());
+                            return view.getResponse();
+                        });
+        Flux<MetricResponse> built = Flux.defer(() -> missing.isEmpty() ? Flux.empty() : dashboardMetricRepository.findByUserIdIn(new ArrayList<>(missing)))
+                .concatMap(dashboardMetric -> {
+                    MetricResponse metricResponse = toMetricResponse(dashboardMetric);
+                    return metricReadModel != null
+                            ? metricReadModel.save(dashboardMetric.getUserId(), metricResponse).thenReturn(metricResponse)
+                            : Mono.just(metricResponse);
+                });
+        return Flux.concat(cached, viewed, built);
+    }
+
+    /**
+     * One point per period of the granularity, from the one holding {@code from} to the one holding
+     * {@code to}, with periods without activity reported as zeros. Only the buckets of that
+     * granularity are read, so a query costs the same whatever span its periods cover.
+     */
+    public Mono<TrendResponse> getTrends(String userId, LocalDate from, LocalDate to, TrendGranularity granularity) {
+        if (from.isAfter(to)) {
+            return Mono.error(new DashboardException(400, "from must not be after to"));
+        }
+        if (granularity.periodsBetween(from, to) > maxTrendPoints) {
+            return Mono.error(new DashboardException(400, "At most " + maxTrendPoints + " periods per request"));
+        }
+        return pipelineMetrics.timeRepository("findRollup", dashboardMetricRepository.findRollup(userId, granularity))
+                .map(dashboardMetric -> toTrendResponse(dashboardMetric.rollup(granularity), from, to, granularity))
                 .switchIfEmpty(Mono.defer(()->Mono.error(new DashboardException(404, "User records not found"))));
+    }
 
+    private TrendResponse toTrendResponse(SortedMap<Integer, MetricSummary> buckets, LocalDate from, LocalDate to,
+                                          TrendGranularity granularity) {
+        List<TrendPoint> points = new ArrayList<>();
+        for (LocalDate start = granularity.startOf(granularity.keyOf(from)); !start.isAfter(to); start = granularity.next(start)) {
+            int key = granularity.keyOf(start);
+            MetricSummary summary = buckets.getOrDefault(key, new MetricSummary());
+            points.add(new TrendPoint(granularity.label(key), start, summary.getScore(), summary.getGoalsPlanned(),
+                    summary.getGoalsAccomplished(), summary.getTasksPlanned(), summary.getTasksCompleted()));
+        }
+        return new TrendResponse(granularity, from, to, points);
+    }
+
+    /**
+     * The user's current response followed by one for every event applied afterwards. The current
+     * response is dropped if an update overtook it, as it would be older than what was already sent.
+     */
+    public Flux<MetricResponse> streamMetrics(String userId) {
+        if (metricUpdateBroadcaster == null) {
+            return Flux.error(new DashboardException(400, "Metric streaming is disabled"));
+        }
+        return Flux.defer(() -> {
+            AtomicBoolean updated = new AtomicBoolean();
+            Flux<MetricResponse> updates = metricUpdateBroadcaster.updates(userId)
+                    .doOnNext(metricResponse -> updated.set(true));
+            Mono<MetricResponse> current = getMetrics(userId)
+                    .filter(metricResponse -> !updated.get());
+            return Flux.merge(updates, current);
+        });
+    }
+
+    /**
+     * The {@code limit} users with the highest score.
+     */
+    public Flux<LeaderboardEntry> getLeaderboard(LeaderboardScore score, int limit) {
+        if (leaderboard == null) {
+            return Flux.error(new DashboardException(400, "Leaderboard is disabled"));
+        }
+        if (limit < 1 || limit > maxLeaderboardLimit) {
+            return Flux.error(new DashboardException(400, "limit must be between 1 and " + maxLeaderboardLimit));
+        }
+        return Flux.defer(() -> Flux.fromIterable(leaderboard.top(score, limit)));
+    }
+
+    public Mono<LeaderboardEntry> getLeaderboardRank(String userId, LeaderboardScore score) {
+        if (leaderboard == null) {
+            return Mono.error(new DashboardException(400, "Leaderboard is disabled"));
+        }
+        return Mono.fromSupplier(() -> leaderboard.rank(userId, score))
+                .switchIfEmpty(Mono.defer(()->Mono.error(new DashboardException(404, "User records not found"))));
+    }
+
+    /**
+     * Drops every built response after scores were rewritten behind the event path's back.
+     */
+    public Mono<Void> discardResponses() {
+        if (metricResponseCache != null) {
+            metricResponseCache.invalidateAll();
+        }
+        if (metricVersions != null) {
+            metricVersions.invalidateAll();
+        }
+        Mono<Void> reloaded = Mono.empty();
+        if (leaderboard != null) {
+            reloaded = leaderboard.reload().then();
+        }
+        if (scorePercentiles != null) {
+            reloaded = reloaded.then(scorePercentiles.rebuild()).then();
+        }
+        return reloaded.then(metricReadModel != null ? rebuildReadModel().then() : Mono.empty());
+    }
+
+    public Mono<Long> rebuildReadModel() {
+        if (metricReadModel == null) {
+            return Mono.error(new DashboardException(400, "Read model is disabled"));
+        }
+        return dashboardMetricRepository.findAll()
+                .map(dashboardMetric -> new MetricResponseView(dashboardMetric.getUserId(), toMetricResponse(dashboardMetric)))
+                .buffer(REBUILD_BATCH_SIZE)
+                .concatMap(metricReadModel::saveAll)
+                .reduce(0L, Long::sum)
+                .doOnNext(count -> log.info("Rebuilt read model for " + count + " users"));
+    }
+
+    MetricResponse toMetricResponse(DashboardMetric dashboardMetric) {
+
+        LocalDate currentMonth = LocalDate.now();
+
+        List<GoalTrend> trends = new ArrayList<>();
+        trends.addAll(
+        dashboardMetric.getMetricSummaries()
+                .tailMap(MetricSummary.monthKey(currentMonth.minusMonths(3)))
+                .values()
+                .stream()
+                .filter(this::includeMetric)
+                .map(summary -> {
+                    return new GoalTrend
+                            (summary.getMonth().getMonth()
+                                    .getDisplayName(TextStyle.SHORT, Locale.ENGLISH),
+                                    summary.getScore());
+
+                })
+                .collect(Collectors.toList()));
+        // The counter updates do not maintain the stored average, so it is derived on a copy and the
+        // caller's document is left as it was read.
+        MetricResponse metricResponse = mapper.dashboardMetricToMetricResponse(withAverageScore(DashboardMetric.from(dashboardMetric)));
+        metricResponse.setTrends(trends);
+        MetricSummary currentSummary = dashboardMetric.getMetricSummaries()
+                .getOrDefault(MetricSummary.monthKey(currentMonth), new MetricSummary());
+        metricResponse.setTasksPlanned(currentSummary.getTasksPlanned());
+        metricResponse.setTasksCompleted(currentSummary.getTasksCompleted());
+        metricResponse.setGoalsPlanned(currentSummary.getGoalsPlanned());
+        metricResponse.setGoalsAccomplished(currentSummary.getGoalsAccomplished());
+        metricResponse.setFallback(getFallbackValue(dashboardMetric));
+        metricResponse.setActiveMonth(LocalDate.of(currentMonth.getYear(), currentMonth.getMonthValue(), 2));
+        if (scorePercentiles != null) {
+            metricResponse.setGoalScorePercentile(scorePercentiles.goalScorePercentile(metricResponse.getGoalScore()));
+            metricResponse.setAverageScorePercentile(scorePercentiles.averageScorePercentile(metricResponse.getAverageScore()));
+        }
+        return metricResponse;
     }
 
     private String getFallbackValue(DashboardMetric dashboardMetric) {
 
-        return (dashboardMetric.getMetricSummaryList().stream()
+        return (dashboardMetric.getMetricSummaries().values().stream()
                 .anyMatch(summary -> summary.getGoalsPlanned() > 0 || summary.getTasksPlanned() > 0))
                 ? "" : "Please start adding goals and tasks!";
     }
 
-    public Mono<DashboardMetric> initMetrics(String userId)  {
+    public Mono<Void> initMetrics(String userId)  {
         return initMetricsForUser(userId);
 
     }
@@ -356,11 +535,42 @@ public class DashboardService {
     }
 
 
-    private Mono<DashboardMetric> initMetricsForUser(String userId)    {
-        DashboardMetric dashboardMetric = new DashboardMetric();
-        dashboardMetric.setUserId(userId);
-        log.info("saving metric " + dashboardMetric.getUserId());
-        return dashboardMetricRepository.save(dashboardMetric)
+    /**
+     * Creates the user's metrics document unless it exists. Completes once the document exists,
+     * whether it was created now or before. Only a user created now is added to the leaderboard
+     * and the score percentiles.
+     */
+    private Mono<Void> initMetricsForUser(String userId)    {
+        Mono<Boolean> created;
+        if (userOnboardingBuffer != null) {
+            created = userOnboardingBuffer.submit(userId);
+        } else {
+            DashboardMetric dashboardMetric = new DashboardMetric();
+            dashboardMetric.setUserId(userId);
+            log.info("saving metric " + dashboardMetric.getUserId());
+            created = pipelineMetrics.timeRepository("save", dashboardMetricRepository.save(dashboardMetric))
+                    .thenReturn(true)
+                    .onErrorResume(DuplicateKeyException.class, e -> {
+                        log.info("metrics already initialized for " + userId);
+                        return Mono.just(false);
+                    });
+        }
+        if (leaderboard != null) {
+            created = created.doOnNext(isNew -> {
+                if (isNew) {
+                    leaderboard.seed(userId, 0, 0.0);
+                }
+            });
+        }
+        if (scorePercentiles != null) {
+            created = created.doOnNext(isNew -> {
+                if (isNew) {
+                    scorePercentiles.add(0, 0.0);
+                }
+            });
+        }
+        return created
+                .then()
                 .doOnError((throwable) -> {
                     log.error("exception occured!");
                     throw  new DashboardException(500, "Internal server error!");
@@ -368,10 +578,9 @@ public class DashboardService {
 
     }
 
-    public void initializeUser(Event event) {
-        initMetricsForUser(event.getKey().toString()).block();
+    public Mono<Void> initializeUser(Event event) {
+        return initMetricsForUser(event.getKey().toString());
 
     }
 
 }
-
@@ -0,0 +1,59 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * Today's date in the clock's zone, worked out once per day. Reading it in between costs a read of
+ * the clock's milliseconds, where {@code LocalDate.now()} converts them to a date every time.
+ */
+public class EpochDayClock {
+
+    private final Clock clock;
+    private volatile Day day;
+
+    public EpochDayClock(Clock clock) {
+        this.clock = clock;
+        this.day = dayAt(clock.millis());
+    }
+
+    public long today() {
+        return current().epochDay;
+    }
+
+    public LocalDate todayDate() {
+        return current().date;
+    }
+
+    private Day current() {
+        Day current = day;
+        long now = clock.millis();
+        if (now < current.startMillis || now >= current.endMillis) {
+            current = dayAt(now);
+            day = current;
+        }
+        return current;
+    }
+
+    private Day dayAt(long millis) {
+        LocalDate date = LocalDate.ofInstant(Instant.ofEpochMilli(millis), clock.getZone());
+        return new Day(date,
+                date.atStartOfDay(clock.getZone()).toInstant().toEpochMilli(),
+                date.plusDays(1).atStartOfDay(clock.getZone()).toInstant().toEpochMilli());
+    }
+
+    private static final class Day {
+        private final LocalDate date;
+        private final long epochDay;
+        private final long startMillis;
+        private final long endMillis;
+
+        Day(LocalDate date, long startMillis, long endMillis) {
+            this.date = date;
+            this.epochDay = date.toEpochDay();
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nikhilm.hourglass.dashboard.models.Event;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Bounded, time-windowed set of the events this instance has applied, so a retried or redelivered
+ * event is acknowledged without touching Mongo. It is only a screen: events that fall out of it, or
+ * that were applied before a restart, are caught by the applied event ids stored on the document.
+ */
+@Component
+public class EventDeduplicator {
+
+    private final Cache<String, Boolean> applied;
+
+    private final Counter duplicateCounter;
+
+    @Autowired
+    public EventDeduplicator(MeterRegistry meterRegistry,
+                             @Value("${dashboard.idempotency.maximumSize:100000}") long maximumSize,
+                             @Value("${dashboard.idempotency.ttlMinutes:60}") long ttlMinutes) {
+        this.applied = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofMinutes(ttlMinutes))
+                .build();
+        this.duplicateCounter = meterRegistry.counter("dashboard.events.duplicates");
+    }
+
+    /**
+     * Identity of an event as its producer stamped it, or null if the event lacks a key or a
+     * creation time and cannot be told apart from a replay.
+     */
+    public static String idOf(Event<?, ?> event) {
+        if (event.getKey() == null || event.getEventType() == null || event.getEventCreatedAt() == null) {
+            return null;
+        }
+        return event.getKey() + ":" + event.getEventType() + ":" + event.getEventCreatedAt();
+    }
+
+    public boolean isDuplicate(String eventId) {
+        if (applied.getIfPresent(eventId) == null) {
+            return false;
+        }
+        duplicateCounter.increment();
+        return true;
+    }
+
+    public void applied(String eventId) {
+        applied.put(eventId, Boolean.TRUE);
+    }
+}
@@ -0,0 +1,314 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the events the consumer applied, kept in fixed size memory-mapped segment
+ * files. Each record is the event's message body as received, prefixed with its length, a CRC32 and
+ * the epoch day it was applied on, which its scores depend on; the CRC covers the day and the body.
+ * An unwritten, zero filled length marks the end of a segment.
+ * <p>
+ * Appending only hands the record to a queue, so the consumer never waits on disk. A single writer
+ * thread copies queued records into the current segment and forces it to disk at most once per
+ * {@code fsyncIntervalMillis}, covering every record written since the last force. If the queue is
+ * full the record is counted as dropped instead of stalling the consumer. On startup the last segment
+ * is continued after its last intact record. A new segment is started when the current one is full,
+ * and the oldest segments beyond {@code retainSegments} are deleted.
+ */
+@Component
+@ConditionalOnProperty(name = "dashboard.journal.enabled", havingValue = "true")
+@Slf4j
+public class EventJournal {
+
+    static final int HEADER_BYTES = 16;
+
+    // The CRC covers the record from the processing day on.
+    static final int CHECKED_FROM = 8;
+
+    static final String SEGMENT_PREFIX = "events-";
+
+    static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final int MAX_BATCH = 1024;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long fsyncIntervalMillis;
+    private final int retainSegments;
+    private final BlockingQueue<Record> queue;
+
+    private final Counter appended;
+    private final Counter dropped;
+    private final Timer fsync;
+    private final ByteBuffer day = ByteBuffer.allocate(Long.BYTES);
+
+    private volatile boolean running;
+    private Thread writer;
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+    private boolean dirty;
+    private long lastForceNanos;
+
+    @Autowired
+    public EventJournal(MeterRegistry meterRegistry,
+                        @Value("${dashboard.journal.directory:journal}") String directory,
+                        @Value("${dashboard.journal.segmentBytes:67108864}") int segmentBytes,
+                        @Value("${dashboard.journal.fsyncIntervalMillis:10}") long fsyncIntervalMillis,
+                        @Value("${dashboard.journal.retainSegments:64}") int retainSegments,
+                        @Value("${dashboard.journal.queueCapacity:65536}") int queueCapacity) {
+        this.directory = Paths.get(directory).toAbsolutePath().normalize();
+        this.segmentBytes = segmentBytes;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.retainSegments = retainSegments;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.appended = meterRegistry.counter("dashboard.journal.appended");
+        this.dropped = meterRegistry.counter("dashboard.journal.dropped");
+        this.fsync = meterRegistry.timer("dashboard.journal.fsync");
+        Gauge.builder("dashboard.journal.queued", queue, BlockingQueue::size).register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> segments = segments(directory);
+        if (segments.isEmpty()) {
+            roll();
+        } else {
+            resume(segments.get(segments.size() - 1));
+        }
+        running = true;
+        writer = new Thread(this::writeLoop, "event-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a record of an event applied on the given epoch day without blocking. Returns false if it
+     * was dropped because the writer is behind.
+     */
+    public boolean append(long processedOn, byte[] payload) {
+        if (!running || !queue.offer(new Record(processedOn, payload))) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public EventJournalReader reader() {
+        return new EventJournalReader(directory);
+    }
+
+    /**
+     * Writes out whatever is queued and forces it to disk.
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        running = false;
+        if (writer != null) {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (running || !queue.isEmpty()) {
+                Record first = queue.poll(Math.max(fsyncIntervalMillis, 1), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Record record : batch) {
+                        write(record);
+                    }
+                    appended.increment(batch.size());
+                    batch.clear();
+                }
+                if (dirty && System.nanoTime() - lastForceNanos >= TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis)) {
+                    force();
+                }
+            }
+            if (dirty) {
+                force();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            log.error("Event journal stopped " + e.getMessage());
+            running = false;
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        byte[] payload = record.payload;
+        if (HEADER_BYTES + payload.length > segmentBytes) {
+            log.error("Event of " + payload.length + " bytes does not fit a journal segment");
+            dropped.increment();
+            return;
+        }
+        if (segment.remaining() < HEADER_BYTES + payload.length) {
+            roll();
+        }
+        CRC32 crc = new CRC32();
+        day.clear();
+        crc.update(day.putLong(0, record.processedOn));
+        crc.update(payload);
+        segment.putInt(payload.length);
+        segment.putInt((int) crc.getValue());
+        segment.putLong(record.processedOn);
+        segment.put(payload);
+        dirty = true;
+    }
+
+    private void force() {
+        long start = System.nanoTime();
+        segment.force();
+        fsync.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        dirty = false;
+        lastForceNanos = System.nanoTime();
+    }
+
+    /**
+     * Continues the segment after its last intact record. A torn record the previous run left behind
+     * is zeroed, so readers do not take what follows it for a record. A segment of another size, from
+     * an earlier configuration, is left as is.
+     */
+    private void resume(Path file) throws IOException {
+        segmentNumber = numberOf(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != segmentBytes) {
+                roll();
+                return;
+            }
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        int end = endOf(segment);
+        if (end + HEADER_BYTES <= segmentBytes && segment.getLong(end) != 0) {
+            log.info("Journal segment " + file + " ends with a torn record at " + end);
+            for (int position = end; position < segmentBytes; position++) {
+                segment.put(position, (byte) 0);
+            }
+            segment.force();
+        }
+        segment.position(end);
+        log.info("Journal segment " + file + " continued at " + end);
+    }
+
+    /**
+     * Position after the last record of the segment whose length fits and whose checksum matches.
+     */
+    static int endOf(ByteBuffer segment) {
+        CRC32 crc = new CRC32();
+        int position = 0;
+        while (position + HEADER_BYTES <= segment.capacity()) {
+            int length = segment.getInt(position);
+            if (length <= 0 || length > segment.capacity() - position - HEADER_BYTES) {
+                break;
+            }
+            ByteBuffer record = segment.duplicate();
+            record.position(position + CHECKED_FROM).limit(position + HEADER_BYTES + length);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != segment.getInt(position + 4)) {
+                break;
+            }
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private void roll() throws IOException {
+        if (segment != null && dirty) {
+            force();
+        }
+        segmentNumber++;
+        Path file = directory.resolve(nameOf(segmentNumber));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        log.info("Journal segment " + file + " opened");
+        List<Path> segments = segments(directory);
+        for (int i = 0; i < segments.size() - retainSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+            log.info("Journal segment " + segments.get(i) + " deleted");
+        }
+    }
+
+    static String nameOf(long segmentNumber) {
+        return String.format("%s%016d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX);
+    }
+
+    static long numberOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Segment files of the directory, oldest first.
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * An applied event as journaled: its message body and the epoch day it was applied on.
+     */
+    public static final class Record {
+
+        private final long processedOn;
+        private final byte[] payload;
+
+        public Record(long processedOn, byte[] payload) {
+            this.processedOn = processedOn;
+            this.payload = payload;
+        }
+
+        public long getProcessedOn() {
+            return processedOn;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the records of an {@link EventJournal} directory in the order they were appended. A segment
+ * ends at its first zero length or at a record whose checksum does not match, which is where a crash
+ * interrupted the writer; reading continues with the next segment.
+ */
+@Slf4j
+public class EventJournalReader {
+
+    private final Path directory;
+
+    private long corrupt = 0;
+
+    public EventJournalReader(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Records of every segment present when the stream is created, oldest first. Segments are mapped
+     * one at a time as the stream reaches them.
+     */
+    public Stream<EventJournal.Record> records() throws IOException {
+        Iterator<EventJournal.Record> records = new RecordIterator(EventJournal.segments(directory));
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Number of segments the reader found cut short by a torn or corrupt record.
+     */
+    public long getCorrupt() {
+        return corrupt;
+    }
+
+    private class RecordIterator implements Iterator<EventJournal.Record> {
+
+        private final List<Path> segments;
+        private int nextSegment = 0;
+        private MappedByteBuffer segment;
+        private EventJournal.Record next;
+        private final CRC32 crc = new CRC32();
+        private final ByteBuffer day = ByteBuffer.allocate(Long.BYTES);
+
+        RecordIterator(List<Path> segments) {
+            this.segments = segments;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (segment == null || (next = readRecord()) == null) {
+                    if (nextSegment == segments.size()) {
+                        return false;
+                    }
+                    segment = map(segments.get(nextSegment++));
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public EventJournal.Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            EventJournal.Record record = next;
+            next = null;
+            return record;
+        }
+
+        private EventJournal.Record readRecord() {
+            if (segment.remaining() < EventJournal.HEADER_BYTES) {
+                segment = null;
+                return null;
+            }
+            int length = segment.getInt();
+            int checksum = segment.getInt();
+            long processedOn = segment.getLong();
+            if (length <= 0 || length > segment.remaining()) {
+                endSegment(length != 0 || checksum != 0 || processedOn != 0);
+                return null;
+            }
+            byte[] payload = new byte[length];
+            segment.get(payload);
+            crc.reset();
+            day.clear();
+            crc.update(day.putLong(0, processedOn));
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                endSegment(true);
+                return null;
+            }
+            return new EventJournal.Record(processedOn, payload);
+        }
+
+        private void endSegment(boolean torn) {
+            if (torn) {
+                corrupt++;
+                log.info("Journal segment " + segments.get(nextSegment - 1) + " ends with a torn record");
+            }
+            segment = null;
+        }
+
+        private MappedByteBuffer map(Path file) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
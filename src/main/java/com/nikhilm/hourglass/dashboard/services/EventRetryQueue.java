@@ -0,0 +1,161 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delays the next attempt of failed events on a hashed timer wheel, so a failing event does not hold
+ * up the lane it came from. Scheduling is a constant time insert into the wheel's bucket of the due
+ * tick; a single thread advances the wheel every {@code tickMillis} and starts the attempts that
+ * became due, which only subscribe to their work.
+ * <p>
+ * Attempts back off exponentially from {@code backOffInitialInterval} up to
+ * {@code backOffMaxInterval}, each delay jittered by up to half, until {@code maxAttempts} attempts
+ * failed. Waiting attempts of a user can be started early, e.g. once the user was created.
+ */
+@Component
+@ConditionalOnProperty(name = "dashboard.retry.enabled", havingValue = "true")
+@Slf4j
+public class EventRetryQueue {
+
+    private final HashedWheelTimer timer;
+    private final int maxAttempts;
+    private final long backOffInitialInterval;
+    private final long backOffMaxInterval;
+
+    private final Map<String, Set<PendingRetry>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final Counter scheduled;
+    private final Counter released;
+    private final Counter exhausted;
+
+    @Autowired
+    public EventRetryQueue(MeterRegistry meterRegistry,
+                           @Value("${dashboard.retry.maxAttempts:5}") int maxAttempts,
+                           @Value("${dashboard.retry.backOffInitialInterval:1000}") long backOffInitialInterval,
+                           @Value("${dashboard.retry.backOffMaxInterval:60000}") long backOffMaxInterval,
+                           @Value("${dashboard.retry.tickMillis:100}") long tickMillis,
+                           @Value("${dashboard.retry.ticksPerWheel:512}") int ticksPerWheel) {
+        this.maxAttempts = maxAttempts;
+        this.backOffInitialInterval = backOffInitialInterval;
+        this.backOffMaxInterval = backOffMaxInterval;
+        this.timer = new HashedWheelTimer(runnable -> {
+            Thread thread = new Thread(runnable, "event-retry");
+            thread.setDaemon(true);
+            return thread;
+        }, tickMillis, TimeUnit.MILLISECONDS, ticksPerWheel);
+        this.scheduled = meterRegistry.counter("dashboard.retry.scheduled");
+        this.released = meterRegistry.counter("dashboard.retry.released");
+        this.exhausted = meterRegistry.counter("dashboard.retry.exhausted");
+        Gauge.builder("dashboard.retry.waiting", waiting, AtomicInteger::get).register(meterRegistry);
+    }
+
+    /**
+     * Schedules the next attempt of a user's event after its {@code failedAttempts}th failure.
+     * Returns false, and schedules nothing, once the event used up its attempts.
+     */
+    public boolean schedule(String userId, int failedAttempts, Runnable attempt) {
+        if (failedAttempts >= maxAttempts) {
+            exhausted.increment();
+            return false;
+        }
+        PendingRetry retry = new PendingRetry(userId, attempt);
+        pending.compute(userId, (id, retries) -> {
+            Set<PendingRetry> waitingRetries = retries != null ? retries : ConcurrentHashMap.newKeySet();
+            waitingRetries.add(retry);
+            return waitingRetries;
+        });
+        waiting.incrementAndGet();
+        retry.timeout = timer.newTimeout(timeout -> retry.run(), delayOf(failedAttempts), TimeUnit.MILLISECONDS);
+        scheduled.increment();
+        return true;
+    }
+
+    /**
+     * Starts the user's waiting attempts now instead of at their due time. Returns how many.
+     */
+    public int release(String userId) {
+        Set<PendingRetry> retries = pending.get(userId);
+        if (retries == null) {
+            return 0;
+        }
+        int count = 0;
+        for (PendingRetry retry : new ArrayList<>(retries)) {
+            if (retry.run()) {
+                if (retry.timeout != null) {
+                    retry.timeout.cancel();
+                }
+                count++;
+            }
+        }
+        released.increment(count);
+        return count;
+    }
+
+    public int waiting() {
+        return waiting.get();
+    }
+
+    long delayOf(int failedAttempts) {
+        long delay = backOffInitialInterval << Math.min(failedAttempts - 1, 30);
+        if (delay <= 0 || delay > backOffMaxInterval) {
+            delay = backOffMaxInterval;
+        }
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Stops the wheel. Attempts still waiting are dropped; their messages were never acknowledged,
+     * so the broker delivers them again.
+     */
+    @PreDestroy
+    public void stop() {
+        int dropped = timer.stop().size();
+        log.info("Event retry queue stopped with " + dropped + " attempts waiting");
+    }
+
+    private class PendingRetry {
+        private final String userId;
+        private final Runnable attempt;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile Timeout timeout;
+
+        PendingRetry(String userId, Runnable attempt) {
+            this.userId = userId;
+            this.attempt = attempt;
+        }
+
+        // Starts the attempt once, whether the timer or a release gets to it first.
+        boolean run() {
+            if (!started.compareAndSet(false, true)) {
+                return false;
+            }
+            pending.computeIfPresent(userId, (id, retries) -> {
+                retries.remove(this);
+                return retries.isEmpty() ? null : retries;
+            });
+            waiting.decrementAndGet();
+            attempt.run();
+            return true;
+        }
+    }
+}
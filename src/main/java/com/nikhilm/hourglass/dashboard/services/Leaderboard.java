@@ -0,0 +1,205 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.LeaderboardEntry;
+import com.nikhilm.hourglass.dashboard.models.LeaderboardScore;
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory ranking of every user by goal score and by average score, kept current by the writes
+ * that change them. Each ranking is an order statistic tree ordered by score, highest first, and
+ * then by user id, so reading the top users or a user's rank costs O(log n) however many users
+ * there are. Users with equal scores share a rank. It is loaded from the metrics collection at startup.
+ * <p>
+ * After startup it only learns the scores of writes this instance applied, so it is only created
+ * when the instance consumes every user's events, i.e. {@code spring.cloud.stream.instanceCount} is
+ * 1. With more instances the leaderboard endpoints answer that it is disabled.
+ */
+@Component
+@ConditionalOnExpression("${dashboard.leaderboard.enabled:false} and ${spring.cloud.stream.instanceCount:1} == 1")
+@Slf4j
+public class Leaderboard {
+
+    private static final class Standing {
+        final String userId;
+        final long goalScore;
+        final double averageScore;
+
+        Standing(String userId, long goalScore, double averageScore) {
+            this.userId = userId;
+            this.goalScore = goalScore;
+            this.averageScore = averageScore;
+        }
+    }
+
+    private static final Comparator<Standing> BY_GOAL_SCORE = Comparator
+            .comparingLong((Standing standing) -> standing.goalScore).reversed()
+            .thenComparing(standing -> standing.userId);
+
+    private static final Comparator<Standing> BY_AVERAGE_SCORE = Comparator
+            .comparingDouble((Standing standing) -> standing.averageScore).reversed()
+            .thenComparing(standing -> standing.userId);
+
+    private final Map<String, Standing> standings = new HashMap<>();
+    private final OrderStatisticTree<Standing> byGoalScore = new OrderStatisticTree<>(BY_GOAL_SCORE);
+    private final OrderStatisticTree<Standing> byAverageScore = new OrderStatisticTree<>(BY_AVERAGE_SCORE);
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final DashboardMetricRepository dashboardMetricRepository;
+
+    @Autowired
+    public Leaderboard(DashboardMetricRepository dashboardMetricRepository, MeterRegistry meterRegistry) {
+        this.dashboardMetricRepository = dashboardMetricRepository;
+        Gauge.builder("dashboard.leaderboard.users", this, Leaderboard::size).register(meterRegistry);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        load().subscribe(count -> log.info("Loaded leaderboard with " + count + " users"),
+                throwable -> log.error("Leaderboard load failed " + throwable.getMessage()));
+    }
+
+    /**
+     * Streams every user's scores from the store into the leaderboard. Users updated by a write
+     * meanwhile keep their newer scores.
+     */
+    public Mono<Long> load() {
+        return dashboardMetricRepository.findAllScores()
+                .doOnNext(dashboardMetric -> seed(dashboardMetric.getUserId(), dashboardMetric.getGoalScore(),
+                        DashboardService.averageScoreOf(dashboardMetric.getMetricSummaries().values())))
+                .count();
+    }
+
+    /**
+     * Forgets every score and loads them again, after they were rewritten in the store.
+     */
+    public Mono<Long> reload() {
+        return Mono.fromRunnable(this::clear).then(load());
+    }
+
+    /**
+     * Records the user's scores after a write, replacing what was known of them.
+     */
+    public void update(String userId, long goalScore, double averageScore) {
+        lock.writeLock().lock();
+        try {
+            put(new Standing(userId, goalScore, averageScore));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Records the user's scores as read from the store, unless a write already recorded newer ones.
+     */
+    public void seed(String userId, long goalScore, double averageScore) {
+        lock.writeLock().lock();
+        try {
+            if (!standings.containsKey(userId)) {
+                put(new Standing(userId, goalScore, averageScore));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            standings.clear();
+            byGoalScore.clear();
+            byAverageScore.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return standings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The {@code limit} highest ranked users.
+     */
+    public List<LeaderboardEntry> top(LeaderboardScore score, int limit) {
+        lock.readLock().lock();
+        try {
+            List<LeaderboardEntry> entries = new ArrayList<>();
+            Standing previous = null;
+            long rank = 0;
+            for (Standing standing : ranking(score).range(0, limit)) {
+                if (previous == null || compareScores(score, standing, previous) != 0) {
+                    rank = entries.size() + 1;
+                }
+                entries.add(entryOf(rank, standing));
+                previous = standing;
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The user's place in the ranking, or null if the user is unknown.
+     */
+    public LeaderboardEntry rank(String userId, LeaderboardScore score) {
+        lock.readLock().lock();
+        try {
+            Standing standing = standings.get(userId);
+            if (standing == null) {
+                return null;
+            }
+            // An empty user id orders before every other, so this counts the users scoring higher.
+            Standing firstWithScore = new Standing("", standing.goalScore, standing.averageScore);
+            return entryOf(ranking(score).countLess(firstWithScore) + 1, standing);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void put(Standing standing) {
+        Standing previous = standings.put(standing.userId, standing);
+        if (previous != null) {
+            byGoalScore.remove(previous);
+            byAverageScore.remove(previous);
+        }
+        byGoalScore.add(standing);
+        byAverageScore.add(standing);
+    }
+
+    private OrderStatisticTree<Standing> ranking(LeaderboardScore score) {
+        return score == LeaderboardScore.AVERAGE ? byAverageScore : byGoalScore;
+    }
+
+    private static int compareScores(LeaderboardScore score, Standing first, Standing second) {
+        return score == LeaderboardScore.AVERAGE
+                ? Double.compare(first.averageScore, second.averageScore)
+                : Long.compare(first.goalScore, second.goalScore);
+    }
+
+    private static LeaderboardEntry entryOf(long rank, Standing standing) {
+        return new LeaderboardEntry(rank, standing.userId, standing.goalScore, standing.averageScore);
+    }
+}
@@ -0,0 +1,288 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricDelta;
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the deltas of events that arrive for the same user within a short window and writes each
+ * window as one bulk write. Callers get the user's document as it was read back after the flush,
+ * marked as replayed if their event had been applied before.
+ * <p>
+ * One window is written at a time; deltas submitted meanwhile collect in the next one, so a slow
+ * write makes the windows larger rather than the writes more. Only callers that do not wait for
+ * their result before submitting the next delta, like the consumer lanes, get their deltas merged.
+ */
+@Component
+@ConditionalOnProperty(name = "dashboard.coalescing.enabled", havingValue = "true")
+@Slf4j
+public class MetricDeltaBuffer {
+
+    private final DashboardMetricRepository dashboardMetricRepository;
+    private final long windowMillis;
+    private final int maxEvents;
+    private final int maxUsers;
+    private final int appliedEventWindow;
+
+    private final Counter eventCounter;
+    private final Counter writeCounter;
+    private final Timer flushTimer;
+
+    private Map<String, PendingDelta> pending = new HashMap<>();
+    private int pendingEvents = 0;
+    private Disposable scheduledFlush;
+    private boolean windowClosed;
+    private int writesInFlight;
+
+    @Autowired
+    public MetricDeltaBuffer(DashboardMetricRepository dashboardMetricRepository,
+                             MeterRegistry meterRegistry,
+                             @Value("${dashboard.coalescing.windowMillis:50}") long windowMillis,
+                             @Value("${dashboard.coalescing.maxEvents:200}") int maxEvents,
+                             @Value("${dashboard.coalescing.maxUsers:500}") int maxUsers,
+                             @Value("${dashboard.idempotency.appliedEventWindow:100}") int appliedEventWindow) {
+        this.dashboardMetricRepository = dashboardMetricRepository;
+        this.windowMillis = windowMillis;
+        this.maxEvents = maxEvents;
+        this.maxUsers = maxUsers;
+        this.appliedEventWindow = appliedEventWindow;
+        this.eventCounter = meterRegistry.counter("dashboard.coalescing.events");
+        this.writeCounter = meterRegistry.counter("dashboard.coalescing.writes");
+        this.flushTimer = meterRegistry.timer("dashboard.coalescing.flush");
+        Gauge.builder("dashboard.coalescing.ratio", this,
+                buffer -> buffer.writeCounter.count() == 0 ? 0 : buffer.eventCounter.count() / buffer.writeCounter.count())
+                .register(meterRegistry);
+    }
+
+    public Mono<DashboardMetric> submit(MetricDelta delta) {
+        return Mono.defer(() -> {
+            MonoProcessor<DashboardMetric> result = MonoProcessor.create();
+            Map<String, PendingDelta> batch = null;
+            synchronized (this) {
+                PendingDelta pendingDelta = pending.computeIfAbsent(delta.getUserId(), PendingDelta::new);
+                pendingDelta.add(delta, result);
+                pendingEvents++;
+                // A merged update may record no more event ids than the document keeps, its flush
+                // id included, or the check after the write could not tell whether it was applied.
+                // Such a window is written even while another one is.
+                if (pendingDelta.delta.getEventIds().size() >= appliedEventWindow - 1) {
+                    batch = drain();
+                } else if (pendingEvents >= maxEvents || pending.size() >= maxUsers) {
+                    windowClosed = true;
+                    batch = drainIfIdle();
+                } else if (scheduledFlush == null) {
+                    scheduledFlush = Schedulers.parallel().schedule(this::flushWindow, windowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            eventCounter.increment();
+            if (batch != null) {
+                writeAndContinue(batch);
+            }
+            return result;
+        });
+    }
+
+    @PreDestroy
+    public void flush() {
+        Map<String, PendingDelta> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        log.info("Flushing " + batch.size() + " buffered user deltas");
+        try {
+            write(batch).block(Duration.ofSeconds(10));
+        } finally {
+            synchronized (this) {
+                writesInFlight--;
+            }
+        }
+    }
+
+    private void flushWindow() {
+        Map<String, PendingDelta> batch;
+        synchronized (this) {
+            scheduledFlush = null;
+            windowClosed = true;
+            batch = drainIfIdle();
+        }
+        if (batch != null) {
+            writeAndContinue(batch);
+        }
+    }
+
+    // Writes the window, then the next one if it closed in the meantime.
+    private void writeAndContinue(Map<String, PendingDelta> batch) {
+        write(batch)
+                .doFinally(signal -> {
+                    Map<String, PendingDelta> next;
+                    synchronized (this) {
+                        writesInFlight--;
+                        next = windowClosed ? drainIfIdle() : null;
+                    }
+                    if (next != null) {
+                        writeAndContinue(next);
+                    }
+                })
+                .subscribe();
+    }
+
+    @Nullable
+    private Map<String, PendingDelta> drainIfIdle() {
+        if (writesInFlight > 0 || pending.isEmpty()) {
+            return null;
+        }
+        return drain();
+    }
+
+    private Map<String, PendingDelta> drain() {
+        if (scheduledFlush != null) {
+            scheduledFlush.dispose();
+            scheduledFlush = null;
+        }
+        Map<String, PendingDelta> batch = pending;
+        pending = new HashMap<>();
+        pendingEvents = 0;
+        windowClosed = false;
+        writesInFlight++;
+        return batch;
+    }
+
+    private Mono<Void> write(Map<String, PendingDelta> batch) {
+        if (batch.isEmpty()) {
+            return Mono.empty();
+        }
+        List<MetricDelta> deltas = new ArrayList<>();
+        batch.values().forEach(pendingDelta -> {
+            // Recorded with the events, so the document shows whether this update or an earlier one applied them.
+            if (!pendingDelta.delta.getEventIds().isEmpty()) {
+                pendingDelta.flushId = "flush:" + UUID.randomUUID();
+                pendingDelta.delta.getEventIds().add(pendingDelta.flushId);
+            }
+            deltas.add(pendingDelta.delta);
+        });
+        writeCounter.increment(deltas.size());
+        long start = System.nanoTime();
+        return dashboardMetricRepository.applyDeltas(deltas)
+                .thenMany(dashboardMetricRepository.findByUserIdIn(new ArrayList<>(batch.keySet())))
+                .concatMap(metric -> {
+                    PendingDelta pendingDelta = batch.remove(metric.getUserId());
+                    if (pendingDelta == null) {
+                        return Mono.empty();
+                    }
+                    return reconcile(pendingDelta, metric)
+                            .doOnError(pendingDelta::fail)
+                            .onErrorResume(throwable -> Mono.empty());
+                })
+                .then()
+                .doOnSuccess(done -> batch.values().forEach(pendingDelta -> pendingDelta.complete(null)))
+                .doOnError(throwable -> {
+                    log.error("Flush failed " + throwable.getMessage());
+                    batch.values().forEach(pendingDelta -> pendingDelta.fail(throwable));
+                })
+                .doFinally(signal -> flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+                .onErrorResume(throwable -> Mono.empty());
+    }
+
+    /**
+     * The merged update is skipped as a whole when any of its events was applied before, e.g. a
+     * redelivery after a restart, which the missing flush id shows. If so, its events are applied one
+     * at a time, each guarded by its own id, so only the replayed ones are dropped and reported as such.
+     */
+    private Mono<Void> reconcile(PendingDelta pendingDelta, DashboardMetric metric) {
+        if (pendingDelta.flushId == null || metric.getAppliedEventIds().contains(pendingDelta.flushId)) {
+            pendingDelta.complete(metric);
+            return Mono.empty();
+        }
+        log.info("Merged update for " + metric.getUserId() + " contained a replayed event, applying events one by one");
+        return Flux.range(0, pendingDelta.parts.size())
+                .concatMap(i -> applyPart(pendingDelta.parts.get(i), metric)
+                        .doOnSuccess(result -> complete(pendingDelta.waiters.get(i), result)))
+                .then()
+                .doOnSuccess(done -> pendingDelta.copies.forEach(copy -> complete(copy, replayed(metric))));
+    }
+
+    private Mono<DashboardMetric> applyPart(MetricDelta part, DashboardMetric metric) {
+        if (!part.getEventIds().isEmpty() && metric.getAppliedEventIds().containsAll(part.getEventIds())) {
+            return Mono.just(replayed(metric));
+        }
+        return dashboardMetricRepository.applyDelta(part);
+    }
+
+    private static DashboardMetric replayed(DashboardMetric metric) {
+        DashboardMetric replayed = DashboardMetric.from(metric);
+        replayed.setReplayed(true);
+        return replayed;
+    }
+
+    private static void complete(MonoProcessor<DashboardMetric> waiter, @Nullable DashboardMetric metric) {
+        if (metric != null) {
+            waiter.onNext(metric);
+        }
+        waiter.onComplete();
+    }
+
+    private static class PendingDelta {
+        private final MetricDelta delta;
+        private final List<MetricDelta> parts = new ArrayList<>();
+        // The waiter of each part, in the same order.
+        private final List<MonoProcessor<DashboardMetric>> waiters = new ArrayList<>();
+        // Waiters of second copies of an event in the same window, answered by the first one's write.
+        private final List<MonoProcessor<DashboardMetric>> copies = new ArrayList<>();
+        private String flushId;
+
+        PendingDelta(String userId) {
+            this.delta = new MetricDelta(userId);
+        }
+
+        void add(MetricDelta other, MonoProcessor<DashboardMetric> waiter) {
+            if (!other.getEventIds().isEmpty() && delta.getEventIds().containsAll(other.getEventIds())) {
+                copies.add(waiter);
+                return;
+            }
+            delta.merge(other);
+            parts.add(other);
+            waiters.add(waiter);
+        }
+
+        void complete(@Nullable DashboardMetric metric) {
+            waiters.forEach(waiter -> MetricDeltaBuffer.complete(waiter, metric));
+            copies.forEach(copy -> MetricDeltaBuffer.complete(copy, metric == null ? null : replayed(metric)));
+        }
+
+        void fail(Throwable throwable) {
+            waiters.forEach(waiter -> fail(waiter, throwable));
+            copies.forEach(copy -> fail(copy, throwable));
+        }
+
+        private static void fail(MonoProcessor<DashboardMetric> waiter, Throwable throwable) {
+            // Parts applied one by one before the failure keep their result.
+            if (!waiter.isTerminated()) {
+                waiter.onError(throwable);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import com.nikhilm.hourglass.dashboard.models.MetricResponseView;
+import com.nikhilm.hourglass.dashboard.repositories.MetricResponseViewRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.YearMonth;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Ready-to-serve responses kept in their own collection, one document per user. They are written by
+ * the same path that applies events, so a read is a single fetch by id.
+ */
+@Component
+@ConditionalOnProperty(name = "dashboard.readModel.enabled", havingValue = "true")
+@Slf4j
+public class MetricReadModel {
+
+    private final MetricResponseViewRepository metricResponseViewRepository;
+
+    @Autowired
+    public MetricReadModel(MetricResponseViewRepository metricResponseViewRepository) {
+        this.metricResponseViewRepository = metricResponseViewRepository;
+    }
+
+    /**
+     * Emits the stored response, or completes empty if there is none or it was built in an earlier
+     * month and its current-month counters and trends no longer apply.
+     */
+    public Mono<MetricResponse> find(String userId) {
+        return metricResponseViewRepository.findById(userId)
+                .map(MetricResponseView::getResponse)
+                .filter(MetricReadModel::ofThisMonth);
+    }
+
+    /**
+     * The stored views of the users that {@link #find} would return a response for, in one query.
+     */
+    public Flux<MetricResponseView> findAll(Collection<String> userIds) {
+        return metricResponseViewRepository.findAllById(userIds)
+                .filter(view -> ofThisMonth(view.getResponse()));
+    }
+
+    private static boolean ofThisMonth(MetricResponse response) {
+        return response.getActiveMonth() != null && YearMonth.from(response.getActiveMonth()).equals(YearMonth.now());
+    }
+
+    /**
+     * Stores the response unless a newer one is stored already, so a slow read cannot put back a
+     * response older than the one a write stored meanwhile. A failure is logged rather than
+     * propagated: the event it was built for is already applied, and the next event or a rebuild
+     * replaces the stale view.
+     */
+    public Mono<Void> save(String userId, MetricResponse response) {
+        return metricResponseViewRepository.saveIfNewer(new MetricResponseView(userId, response))
+                .doOnError(throwable -> log.error("Read model update failed for " + userId + " " + throwable.getMessage()))
+                .onErrorResume(throwable -> Mono.empty())
+                .then();
+    }
+
+    /**
+     * Stores the views, each unless a newer one is stored already. Emits the number stored.
+     */
+    public Mono<Long> saveAll(List<MetricResponseView> views) {
+        return metricResponseViewRepository.saveAllIfNewer(views);
+    }
+}
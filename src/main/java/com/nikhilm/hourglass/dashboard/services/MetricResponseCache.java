@@ -0,0 +1,96 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.YearMonth;
+
+/**
+ * Bounded cache of ready-built dashboard responses. Writes replace the entry of the user they were
+ * applied for, while reads only fill a missing entry, so a read that raced with a write can never put
+ * back an older response.
+ * <p>
+ * Reads do not ask the store whether an entry is still current. With a single instance every write
+ * passes through it, so an entry is served unless {@link MetricVersions} knows a different version.
+ * With more instances, writes another instance applied do not replace the entry here, and it is
+ * served until it expires, so {@code dashboard.cache.ttlSeconds} bounds how stale a response gets.
+ */
+@Component
+@ConditionalOnProperty(name = "dashboard.cache.enabled", havingValue = "true")
+public class MetricResponseCache {
+
+    private final Cache<String, MetricResponse> cache;
+
+    @Autowired
+    public MetricResponseCache(MeterRegistry meterRegistry,
+                               @Value("${dashboard.cache.maximumSize:100000}") long maximumSize,
+                               @Value("${dashboard.cache.ttlSeconds:600}") long ttlSeconds) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "metricResponses");
+    }
+
+    /**
+     * The cached response unless it was built from a version other than the known one, else the
+     * loaded one. The known version may be null if it is not known.
+     */
+    public Mono<MetricResponse> get(String userId, @Nullable Long knownVersion, Mono<MetricResponse> loader) {
+        return Mono.defer(() -> {
+            MetricResponse cached = cache.getIfPresent(userId);
+            return isCurrent(cached, knownVersion) ? Mono.just(cached) : load(userId, cached, loader);
+        });
+    }
+
+    /**
+     * The cached response unless it was built from a version other than the known one, or null.
+     */
+    public MetricResponse getIfCurrent(String userId, @Nullable Long knownVersion) {
+        MetricResponse cached = cache.getIfPresent(userId);
+        return isCurrent(cached, knownVersion) ? cached : null;
+    }
+
+    private static boolean isCurrent(MetricResponse cached, Long knownVersion) {
+        return cached != null && ofThisMonth(cached) && (knownVersion == null || knownVersion == cached.getVersion());
+    }
+
+    // Responses carry the current month's counters and trend window, so a month rollover makes them
+    // stale even if no event arrived.
+    private static boolean ofThisMonth(MetricResponse response) {
+        return YearMonth.from(response.getActiveMonth()).equals(YearMonth.now());
+    }
+
+    private Mono<MetricResponse> load(String userId, MetricResponse cached, Mono<MetricResponse> loader) {
+        return loader.doOnNext(response -> {
+            if (cached == null) {
+                cache.asMap().putIfAbsent(userId, response);
+            } else {
+                cache.asMap().replace(userId, cached, response);
+            }
+        });
+    }
+
+    public void put(String userId, MetricResponse response) {
+        cache.put(userId, response);
+    }
+
+    public void invalidate(String userId) {
+        cache.invalidate(userId);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
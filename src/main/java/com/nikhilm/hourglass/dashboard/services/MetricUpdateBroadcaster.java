@@ -0,0 +1,88 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.DirectProcessor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes freshly built responses to the open dashboards of their user. A user has a channel only
+ * while someone is subscribed, so publishing for a user nobody watches is a map lookup.
+ * <p>
+ * Only writes this instance applied are published, so it is only created when the instance consumes
+ * every user's events, i.e. {@code spring.cloud.stream.instanceCount} is 1. With more instances a
+ * dashboard would never hear of the users other instances write for, and streaming answers that it
+ * is disabled.
+ */
+@Component
+@ConditionalOnExpression("${dashboard.stream.enabled:false} and ${spring.cloud.stream.instanceCount:1} == 1")
+public class MetricUpdateBroadcaster {
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    private final AtomicInteger subscribers = new AtomicInteger();
+
+    private final Flux<Long> heartbeats;
+
+    @Autowired
+    public MetricUpdateBroadcaster(MeterRegistry meterRegistry,
+                                   @Value("${dashboard.stream.heartbeatSeconds:15}") long heartbeatSeconds) {
+        // One ticker for every connection instead of a timer each.
+        this.heartbeats = Flux.interval(Duration.ofSeconds(heartbeatSeconds)).share();
+        Gauge.builder("dashboard.stream.subscribers", subscribers, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("dashboard.stream.users", channels, Map::size).register(meterRegistry);
+    }
+
+    /**
+     * Responses published for the user from now on. Each one is a complete snapshot, so a subscriber
+     * that falls behind only keeps the latest instead of buffering every update.
+     */
+    public Flux<MetricResponse> updates(String userId) {
+        return Flux.defer(() -> {
+            Channel channel = channels.compute(userId, (id, existing) -> {
+                Channel current = existing != null ? existing : new Channel();
+                current.subscribers++;
+                return current;
+            });
+            subscribers.incrementAndGet();
+            return channel.processor;
+        })
+                .onBackpressureLatest()
+                .doFinally(signal -> {
+                    subscribers.decrementAndGet();
+                    channels.computeIfPresent(userId, (id, channel) -> --channel.subscribers == 0 ? null : channel);
+                });
+    }
+
+    public Flux<Long> heartbeats() {
+        return heartbeats;
+    }
+
+    public boolean hasSubscribers(String userId) {
+        return channels.containsKey(userId);
+    }
+
+    public void publish(String userId, MetricResponse response) {
+        Channel channel = channels.get(userId);
+        if (channel != null) {
+            channel.sink.next(response);
+        }
+    }
+
+    private static class Channel {
+        private final DirectProcessor<MetricResponse> processor = DirectProcessor.create();
+        private final FluxSink<MetricResponse> sink = processor.sink();
+        private int subscribers = 0;
+    }
+}
@@ -0,0 +1,55 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Latest known metrics document version per user, to answer conditional reads without loading the
+ * document. Versions only ever move forward, so a read that raced with a write cannot put back an
+ * older one.
+ * <p>
+ * Only versions of writes this instance applied or read are known, so it is only created when the
+ * instance consumes every user's events, i.e. {@code spring.cloud.stream.instanceCount} is 1. With
+ * more instances, conditional reads load the response instead.
+ */
+@Component
+@ConditionalOnExpression("${dashboard.versions.enabled:false} and ${spring.cloud.stream.instanceCount:1} == 1")
+public class MetricVersions {
+
+    private final Cache<String, Long> versions;
+
+    @Autowired
+    public MetricVersions(MeterRegistry meterRegistry,
+                          @Value("${dashboard.versions.maximumSize:1000000}") long maximumSize,
+                          @Value("${dashboard.versions.ttlSeconds:60}") long ttlSeconds) {
+        this.versions = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, versions, "metricVersions");
+    }
+
+    /**
+     * The user's version, or null if it is not known.
+     */
+    public Long get(String userId) {
+        return versions.getIfPresent(userId);
+    }
+
+    public void record(String userId, long version) {
+        versions.asMap().merge(userId, version, Math::max);
+    }
+
+    public void invalidateAll() {
+        versions.invalidateAll();
+    }
+}
@@ -0,0 +1,231 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Sorted set that also answers how many keys order before a key and which key is at a position,
+ * both in O(log n). It is a treap whose nodes count the keys below them. Not thread safe.
+ */
+final class OrderStatisticTree<K> {
+
+    private static final class Node<K> {
+        final K key;
+        final int priority;
+        int size = 1;
+        Node<K> left;
+        Node<K> right;
+
+        Node(K key, int priority) {
+            this.key = key;
+            this.priority = priority;
+        }
+    }
+
+    private final Comparator<? super K> comparator;
+
+    private final SplittableRandom random = new SplittableRandom();
+
+    private Node<K> root;
+
+    OrderStatisticTree(Comparator<? super K> comparator) {
+        this.comparator = comparator;
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * Adds the key unless an equal one is present. Returns whether it was added.
+     */
+    boolean add(K key) {
+        if (contains(key)) {
+            return false;
+        }
+        root = insert(root, new Node<>(key, random.nextInt()));
+        return true;
+    }
+
+    /**
+     * Removes the key if present. Returns whether it was removed.
+     */
+    boolean remove(K key) {
+        if (!contains(key)) {
+            return false;
+        }
+        root = delete(root, key);
+        return true;
+    }
+
+    boolean contains(K key) {
+        Node<K> node = root;
+        while (node != null) {
+            int compared = comparator.compare(key, node.key);
+            if (compared == 0) {
+                return true;
+            }
+            node = compared < 0 ? node.left : node.right;
+        }
+        return false;
+    }
+
+    /**
+     * Number of keys ordering before the given one, which need not be present.
+     */
+    int countLess(K key) {
+        int count = 0;
+        Node<K> node = root;
+        while (node != null) {
+            if (comparator.compare(key, node.key) <= 0) {
+                node = node.left;
+            } else {
+                count += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Key at the zero based position.
+     */
+    K get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size());
+        }
+        Node<K> node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node.key;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Up to {@code count} keys in order, starting at the zero based position {@code from}.
+     */
+    List<K> range(int from, int count) {
+        List<K> keys = new ArrayList<>(Math.max(0, Math.min(count, size() - from)));
+        // The stack holds the path to the first key, less the nodes it is right of, so popping it
+        // walks the tree in order from there.
+        Deque<Node<K>> path = new ArrayDeque<>();
+        Node<K> node = root;
+        int index = from;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                path.push(node);
+                node = node.left;
+            } else if (index == leftSize) {
+                path.push(node);
+                break;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+        while (keys.size() < count && !path.isEmpty()) {
+            Node<K> next = path.pop();
+            keys.add(next.key);
+            for (Node<K> child = next.right; child != null; child = child.left) {
+                path.push(child);
+            }
+        }
+        return keys;
+    }
+
+    void clear() {
+        root = null;
+    }
+
+    private Node<K> insert(Node<K> node, Node<K> added) {
+        if (node == null) {
+            return added;
+        }
+        if (added.priority > node.priority) {
+            split(node, added.key, added);
+            update(added);
+            return added;
+        }
+        if (comparator.compare(added.key, node.key) < 0) {
+            node.left = insert(node.left, added);
+        } else {
+            node.right = insert(node.right, added);
+        }
+        update(node);
+        return node;
+    }
+
+    /**
+     * Splits the subtree into the keys before {@code key}, which become the parent's left subtree, and
+     * the rest, which become its right subtree.
+     */
+    private void split(Node<K> node, K key, Node<K> parent) {
+        if (node == null) {
+            parent.left = null;
+            parent.right = null;
+            return;
+        }
+        if (comparator.compare(node.key, key) < 0) {
+            split(node.right, key, parent);
+            node.right = parent.left;
+            update(node);
+            parent.left = node;
+        } else {
+            split(node.left, key, parent);
+            node.left = parent.right;
+            update(node);
+            parent.right = node;
+        }
+    }
+
+    private Node<K> delete(Node<K> node, K key) {
+        int compared = comparator.compare(key, node.key);
+        if (compared == 0) {
+            return merge(node.left, node.right);
+        }
+        if (compared < 0) {
+            node.left = delete(node.left, key);
+        } else {
+            node.right = delete(node.right, key);
+        }
+        update(node);
+        return node;
+    }
+
+    private Node<K> merge(Node<K> left, Node<K> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+
+    private static void update(Node<?> node) {
+        node.size = size(node.left) + size(node.right) + 1;
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+}
@@ -0,0 +1,77 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.ParkedEvent;
+import com.nikhilm.hourglass.dashboard.repositories.ParkedEventRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Dead-letter store for events that failed all their attempts. Parked events are kept in Mongo, so
+ * their messages can be acknowledged without losing them, until they are replayed and applied.
+ */
+@Component
+@ConditionalOnProperty(name = "dashboard.parking.enabled", havingValue = "true")
+@Slf4j
+public class ParkingLot {
+
+    private final ParkedEventRepository parkedEventRepository;
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    private final Counter parkedCounter;
+    private final Counter removedCounter;
+
+    @Autowired
+    public ParkingLot(ParkedEventRepository parkedEventRepository, ReactiveMongoTemplate mongoTemplate,
+                      MeterRegistry meterRegistry) {
+        this.parkedEventRepository = parkedEventRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.parkedCounter = meterRegistry.counter("dashboard.parking.parked");
+        this.removedCounter = meterRegistry.counter("dashboard.parking.removed");
+    }
+
+    // Every user creation looks up the user's parked events.
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        mongoTemplate.indexOps(ParkedEvent.class)
+                .ensureIndex(new Index().on("userId", Sort.Direction.ASC).on("parkedAt", Sort.Direction.ASC))
+                .subscribe(name -> log.info("Ensured index " + name),
+                        throwable -> log.error("Parked event index failed " + throwable.getMessage()));
+    }
+
+    /**
+     * Stores the event, replacing the earlier copy if it was parked before and replayed.
+     */
+    public Mono<ParkedEvent> park(ParkedEvent parkedEvent) {
+        return parkedEventRepository.save(parkedEvent)
+                .doOnNext(saved -> {
+                    parkedCounter.increment();
+                    log.info("Parked " + saved);
+                });
+    }
+
+    /**
+     * Parked events of the user, or of every user if none is given, oldest first.
+     */
+    public Flux<ParkedEvent> find(@Nullable String userId) {
+        return userId != null
+                ? parkedEventRepository.findByUserIdOrderByParkedAt(userId)
+                : parkedEventRepository.findAllByOrderByParkedAt();
+    }
+
+    public Mono<Void> remove(String id) {
+        return parkedEventRepository.deleteById(id)
+                .doOnSuccess(done -> removedCounter.increment());
+    }
+}
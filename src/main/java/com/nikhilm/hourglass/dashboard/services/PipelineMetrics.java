@@ -0,0 +1,110 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.Event;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters for the event pipeline and the repository calls it makes. Meters are registered up front
+ * (or once per repository method) so recording on the hot path is a map lookup and an increment.
+ * Percentiles and histograms are configured under {@code management.metrics.distribution}.
+ */
+@Component
+public class PipelineMetrics {
+
+    private static final String SUCCESS = "success";
+    private static final String FAILURE = "failure";
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<Event.Type, Counter> received = new EnumMap<>(Event.Type.class);
+    private final Map<Event.Type, Timer> succeeded = new EnumMap<>(Event.Type.class);
+    private final Map<Event.Type, Timer> failed = new EnumMap<>(Event.Type.class);
+    private final Map<Event.Type, Timer> freshness = new EnumMap<>(Event.Type.class);
+    private final Map<String, Timer> repositorySucceeded = new ConcurrentHashMap<>();
+    private final Map<String, Timer> repositoryFailed = new ConcurrentHashMap<>();
+    private final Counter unrecognized;
+
+    @Autowired
+    public PipelineMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        for (Event.Type type : Event.Type.values()) {
+            received.put(type, Counter.builder("dashboard.events.received")
+                    .tag("type", type.name())
+                    .register(meterRegistry));
+            succeeded.put(type, eventTimer(type, SUCCESS));
+            failed.put(type, eventTimer(type, FAILURE));
+            freshness.put(type, Timer.builder("dashboard.events.freshness")
+                    .description("Time from event creation until its effect was persisted")
+                    .tag("type", type.name())
+                    .register(meterRegistry));
+        }
+        this.unrecognized = meterRegistry.counter("dashboard.events.unrecognized");
+    }
+
+    private Timer eventTimer(Event.Type type, String outcome) {
+        return Timer.builder("dashboard.events.processing")
+                .tag("type", type.name())
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    public void received(Event.Type type) {
+        received.get(type).increment();
+    }
+
+    public void unrecognized() {
+        unrecognized.increment();
+    }
+
+    /**
+     * Times processing of one event, retries included, from the moment its lane picks it up.
+     */
+    public <T> Mono<T> timeEvent(Event.Type type, Mono<T> processing) {
+        return time(processing, succeeded.get(type), failed.get(type));
+    }
+
+    public void persisted(Event.Type type, LocalDateTime eventCreatedAt) {
+        if (eventCreatedAt == null) {
+            return;
+        }
+        // Producers stamp events with their local wall clock; a negative age only means skew.
+        long ageNanos = Duration.between(eventCreatedAt, LocalDateTime.now()).toNanos();
+        if (ageNanos >= 0) {
+            freshness.get(type).record(ageNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public <T> Mono<T> timeRepository(String method, Mono<T> call) {
+        return time(call,
+                repositorySucceeded.computeIfAbsent(method, name -> repositoryTimer(name, SUCCESS)),
+                repositoryFailed.computeIfAbsent(method, name -> repositoryTimer(name, FAILURE)));
+    }
+
+    private Timer repositoryTimer(String method, String outcome) {
+        return Timer.builder("dashboard.repository")
+                .tag("method", method)
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private <T> Mono<T> time(Mono<T> call, Timer success, Timer failure) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return call
+                    .doOnSuccess(result -> success.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+                    .doOnError(throwable -> failure.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+}
@@ -0,0 +1,209 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.ScoreSketch;
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import com.nikhilm.hourglass.dashboard.repositories.ScoreSketchRepository;
+import com.tdunning.math.stats.MergingDigest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Where a score stands among every user's, read from a t-digest of the scores rather than by
+ * scanning the users. A lookup interpolates over the digest's few hundred centroids, which takes
+ * microseconds whatever the number of users.
+ * <p>
+ * The digests answer with a percentile rank: the share of users scoring below, counting users with
+ * the same score as half below. With the default compression of 100, that share is within 1
+ * percentage point of the exact one, and much closer towards either end of the ranking.
+ * <p>
+ * A build holds one sample per user. A digest cannot forget a value though, so between builds a
+ * write adds the user's new score on top of their old one, and ranks drift towards the scores of
+ * the users written most since: the error bound above only holds right after a build. New users add
+ * their one sample without counting as a write. To bound the drift, the digests are rebuilt from the
+ * metrics collection once the writes since the last build exceed {@code rebuildRatio} times the
+ * number of users, but at most once every {@code minRebuildIntervalSeconds}, so the scans of the
+ * collection do not grow with the write volume. Every build is checkpointed to Mongo, which the next
+ * startup restores instead of scanning.
+ */
+@Component
+@ConditionalOnProperty(name = "dashboard.percentiles.enabled", havingValue = "true")
+@Slf4j
+public class ScorePercentiles {
+
+    static final String CHECKPOINT_ID = "scores";
+
+    private final DashboardMetricRepository dashboardMetricRepository;
+    private final ScoreSketchRepository scoreSketchRepository;
+    private final double compression;
+    private final double rebuildRatio;
+    private final long minRebuildIntervalNanos;
+
+    private final Counter rebuildCounter;
+
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private MergingDigest goalScores;
+    private MergingDigest averageScores;
+    private long users;
+    private long updates;
+    private long nextRebuildAt = System.nanoTime();
+
+    @Autowired
+    public ScorePercentiles(DashboardMetricRepository dashboardMetricRepository,
+                            ScoreSketchRepository scoreSketchRepository,
+                            MeterRegistry meterRegistry,
+                            @Value("${dashboard.percentiles.compression:100}") double compression,
+                            @Value("${dashboard.percentiles.rebuildRatio:0.5}") double rebuildRatio,
+                            @Value("${dashboard.percentiles.minRebuildIntervalSeconds:300}") long minRebuildIntervalSeconds) {
+        this.dashboardMetricRepository = dashboardMetricRepository;
+        this.scoreSketchRepository = scoreSketchRepository;
+        this.compression = compression;
+        this.rebuildRatio = rebuildRatio;
+        this.minRebuildIntervalNanos = TimeUnit.SECONDS.toNanos(minRebuildIntervalSeconds);
+        this.rebuildCounter = meterRegistry.counter("dashboard.percentiles.rebuilds");
+        this.goalScores = new MergingDigest(compression);
+        this.averageScores = new MergingDigest(compression);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        restore()
+                .switchIfEmpty(Mono.defer(this::rebuild))
+                .subscribe(count -> log.info("Score percentiles ready for " + count + " users"),
+                        throwable -> log.error("Score percentiles unavailable " + throwable.getMessage()));
+    }
+
+    /**
+     * Adds the scores of a user created since the last build.
+     */
+    public synchronized void add(long goalScore, double averageScore) {
+        goalScores.add(goalScore);
+        averageScores.add(averageScore);
+        users++;
+    }
+
+    /**
+     * Adds a user's scores after a write, and starts a rebuild if enough writes piled up and the
+     * last build is long enough ago.
+     */
+    public void record(long goalScore, double averageScore) {
+        boolean stale;
+        synchronized (this) {
+            goalScores.add(goalScore);
+            averageScores.add(averageScore);
+            updates++;
+            stale = updates > rebuildRatio * Math.max(users, 1) && System.nanoTime() - nextRebuildAt >= 0;
+        }
+        if (stale && !rebuilding.get()) {
+            rebuild().subscribe(count -> { },
+                    throwable -> log.error("Score percentile rebuild failed " + throwable.getMessage()));
+        }
+    }
+
+    /**
+     * Percentile rank of the goal score from 0 to 100, or null while nothing is known.
+     */
+    public synchronized Double goalScorePercentile(long goalScore) {
+        return percentileOf(goalScores, goalScore);
+    }
+
+    public synchronized Double averageScorePercentile(double averageScore) {
+        return percentileOf(averageScores, averageScore);
+    }
+
+    /**
+     * Builds the digests from every user's current scores, replaces the live ones with them and
+     * checkpoints them. Emits the number of users, or completes empty if a rebuild is running.
+     */
+    public Mono<Long> rebuild() {
+        return Mono.defer(() -> {
+            if (!rebuilding.compareAndSet(false, true)) {
+                return Mono.empty();
+            }
+            MergingDigest goals = new MergingDigest(compression);
+            MergingDigest averages = new MergingDigest(compression);
+            return dashboardMetricRepository.findAllScores()
+                    .doOnNext(dashboardMetric -> {
+                        goals.add(dashboardMetric.getGoalScore());
+                        averages.add(DashboardService.averageScoreOf(dashboardMetric.getMetricSummaries().values()));
+                    })
+                    .count()
+                    .doOnNext(count -> {
+                        synchronized (this) {
+                            goalScores = goals;
+                            averageScores = averages;
+                            users = count;
+                            updates = 0;
+                            nextRebuildAt = System.nanoTime() + minRebuildIntervalNanos;
+                        }
+                        rebuildCounter.increment();
+                        log.info("Rebuilt score percentiles of " + count + " users");
+                    })
+                    .flatMap(count -> checkpoint().thenReturn(count))
+                    .doFinally(signal -> rebuilding.set(false));
+        });
+    }
+
+    /**
+     * Loads the last checkpoint. Emits the number of users it covered, or completes empty if there
+     * is none.
+     */
+    public Mono<Long> restore() {
+        return scoreSketchRepository.findById(CHECKPOINT_ID)
+                .map(sketch -> {
+                    MergingDigest goals = MergingDigest.fromBytes(ByteBuffer.wrap(sketch.getGoalScores()));
+                    MergingDigest averages = MergingDigest.fromBytes(ByteBuffer.wrap(sketch.getAverageScores()));
+                    synchronized (this) {
+                        goalScores = goals;
+                        averageScores = averages;
+                        users = sketch.getUsers();
+                        updates = sketch.getUpdates();
+                    }
+                    log.info("Restored score percentiles checkpointed at " + sketch.getSavedAt());
+                    return sketch.getUsers();
+                });
+    }
+
+    public Mono<Void> checkpoint() {
+        ScoreSketch sketch;
+        synchronized (this) {
+            sketch = new ScoreSketch(CHECKPOINT_ID, users, updates, bytesOf(goalScores), bytesOf(averageScores), Instant.now());
+        }
+        return scoreSketchRepository.save(sketch).then();
+    }
+
+    @PreDestroy
+    public void close() {
+        checkpoint()
+                .doOnError(throwable -> log.error("Score percentile checkpoint failed " + throwable.getMessage()))
+                .onErrorResume(throwable -> Mono.empty())
+                .block(Duration.ofSeconds(10));
+    }
+
+    private static Double percentileOf(MergingDigest digest, double score) {
+        if (digest.size() == 0) {
+            return null;
+        }
+        return Math.round(digest.cdf(score) * 1000) / 10.0;
+    }
+
+    private static byte[] bytesOf(MergingDigest digest) {
+        ByteBuffer buffer = ByteBuffer.allocate(digest.byteSize());
+        digest.asBytes(buffer);
+        return buffer.array();
+    }
+}
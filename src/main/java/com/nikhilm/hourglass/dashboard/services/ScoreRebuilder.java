@@ -0,0 +1,449 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.EventDecoder;
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.Event;
+import com.nikhilm.hourglass.dashboard.models.MetricDelta;
+import com.nikhilm.hourglass.dashboard.models.MetricSummary;
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Recomputes scores from a file of past events, one JSON event per line, after the scoring settings
+ * changed. Events are scored on a fork-join pool and summed per user; scores are sums, so the order
+ * events are replayed in does not matter. The users' scores are then overwritten with bulk writes in
+ * user id order, and the last user of every written batch is checkpointed, so rerunning the same file
+ * with the same settings resumes after it.
+ * <p>
+ * Only scores are replaced, and only for months the file has events in. A user's scores are only
+ * replaced when the file holds every event their document counted, i.e. the goal and task counters
+ * summed from the file match the document's, overall and per month. Users with history the file does
+ * not hold, e.g. from before it was started, keep their scores and are counted as skipped. Scores are
+ * only written to the version of a document that was checked, so an event consumed while a rebuild
+ * writes is not overwritten; the user is checked again and, now that the file lacks that event, keeps
+ * their scores. Consumption should still be paused while a rebuild runs.
+ * <p>
+ * The events can also be replayed from the {@link EventJournal}, whose directory is passed instead of
+ * a file. Journaled events are scored on the day they were applied, like the consumer scored them,
+ * while events of a file are scored on the day they were created. The journal only covers the
+ * segments it retains and the time it was enabled, so the same check leaves out the users it lost
+ * events of, which the progress points out.
+ */
+@Component
+@ConditionalOnProperty(name = "dashboard.rebuild.enabled", havingValue = "true")
+@Slf4j
+public class ScoreRebuilder {
+
+    enum Phase {IDLE, SCORING, WRITING, DONE, FAILED}
+
+    static final String CHECKPOINT_FILE = "score-rebuild.checkpoint";
+
+    static final String JOURNAL_COVERAGE = "The journal only holds the events of its retained segments. Users with"
+            + " events older than the oldest segment keep their scores and are counted as skipped.";
+
+    // Lines of a file carry no processing day.
+    private static final long UNKNOWN_DAY = Long.MIN_VALUE;
+
+    private final DashboardService dashboardService;
+    private final EventDecoder eventDecoder;
+    private final DashboardMetricRepository dashboardMetricRepository;
+    private final Path eventDir;
+    private final Path checkpointDir;
+    private final int parallelism;
+    private final int batchSize;
+    private final int writeConcurrency;
+    private final int maxConflictRetries;
+
+    @Autowired(required = false)
+    EventJournal eventJournal;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final LongAdder eventsScored = new LongAdder();
+    private final LongAdder eventsSkipped = new LongAdder();
+    private final AtomicLong usersWritten = new AtomicLong();
+    private final AtomicLong usersSkipped = new AtomicLong();
+    private final AtomicLong usersConflicted = new AtomicLong();
+    private volatile Phase phase = Phase.IDLE;
+    private volatile String source;
+    private volatile boolean fromJournal;
+    private final AtomicLong firstJournalDay = new AtomicLong(Long.MAX_VALUE);
+    private volatile String error;
+    private volatile long users;
+    private volatile long resumedAfter;
+    private volatile long startedNanos;
+    private volatile long finishedNanos;
+
+    @Autowired
+    public ScoreRebuilder(DashboardService dashboardService, EventDecoder eventDecoder,
+                          DashboardMetricRepository dashboardMetricRepository,
+                          @Value("${dashboard.rebuild.eventDir:events}") String eventDir,
+                          @Value("${dashboard.rebuild.checkpointDir:events}") String checkpointDir,
+                          @Value("${dashboard.rebuild.parallelism:0}") int parallelism,
+                          @Value("${dashboard.rebuild.batchSize:1000}") int batchSize,
+                          @Value("${dashboard.rebuild.writeConcurrency:4}") int writeConcurrency,
+                          @Value("${dashboard.rebuild.maxConflictRetries:3}") int maxConflictRetries) {
+        this.dashboardService = dashboardService;
+        this.eventDecoder = eventDecoder;
+        this.dashboardMetricRepository = dashboardMetricRepository;
+        this.eventDir = Paths.get(eventDir).toAbsolutePath().normalize();
+        this.checkpointDir = Paths.get(checkpointDir).toAbsolutePath().normalize();
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.batchSize = batchSize;
+        this.writeConcurrency = writeConcurrency;
+        this.maxConflictRetries = maxConflictRetries;
+    }
+
+    /**
+     * Resolves a file name against the event directory, refusing names that point outside of it.
+     */
+    public Path eventFile(String name) {
+        Path file = eventDir.resolve(name).normalize();
+        if (!file.startsWith(eventDir)) {
+            throw new IllegalArgumentException("Event files must be in " + eventDir);
+        }
+        return file;
+    }
+
+    /**
+     * Directory of the event journal, or null if journaling is disabled.
+     */
+    public Path journalDirectory() {
+        return eventJournal != null ? eventJournal.getDirectory() : null;
+    }
+
+    /**
+     * Starts a rebuild on its own thread. Returns false if one is already running.
+     */
+    public boolean start(Path events) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        reset(events);
+        Thread thread = new Thread(() -> run(events), "score-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Runs a rebuild on the calling thread and returns the number of users whose scores were written,
+     * or -1 if a rebuild was already running.
+     */
+    public long rebuild(Path events) {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+        reset(events);
+        return run(events);
+    }
+
+    private long run(Path events) {
+        try {
+            String signature = signatureOf(events);
+            Map<String, MetricDelta> deltas = score(events);
+            users = deltas.size();
+            log.info("Scored " + eventsScored.sum() + " events of " + users + " users from " + events
+                    + ", skipped " + eventsSkipped.sum());
+            write(deltas, signature);
+            dashboardService.discardResponses().block();
+            Files.deleteIfExists(checkpointDir.resolve(CHECKPOINT_FILE));
+            phase = Phase.DONE;
+            return usersWritten.get();
+        } catch (Exception e) {
+            log.error("Score rebuild failed " + e.getMessage());
+            error = e.getMessage();
+            phase = Phase.FAILED;
+            return usersWritten.get();
+        } finally {
+            finishedNanos = System.nanoTime();
+            running.set(false);
+        }
+    }
+
+    public Map<String, Object> progress() {
+        long end = running.get() || finishedNanos == 0 ? System.nanoTime() : finishedNanos;
+        double seconds = startedNanos == 0 ? 0 : (end - startedNanos) / 1e9;
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("phase", phase);
+        progress.put("source", source);
+        if (fromJournal) {
+            long firstDay = firstJournalDay.get();
+            progress.put("journalFrom", firstDay != Long.MAX_VALUE ? LocalDate.ofEpochDay(firstDay).toString() : null);
+            progress.put("coverage", JOURNAL_COVERAGE);
+        }
+        progress.put("eventsScored", eventsScored.sum());
+        progress.put("eventsSkipped", eventsSkipped.sum());
+        progress.put("users", users);
+        progress.put("resumedAfter", resumedAfter);
+        progress.put("usersWritten", usersWritten.get());
+        progress.put("usersSkipped", usersSkipped.get());
+        progress.put("usersConflicted", usersConflicted.get());
+        progress.put("elapsedSeconds", seconds);
+        progress.put("eventsPerSecond", seconds > 0 ? (long) (eventsScored.sum() / seconds) : 0);
+        progress.put("error", error);
+        return progress;
+    }
+
+    private void reset(Path events) {
+        source = events.toString();
+        fromJournal = Files.isDirectory(events);
+        firstJournalDay.set(Long.MAX_VALUE);
+        error = null;
+        eventsScored.reset();
+        eventsSkipped.reset();
+        usersWritten.set(0);
+        usersSkipped.set(0);
+        usersConflicted.set(0);
+        users = 0;
+        resumedAfter = 0;
+        startedNanos = System.nanoTime();
+        finishedNanos = 0;
+        phase = Phase.SCORING;
+    }
+
+    Map<String, MetricDelta> score(Path events) throws IOException, InterruptedException, ExecutionException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (Stream<EventJournal.Record> records = records(events)) {
+            ConcurrentMap<String, MetricDelta> deltas = pool.submit(() -> records.parallel()
+                    .map(this::deltaOf)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toConcurrentMap(MetricDelta::getUserId, Function.identity(), MetricDelta::merge)))
+                    .get();
+            return deltas;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Events of a file, one per line, or of a journal directory, one per record.
+     */
+    private Stream<EventJournal.Record> records(Path events) throws IOException {
+        if (Files.isDirectory(events)) {
+            return new EventJournalReader(events).records()
+                    .peek(record -> firstJournalDay.accumulateAndGet(record.getProcessedOn(), Math::min));
+        }
+        return Files.lines(events, StandardCharsets.UTF_8)
+                .filter(line -> !line.isEmpty())
+                .map(line -> new EventJournal.Record(UNKNOWN_DAY, line.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private MetricDelta deltaOf(EventJournal.Record record) {
+        try {
+            Event<String, ?> event = eventDecoder.decodeEvent(record.getPayload());
+            LocalDate day = record.getProcessedOn() != UNKNOWN_DAY ? LocalDate.ofEpochDay(record.getProcessedOn())
+                    : event.getEventCreatedAt() != null ? event.getEventCreatedAt().toLocalDate()
+                    : null;
+            MetricDelta delta = day != null ? dashboardService.deltaFor(event, null, day) : null;
+            if (delta == null) {
+                eventsSkipped.increment();
+                return null;
+            }
+            eventsScored.increment();
+            return delta;
+        } catch (RuntimeException e) {
+            eventsSkipped.increment();
+            return null;
+        }
+    }
+
+    private void write(Map<String, MetricDelta> deltas, String signature) throws IOException {
+        phase = Phase.WRITING;
+        List<String> userIds = new ArrayList<>(deltas.keySet());
+        Collections.sort(userIds);
+        int first = 0;
+        String checkpoint = readCheckpoint(signature);
+        if (checkpoint != null) {
+            int position = Collections.binarySearch(userIds, checkpoint);
+            first = position >= 0 ? position + 1 : -position - 1;
+            resumedAfter = first;
+            log.info("Resuming score rebuild after user " + checkpoint + ", " + first + " users already written");
+        }
+        List<List<MetricDelta>> batches = new ArrayList<>();
+        for (int start = first; start < userIds.size(); start += batchSize) {
+            List<MetricDelta> batch = new ArrayList<>();
+            for (String userId : userIds.subList(start, Math.min(start + batchSize, userIds.size()))) {
+                batch.add(deltas.get(userId));
+            }
+            batches.add(batch);
+        }
+        // Batches complete in order, so the checkpoint never gets ahead of a batch still in flight.
+        Flux.fromIterable(batches)
+                .flatMapSequential(batch -> writeBatch(batch, 0).thenReturn(batch), writeConcurrency)
+                .doOnNext(batch -> writeCheckpoint(signature, batch.get(batch.size() - 1).getUserId()))
+                .blockLast();
+    }
+
+    /**
+     * Reads the batch's documents, checks which the events account for and writes their scores guarded
+     * by the versions read. When a concurrent write changed a document in between, the batch is read and
+     * checked again, so the scores are only ever written to a document they were checked against.
+     * Rewriting the users that did land is harmless, their scores are the same. Documents still changing
+     * after the last retry keep their scores and are counted as conflicted.
+     */
+    private Mono<Void> writeBatch(List<MetricDelta> batch, int retry) {
+        return dashboardMetricRepository.findByUserIdIn(userIdsOf(batch))
+                .collectMap(DashboardMetric::getUserId)
+                .flatMap(documents -> {
+                    List<MetricDelta> accounted = accountedFor(batch, documents);
+                    Map<String, Long> versions = new HashMap<>();
+                    accounted.forEach(delta -> versions.put(delta.getUserId(), documents.get(delta.getUserId()).getVersion()));
+                    return dashboardMetricRepository.replaceScores(accounted, versions)
+                            .flatMap(matched -> {
+                                if (matched < accounted.size() && retry < maxConflictRetries) {
+                                    log.info((accounted.size() - matched) + " users changed while their scores were"
+                                            + " rebuilt, reading them again");
+                                    return writeBatch(batch, retry + 1);
+                                }
+                                skipped(batch, accounted);
+                                usersWritten.addAndGet(matched);
+                                if (matched < accounted.size()) {
+                                    usersConflicted.addAndGet(accounted.size() - matched);
+                                    log.warn("Keeping the scores of " + (accounted.size() - matched) + " users that kept"
+                                            + " changing while their scores were rebuilt");
+                                }
+                                return Mono.empty();
+                            });
+                });
+    }
+
+    private List<String> userIdsOf(List<MetricDelta> batch) {
+        return batch.stream().map(MetricDelta::getUserId).collect(Collectors.toList());
+    }
+
+    private List<MetricDelta> accountedFor(List<MetricDelta> batch, Map<String, DashboardMetric> documents) {
+        List<MetricDelta> accounted = new ArrayList<>();
+        for (MetricDelta delta : batch) {
+            DashboardMetric document = documents.get(delta.getUserId());
+            if (document != null && accountsFor(delta, document)) {
+                accounted.add(delta);
+            }
+        }
+        return accounted;
+    }
+
+    private void skipped(List<MetricDelta> batch, List<MetricDelta> accounted) {
+        Set<String> accountedUsers = new HashSet<>(userIdsOf(accounted));
+        for (MetricDelta delta : batch) {
+            if (!accountedUsers.contains(delta.getUserId())) {
+                usersSkipped.incrementAndGet();
+                log.info("Keeping the scores of user " + delta.getUserId() + ", the events do not account for its document");
+            }
+        }
+    }
+
+    /**
+     * Whether the events summed into the delta are every event the document counted. The counters do
+     * not depend on the scoring settings, so they match whenever no event is missing.
+     */
+    static boolean accountsFor(MetricDelta delta, DashboardMetric document) {
+        if (delta.getTotalGoalsCompleted() != document.getTotalGoalsCompleted()
+                || delta.getTotalGoalsInProgress() != document.getTotalGoalsInProgress()
+                || delta.getTotalGoalsDeferred() != document.getTotalGoalsDeferred()
+                || delta.getEasyGoalsCompleted() != document.getEasyGoalsCompleted()
+                || delta.getModerateGoalsCompleted() != document.getModerateGoalsCompleted()
+                || delta.getExtremeGoalsCompleted() != document.getExtremeGoalsCompleted()) {
+            return false;
+        }
+        Map<Integer, MetricSummary> months = delta.getSummaries();
+        Set<Integer> monthKeys = new TreeSet<>(months.keySet());
+        monthKeys.addAll(document.getMetricSummaries().keySet());
+        for (Integer monthKey : monthKeys) {
+            MetricSummary counted = months.getOrDefault(monthKey, new MetricSummary());
+            MetricSummary stored = document.getMetricSummaries().getOrDefault(monthKey, new MetricSummary());
+            if (counted.getGoalsPlanned() != stored.getGoalsPlanned()
+                    || counted.getGoalsAccomplished() != stored.getGoalsAccomplished()
+                    || counted.getTasksPlanned() != stored.getTasksPlanned()
+                    || counted.getTasksCompleted() != stored.getTasksCompleted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Identifies a rebuild by its file and scoring settings, so a checkpoint is only resumed from
+     * by a rerun of the same rebuild.
+     */
+    private String signatureOf(Path events) throws IOException {
+        String contents;
+        if (Files.isDirectory(events)) {
+            // Segments have a fixed size, so the journal changes what it holds only by rolling.
+            contents = EventJournal.segments(events).stream()
+                    .map(segment -> segment.getFileName().toString())
+                    .collect(Collectors.joining(","));
+        } else {
+            contents = Files.size(events) + "|" + Files.getLastModifiedTime(events).toMillis();
+        }
+        return events.toAbsolutePath() + "|" + contents + "|" + dashboardService.scoringConfiguration();
+    }
+
+    String readCheckpoint(String signature) throws IOException {
+        Path file = checkpointDir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        if (!signature.equals(properties.getProperty("signature"))) {
+            log.info("Ignoring checkpoint of a different rebuild " + properties.getProperty("signature"));
+            return null;
+        }
+        return properties.getProperty("lastUserId");
+    }
+
+    private void writeCheckpoint(String signature, String lastUserId) {
+        Properties properties = new Properties();
+        properties.setProperty("signature", signature);
+        properties.setProperty("lastUserId", lastUserId);
+        try {
+            Files.createDirectories(checkpointDir);
+            Path temporary = checkpointDir.resolve(CHECKPOINT_FILE + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                properties.store(out, null);
+            }
+            Files.move(temporary, checkpointDir.resolve(CHECKPOINT_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Checkpoint write failed " + e.getMessage(), e);
+        }
+    }
+}
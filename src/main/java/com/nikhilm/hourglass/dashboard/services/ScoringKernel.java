@@ -0,0 +1,105 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.Goal;
+import com.nikhilm.hourglass.dashboard.models.GoalLevel;
+import com.nikhilm.hourglass.dashboard.models.Operation;
+import com.nikhilm.hourglass.dashboard.models.ScoreDelta;
+import com.nikhilm.hourglass.dashboard.models.Task;
+
+/**
+ * The scoring rules for goal and task events, as a pure function of the operation, the goal level
+ * and the due and current days, both counted in days since the epoch. The result is written into a
+ * caller owned {@link ScoreDelta}, so scoring an event allocates nothing.
+ */
+public final class ScoringKernel {
+
+    private final long easyGoalScore;
+    private final long moderateGoalScore;
+    private final long extremeGoalScore;
+    private final long resumeBonus;
+    private final long deferPenalty;
+
+    public ScoringKernel(int easyGoalScore, int moderateGoalScore, int extremeGoalScore, int resumeBonus,
+                         int deferPenalty) {
+        this.easyGoalScore = easyGoalScore;
+        this.moderateGoalScore = moderateGoalScore;
+        this.extremeGoalScore = extremeGoalScore;
+        this.resumeBonus = resumeBonus;
+        this.deferPenalty = deferPenalty;
+    }
+
+    public ScoreDelta score(Operation operation, Goal goal, long today, ScoreDelta delta) {
+        return score(operation, goal.getLevel(), goal.getDueDate().toEpochDay(), today, delta);
+    }
+
+    public ScoreDelta score(Operation operation, Task task, long today, ScoreDelta delta) {
+        return score(operation, null, task.getDueDate().toEpochDay(), today, delta);
+    }
+
+    /**
+     * Fills the delta with what the operation adds. The level is only read for completed goals.
+     */
+    public ScoreDelta score(Operation operation, GoalLevel level, long dueDay, long today, ScoreDelta delta) {
+        delta.clear();
+        long overdue = Math.max(today - dueDay, 0);
+        switch (operation) {
+            case GOAL_ADDED:
+                return delta.on(dueDay, monthKeyOf(dueDay))
+                        .goals(0, 1, 0)
+                        .summary(1, 0, 0, 0);
+            case GOAL_COMPLETED:
+                return delta.on(today, monthKeyOf(today))
+                        .score(scoreOf(level) - overdue)
+                        .goals(1, -1, 0)
+                        .completion(level, overdue == 0)
+                        .summary(0, 1, 0, 0);
+            case GOAL_DEFERRED:
+                return delta.on(dueDay, monthKeyOf(dueDay))
+                        .score(-(deferPenalty + overdue))
+                        .goals(0, -1, 1)
+                        .summary(-1, 0, 0, 0);
+            case GOAL_RESUMED:
+                return delta.on(dueDay, monthKeyOf(dueDay))
+                        .score(resumeBonus - overdue)
+                        .goals(0, 1, -1)
+                        .summary(1, 0, 0, 0);
+            case TASK_ADDED:
+                return delta.on(dueDay, monthKeyOf(dueDay))
+                        .summary(0, 0, 1, 0);
+            case TASK_COMPLETED:
+                return delta.on(today, monthKeyOf(today))
+                        .summary(0, 0, 0, 1);
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    private long scoreOf(GoalLevel level) {
+        switch (level) {
+            case EASY:
+                return easyGoalScore;
+            case MODERATE:
+                return moderateGoalScore;
+            case EXTREME:
+                return extremeGoalScore;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * {@link com.nikhilm.hourglass.dashboard.models.MetricSummary#monthKey} of the day, worked out on
+     * the day count directly (proleptic Gregorian calendar, eras of 400 years starting in March).
+     */
+    static int monthKeyOf(long epochDay) {
+        long days = epochDay + 719468;
+        long era = Math.floorDiv(days, 146097);
+        long dayOfEra = days - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        long month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return (int) (year * 100 + month);
+    }
+}
@@ -0,0 +1,179 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the users to initialize that arrive within a short window and creates their documents
+ * with one bulk upsert. A user already initialized, e.g. by a redelivered USER_ADDED event, is a
+ * no-op, so callers only learn whether the user's document exists, and whether it was created by
+ * their window, once their window is written.
+ * <p>
+ * One window is written at a time; users submitted meanwhile collect in the next one. Only callers
+ * that do not wait for their result before submitting the next user, like the consumer lanes, share
+ * windows.
+ */
+@Component
+@ConditionalOnProperty(name = "dashboard.onboarding.enabled", havingValue = "true")
+@Slf4j
+public class UserOnboardingBuffer {
+
+    private final DashboardMetricRepository dashboardMetricRepository;
+    private final long windowMillis;
+    private final int maxUsers;
+
+    private final Counter userCounter;
+    private final Counter createdCounter;
+    private final Timer flushTimer;
+
+    private Map<String, List<MonoProcessor<Boolean>>> pending = new LinkedHashMap<>();
+    private Disposable scheduledFlush;
+    private boolean windowClosed;
+    private int writesInFlight;
+
+    @Autowired
+    public UserOnboardingBuffer(DashboardMetricRepository dashboardMetricRepository,
+                                MeterRegistry meterRegistry,
+                                @Value("${dashboard.onboarding.windowMillis:50}") long windowMillis,
+                                @Value("${dashboard.onboarding.maxUsers:200}") int maxUsers) {
+        this.dashboardMetricRepository = dashboardMetricRepository;
+        this.windowMillis = windowMillis;
+        this.maxUsers = maxUsers;
+        this.userCounter = meterRegistry.counter("dashboard.onboarding.users");
+        this.createdCounter = meterRegistry.counter("dashboard.onboarding.created");
+        this.flushTimer = meterRegistry.timer("dashboard.onboarding.flush");
+    }
+
+    /**
+     * Emits whether the user's document was created by this submission's window, once it was
+     * written. Of a user submitted more than once to one window, only the first submission created it.
+     */
+    public Mono<Boolean> submit(String userId) {
+        return Mono.defer(() -> {
+            MonoProcessor<Boolean> result = MonoProcessor.create();
+            Map<String, List<MonoProcessor<Boolean>>> batch = null;
+            synchronized (this) {
+                pending.computeIfAbsent(userId, id -> new ArrayList<>()).add(result);
+                if (pending.size() >= maxUsers) {
+                    windowClosed = true;
+                    batch = drainIfIdle();
+                } else if (scheduledFlush == null) {
+                    scheduledFlush = Schedulers.parallel().schedule(this::flushWindow, windowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            userCounter.increment();
+            if (batch != null) {
+                writeAndContinue(batch);
+            }
+            return result;
+        });
+    }
+
+    @PreDestroy
+    public void flush() {
+        Map<String, List<MonoProcessor<Boolean>>> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        log.info("Flushing " + batch.size() + " buffered users");
+        try {
+            write(batch).block(Duration.ofSeconds(10));
+        } finally {
+            synchronized (this) {
+                writesInFlight--;
+            }
+        }
+    }
+
+    private void flushWindow() {
+        Map<String, List<MonoProcessor<Boolean>>> batch;
+        synchronized (this) {
+            scheduledFlush = null;
+            windowClosed = true;
+            batch = drainIfIdle();
+        }
+        if (batch != null) {
+            writeAndContinue(batch);
+        }
+    }
+
+    // Writes the window, then the next one if it closed in the meantime.
+    private void writeAndContinue(Map<String, List<MonoProcessor<Boolean>>> batch) {
+        write(batch)
+                .doFinally(signal -> {
+                    Map<String, List<MonoProcessor<Boolean>>> next;
+                    synchronized (this) {
+                        writesInFlight--;
+                        next = windowClosed ? drainIfIdle() : null;
+                    }
+                    if (next != null) {
+                        writeAndContinue(next);
+                    }
+                })
+                .subscribe();
+    }
+
+    @Nullable
+    private Map<String, List<MonoProcessor<Boolean>>> drainIfIdle() {
+        if (writesInFlight > 0 || pending.isEmpty()) {
+            return null;
+        }
+        return drain();
+    }
+
+    private Map<String, List<MonoProcessor<Boolean>>> drain() {
+        if (scheduledFlush != null) {
+            scheduledFlush.dispose();
+            scheduledFlush = null;
+        }
+        Map<String, List<MonoProcessor<Boolean>>> batch = pending;
+        pending = new LinkedHashMap<>();
+        windowClosed = false;
+        writesInFlight++;
+        return batch;
+    }
+
+    private Mono<Void> write(Map<String, List<MonoProcessor<Boolean>>> batch) {
+        if (batch.isEmpty()) {
+            return Mono.empty();
+        }
+        long start = System.nanoTime();
+        return dashboardMetricRepository.initializeUsers(batch.keySet())
+                .doOnNext(created -> {
+                    createdCounter.increment(created.size());
+                    log.info("Initialized " + created.size() + " of " + batch.size() + " users");
+                    batch.forEach((userId, waiters) -> {
+                        for (int i = 0; i < waiters.size(); i++) {
+                            waiters.get(i).onNext(i == 0 && created.contains(userId));
+                        }
+                    });
+                })
+                .doOnError(throwable -> {
+                    log.error("User initialization failed " + throwable.getMessage());
+                    batch.values().forEach(waiters -> waiters.forEach(waiter -> waiter.onError(throwable)));
+                })
+                .doFinally(signal -> flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+                .onErrorResume(throwable -> Mono.empty())
+                .then();
+    }
+}
@@ -0,0 +1,79 @@
+package com.nikhilm.hourglass.dashboard;
+
+import com.nikhilm.hourglass.dashboard.exceptions.DashboardException;
+import com.nikhilm.hourglass.dashboard.models.Event;
+import com.nikhilm.hourglass.dashboard.models.Goal;
+import com.nikhilm.hourglass.dashboard.models.GoalLevel;
+import com.nikhilm.hourglass.dashboard.models.Task;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventDecoderTest {
+
+    EventDecoder eventDecoder = new EventDecoder();
+
+    @Test
+    public void testDecodeGoalEvent() {
+        String payload = "{\"eventType\":\"GOAL_COMPLETED\",\"key\":\"g1\",\"eventCreatedAt\":[2020,11,20,10,15,30]," +
+                "\"data\":{\"id\":\"g1\",\"userId\":\"abc\",\"name\":\"Run\",\"description\":\"Run a marathon\"," +
+                "\"level\":\"Extreme\",\"status\":\"C\",\"dueDate\":\"2020-11-18\"," +
+                "\"notes\":[\"a\",\"b\"],\"votes\":4,\"somethingNew\":{\"nested\":true}}}";
+
+        Event<String, Goal> event = eventDecoder.decodeGoalEvent(bytes(payload));
+
+        assertEquals(Event.Type.GOAL_COMPLETED, event.getEventType());
+        assertEquals(LocalDateTime.of(2020, 11, 20, 10, 15, 30), event.getEventCreatedAt());
+        Goal goal = event.getData();
+        assertEquals("abc", goal.getUserId());
+        assertEquals(GoalLevel.EXTREME, goal.getLevel());
+        assertEquals(LocalDate.of(2020, 11, 18), goal.getDueDate());
+        assertNull(goal.getName());
+        assertNull(goal.getDescription());
+    }
+
+    @Test
+    public void testDecodeTaskEvent() {
+        String payload = "{\"eventType\":\"TASK_ADDED\",\"key\":\"t1\"," +
+                "\"data\":{\"id\":\"t1\",\"userId\":\"abc\",\"name\":\"Read\",\"dueDate\":\"2020-12-01\"}}";
+
+        Event<String, Task> event = eventDecoder.decodeTaskEvent(bytes(payload));
+
+        assertEquals("abc", event.getData().getUserId());
+        assertEquals(LocalDate.of(2020, 12, 1), event.getData().getDueDate());
+        assertNull(event.getData().getName());
+    }
+
+    @Test
+    public void testDecodeEventPicksPayloadTypeByEventType() {
+        String goalPayload = "{\"key\":\"g1\",\"data\":{\"userId\":\"abc\",\"level\":\"Easy\",\"notes\":[\"eventType\"]}," +
+                "\"eventType\":\"GOAL_ADDED\"}";
+        String taskPayload = "{\"eventType\":\"TASK_COMPLETED\",\"key\":\"t1\",\"data\":{\"userId\":\"abc\"}}";
+
+        assertTrue(eventDecoder.decodeEvent(bytes(goalPayload)).getData() instanceof Goal);
+        assertTrue(eventDecoder.decodeEvent(bytes(taskPayload)).getData() instanceof Task);
+        assertEquals(Event.Type.USER_ADDED, eventDecoder.decodeEvent(bytes("{\"eventType\":\"USER_ADDED\",\"key\":\"abc\"}")).getEventType());
+    }
+
+    @Test
+    public void testDecodeTaskEventWithoutData() {
+        DashboardException exception = assertThrows(DashboardException.class,
+                () -> eventDecoder.decodeTaskEvent(bytes("{\"eventType\":\"TASK_ADDED\",\"key\":\"t1\"}")));
+        assertEquals("User record parse failed!", exception.getMessage());
+    }
+
+    @Test
+    public void testDecodeGoalEventWithWrongDataType() {
+        DashboardException exception = assertThrows(DashboardException.class,
+                () -> eventDecoder.decodeGoalEvent(bytes("{\"eventType\":\"GOAL_ADDED\",\"data\":\"oops\"}")));
+        assertEquals("Data type error!", exception.getMessage());
+    }
+
+    private byte[] bytes(String payload) {
+        return payload.getBytes(StandardCharsets.UTF_8);
+    }
+}
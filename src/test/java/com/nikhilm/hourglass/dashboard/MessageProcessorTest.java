@@ -1,23 +1,66 @@
 package com.nikhilm.hourglass.dashboard;
 
-import static org.junit.jupiter.api.Assertions.*;
-
-import com.nikhilm.hourglass.dashboard.exceptions.DashboardException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.nikhilm.hourglass.dashboard.models.*;
 import com.nikhilm.hourglass.dashboard.services.DashboardService;
+import com.nikhilm.hourglass.dashboard.services.EventDeduplicator;
+import com.nikhilm.hourglass.dashboard.exceptions.DashboardException;
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import com.nikhilm.hourglass.dashboard.repositories.ParkedEventRepository;
+import com.nikhilm.hourglass.dashboard.services.EventJournal;
+import com.nikhilm.hourglass.dashboard.services.EventRetryQueue;
+import com.nikhilm.hourglass.dashboard.services.MetricDeltaBuffer;
+import com.nikhilm.hourglass.dashboard.services.ParkingLot;
+import com.nikhilm.hourglass.dashboard.services.PipelineMetrics;
+import com.nikhilm.hourglass.dashboard.services.UserOnboardingBuffer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.cloud.stream.binder.PartitionHandler;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.cloud.stream.binder.ProducerProperties;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.test.StepVerifier;
+import reactor.test.scheduler.VirtualTimeScheduler;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -26,9 +69,30 @@ class MessageProcessorTest {
     @Mock
     DashboardService dashboardService;
 
+    @Mock
+    Channel channel;
+
+    @Spy
+    EventDecoder eventDecoder = new EventDecoder();
+
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Spy
+    PipelineMetrics pipelineMetrics = new PipelineMetrics(meterRegistry);
+
+    @Spy
+    EventDeduplicator eventDeduplicator = new EventDeduplicator(meterRegistry, 1000, 60);
+
+    ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
     @InjectMocks
     MessageProcessor messageProcessor;
 
+    @BeforeEach
+    public void setup() {
+        messageProcessor.setMaxAttempts(1);
+    }
+
     @Test
     public void testProcessTaskEvent()  {
 
@@ -42,9 +106,10 @@ class MessageProcessorTest {
         Event event = new Event<String, Object>(Event.Type.TASK_ADDED, task.getId(),
                 task);
 
-        Mockito.when(dashboardService.computeScoreOnTaskAdd(any(Task.class))).thenReturn(Mono.just(metric));
-        messageProcessor.processTaskEvents(event);
-        verify(dashboardService).computeScoreOnTaskAdd(any(Task.class));
+        Mockito.when(dashboardService.computeScoreOnTaskAdd(any(Task.class), any())).thenReturn(Mono.just(metric));
+        StepVerifier.create(messageProcessor.taskEvents().apply(Flux.just(message(event))))
+                .verifyComplete();
+        verify(dashboardService).computeScoreOnTaskAdd(any(Task.class), any());
 
     }
     @Test
@@ -60,13 +125,14 @@ class MessageProcessorTest {
         Event event = new Event<String, Object>(Event.Type.TASK_COMPLETED, task.getId(),
                 task);
 
-        Mockito.when(dashboardService.computeScoreOnTaskComplete(any(Task.class))).thenReturn(Mono.just(metric));
-        messageProcessor.processTaskEvents(event);
-        verify(dashboardService).computeScoreOnTaskComplete(any(Task.class));
+        Mockito.when(dashboardService.computeScoreOnTaskComplete(any(Task.class), any())).thenReturn(Mono.just(metric));
+        StepVerifier.create(messageProcessor.taskEvents().apply(Flux.just(message(event))))
+                .verifyComplete();
+        verify(dashboardService).computeScoreOnTaskComplete(any(Task.class), any());
 
     }
     @Test
-    public void testProcessInvalidEventType()  {
+    public void testProcessInvalidEventType() throws IOException {
 
         Task task = new Task();
         task.setUserId("abc");
@@ -76,40 +142,53 @@ class MessageProcessorTest {
         Event event = new Event<String, Object>(Event.Type.USER_ADDED, task.getId(),
                 task);
 
-        assertThrows(RuntimeException.class, ()->messageProcessor.processTaskEvents(event));
+        StepVerifier.create(messageProcessor.taskEvents().apply(Flux.just(amqpMessage(event, 7L))))
+                .verifyComplete();
+        verifyNoInteractions(dashboardService);
+        verify(channel).basicNack(7L, false, false);
+        assertEquals(1, meterRegistry.get("dashboard.events.received").tag("type", "USER_ADDED").counter().count());
+        assertEquals(1, meterRegistry.get("dashboard.events.unrecognized").counter().count());
     }
 
 
     @Test
-    public void testProcessInvalidEventFormat() {
-        Event event = new Event<String, Object>(Event.Type.TASK_ADDED, "key",
-                new Object());
-        assertThrows(DashboardException.class, ()->messageProcessor.processTaskEvents(event));
+    public void testProcessInvalidEventFormat() throws IOException {
+        String payload = "{\"eventType\":\"TASK_ADDED\",\"key\":\"key\",\"data\":\"oops\"}";
+        StepVerifier.create(messageProcessor.taskEvents().apply(Flux.just(amqpMessage(payload, 1L))))
+                .verifyComplete();
+        verifyNoInteractions(dashboardService);
+        verify(channel).basicNack(1L, false, false);
 
     }
     @Test
-    public void testProcessGoalInvalidEventFormat() {
-        Event event = new Event<String, Object>(Event.Type.GOAL_ADDED, "key",
-                new Object());
-        assertThrows(DashboardException.class, ()->messageProcessor.processGoalEvents(event));
+    public void testProcessGoalInvalidEventFormat() throws IOException {
+        String payload = "{\"eventType\":\"GOAL_ADDED\",\"key\":\"key\",\"data\":[1, 2]}";
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(amqpMessage(payload, 1L))))
+                .verifyComplete();
+        verifyNoInteractions(dashboardService);
+        verify(channel).basicNack(1L, false, false);
 
     }
     @Test
-    public void testProcessGoalInvalidTaskEventMissing() {
+    public void testProcessGoalInvalidTaskEventMissing() throws IOException {
         Event event = new Event<String, Object>(Event.Type.TASK_COMPLETED, "key",
                 null);
-        assertThrows(DashboardException.class, ()->messageProcessor.processTaskEvents(event));
+        StepVerifier.create(messageProcessor.taskEvents().apply(Flux.just(amqpMessage(event, 1L))))
+                .verifyComplete();
+        verify(channel).basicNack(1L, false, false);
 
     }
     @Test
-    public void testProcessEmptyEventPayload() {
-        Event event = new Event<String, Object>(Event.Type.TASK_ADDED, "key",
-                Optional.empty());
-        assertThrows(DashboardException.class, ()->messageProcessor.processTaskEvents(event));
+    public void testProcessEmptyEventPayload() throws IOException {
+        String payload = "{\"eventType\":\"TASK_ADDED\",\"key\":\"key\",\"data\":{}}";
+        StepVerifier.create(messageProcessor.taskEvents().apply(Flux.just(amqpMessage(payload, 1L))))
+                .verifyComplete();
+        verifyNoInteractions(dashboardService);
+        verify(channel).basicNack(1L, false, false);
 
     }
     @Test
-    public void testProcessGoalEvent()  {
+    public void testProcessGoalEvent() throws IOException {
 
         DashboardMetric metric = new DashboardMetric();
 
@@ -123,9 +202,11 @@ class MessageProcessorTest {
         Event event = new Event<String, Object>(Event.Type.GOAL_ADDED, goal.getId(),
                 goal);
 
-        Mockito.when(dashboardService.computeScoreOnGoalAdd(any(Goal.class))).thenReturn(Mono.just(metric));
-        messageProcessor.processGoalEvents(event);
-        verify(dashboardService).computeScoreOnGoalAdd(any(Goal.class));
+        Mockito.when(dashboardService.computeScoreOnGoalAdd(any(Goal.class), any())).thenReturn(Mono.just(metric));
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(amqpMessage(event, 3L))))
+                .verifyComplete();
+        verify(dashboardService).computeScoreOnGoalAdd(any(Goal.class), any());
+        verify(channel).basicAck(3L, false);
 
     }
     @Test
@@ -143,9 +224,10 @@ class MessageProcessorTest {
         Event event = new Event<String, Object>(Event.Type.GOAL_COMPLETED, goal.getId(),
                 goal);
 
-        Mockito.when(dashboardService.computeScoreOnGoalComplete(any(Goal.class))).thenReturn(Mono.just(metric));
-        messageProcessor.processGoalEvents(event);
-        verify(dashboardService).computeScoreOnGoalComplete(any(Goal.class));
+        Mockito.when(dashboardService.computeScoreOnGoalComplete(any(Goal.class), any())).thenReturn(Mono.just(metric));
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(message(event))))
+                .verifyComplete();
+        verify(dashboardService).computeScoreOnGoalComplete(any(Goal.class), any());
 
     }
     @Test
@@ -162,7 +244,9 @@ class MessageProcessorTest {
         Event event = new Event<String, Object>(Event.Type.USER_ADDED, goal.getId(),
                 goal);
 
-        assertThrows(RuntimeException.class, ()->messageProcessor.processGoalEvents(event));
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(message(event))))
+                .verifyComplete();
+        verifyNoInteractions(dashboardService);
     }
     @Test
     public void testProcessGoalDeferredEvent()  {
@@ -178,9 +262,10 @@ class MessageProcessorTest {
 
         Event event = new Event<String, Object>(Event.Type.GOAL_DEFERRED, goal.getId(), goal);
 
-        Mockito.when(dashboardService.computeScoreOnGoalDeferred(any(Goal.class))).thenReturn(Mono.just(metric));
-        messageProcessor.processGoalEvents(event);
-        verify(dashboardService).computeScoreOnGoalDeferred(any(Goal.class));
+        Mockito.when(dashboardService.computeScoreOnGoalDeferred(any(Goal.class), any())).thenReturn(Mono.just(metric));
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(message(event))))
+                .verifyComplete();
+        verify(dashboardService).computeScoreOnGoalDeferred(any(Goal.class), any());
 
     }
     @Test
@@ -197,37 +282,562 @@ class MessageProcessorTest {
 
         Event event = new Event<String, Object>(Event.Type.GOAL_RESUMED, goal.getId(), goal);
 
-        Mockito.when(dashboardService.computeScoreOnGoalResumed(any(Goal.class))).thenReturn(Mono.just(metric));
-        messageProcessor.processGoalEvents(event);
-        verify(dashboardService).computeScoreOnGoalResumed(any(Goal.class));
+        Mockito.when(dashboardService.computeScoreOnGoalResumed(any(Goal.class), any())).thenReturn(Mono.just(metric));
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(message(event))))
+                .verifyComplete();
+        verify(dashboardService).computeScoreOnGoalResumed(any(Goal.class), any());
 
     }
     @Test
-    public void testProcessUserEvent()  {
+    public void testProcessGoalEventWriteFailure() throws IOException {
+
+        Goal goal = new Goal();
+        goal.setUserId("abc");
+        goal.setLevel(GoalLevel.EASY);
+        goal.setDueDate(LocalDate.now());
+
+        Event event = new Event<String, Object>(Event.Type.GOAL_ADDED, goal.getId(), goal);
+
+        Mockito.when(dashboardService.computeScoreOnGoalAdd(any(Goal.class), any()))
+                .thenReturn(Mono.error(new RuntimeException("write failed")));
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(amqpMessage(event, 5L))))
+                .verifyComplete();
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+        verify(channel).basicNack(5L, false, false);
+        assertEquals(1, meterRegistry.get("dashboard.events.processing")
+                .tags("type", "GOAL_ADDED", "outcome", "failure").timer().count());
+        assertEquals(0, meterRegistry.get("dashboard.events.freshness").tag("type", "GOAL_ADDED").timer().count());
+
+    }
+    @Test
+    public void testProcessGoalEventRetriedBeforeReject()  {
 
+        messageProcessor.setMaxAttempts(3);
+        messageProcessor.setBackOffInitialInterval(1);
+        messageProcessor.setBackOffMaxInterval(5);
         DashboardMetric metric = new DashboardMetric();
+
+        Goal goal = new Goal();
+        goal.setUserId("abc");
+        goal.setLevel(GoalLevel.EASY);
+        goal.setDueDate(LocalDate.now());
+
+        Event event = new Event<String, Object>(Event.Type.GOAL_ADDED, goal.getId(), goal);
+
+        Mockito.when(dashboardService.computeScoreOnGoalAdd(any(Goal.class), any()))
+                .thenReturn(Mono.error(new RuntimeException("write failed")), Mono.just(metric));
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(message(event))))
+                .verifyComplete();
+        verify(dashboardService, times(2)).computeScoreOnGoalAdd(any(Goal.class), any());
+        assertEquals(1, meterRegistry.get("dashboard.events.processing")
+                .tags("type", "GOAL_ADDED", "outcome", "success").timer().count());
+        assertEquals(0, meterRegistry.get("dashboard.events.processing")
+                .tags("type", "GOAL_ADDED", "outcome", "failure").timer().count());
+        assertEquals(1, meterRegistry.get("dashboard.events.freshness").tag("type", "GOAL_ADDED").timer().count());
+
+    }
+    @Test
+    public void testProcessRedeliveredEventAppliedOnce() throws IOException {
+
+        DashboardMetric metric = new DashboardMetric();
+
+        Goal goal = new Goal();
+        goal.setId("g1");
+        goal.setUserId("abc");
+        goal.setLevel(GoalLevel.EASY);
+        goal.setDueDate(LocalDate.now());
+
+        Event event = new Event<String, Object>(Event.Type.GOAL_COMPLETED, goal.getId(), goal);
+        String eventId = EventDeduplicator.idOf(event);
+
+        Mockito.when(dashboardService.computeScoreOnGoalComplete(any(Goal.class), any())).thenReturn(Mono.just(metric));
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(amqpMessage(event, 1L), amqpMessage(event, 2L))))
+                .verifyComplete();
+        verify(dashboardService, times(1)).computeScoreOnGoalComplete(any(Goal.class), Mockito.eq(eventId));
+        verify(channel).basicAck(1L, false);
+        verify(channel).basicAck(2L, false);
+        assertEquals(1, meterRegistry.get("dashboard.events.duplicates").counter().count());
+
+    }
+    @Test
+    public void testAppliedEventsJournaledOnce() throws IOException {
+        EventJournal eventJournal = Mockito.mock(EventJournal.class);
+        messageProcessor.eventJournal = eventJournal;
+        Goal goal = new Goal();
+        goal.setId("g1");
+        goal.setUserId("abc");
+        goal.setLevel(GoalLevel.EASY);
+        goal.setDueDate(LocalDate.now());
+        Event event = new Event<String, Object>(Event.Type.GOAL_COMPLETED, goal.getId(), goal);
+        Event failing = new Event<String, Object>(Event.Type.GOAL_ADDED, goal.getId(), goal);
+        // Applied before the restart that lost the deduplicator's memory of it.
+        Event replayed = new Event<String, Object>(Event.Type.GOAL_DEFERRED, goal.getId(), goal);
+        Message<byte[]> applied = amqpMessage(event, 1L);
+        DashboardMetric unchanged = new DashboardMetric();
+        unchanged.setReplayed(true);
+
+        Mockito.when(dashboardService.computeScoreOnGoalComplete(any(Goal.class), any())).thenReturn(Mono.just(new DashboardMetric()));
+        Mockito.when(dashboardService.computeScoreOnGoalAdd(any(Goal.class), any())).thenReturn(Mono.error(new RuntimeException("down")));
+        Mockito.when(dashboardService.computeScoreOnGoalDeferred(any(Goal.class), any())).thenReturn(Mono.just(unchanged));
+        Mockito.when(dashboardService.today()).thenReturn(18586L);
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(applied, amqpMessage(event, 2L),
+                amqpMessage(failing, 3L), amqpMessage(replayed, 4L))))
+                .verifyComplete();
+        verify(channel).basicAck(4L, false);
+        verify(eventJournal, times(1)).append(anyLong(), any());
+        verify(eventJournal).append(18586L, applied.getPayload());
+    }
+    @Test
+    public void testProcessMalformedJson() throws IOException {
+        StepVerifier.create(messageProcessor.taskEvents().apply(Flux.just(amqpMessage("{\"eventType\":", 2L))))
+                .verifyComplete();
+        verifyNoInteractions(dashboardService);
+        verify(channel).basicNack(2L, false, false);
+
+    }
+    @Test
+    public void testProcessEventsOfUserInOrder()  {
+
+        List<String> processed = Collections.synchronizedList(new ArrayList<>());
+        Mockito.when(dashboardService.computeScoreOnTaskAdd(any(Task.class), any())).thenAnswer(invocation -> {
+            Task task = invocation.getArgument(0);
+            return Mono.delay(Duration.ofMillis(task.getId().equals("first") ? 50 : 1))
+                    .doOnNext(tick -> processed.add(task.getUserId() + ":" + task.getId()))
+                    .thenReturn(new DashboardMetric());
+        });
+
+        Flux<Message<byte[]>> messages = Flux.just(
+                message(new Event<String, Object>(Event.Type.TASK_ADDED, "1", task("abc", "first"))),
+                message(new Event<String, Object>(Event.Type.TASK_ADDED, "2", task("xyz", "first"))),
+                message(new Event<String, Object>(Event.Type.TASK_ADDED, "3", task("abc", "second"))),
+                message(new Event<String, Object>(Event.Type.TASK_ADDED, "4", task("xyz", "second"))));
+
+        StepVerifier.create(messageProcessor.taskEvents().apply(messages))
+                .verifyComplete();
+        assertEquals(4, processed.size());
+        assertTrue(processed.indexOf("abc:first") < processed.indexOf("abc:second"));
+        assertTrue(processed.indexOf("xyz:first") < processed.indexOf("xyz:second"));
+    }
+    @Test
+    public void testPartitionedInstancesKeepOrderAndScale() {
+        int instances = 4;
+        int lanes = 8;
+        Map<String, List<Integer>> applied = new ConcurrentHashMap<>();
+        Mockito.when(dashboardService.computeScoreOnTaskAdd(any(Task.class), any())).thenAnswer(invocation -> {
+            Task task = invocation.getArgument(0);
+            return Mono.delay(Duration.ofMillis(5))
+                    .doOnNext(tick -> applied.computeIfAbsent(task.getUserId(), userId -> Collections.synchronizedList(new ArrayList<>()))
+                            .add(Integer.parseInt(task.getId())))
+                    .thenReturn(new DashboardMetric());
+        });
+        List<Message<byte[]>> events = new ArrayList<>();
+        for (int sequence = 0; sequence < 2; sequence++) {
+            for (int user = 0; user < 1024; user++) {
+                events.add(MessageBuilder.withPayload(toJson(new Event<String, Object>(Event.Type.TASK_ADDED,
+                                user + "-" + sequence, task("user-" + user, String.valueOf(sequence)))))
+                        .setHeader("userId", "user-" + user)
+                        .build());
+            }
+        }
+        List<List<Message<byte[]>>> partitions = partition(events, instances);
+
+        long oneInstance = consume(Collections.singletonList(events), lanes);
+        applied.clear();
+        long scaledOut = consume(partitions, lanes);
+
+        assertEquals(1024, applied.size());
+        applied.values().forEach(sequence -> assertEquals(List.of(0, 1), sequence));
+        for (List<Message<byte[]>> partition : partitions) {
+            assertEquals(lanes, partition.stream()
+                    .map(message -> MessageProcessor.laneOf((String) message.getHeaders().get("userId"), lanes))
+                    .distinct().count());
+        }
+        // Each lane applies its events one after another, so the run takes as long as the busiest lane.
+        assertTrue(oneInstance >= 3.5 * scaledOut, oneInstance + "ms on one instance, " + scaledOut + "ms on " + instances);
+    }
+
+    // Routes the events like a producer partitioning on the userId header.
+    private List<List<Message<byte[]>>> partition(List<Message<byte[]>> events, int partitionCount) {
+        ProducerProperties producerProperties = new ProducerProperties();
+        producerProperties.setPartitionKeyExpression(new SpelExpressionParser().parseExpression("headers['userId']"));
+        producerProperties.setPartitionCount(partitionCount);
+        PartitionHandler partitionHandler = new PartitionHandler(new StandardEvaluationContext(), producerProperties,
+                new DefaultListableBeanFactory());
+        List<List<Message<byte[]>>> partitions = new ArrayList<>();
+        for (int i = 0; i < partitionCount; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        events.forEach(message -> partitions.get(partitionHandler.determinePartition(message)).add(message));
+        return partitions;
+    }
+
+    // Runs one processor per partition on virtual time and returns how long they took together.
+    private long consume(List<List<Message<byte[]>>> partitions, int lanes) {
+        VirtualTimeScheduler scheduler = VirtualTimeScheduler.getOrSet();
+        try {
+            List<Mono<Void>> instances = new ArrayList<>();
+            for (List<Message<byte[]>> partition : partitions) {
+                MessageProcessor instance = new MessageProcessor(dashboardService, eventDecoder, pipelineMetrics,
+                        new EventDeduplicator(meterRegistry, 10000, 60));
+                instance.setLanes(lanes);
+                instance.setMaxAttempts(1);
+                instances.add(instance.taskEvents().apply(Flux.fromIterable(partition)));
+            }
+            AtomicBoolean done = new AtomicBoolean();
+            Mono.when(instances).subscribe(null, Throwable::printStackTrace, () -> done.set(true));
+            long start = scheduler.now(TimeUnit.MILLISECONDS);
+            while (!done.get()) {
+                scheduler.advanceTimeBy(Duration.ofMillis(1));
+            }
+            return scheduler.now(TimeUnit.MILLISECONDS) - start;
+        } finally {
+            VirtualTimeScheduler.reset();
+        }
+    }
+    @Test
+    public void testFailedEventRetriedWithoutHoldingUpItsLane() throws Exception {
+        messageProcessor.eventRetryQueue = new EventRetryQueue(meterRegistry, 3, 20, 20, 1, 64);
+        messageProcessor.setLanes(1);
+        AtomicInteger attempts = new AtomicInteger();
+        MonoProcessor<Void> retryGate = MonoProcessor.create();
+        Mockito.when(dashboardService.computeScoreOnTaskAdd(any(Task.class), any())).thenAnswer(invocation -> {
+            Task task = invocation.getArgument(0);
+            if (!task.getUserId().equals("abc")) {
+                return Mono.just(new DashboardMetric());
+            }
+            // The retry is only let through once the test saw the message still unacknowledged.
+            return attempts.incrementAndGet() == 1
+                    ? Mono.error(new DashboardException(404, "User records not found"))
+                    : retryGate.thenReturn(new DashboardMetric());
+        });
+        Flux<Message<byte[]>> messages = Flux.just(
+                amqpMessage(new Event<String, Object>(Event.Type.TASK_ADDED, "1", task("abc", "first")), 1L),
+                amqpMessage(new Event<String, Object>(Event.Type.TASK_ADDED, "2", task("xyz", "first")), 2L));
+
+        CompletableFuture<Void> consumed = messageProcessor.taskEvents().apply(messages).toFuture();
+
+        // The lane moved on to the next user's event while the failed one waits for its next attempt.
+        verify(channel, timeout(1000)).basicAck(2L, false);
+        verify(dashboardService, timeout(1000).times(3)).computeScoreOnTaskAdd(any(Task.class), any());
+        verify(channel, never()).basicAck(1L, false);
+        retryGate.onComplete();
+        consumed.get(5, TimeUnit.SECONDS);
+        verify(channel).basicAck(1L, false);
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+        messageProcessor.eventRetryQueue.stop();
+    }
+    @Test
+    public void testLaterEventsOfUserHeldBehindItsRetry() throws IOException {
+        messageProcessor.eventRetryQueue = new EventRetryQueue(meterRegistry, 3, 20, 20, 1, 64);
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger attempts = new AtomicInteger();
+        Mockito.when(dashboardService.computeScoreOnTaskAdd(any(Task.class), any())).thenAnswer(invocation -> {
+            Task task = invocation.getArgument(0);
+            if (task.getId().equals("first") && attempts.incrementAndGet() == 1) {
+                return Mono.error(new RuntimeException("write failed"));
+            }
+            applied.add(task.getId());
+            return Mono.just(new DashboardMetric());
+        });
+        Flux<Message<byte[]>> messages = Flux.just(
+                amqpMessage(new Event<String, Object>(Event.Type.TASK_ADDED, "1", task("abc", "first")), 1L),
+                amqpMessage(new Event<String, Object>(Event.Type.TASK_ADDED, "2", task("abc", "second")), 2L),
+                amqpMessage(new Event<String, Object>(Event.Type.TASK_ADDED, "3", task("abc", "third")), 3L));
+
+        StepVerifier.create(messageProcessor.taskEvents().apply(messages))
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+        assertEquals(List.of("first", "second", "third"), applied);
+        InOrder acks = inOrder(channel);
+        acks.verify(channel).basicAck(1L, false);
+        acks.verify(channel).basicAck(2L, false);
+        acks.verify(channel).basicAck(3L, false);
+        messageProcessor.eventRetryQueue.stop();
+    }
+    @Test
+    public void testFailedEventParkedOnceTooManyAreWaiting() throws IOException {
+        messageProcessor.eventRetryQueue = new EventRetryQueue(meterRegistry, 3, 20, 20, 1, 64);
+        messageProcessor.setMaxWaiting(1);
+        messageProcessor.setLanes(1);
+        ParkedEventRepository parkedEventRepository = Mockito.mock(ParkedEventRepository.class);
+        messageProcessor.parkingLot = new ParkingLot(parkedEventRepository, Mockito.mock(ReactiveMongoTemplate.class), meterRegistry);
+        Mockito.when(parkedEventRepository.save(any(ParkedEvent.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        AtomicInteger attempts = new AtomicInteger();
+        Mockito.when(dashboardService.computeScoreOnTaskAdd(any(Task.class), any())).thenAnswer(invocation ->
+                attempts.incrementAndGet() <= 2
+                        ? Mono.error(new RuntimeException("write failed"))
+                        : Mono.just(new DashboardMetric()));
+        Flux<Message<byte[]>> messages = Flux.just(
+                amqpMessage(new Event<String, Object>(Event.Type.TASK_ADDED, "1", task("abc", "first")), 1L),
+                amqpMessage(new Event<String, Object>(Event.Type.TASK_ADDED, "2", task("xyz", "first")), 2L));
+
+        StepVerifier.create(messageProcessor.taskEvents().apply(messages))
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+        // The first event took the only waiting slot, so the second one was parked without a retry.
+        verify(parkedEventRepository, times(1)).save(argThat(parked -> parked.getUserId().equals("xyz")));
+        verify(channel).basicAck(1L, false);
+        verify(channel).basicAck(2L, false);
+        assertEquals(3, attempts.get());
+        messageProcessor.eventRetryQueue.stop();
+    }
+    @Test
+    public void testExhaustedEventParkedAndReplayedWhenUserAdded() throws IOException {
+        messageProcessor.eventRetryQueue = new EventRetryQueue(meterRegistry, 2, 1, 1, 1, 64);
+        ParkedEventRepository parkedEventRepository = Mockito.mock(ParkedEventRepository.class);
+        messageProcessor.parkingLot = new ParkingLot(parkedEventRepository, Mockito.mock(ReactiveMongoTemplate.class), meterRegistry);
+        ArgumentCaptor<ParkedEvent> parked = ArgumentCaptor.forClass(ParkedEvent.class);
+        Mockito.when(parkedEventRepository.save(parked.capture())).thenAnswer(invocation -> {
+            ParkedEvent parkedEvent = invocation.getArgument(0);
+            parkedEvent.setId("p1");
+            return Mono.just(parkedEvent);
+        });
+        AtomicBoolean userAdded = new AtomicBoolean();
+        Mockito.when(dashboardService.computeScoreOnTaskAdd(any(Task.class), any())).thenAnswer(invocation -> userAdded.get()
+                ? Mono.just(new DashboardMetric())
+                : Mono.error(new DashboardException(404, "User records not found")));
+
+        StepVerifier.create(messageProcessor.taskEvents().apply(Flux.just(
+                amqpMessage(new Event<String, Object>(Event.Type.TASK_ADDED, "1", task("abc", "first")), 1L))))
+                .verifyComplete();
+
+        verify(channel, timeout(1000)).basicAck(1L, false);
+        assertEquals("abc", parked.getValue().getUserId());
+        assertEquals("tasks", parked.getValue().getDestination());
+        assertEquals("TASK_ADDED", parked.getValue().getEventType());
+        assertEquals(2, parked.getValue().getAttempts());
+        assertEquals("User records not found", parked.getValue().getReason());
+
+        userAdded.set(true);
+        Mockito.when(dashboardService.initializeUser(any(Event.class))).thenReturn(Mono.empty());
+        Mockito.when(parkedEventRepository.findByUserIdOrderByParkedAt("abc")).thenReturn(Flux.just(parked.getValue()));
+        Mockito.when(parkedEventRepository.deleteById("p1")).thenReturn(Mono.empty());
+        StepVerifier.create(messageProcessor.userEvents().apply(Flux.just(
+                amqpMessage(new Event<String, Object>(Event.Type.USER_ADDED, "abc", null), 2L))))
+                .verifyComplete();
+
+        verify(dashboardService, times(3)).computeScoreOnTaskAdd(any(Task.class), any());
+        verify(parkedEventRepository).deleteById("p1");
+        verify(channel).basicAck(2L, false);
+        messageProcessor.eventRetryQueue.stop();
+    }
+    @Test
+    public void testLanesCoalesceEventsOfUserIntoOneWrite() throws IOException {
+        DashboardMetricRepository dashboardMetricRepository = Mockito.mock(DashboardMetricRepository.class);
+        MetricDeltaBuffer buffer = new MetricDeltaBuffer(dashboardMetricRepository, meterRegistry, 60000, 15, 500, 100);
+        messageProcessor.metricDeltaBuffer = buffer;
+        messageProcessor.setLanes(4);
+        Map<String, DashboardMetric> documents = new ConcurrentHashMap<>();
+        Mockito.when(dashboardService.computeScoreOnTaskAdd(any(Task.class), any())).thenAnswer(invocation -> {
+            Task task = invocation.getArgument(0);
+            MetricDelta delta = new MetricDelta(task.getUserId(), invocation.getArgument(1));
+            delta.setGoalScore(1);
+            return buffer.submit(delta);
+        });
+        ArgumentCaptor<Collection<MetricDelta>> written = ArgumentCaptor.forClass(Collection.class);
+        Mockito.when(dashboardMetricRepository.applyDeltas(written.capture())).thenAnswer(invocation -> {
+            Collection<MetricDelta> deltas = invocation.getArgument(0);
+            deltas.forEach(delta -> documents.computeIfAbsent(delta.getUserId(), userId -> {
+                DashboardMetric metric = new DashboardMetric();
+                metric.setUserId(userId);
+                return metric;
+            }).getAppliedEventIds().addAll(delta.getEventIds()));
+            return Mono.empty();
+        });
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection()))
+                .thenAnswer(invocation -> Flux.fromIterable(documents.values()));
+        List<Message<byte[]>> messages = new ArrayList<>();
+        long deliveryTag = 0;
+        for (int sequence = 0; sequence < 5; sequence++) {
+            for (String userId : List.of("abc", "xyz", "pqr")) {
+                messages.add(amqpMessage(new Event<String, Object>(Event.Type.TASK_ADDED, userId + sequence,
+                        task(userId, userId + sequence)), ++deliveryTag));
+            }
+        }
+
+        StepVerifier.create(messageProcessor.taskEvents().apply(Flux.fromIterable(messages)))
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+
+        // The window only closes on its 15th event, so this completes only if the lanes did not wait
+        // for it; every event of a user went into that window and was written with one update.
+        verify(dashboardMetricRepository, times(1)).applyDeltas(anyCollection());
+        assertEquals(3, written.getValue().size());
+        written.getValue().forEach(delta -> {
+            // The five events and the window's flush id.
+            assertEquals(6, delta.getEventIds().size());
+            assertEquals(5, delta.getGoalScore());
+        });
+        for (long tag = 1; tag <= deliveryTag; tag++) {
+            verify(channel).basicAck(tag, false);
+        }
+        assertEquals(5.0, meterRegistry.get("dashboard.coalescing.ratio").gauge().value());
+    }
+    @Test
+    public void testBufferedAttemptsAreBoundedAndAwaited() throws IOException {
+        messageProcessor.metricDeltaBuffer = new MetricDeltaBuffer(Mockito.mock(DashboardMetricRepository.class), meterRegistry, 60000, 15, 500, 100);
+        messageProcessor.setMaxBuffered(2);
+        List<MonoProcessor<DashboardMetric>> windows = Collections.synchronizedList(new ArrayList<>());
+        Mockito.when(dashboardService.computeScoreOnTaskAdd(any(Task.class), any())).thenAnswer(invocation -> {
+            MonoProcessor<DashboardMetric> window = MonoProcessor.create();
+            windows.add(window);
+            return window;
+        });
+        List<Message<byte[]>> messages = new ArrayList<>();
+        for (long tag = 1; tag <= 5; tag++) {
+            messages.add(amqpMessage(new Event<String, Object>(Event.Type.TASK_ADDED, "t" + tag, task("user" + tag, "t" + tag)), tag));
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        messageProcessor.taskEvents().apply(Flux.fromIterable(messages)).subscribe(null, null, () -> done.set(true));
+
+        // Only two attempts are handed off while their windows are pending, and consumption waits for them.
+        assertEquals(2, windows.size());
+        for (int written = 0; written < 5; written++) {
+            assertFalse(done.get());
+            windows.get(written).onNext(new DashboardMetric());
+        }
+        assertTrue(done.get());
+        assertEquals(5, windows.size());
+        for (long tag = 1; tag <= 5; tag++) {
+            verify(channel).basicAck(tag, false);
+        }
+    }
+    @Test
+    public void testOnboardingBatchesPrefetchedUsersIntoFullWindows() throws IOException {
+        int users = 5000;
+        int prefetch = 250;
+        // Stub only mocks and plain collaborators, as recording every invocation would dominate the run.
+        Channel broker = Mockito.mock(Channel.class, withSettings().stubOnly());
+        DashboardService onboardingService = Mockito.mock(DashboardService.class, withSettings().stubOnly());
+        DashboardMetricRepository dashboardMetricRepository = Mockito.mock(DashboardMetricRepository.class, withSettings().stubOnly());
+        // Any write latency works here; the windows only need writes to take some time.
+        List<Integer> windowSizes = new ArrayList<>();
+        Mockito.when(dashboardMetricRepository.initializeUsers(anyCollection())).thenAnswer(invocation -> {
+            Collection<String> window = invocation.getArgument(0);
+            windowSizes.add(window.size());
+            return Mono.delay(Duration.ofMillis(10)).thenReturn(new HashSet<>(window));
+        });
+        List<Message<byte[]>> messages = new ArrayList<>();
+        for (int user = 0; user < users; user++) {
+            messages.add(MessageBuilder.withPayload(toJson(new Event<String, Object>(Event.Type.USER_ADDED, "user-" + user, null)))
+                    .setHeader(AmqpHeaders.CHANNEL, broker)
+                    .setHeader(AmqpHeaders.DELIVERY_TAG, (long) user + 1)
+                    .build());
+        }
+        VirtualTimeScheduler scheduler = VirtualTimeScheduler.getOrSet();
+        try {
+            UserOnboardingBuffer buffer = new UserOnboardingBuffer(dashboardMetricRepository, meterRegistry, 50, 200);
+            MessageProcessor processor = new MessageProcessor(onboardingService, new EventDecoder(),
+                    new PipelineMetrics(meterRegistry), new EventDeduplicator(meterRegistry, users, 60));
+            processor.userOnboardingBuffer = buffer;
+            Mockito.when(onboardingService.initializeUser(any(Event.class)))
+                    .thenAnswer(invocation -> buffer.submit(((Event<?, ?>) invocation.getArgument(0)).getKey().toString()));
+            // Like the broker, delivers the next message whenever one of the prefetched ones is acknowledged.
+            AtomicInteger delivered = new AtomicInteger();
+            AtomicInteger acknowledged = new AtomicInteger();
+            Flux<Message<byte[]>> source = Flux.create(sink -> {
+                Runnable deliverNext = () -> {
+                    int next = delivered.getAndIncrement();
+                    if (next < users) {
+                        sink.next(messages.get(next));
+                    } else if (next == users) {
+                        sink.complete();
+                    }
+                };
+                try {
+                    Mockito.doAnswer(invocation -> {
+                        acknowledged.incrementAndGet();
+                        deliverNext.run();
+                        return null;
+                    }).when(broker).basicAck(anyLong(), anyBoolean());
+                } catch (IOException e) {
+                    sink.error(e);
+                }
+                for (int i = 0; i < prefetch; i++) {
+                    deliverNext.run();
+                }
+            });
+
+            AtomicBoolean done = new AtomicBoolean();
+            processor.userEvents().apply(source).subscribe(null, Throwable::printStackTrace, () -> done.set(true));
+            while (!done.get()) {
+                scheduler.advanceTimeBy(Duration.ofMillis(1));
+            }
+
+            // Users no longer wait out a window one at a time in their lane, so the prefetched ones
+            // fill windows up to their size instead of trickling in one per window.
+            assertEquals(users, acknowledged.get());
+            assertEquals(users, windowSizes.stream().mapToInt(Integer::intValue).sum());
+            assertTrue(windowSizes.size() <= users / 100, windowSizes.size() + " windows");
+        } finally {
+            VirtualTimeScheduler.reset();
+        }
+    }
+    @Test
+    public void testProcessUserEvent()  {
+
         Event event = new Event<String, Object>(Event.Type.USER_ADDED, "abc",null);
 
-        doNothing().when(dashboardService).initializeUser(event);
-        messageProcessor.processUserEvents(event);
-        verify(dashboardService).initializeUser(event);
+        Mockito.when(dashboardService.initializeUser(any(Event.class))).thenReturn(Mono.empty());
+        StepVerifier.create(messageProcessor.userEvents().apply(Flux.just(message(event))))
+                .verifyComplete();
+        verify(dashboardService).initializeUser(argThat(decoded -> "abc".equals(decoded.getKey())));
 
     }
     @Test
     public void testProcessUserEventInvalid()  {
 
-        DashboardMetric metric = new DashboardMetric();
         Event event = new Event<String, Object>(Event.Type.GOAL_RESUMED, "abc",null);
 
-        assertThrows(RuntimeException.class, ()->messageProcessor.processUserEvents(event));
+        StepVerifier.create(messageProcessor.userEvents().apply(Flux.just(message(event))))
+                .verifyComplete();
+        verifyNoInteractions(dashboardService);
 
 
     }
     @Test
-    public void testProcessGoalInvalidGoalEventMissing() {
+    public void testProcessGoalInvalidGoalEventMissing() throws IOException {
         Event event = new Event<String, Object>(Event.Type.GOAL_RESUMED, "key",
                 null);
-        assertThrows(DashboardException.class, ()->messageProcessor.processGoalEvents(event));
+        StepVerifier.create(messageProcessor.goalEvents().apply(Flux.just(amqpMessage(event, 1L))))
+                .verifyComplete();
+        verify(channel).basicNack(1L, false, false);
+
+    }
+
+    private Task task(String userId, String id) {
+        Task task = new Task();
+        task.setId(id);
+        task.setUserId(userId);
+        task.setDueDate(LocalDate.now());
+        return task;
+    }
+
+    private Message<byte[]> message(Event<String, Object> event) {
+        return MessageBuilder.withPayload(toJson(event)).build();
+    }
+
+    private Message<byte[]> amqpMessage(Event<String, Object> event, long deliveryTag) {
+        return amqpMessage(toJson(event), deliveryTag);
+    }
+
+    private Message<byte[]> amqpMessage(String payload, long deliveryTag) {
+        return amqpMessage(payload.getBytes(StandardCharsets.UTF_8), deliveryTag);
+    }
+
+    private Message<byte[]> amqpMessage(byte[] payload, long deliveryTag) {
+        return MessageBuilder.withPayload(payload)
+                .setHeader(AmqpHeaders.CHANNEL, channel)
+                .setHeader(AmqpHeaders.DELIVERY_TAG, deliveryTag)
+                .build();
+    }
 
+    private byte[] toJson(Event<String, Object> event) {
+        try {
+            return objectMapper.writeValueAsBytes(event);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
     }
 }
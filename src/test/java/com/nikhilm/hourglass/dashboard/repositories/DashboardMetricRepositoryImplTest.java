@@ -0,0 +1,186 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricDelta;
+import com.nikhilm.hourglass.dashboard.models.MetricSummary;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+
+@ExtendWith(MockitoExtension.class)
+class DashboardMetricRepositoryImplTest {
+
+    @Mock
+    ReactiveMongoTemplate mongoTemplate;
+
+    MappingMongoConverter converter;
+
+    DashboardMetricRepositoryImpl repository;
+
+    @BeforeEach
+    public void setup() {
+        converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+        converter.afterPropertiesSet();
+        Mockito.lenient().when(mongoTemplate.getConverter()).thenReturn(converter);
+        repository = new DashboardMetricRepositoryImpl(mongoTemplate, 3);
+    }
+
+    @Test
+    public void testCounterUpdateIncrementsOnlyChangedFields() {
+        MetricDelta delta = new MetricDelta("abc");
+        delta.setGoalScore(-10);
+        delta.setTotalGoalsDeferred(1);
+
+        Document inc = (Document) repository.counterUpdate(delta).get("$inc");
+
+        assertEquals(3, inc.size());
+        assertEquals(-10L, inc.get("goalScore"));
+        assertEquals(1L, inc.get("totalGoalsDeferred"));
+        assertEquals(1L, inc.get("version"));
+    }
+
+    @Test
+    public void testEventIdsGuardAndRecordTheUpdate() {
+        MetricDelta delta = new MetricDelta("abc", "g1:GOAL_ADDED:2020-11-20T10:00");
+        delta.setTotalGoalsInProgress(1);
+
+        Document filter = (Document) repository.counterFilter(delta);
+        Document push = (Document) ((Document) repository.counterUpdate(delta).get("$push")).get("appliedEventIds");
+
+        assertEquals(new Document("$nin", delta.getEventIds()), filter.get("appliedEventIds"));
+        assertEquals(delta.getEventIds(), push.get("$each"));
+        assertEquals(-3, push.get("$slice"));
+        assertNull(((Document) repository.counterFilter(new MetricDelta("abc"))).get("appliedEventIds"));
+    }
+
+    @Test
+    public void testCounterUpdateAddressesMonthByKey() {
+        LocalDate month = LocalDate.of(2020, 11, 20);
+        MetricDelta delta = new MetricDelta("abc");
+        delta.setTotalGoalsInProgress(1);
+        delta.summaryFor(month).setGoalsPlanned(1);
+
+        Document update = repository.counterUpdate(delta);
+        Document inc = (Document) update.get("$inc");
+        Document set = (Document) update.get("$set");
+
+        assertEquals(1L, inc.get("totalGoalsInProgress"));
+        assertEquals(1L, inc.get("metricSummaries.202011.goalsPlanned"));
+        assertEquals(0L, inc.get("metricSummaries.202011.tasksPlanned"));
+        assertTrue(set.get("metricSummaries.202011.month") instanceof Date);
+        assertEquals(new Document("userId", "abc"), repository.counterFilter(delta));
+    }
+
+    @Test
+    public void testCounterUpdateIncrementsTrendRollups() {
+        MetricDelta delta = new MetricDelta("abc");
+        delta.summaryFor(LocalDate.of(2020, 12, 31)).setScore(5);
+        delta.summaryFor(LocalDate.of(2021, 1, 2)).setScore(7);
+
+        Document update = repository.counterUpdate(delta);
+        Document inc = (Document) update.get("$inc");
+        Document set = (Document) update.get("$set");
+
+        // Both days fall in ISO week 53 of 2020 but in different months, quarters and years.
+        assertEquals(12L, inc.get("weeklySummaries.202053.score"));
+        assertEquals(5L, inc.get("metricSummaries.202012.score"));
+        assertEquals(7L, inc.get("metricSummaries.202101.score"));
+        assertEquals(5L, inc.get("quarterlySummaries.20204.score"));
+        assertEquals(7L, inc.get("quarterlySummaries.20211.score"));
+        assertEquals(5L, inc.get("yearlySummaries.2020.score"));
+        assertEquals(7L, inc.get("yearlySummaries.2021.score"));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void testInitializeUsersToleratesDuplicateKeys() {
+        MongoCollection<Document> collection = Mockito.mock(MongoCollection.class);
+        Mockito.when(mongoTemplate.getCollectionName(DashboardMetric.class)).thenReturn("metrics");
+        Mockito.when(mongoTemplate.getCollection("metrics")).thenReturn(Mono.just(collection));
+        BulkWriteResult partial = BulkWriteResult.acknowledged(0, 0, 0, 0,
+                Collections.singletonList(new BulkWriteUpsert(0, new BsonString("1"))), Collections.emptyList());
+        MongoBulkWriteException duplicate = new MongoBulkWriteException(partial,
+                Collections.singletonList(new BulkWriteError(11000, "E11000 duplicate key error", new BsonDocument(), 1)),
+                null, new ServerAddress());
+        ArgumentCaptor<List<WriteModel<Document>>> captor = ArgumentCaptor.forClass(List.class);
+        Mockito.when(collection.bulkWrite(captor.capture(), any(BulkWriteOptions.class))).thenReturn(Mono.error(duplicate));
+
+        StepVerifier.create(repository.initializeUsers(Arrays.asList("abc", "xyz")))
+                .expectNext(Collections.singleton("abc"))
+                .verifyComplete();
+
+        UpdateOneModel<Document> upsert = (UpdateOneModel<Document>) captor.getValue().get(0);
+        Document insert = (Document) ((Document) upsert.getUpdate()).get("$setOnInsert");
+        assertEquals(new Document("userId", "abc"), upsert.getFilter());
+        assertTrue(upsert.getOptions().isUpsert());
+        assertEquals(0L, insert.get("goalScore"));
+        assertFalse(insert.containsKey("userId"));
+    }
+
+    @Test
+    public void testCounterUpdateWithoutSummaries() {
+        MetricDelta delta = new MetricDelta("abc");
+        delta.setGoalScore(5);
+
+        Document update = repository.counterUpdate(delta);
+
+        assertEquals(1, update.size());
+        assertFalse(update.containsKey("$set"));
+    }
+
+    @Test
+    public void testEmptyDeltaHasNoUpdate() {
+        assertTrue(repository.counterUpdate(new MetricDelta("abc")).isEmpty());
+    }
+
+    @Test
+    public void testMonthKeyedSummariesRoundTrip() {
+        DashboardMetric metric = new DashboardMetric();
+        metric.setUserId("abc");
+        MetricSummary january = new MetricSummary(LocalDate.of(2021, 1, 2));
+        january.setScore(12);
+        metric.getMetricSummaries().put(202101, january);
+        metric.getMetricSummaries().put(202012, new MetricSummary(LocalDate.of(2020, 12, 2)));
+
+        Document document = new Document();
+        converter.write(metric, document);
+        DashboardMetric read = converter.read(DashboardMetric.class, document);
+
+        assertTrue(((Document) document.get("metricSummaries")).containsKey("202101"));
+        assertEquals(Arrays.asList(202012, 202101), new ArrayList<>(read.getMetricSummaries().keySet()));
+        assertEquals(12, read.getMetricSummaries().get(202101).getScore());
+        assertEquals(LocalDate.of(2021, 1, 2), read.getMetricSummaries().get(202101).getMonth());
+    }
+}
@@ -0,0 +1,214 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricDelta;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.InetSocketAddress;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the update documents of the repository and the summary migration against a server, so the map
+ * key paths, the applied event guard and the slice are checked by the server rather than by comparing
+ * documents. A real mongod is used when one can be started; otherwise, e.g. when its binary cannot be
+ * downloaded, an in-memory server speaking the wire protocol stands in for it.
+ */
+class DashboardMetricRepositoryIntegrationTest {
+
+    private static MongodExecutable mongodExecutable;
+
+    private static MongoServer inMemoryServer;
+
+    private static MongoClient mongoClient;
+
+    private static ReactiveMongoTemplate mongoTemplate;
+
+    DashboardMetricRepositoryImpl repository;
+
+    @BeforeAll
+    public static void startMongod() {
+        try {
+            int port = Network.getFreeServerPort();
+            mongodExecutable = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+                    .version(Version.Main.PRODUCTION)
+                    .net(new Net("localhost", port, Network.localhostIsIPv6()))
+                    .build());
+            mongodExecutable.start();
+            mongoClient = MongoClients.create("mongodb://localhost:" + port);
+        } catch (Exception | LinkageError e) {
+            mongodExecutable = null;
+            inMemoryServer = new MongoServer(new MemoryBackend());
+            InetSocketAddress address = inMemoryServer.bind();
+            mongoClient = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+        }
+        mongoTemplate = new ReactiveMongoTemplate(mongoClient, "dashboard-it");
+    }
+
+    @AfterAll
+    public static void stopMongod() {
+        if (mongoClient != null) {
+            mongoClient.close();
+        }
+        if (mongodExecutable != null) {
+            mongodExecutable.stop();
+        }
+        if (inMemoryServer != null) {
+            inMemoryServer.shutdown();
+        }
+    }
+
+    @BeforeEach
+    public void setup() {
+        mongoTemplate.dropCollection(DashboardMetric.class).block();
+        repository = new DashboardMetricRepositoryImpl(mongoTemplate, 3);
+        assertEquals(Collections.singleton("abc"), repository.initializeUsers(Collections.singletonList("abc")).block());
+    }
+
+    @Test
+    public void testDeltaIncrementsMonthKeyedSummaries() {
+        MetricDelta delta = new MetricDelta("abc", "g1:GOAL_ADDED:2020-11-20T10:00");
+        delta.setTotalGoalsInProgress(1);
+        delta.summaryFor(LocalDate.of(2020, 11, 20)).setGoalsPlanned(1);
+        delta.summaryFor(LocalDate.of(2020, 12, 2)).setTasksPlanned(2);
+
+        DashboardMetric metric = repository.applyDelta(delta).block();
+
+        assertEquals(1L, metric.getTotalGoalsInProgress());
+        assertEquals(1L, metric.getVersion());
+        Document stored = rawDocument();
+        Document months = stored.get(DashboardMetricRepositoryImpl.SUMMARIES, Document.class);
+        assertEquals(1L, ((Number) months.get("202011", Document.class).get("goalsPlanned")).longValue());
+        assertEquals(2L, ((Number) months.get("202012", Document.class).get("tasksPlanned")).longValue());
+        assertTrue(months.get("202012", Document.class).get("month") instanceof Date);
+        assertEquals(Collections.singletonList("g1:GOAL_ADDED:2020-11-20T10:00"), stored.getList("appliedEventIds", String.class));
+    }
+
+    @Test
+    public void testAppliedEventIsScreenedByTheServer() {
+        MetricDelta delta = new MetricDelta("abc", "g1:GOAL_ADDED:2020-11-20T10:00");
+        delta.setTotalGoalsInProgress(1);
+        delta.summaryFor(LocalDate.of(2020, 11, 20)).setGoalsPlanned(1);
+
+        assertFalse(repository.applyDelta(delta).block().isReplayed());
+        DashboardMetric replayed = repository.applyDelta(delta).block();
+
+        assertTrue(replayed.isReplayed());
+        assertEquals(1L, replayed.getTotalGoalsInProgress());
+        assertEquals(1L, replayed.getVersion());
+        Document months = rawDocument().get(DashboardMetricRepositoryImpl.SUMMARIES, Document.class);
+        assertEquals(1L, ((Number) months.get("202011", Document.class).get("goalsPlanned")).longValue());
+    }
+
+    @Test
+    public void testAppliedEventIdsAreSlicedToTheWindow() {
+        Flux.range(1, 5)
+                .concatMap(i -> {
+                    MetricDelta delta = new MetricDelta("abc", "e" + i);
+                    delta.setTotalGoalsInProgress(1);
+                    return repository.applyDelta(delta);
+                })
+                .blockLast();
+
+        Document stored = rawDocument();
+        assertEquals(Arrays.asList("e3", "e4", "e5"), stored.getList("appliedEventIds", String.class));
+        assertEquals(5L, ((Number) stored.get("totalGoalsInProgress")).longValue());
+    }
+
+    @Test
+    public void testMergedDeltaWithAnAppliedEventIsSkippedWhole() {
+        MetricDelta first = new MetricDelta("abc", "e1");
+        first.setTotalGoalsInProgress(1);
+        repository.applyDelta(first).block();
+        MetricDelta merged = new MetricDelta("abc", "e1");
+        merged.setTotalGoalsInProgress(1);
+        MetricDelta second = new MetricDelta("abc", "e2");
+        second.setTotalGoalsInProgress(1);
+        merged.merge(second);
+
+        repository.applyDeltas(Collections.singletonList(merged)).block();
+
+        assertEquals(1L, ((Number) rawDocument().get("totalGoalsInProgress")).longValue());
+    }
+
+    @Test
+    public void testScoresOnlyReplacedAtTheVersionRead() {
+        MetricDelta scores = new MetricDelta("abc");
+        scores.setGoalScore(42);
+        MetricDelta event = new MetricDelta("abc", "g1:GOAL_ADDED:2020-11-20T10:00");
+        event.setTotalGoalsInProgress(1);
+        assertEquals(1L, repository.applyDelta(event).block().getVersion());
+
+        assertEquals(0L, repository.replaceScores(Collections.singletonList(scores), Collections.singletonMap("abc", 0L)).block());
+        assertEquals(0L, ((Number) rawDocument().get("goalScore")).longValue());
+
+        assertEquals(1L, repository.replaceScores(Collections.singletonList(scores), Collections.singletonMap("abc", 1L)).block());
+        Document stored = rawDocument();
+        assertEquals(42L, ((Number) stored.get("goalScore")).longValue());
+        assertEquals(2L, ((Number) stored.get("version")).longValue());
+    }
+
+    @Test
+    public void testLegacySummaryListIsMigratedAndRolledUp() {
+        MetricSummaryMigration migration = new MetricSummaryMigration(mongoTemplate);
+        String collection = mongoTemplate.getCollectionName(DashboardMetric.class);
+        List<Document> legacy = Arrays.asList(
+                summary(LocalDate.of(2020, 12, 2), 40, 3),
+                summary(LocalDate.of(2021, 1, 2), 15, 1),
+                summary(LocalDate.of(2020, 12, 2), 5, 1));
+        mongoTemplate.getCollection(collection)
+                .flatMap(metrics -> Mono.from(metrics.insertOne(new Document("userId", "legacy")
+                        .append(MetricSummaryMigration.LEGACY_SUMMARY_LIST, legacy))))
+                .block();
+
+        assertEquals(1L, migration.migrate().block());
+        migration.backfillRollups().block();
+
+        Document stored = mongoTemplate.getCollection(collection)
+                .flatMap(metrics -> Mono.from(metrics.find(new Document("userId", "legacy")).first()))
+                .block();
+        assertFalse(stored.containsKey(MetricSummaryMigration.LEGACY_SUMMARY_LIST));
+        Document december = stored.get(DashboardMetricRepositoryImpl.SUMMARIES, Document.class).get("202012", Document.class);
+        assertEquals(45L, ((Number) december.get("score")).longValue());
+        assertEquals(4L, ((Number) december.get("goalsPlanned")).longValue());
+        assertTrue(december.get("month") instanceof Date);
+        assertTrue(stored.getBoolean(MetricSummaryMigration.ROLLUPS_BACKFILLED));
+        Document quarter = stored.get("quarterlySummaries", Document.class).get("20204", Document.class);
+        assertEquals(45L, ((Number) quarter.get("score")).longValue());
+        assertEquals(0L, migration.migrate().block());
+    }
+
+    private Document rawDocument() {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(DashboardMetric.class))
+                .flatMap(metrics -> Mono.from(metrics.find(new Document("userId", "abc")).first()))
+                .block();
+    }
+
+    private Document summary(LocalDate month, long score, long goalsPlanned) {
+        return new Document("month", mongoTemplate.getConverter().convertToMongoType(month))
+                .append("score", score)
+                .append("goalsPlanned", goalsPlanned);
+    }
+}
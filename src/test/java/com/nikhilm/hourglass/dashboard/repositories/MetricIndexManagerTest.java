@@ -0,0 +1,46 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(MockitoExtension.class)
+class MetricIndexManagerTest {
+
+    @Mock
+    ReactiveMongoTemplate mongoTemplate;
+
+    MetricIndexManager metricIndexManager;
+
+    @BeforeEach
+    public void setup() {
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+        converter.afterPropertiesSet();
+        Mockito.when(mongoTemplate.getConverter()).thenReturn(converter);
+        metricIndexManager = new MetricIndexManager(mongoTemplate);
+    }
+
+    @Test
+    public void testUserIdIndexIsUnique() {
+        List<IndexDefinition> definitions = metricIndexManager.indexDefinitions();
+
+        IndexDefinition userIdIndex = definitions.stream()
+                .filter(definition -> definition.getIndexKeys().containsKey("userId"))
+                .findAny().orElseThrow();
+        assertEquals(new Document("userId", 1), userIdIndex.getIndexKeys());
+        assertEquals(Boolean.TRUE, userIdIndex.getIndexOptions().get("unique"));
+    }
+}
@@ -0,0 +1,108 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import com.nikhilm.hourglass.dashboard.models.MetricResponseView;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+
+@ExtendWith(MockitoExtension.class)
+class MetricResponseViewRepositoryImplTest {
+
+    @Mock
+    ReactiveMongoTemplate mongoTemplate;
+
+    @Mock
+    MongoCollection<Document> collection;
+
+    MetricResponseViewRepositoryImpl repository;
+
+    @BeforeEach
+    public void setup() {
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+        converter.afterPropertiesSet();
+        Mockito.lenient().when(mongoTemplate.getConverter()).thenReturn(converter);
+        Mockito.lenient().when(mongoTemplate.getCollectionName(MetricResponseView.class)).thenReturn("metricResponses");
+        Mockito.lenient().when(mongoTemplate.getCollection("metricResponses")).thenReturn(Mono.just(collection));
+        repository = new MetricResponseViewRepositoryImpl(mongoTemplate);
+    }
+
+    @Test
+    public void testOnlyOlderViewIsReplaced() {
+        Document filter = repository.olderThan(view("abc", 7));
+        List<Document> older = filter.getList("$or", Document.class);
+
+        assertEquals("abc", filter.get("_id"));
+        assertEquals(new Document("$lt", 7L), older.get(0).get("response.version"));
+        assertEquals(7L, older.get(1).get("response.version"));
+        assertTrue(older.get(1).containsKey("response.activeMonth"));
+    }
+
+    @Test
+    public void testNewerStoredViewIsKept() {
+        MongoWriteException duplicate = new MongoWriteException(
+                new WriteError(11000, "E11000 duplicate key error", new BsonDocument()), new ServerAddress());
+        Mockito.when(collection.replaceOne(any(Document.class), any(Document.class), any(ReplaceOptions.class)))
+                .thenReturn(Mono.error(duplicate));
+
+        StepVerifier.create(repository.saveIfNewer(view("abc", 3)))
+                .expectNext(false)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSaveAllKeepsNewerStoredViews() {
+        BulkWriteResult partial = BulkWriteResult.acknowledged(0, 1, 0, 1, Collections.emptyList(), Collections.emptyList());
+        MongoBulkWriteException duplicate = new MongoBulkWriteException(partial,
+                Collections.singletonList(new BulkWriteError(11000, "E11000 duplicate key error", new BsonDocument(), 1)),
+                null, new ServerAddress());
+        ArgumentCaptor<List<WriteModel<Document>>> captor = ArgumentCaptor.forClass(List.class);
+        Mockito.when(collection.bulkWrite(captor.capture(), any(BulkWriteOptions.class))).thenReturn(Mono.error(duplicate));
+
+        StepVerifier.create(repository.saveAllIfNewer(Arrays.asList(view("abc", 2), view("xyz", 5))))
+                .expectNext(1L)
+                .verifyComplete();
+
+        ReplaceOneModel<Document> replace = (ReplaceOneModel<Document>) captor.getValue().get(0);
+        assertTrue(replace.getReplaceOptions().isUpsert());
+        assertEquals("abc", replace.getReplacement().get("_id"));
+    }
+
+    private MetricResponseView view(String userId, long version) {
+        MetricResponse response = new MetricResponse();
+        response.setActiveMonth(LocalDate.now());
+        response.setVersion(version);
+        return new MetricResponseView(userId, response);
+    }
+}
@@ -0,0 +1,110 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(MockitoExtension.class)
+class MetricSummaryMigrationTest {
+
+    @Mock
+    ReactiveMongoTemplate mongoTemplate;
+
+    MappingMongoConverter converter;
+
+    MetricSummaryMigration migration;
+
+    @BeforeEach
+    public void setup() {
+        converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+        converter.afterPropertiesSet();
+        Mockito.lenient().when(mongoTemplate.getConverter()).thenReturn(converter);
+        migration = new MetricSummaryMigration(mongoTemplate);
+    }
+
+    @Test
+    public void testListEntriesBecomeMonthKeyedIncrements() {
+        Document metric = new Document("_id", "1").append("metricSummaryList", Arrays.asList(
+                summary(LocalDate.of(2020, 12, 2), 40, 3),
+                summary(LocalDate.of(2021, 1, 2), 15, 1),
+                summary(LocalDate.of(2020, 12, 2), 5, 1)));
+
+        UpdateOneModel<Document> model = (UpdateOneModel<Document>) migration.migrationFor(metric);
+        Document update = (Document) model.getUpdate();
+        Document inc = (Document) update.get("$inc");
+
+        assertEquals(45L, inc.get("metricSummaries.202012.score"));
+        assertEquals(4L, inc.get("metricSummaries.202012.goalsPlanned"));
+        assertEquals(15L, inc.get("metricSummaries.202101.score"));
+        assertTrue(((Document) update.get("$set")).get("metricSummaries.202101.month") instanceof Date);
+        assertEquals(new Document("metricSummaryList", ""), update.get("$unset"));
+        assertEquals("1", ((Document) model.getFilter()).get("_id"));
+        assertTrue(((Document) model.getFilter()).containsKey("metricSummaryList"));
+    }
+
+    @Test
+    public void testEmptyListIsOnlyRemoved() {
+        Document metric = new Document("_id", "1").append("metricSummaryList", Collections.emptyList());
+
+        Document update = (Document) ((UpdateOneModel<Document>) migration.migrationFor(metric)).getUpdate();
+
+        assertEquals(1, update.size());
+        assertTrue(update.containsKey("$unset"));
+    }
+
+    @Test
+    public void testRollupsBackfilledFromMonthsAsRead() {
+        Document months = new Document("202011", summary(LocalDate.of(2020, 11, 2), 10, 2))
+                .append("202012", summary(LocalDate.of(2020, 12, 2), 20, 1))
+                .append("202101", summary(LocalDate.of(2021, 1, 2), 5, 1));
+        Document metric = new Document("_id", "1").append("metricSummaries", months);
+
+        UpdateOneModel<Document> model = (UpdateOneModel<Document>) migration.backfillFor(metric);
+        Document set = (Document) ((Document) model.getUpdate()).get("$set");
+        Document quarters = (Document) set.get("quarterlySummaries");
+        Document years = (Document) set.get("yearlySummaries");
+
+        assertEquals(30L, ((Document) quarters.get("20204")).get("score"));
+        assertEquals(3L, ((Document) quarters.get("20204")).get("goalsPlanned"));
+        assertEquals(5L, ((Document) quarters.get("20211")).get("score"));
+        assertEquals(30L, ((Document) years.get("2020")).get("score"));
+        assertEquals(true, set.get("rollupsBackfilled"));
+        assertEquals(months, ((Document) model.getFilter()).get("metricSummaries"));
+    }
+
+    @Test
+    public void testRollupsOnlySetOnTheVersionRead() {
+        Document metric = new Document("_id", "1").append("version", 7L)
+                .append("metricSummaries", new Document("202011", summary(LocalDate.of(2020, 11, 2), 10, 2)));
+
+        UpdateOneModel<Document> model = (UpdateOneModel<Document>) migration.backfillFor(metric);
+
+        assertEquals(7L, ((Document) model.getFilter()).get("version"));
+        assertEquals(new Document("version", 1L), ((Document) model.getUpdate()).get("$inc"));
+    }
+
+    private Document summary(LocalDate month, long score, long goalsPlanned) {
+        return new Document("month", converter.convertToMongoType(month))
+                .append("score", score)
+                .append("goalsPlanned", goalsPlanned)
+                .append("goalsAccomplished", 0L)
+                .append("tasksPlanned", 0L)
+                .append("tasksCompleted", 0L);
+    }
+}
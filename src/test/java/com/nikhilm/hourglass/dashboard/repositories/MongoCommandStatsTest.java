@@ -0,0 +1,63 @@
+package com.nikhilm.hourglass.dashboard.repositories;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MongoCommandStatsTest {
+
+    MeterRegistry meterRegistry;
+
+    MongoCommandStats mongoCommandStats;
+
+    ConnectionDescription connection = new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress()));
+
+    @BeforeEach
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        mongoCommandStats = new MongoCommandStats(meterRegistry, 100);
+    }
+
+    @Test
+    public void testSlowCommandIsRecorded() {
+        run(1, "find", TimeUnit.MILLISECONDS.toNanos(250));
+
+        List<Map<String, Object>> slowCommands = mongoCommandStats.slowCommands();
+        assertEquals(1, slowCommands.size());
+        assertEquals("find", slowCommands.get(0).get("command"));
+        assertEquals("metrics", slowCommands.get(0).get("collection"));
+        assertEquals(250L, slowCommands.get(0).get("elapsedMillis"));
+        assertEquals(1.0, meterRegistry.get("dashboard.mongo.slow").counter().count());
+    }
+
+    @Test
+    public void testFastCommandIsOnlyTimed() {
+        run(2, "update", TimeUnit.MILLISECONDS.toNanos(3));
+
+        assertTrue(mongoCommandStats.slowCommands().isEmpty());
+        assertEquals(0.0, meterRegistry.get("dashboard.mongo.slow").counter().count());
+        assertEquals(1, meterRegistry.get("dashboard.mongo.commands").tag("command", "update").timer().count());
+    }
+
+    private void run(int requestId, String commandName, long elapsedNanos) {
+        BsonDocument command = new BsonDocument(commandName, new BsonString("metrics"));
+        mongoCommandStats.commandStarted(new CommandStartedEvent(requestId, connection, "hourglass", commandName, command));
+        mongoCommandStats.commandSucceeded(new CommandSucceededEvent(requestId, connection, commandName,
+                new BsonDocument(), elapsedNanos));
+    }
+}
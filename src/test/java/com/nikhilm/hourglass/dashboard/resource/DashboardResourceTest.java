@@ -1,7 +1,17 @@
 package com.nikhilm.hourglass.dashboard.resource;
 
-import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.nikhilm.hourglass.dashboard.exceptions.DashboardException;
+import com.nikhilm.hourglass.dashboard.models.LeaderboardEntry;
+import com.nikhilm.hourglass.dashboard.models.LeaderboardScore;
 import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import com.nikhilm.hourglass.dashboard.models.TrendGranularity;
+import com.nikhilm.hourglass.dashboard.models.TrendPoint;
+import com.nikhilm.hourglass.dashboard.models.TrendResponse;
 import com.nikhilm.hourglass.dashboard.services.DashboardService;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -9,12 +19,21 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.cloud.client.circuitbreaker.ReactiveCircuitBreakerFactory;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
-@WebFluxTest
+@WebFluxTest(properties = "dashboard.batch.callers=reports")
+@Import(CodecConfiguration.class)
 class DashboardResourceTest {
 
     @MockBean
@@ -42,6 +61,77 @@ class DashboardResourceTest {
 
     }
     @Test
+    public void testGetMetricsReturnsVersionAsETag() {
+        MetricResponse metricResponse = new MetricResponse();
+        metricResponse.setVersion(12);
+        metricResponse.setActiveMonth(LocalDate.of(2020, 11, 2));
+        Mockito.when(dashboardService.getMetrics("abc")).thenReturn(Mono.just(metricResponse));
+
+        webTestClient.get().uri("http://localhost:9060/metrics")
+                .header("user", "abc")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, "W/\"12-2020-11\"")
+                .expectBody(MetricResponse.class);
+    }
+    @Test
+    public void testGetMetricsNotModifiedWithoutLoading() {
+        Mockito.when(dashboardService.getMetricsETag("abc")).thenReturn("W/\"12-2020-11\"");
+
+        webTestClient.get().uri("http://localhost:9060/metrics")
+                .header("user", "abc")
+                .ifNoneMatch("W/\"12-2020-11\"")
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, "W/\"12-2020-11\"")
+                .expectBody().isEmpty();
+        Mockito.verify(dashboardService, Mockito.never()).getMetrics("abc");
+
+        MetricResponse metricResponse = new MetricResponse();
+        metricResponse.setVersion(13);
+        metricResponse.setActiveMonth(LocalDate.of(2020, 11, 2));
+        Mockito.when(dashboardService.getMetrics("abc")).thenReturn(Mono.just(metricResponse));
+        Mockito.when(dashboardService.getMetricsETag("abc")).thenReturn("W/\"13-2020-11\"");
+
+        webTestClient.get().uri("http://localhost:9060/metrics")
+                .header("user", "abc")
+                .ifNoneMatch("\"12-2020-11\"")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, "W/\"13-2020-11\"");
+    }
+    @Test
+    public void testGetMetricsTagSharedByRepresentationsIsWeak() {
+        MetricResponse metricResponse = new MetricResponse();
+        metricResponse.setVersion(12);
+        metricResponse.setActiveMonth(LocalDate.of(2020, 11, 2));
+        Mockito.when(dashboardService.getMetrics("abc")).thenReturn(Mono.just(metricResponse));
+
+        for (MediaType mediaType : List.of(MediaType.APPLICATION_JSON, MediaType.APPLICATION_CBOR, CodecConfiguration.APPLICATION_SMILE)) {
+            webTestClient.get().uri("http://localhost:9060/metrics")
+                    .header("user", "abc")
+                    .accept(mediaType)
+                    .exchange()
+                    .expectStatus().isOk()
+                    .expectHeader().valueEquals(HttpHeaders.ETAG, "W/\"12-2020-11\"")
+                    .expectHeader().valueEquals(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        }
+    }
+    @Test
+    public void testGetMetricsNotModifiedAfterLoadingWithoutKnownVersion() {
+        MetricResponse metricResponse = new MetricResponse();
+        metricResponse.setVersion(12);
+        metricResponse.setActiveMonth(LocalDate.of(2020, 11, 2));
+        Mockito.when(dashboardService.getMetrics("abc")).thenReturn(Mono.just(metricResponse));
+
+        webTestClient.get().uri("http://localhost:9060/metrics")
+                .header("user", "abc")
+                .ifNoneMatch("\"12-2020-11\"")
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectBody().isEmpty();
+    }
+    @Test
     public void testGetMetricsError() {
         MetricResponse metricResponse = new MetricResponse();
         metricResponse.setGoalsPlanned(10);
@@ -56,11 +146,184 @@ class DashboardResourceTest {
 
     }
     @Test
-    public void testinitMetrics() {
-        DashboardMetric dashboardMetric = new DashboardMetric();
-        dashboardMetric.setUserId("abc");
+    public void testGetMetricsAsCborAndSmile() throws IOException {
+        MetricResponse metricResponse = new MetricResponse();
+        metricResponse.setGoalsCompletedAfterTime(7);
+        metricResponse.setActiveMonth(LocalDate.of(2020, 11, 2));
+        Mockito.when(dashboardService.getMetrics("abc")).thenReturn(Mono.just(metricResponse));
+
+        for (JsonFactory factory : List.of(new CBORFactory(), new SmileFactory())) {
+            MediaType mediaType = factory instanceof CBORFactory ? MediaType.APPLICATION_CBOR : CodecConfiguration.APPLICATION_SMILE;
+            byte[] body = webTestClient.get().uri("http://localhost:9060/metrics")
+                    .header("user", "abc")
+                    .accept(mediaType)
+                    .exchange()
+                    .expectStatus().isOk()
+                    .expectHeader().contentType(mediaType)
+                    .expectBody(byte[].class)
+                    .returnResult()
+                    .getResponseBody();
+            JsonNode decoded = new ObjectMapper(factory).readTree(body);
+            assertEquals(7, decoded.get("goalsCompletedAfterTime").asLong());
+            assertEquals("2020-11-02", decoded.get("activeMonth").asText());
+        }
+    }
+    @Test
+    public void testGetLeaderboardAsCbor() throws IOException {
+        Mockito.when(dashboardService.getLeaderboard(LeaderboardScore.GOAL, 10)).thenReturn(Flux.just(
+                new LeaderboardEntry(1, "xyz", 40, 12.5), new LeaderboardEntry(2, "abc", 20, 10.0)));
+        byte[] body = webTestClient.get().uri("http://localhost:9060/leaderboard")
+                .header("user", "abc")
+                .accept(MediaType.APPLICATION_CBOR)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(byte[].class)
+                .returnResult()
+                .getResponseBody();
+
+        JsonNode decoded = new ObjectMapper(new CBORFactory()).readTree(body);
+        assertEquals(2, decoded.size());
+        assertEquals("abc", decoded.get(1).get("userId").asText());
+    }
+    @Test
+    public void testStreamMetricsAsServerSentEvents() {
+        MetricResponse first = new MetricResponse();
+        first.setGoalsPlanned(3);
+        MetricResponse second = new MetricResponse();
+        second.setGoalsPlanned(4);
+
+        Mockito.when(dashboardService.streamMetrics("abc")).thenReturn(Flux.just(first, second));
+        String body = webTestClient.get().uri("http://localhost:9060/metrics/stream")
+                .header("user", "abc")
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.TEXT_EVENT_STREAM)
+                .expectBody(String.class)
+                .returnResult()
+                .getResponseBody();
+
+        assertTrue(body.contains("event:metrics"));
+        assertTrue(body.contains("\"goalsPlanned\":3") && body.contains("\"goalsPlanned\":4"));
+    }
+    @Test
+    public void testGetTrends() {
+        LocalDate from = LocalDate.of(2016, 1, 1);
+        LocalDate to = LocalDate.of(2020, 12, 31);
+        TrendResponse trends = new TrendResponse(TrendGranularity.YEAR, from, to,
+                List.of(new TrendPoint("2020", LocalDate.of(2020, 1, 1), 42, 0, 0, 0, 0)));
+
+        Mockito.when(dashboardService.getTrends("abc", from, to, TrendGranularity.YEAR)).thenReturn(Mono.just(trends));
+        TrendResponse response = webTestClient.get().uri("http://localhost:9060/metrics/trends?from=2016-01-01&to=2020-12-31&granularity=year")
+                .header("user", "abc")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(TrendResponse.class)
+                .returnResult()
+                .getResponseBody();
+
+        assertEquals(TrendGranularity.YEAR, response.getGranularity());
+        assertEquals(42, response.getPoints().get(0).getScore());
+    }
+    @Test
+    public void testGetTrendsInvalidGranularity() {
+        webTestClient.get().uri("http://localhost:9060/metrics/trends?from=2020-01-01&to=2020-12-31&granularity=decade")
+                .header("user", "abc")
+                .exchange()
+                .expectStatus().isBadRequest();
+        Mockito.verifyNoInteractions(dashboardService);
+    }
+    @Test
+    public void testGetLeaderboard() {
+        Mockito.when(dashboardService.getLeaderboard(LeaderboardScore.AVERAGE, 2)).thenReturn(Flux.just(
+                new LeaderboardEntry(1, "xyz", 20, 12.5), new LeaderboardEntry(2, "abc", 40, 10.0)));
+        List<LeaderboardEntry> entries = webTestClient.get().uri("http://localhost:9060/leaderboard?limit=2&by=average")
+                .header("user", "abc")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBodyList(LeaderboardEntry.class)
+                .returnResult()
+                .getResponseBody();
+
+        assertEquals(2, entries.size());
+        assertEquals("xyz", entries.get(0).getUserId());
+        assertEquals(2, entries.get(1).getRank());
+    }
+    @Test
+    public void testGetLeaderboardRank() {
+        Mockito.when(dashboardService.getLeaderboardRank("xyz", LeaderboardScore.GOAL))
+                .thenReturn(Mono.just(new LeaderboardEntry(3, "xyz", 20, 12.5)));
+        Mockito.when(dashboardService.getLeaderboardRank("unknown", LeaderboardScore.GOAL))
+                .thenReturn(Mono.error(new DashboardException(404, "User records not found")));
+
+        webTestClient.get().uri("http://localhost:9060/leaderboard/rank/xyz")
+                .header("user", "abc")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$.rank").isEqualTo(3);
+        webTestClient.get().uri("http://localhost:9060/leaderboard/rank/unknown")
+                .header("user", "abc")
+                .exchange()
+                .expectStatus().isNotFound();
+        webTestClient.get().uri("http://localhost:9060/leaderboard/rank/xyz?by=streak")
+                .header("user", "abc")
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+    @Test
+    public void testGetMetricsBatchStreamsNdjson() {
+        MetricResponse first = new MetricResponse();
+        first.setGoalsPlanned(3);
+        MetricResponse second = new MetricResponse();
+        second.setGoalsPlanned(7);
+
+        Mockito.when(dashboardService.getMetrics(List.of("abc", "xyz"))).thenReturn(Flux.just(first, second));
+        String body = webTestClient.post().uri("http://localhost:9060/metrics/batch")
+                .header("user", "reports")
+                .accept(CodecConfiguration.APPLICATION_NDJSON)
+                .bodyValue(List.of("abc", "xyz"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(CodecConfiguration.APPLICATION_NDJSON)
+                .expectBody(String.class)
+                .returnResult()
+                .getResponseBody();
+
+        String[] lines = body.trim().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains("\"goalsPlanned\":3") && lines[1].contains("\"goalsPlanned\":7"));
+    }
+    @Test
+    public void testGetMetricsBatchTooLarge() {
+        webTestClient.post().uri("http://localhost:9060/metrics/batch")
+                .header("user", "abc")
+                .accept(CodecConfiguration.APPLICATION_NDJSON)
+                .bodyValue(java.util.Collections.nCopies(5001, "abc"))
+                .exchange()
+                .expectStatus().isBadRequest();
+        Mockito.verifyNoInteractions(dashboardService);
+    }
+    @Test
+    public void testGetMetricsBatchOfOtherUsersForbidden() {
+        webTestClient.post().uri("http://localhost:9060/metrics/batch")
+                .header("user", "abc")
+                .accept(CodecConfiguration.APPLICATION_NDJSON)
+                .bodyValue(List.of("abc", "xyz"))
+                .exchange()
+                .expectStatus().isForbidden();
+        Mockito.verifyNoInteractions(dashboardService);
 
-        Mockito.when(dashboardService.initMetrics("abc")).thenReturn(Mono.just(dashboardMetric));
+        Mockito.when(dashboardService.getMetrics(List.of("abc"))).thenReturn(Flux.just(new MetricResponse()));
+        webTestClient.post().uri("http://localhost:9060/metrics/batch")
+                .header("user", "abc")
+                .accept(CodecConfiguration.APPLICATION_NDJSON)
+                .bodyValue(List.of("abc"))
+                .exchange()
+                .expectStatus().isOk();
+    }
+    @Test
+    public void testinitMetrics() {
+        Mockito.when(dashboardService.initMetrics("abc")).thenReturn(Mono.empty());
         webTestClient.post().uri("http://localhost:9060/metrics/abc")
                 .header("user", "abc")
                 .exchange()
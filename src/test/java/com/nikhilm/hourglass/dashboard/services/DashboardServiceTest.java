@@ -3,6 +3,8 @@ package com.nikhilm.hourglass.dashboard.services;
 import com.nikhilm.hourglass.dashboard.exceptions.DashboardException;
 import com.nikhilm.hourglass.dashboard.models.*;
 import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import com.nikhilm.hourglass.dashboard.repositories.MetricResponseViewRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -11,22 +13,32 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cloud.stream.annotation.StreamListener;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.mongodb.core.mapping.TextScore;
 import org.springframework.messaging.support.MessageBuilder;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.YearMonth;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 
 @ExtendWith(MockitoExtension.class)
 @Slf4j
@@ -38,6 +50,14 @@ class DashboardServiceTest {
     @Mock
     DashboardMetricToMetricResponseMapper mapper;
 
+    @Mock
+    MetricResponseViewRepository metricResponseViewRepository;
+
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Spy
+    PipelineMetrics pipelineMetrics = new PipelineMetrics(meterRegistry);
+
 
     @InjectMocks
     DashboardService dashboardService;
@@ -66,7 +86,8 @@ class DashboardServiceTest {
         metricSummary2.setTasksPlanned(5L);
         metricSummary2.setGoalsPlanned(10);
         metricSummary2.setMonth(currentMonth.minusMonths(2L));
-        dashboardMetric.getMetricSummaryList().addAll(Arrays.asList(metricSummary, metricSummary1, metricSummary2));
+        Arrays.asList(metricSummary, metricSummary1, metricSummary2).forEach(summary ->
+                dashboardMetric.getMetricSummaries().put(MetricSummary.monthKey(summary.getMonth()), summary));
 
     }
 
@@ -83,6 +104,288 @@ class DashboardServiceTest {
                 .verifyComplete();
     }
     @Test
+    public void testGetMetricsServedFromCacheAfterWrite() {
+        dashboardService.metricResponseCache = new MetricResponseCache(new SimpleMeterRegistry(), 100, 600);
+        Mockito.when(dashboardMetricRepository.applyDelta(any(MetricDelta.class))).thenReturn(Mono.just(dashboardMetric));
+        Mockito.when(mapper.dashboardMetricToMetricResponse(any(DashboardMetric.class))).thenReturn(new MetricResponse());
+        Task task = new Task();
+        task.setUserId("abc");
+        task.setDueDate(LocalDate.now());
+
+        StepVerifier.create(dashboardService.computeScoreOnTaskAdd(task))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(dashboardService.getMetrics("abc"))
+                .expectNextMatches(metricResponse -> metricResponse.getTasksPlanned() == 5)
+                .verifyComplete();
+        verify(dashboardMetricRepository, never()).findByUserId("abc");
+    }
+    @Test
+    public void testCachedResponseReloadedWhenBehindKnownVersion() {
+        dashboardService.metricResponseCache = new MetricResponseCache(new SimpleMeterRegistry(), 100, 600);
+        dashboardService.metricVersions = new MetricVersions(new SimpleMeterRegistry(), 100, 60);
+        Mockito.when(dashboardMetricRepository.applyDelta(any(MetricDelta.class))).thenReturn(Mono.just(dashboardMetric));
+        Mockito.when(mapper.dashboardMetricToMetricResponse(any(DashboardMetric.class))).thenAnswer(invocation -> {
+            MetricResponse response = new MetricResponse();
+            response.setVersion(invocation.<DashboardMetric>getArgument(0).getVersion());
+            return response;
+        });
+        Task task = new Task();
+        task.setUserId("abc");
+        task.setDueDate(LocalDate.now());
+        StepVerifier.create(dashboardService.computeScoreOnTaskAdd(task))
+                .expectNextCount(1)
+                .verifyComplete();
+        DashboardMetric applied = DashboardMetric.from(dashboardMetric);
+        applied.setVersion(dashboardMetric.getVersion() + 1);
+        dashboardService.metricVersions.record("abc", applied.getVersion());
+        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(applied));
+
+        StepVerifier.create(dashboardService.getMetrics("abc"))
+                .expectNextMatches(metricResponse -> metricResponse.getVersion() == applied.getVersion())
+                .verifyComplete();
+        verify(dashboardMetricRepository).findByUserId("abc");
+    }
+    @Test
+    public void testGetMetricsFromReadModel() {
+        dashboardService.metricReadModel = new MetricReadModel(metricResponseViewRepository);
+        MetricResponse stored = new MetricResponse();
+        stored.setGoalScore(42);
+        stored.setActiveMonth(LocalDate.now());
+        Mockito.when(metricResponseViewRepository.findById("abc"))
+                .thenReturn(Mono.just(new MetricResponseView("abc", stored)));
+
+        StepVerifier.create(dashboardService.getMetrics("abc"))
+                .expectNext(stored)
+                .verifyComplete();
+        verify(dashboardMetricRepository, never()).findByUserId("abc");
+        verifyNoInteractions(mapper);
+    }
+    @Test
+    public void testWriteUpdatesReadModel() {
+        dashboardService.metricReadModel = new MetricReadModel(metricResponseViewRepository);
+        ArgumentCaptor<MetricResponseView> captor = ArgumentCaptor.forClass(MetricResponseView.class);
+        Mockito.when(dashboardMetricRepository.applyDelta(any(MetricDelta.class))).thenReturn(Mono.just(dashboardMetric));
+        Mockito.when(mapper.dashboardMetricToMetricResponse(any(DashboardMetric.class))).thenReturn(new MetricResponse());
+        Mockito.when(metricResponseViewRepository.saveIfNewer(captor.capture())).thenReturn(Mono.just(true));
+        Task task = new Task();
+        task.setUserId("abc");
+        task.setDueDate(LocalDate.now());
+
+        StepVerifier.create(dashboardService.computeScoreOnTaskAdd(task))
+                .expectNextCount(1)
+                .verifyComplete();
+        assertEquals("abc", captor.getValue().getUserId());
+        assertEquals(5, captor.getValue().getResponse().getTasksPlanned());
+    }
+    @Test
+    public void testWritePushedToOpenStream() {
+        dashboardService.metricUpdateBroadcaster = new MetricUpdateBroadcaster(new SimpleMeterRegistry(), 15);
+        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(dashboardMetric));
+        Mockito.when(dashboardMetricRepository.applyDelta(any(MetricDelta.class))).thenReturn(Mono.just(dashboardMetric));
+        Mockito.when(mapper.dashboardMetricToMetricResponse(any(DashboardMetric.class)))
+                .thenAnswer(invocation -> new MetricResponse());
+        Task task = new Task();
+        task.setUserId("abc");
+        task.setDueDate(LocalDate.now());
+
+        StepVerifier.create(dashboardService.streamMetrics("abc"))
+                .expectNextMatches(metricResponse -> metricResponse.getTasksPlanned() == 5)
+                .then(() -> {
+                    dashboardMetric.getMetricSummaries().get(MetricSummary.monthKey(LocalDate.now())).setTasksPlanned(6);
+                    dashboardService.computeScoreOnTaskAdd(task).block();
+                })
+                .expectNextMatches(metricResponse -> metricResponse.getTasksPlanned() == 6)
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+        assertFalse(dashboardService.metricUpdateBroadcaster.hasSubscribers("abc"));
+    }
+    @Test
+    public void testStreamMetricsDisabled() {
+        StepVerifier.create(dashboardService.streamMetrics("abc"))
+                .expectErrorMessage("Metric streaming is disabled")
+                .verify();
+    }
+    @Test
+    public void testRebuildReadModel() {
+        dashboardService.metricReadModel = new MetricReadModel(metricResponseViewRepository);
+        DashboardMetric other = new DashboardMetric();
+        other.setUserId("xyz");
+        Mockito.when(dashboardMetricRepository.findAll()).thenReturn(Flux.just(dashboardMetric, other));
+        Mockito.when(mapper.dashboardMetricToMetricResponse(any(DashboardMetric.class)))
+                .thenAnswer(invocation -> new MetricResponse());
+        Mockito.when(metricResponseViewRepository.saveAllIfNewer(anyCollection()))
+                .thenAnswer(invocation -> Mono.just((long) invocation.<Collection<MetricResponseView>>getArgument(0).size()));
+
+        StepVerifier.create(dashboardService.rebuildReadModel())
+                .expectNext(2L)
+                .verifyComplete();
+    }
+    @Test
+    public void testWriteUpdatesLeaderboard() {
+        dashboardService.leaderboard = new Leaderboard(dashboardMetricRepository, new SimpleMeterRegistry());
+        DashboardMetric other = new DashboardMetric();
+        other.setUserId("xyz");
+        other.setGoalScore(25);
+        Mockito.when(dashboardMetricRepository.findAllScores()).thenReturn(Flux.just(other));
+        StepVerifier.create(dashboardService.leaderboard.load())
+                .expectNext(1L)
+                .verifyComplete();
+        dashboardMetric.setGoalScore(30);
+        Mockito.when(dashboardMetricRepository.applyDelta(any(MetricDelta.class))).thenReturn(Mono.just(dashboardMetric));
+        Goal goal = new Goal();
+        goal.setUserId("abc");
+        goal.setLevel(GoalLevel.EASY);
+        goal.setDueDate(LocalDate.now());
+
+        StepVerifier.create(dashboardService.computeScoreOnGoalComplete(goal))
+                .expectNextCount(1)
+                .verifyComplete();
+        StepVerifier.create(dashboardService.getLeaderboard(LeaderboardScore.GOAL, 10).map(LeaderboardEntry::getUserId))
+                .expectNext("abc", "xyz")
+                .verifyComplete();
+        StepVerifier.create(dashboardService.getLeaderboardRank("xyz", LeaderboardScore.GOAL))
+                .expectNextMatches(entry -> entry.getRank() == 2 && entry.getGoalScore() == 25)
+                .verifyComplete();
+        StepVerifier.create(dashboardService.getLeaderboardRank("unknown", LeaderboardScore.GOAL))
+                .expectErrorMatches(throwable -> ((DashboardException) throwable).getStatus() == 404)
+                .verify();
+        StepVerifier.create(dashboardService.getLeaderboard(LeaderboardScore.GOAL, 1000))
+                .expectErrorMatches(throwable -> ((DashboardException) throwable).getStatus() == 400)
+                .verify();
+    }
+    @Test
+    public void testResponseCarriesScorePercentiles() {
+        dashboardService.scorePercentiles = Mockito.mock(ScorePercentiles.class);
+        MetricResponse response = new MetricResponse();
+        response.setGoalScore(30);
+        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(dashboardMetric));
+        Mockito.when(mapper.dashboardMetricToMetricResponse(any(DashboardMetric.class))).thenReturn(response);
+        Mockito.when(dashboardService.scorePercentiles.goalScorePercentile(30)).thenReturn(88.0);
+        Mockito.when(dashboardService.scorePercentiles.averageScorePercentile(0.0)).thenReturn(12.5);
+
+        StepVerifier.create(dashboardService.getMetrics("abc"))
+                .expectNextMatches(metricResponse -> metricResponse.getGoalScorePercentile() == 88.0
+                        && metricResponse.getAverageScorePercentile() == 12.5)
+                .verifyComplete();
+    }
+    @Test
+    public void testWriteRecordsVersionForConditionalReads() {
+        dashboardService.metricVersions = new MetricVersions(new SimpleMeterRegistry(), 100, 60);
+        dashboardMetric.setVersion(7);
+        Mockito.when(dashboardMetricRepository.applyDelta(any(MetricDelta.class))).thenReturn(Mono.just(dashboardMetric));
+        Task task = new Task();
+        task.setUserId("abc");
+        task.setDueDate(LocalDate.now());
+
+        assertNull(dashboardService.getMetricsETag("abc"));
+        StepVerifier.create(dashboardService.computeScoreOnTaskAdd(task))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        String eTag = dashboardService.getMetricsETag("abc");
+        MetricResponse response = new MetricResponse();
+        response.setVersion(7);
+        response.setActiveMonth(LocalDate.now());
+        assertEquals("W/\"7-" + YearMonth.now() + "\"", eTag);
+        assertEquals(eTag, DashboardService.eTagOf(response));
+        verify(dashboardMetricRepository, never()).findByUserId("abc");
+    }
+    @Test
+    public void testGetMetricsForUsers() {
+        DashboardMetric other = new DashboardMetric();
+        other.setUserId("xyz");
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(Arrays.asList("abc", "xyz", "unknown")))
+                .thenReturn(Flux.just(dashboardMetric, other));
+        Mockito.when(mapper.dashboardMetricToMetricResponse(any(DashboardMetric.class)))
+                .thenAnswer(invocation -> new MetricResponse());
+        StepVerifier.create(dashboardService.getMetrics(Arrays.asList("abc", "xyz", "unknown")))
+                .expectNextMatches(metricResponse -> metricResponse.getGoalsPlanned() == 10)
+                .expectNextMatches(metricResponse -> metricResponse.getGoalsPlanned() == 0
+                        && !metricResponse.getFallback().isEmpty())
+                .verifyComplete();
+        verify(dashboardMetricRepository, never()).findByUserId(any());
+    }
+    @Test
+    public void testGetMetricsForUsersFromCacheAndReadModel() {
+        dashboardService.metricResponseCache = new MetricResponseCache(new SimpleMeterRegistry(), 100, 600);
+        dashboardService.metricReadModel = new MetricReadModel(metricResponseViewRepository);
+        dashboardService.metricResponseCache.put("abc", response(1, 3));
+        dashboardService.metricResponseCache.put("xyz", response(99, 0));
+        dashboardService.metricVersions = new MetricVersions(new SimpleMeterRegistry(), 100, 60);
+        dashboardService.metricVersions.record("xyz", 1);
+        Mockito.when(metricResponseViewRepository.findAllById(Arrays.asList("xyz", "pqr")))
+                .thenReturn(Flux.just(new MetricResponseView("xyz", response(2, 1))));
+        DashboardMetric pqr = new DashboardMetric();
+        pqr.setUserId("pqr");
+        pqr.setGoalScore(3);
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(Arrays.asList("pqr"))).thenReturn(Flux.just(pqr));
+        Mockito.when(mapper.dashboardMetricToMetricResponse(any(DashboardMetric.class)))
+                .thenAnswer(invocation -> response(invocation.<DashboardMetric>getArgument(0).getGoalScore(), 2));
+        Mockito.when(metricResponseViewRepository.saveIfNewer(any(MetricResponseView.class)))
+                .thenReturn(Mono.just(true));
+
+        StepVerifier.create(dashboardService.getMetrics(Arrays.asList("abc", "xyz", "pqr")).map(MetricResponse::getGoalScore))
+                .expectNext(1L, 2L, 3L)
+                .verifyComplete();
+        verify(metricResponseViewRepository).saveIfNewer(any(MetricResponseView.class));
+    }
+    @Test
+    public void testGetTrendsAcrossYearEnd() {
+        DashboardMetric rollups = new DashboardMetric();
+        MetricSummary december = new MetricSummary();
+        december.setScore(40);
+        MetricSummary january = new MetricSummary();
+        january.setScore(15);
+        rollups.getMetricSummaries().put(202012, december);
+        rollups.getMetricSummaries().put(202102, january);
+        Mockito.when(dashboardMetricRepository.findRollup("abc", TrendGranularity.MONTH)).thenReturn(Mono.just(rollups));
+
+        StepVerifier.create(dashboardService.getTrends("abc", LocalDate.of(2020, 11, 15),
+                LocalDate.of(2021, 2, 1), TrendGranularity.MONTH))
+                .expectNextMatches(trends -> trends.getPoints().size() == 4
+                        && trends.getPoints().get(0).getPeriod().equals("2020-11")
+                        && trends.getPoints().get(1).getScore() == 40
+                        && trends.getPoints().get(2).getPeriod().equals("2021-01")
+                        && trends.getPoints().get(2).getScore() == 0
+                        && trends.getPoints().get(3).getScore() == 15)
+                .verifyComplete();
+    }
+    @Test
+    public void testGetTrendsByWeek() {
+        DashboardMetric rollups = new DashboardMetric();
+        MetricSummary week = new MetricSummary();
+        week.setTasksCompleted(2);
+        rollups.getWeeklySummaries().put(202053, week);
+        Mockito.when(dashboardMetricRepository.findRollup("abc", TrendGranularity.WEEK)).thenReturn(Mono.just(rollups));
+
+        StepVerifier.create(dashboardService.getTrends("abc", LocalDate.of(2020, 12, 30),
+                LocalDate.of(2021, 1, 4), TrendGranularity.WEEK))
+                .expectNextMatches(trends -> trends.getPoints().size() == 2
+                        && trends.getPoints().get(0).getPeriod().equals("2020-W53")
+                        && trends.getPoints().get(0).getStart().equals(LocalDate.of(2020, 12, 28))
+                        && trends.getPoints().get(0).getTasksCompleted() == 2
+                        && trends.getPoints().get(1).getPeriod().equals("2021-W01"))
+                .verifyComplete();
+    }
+    @Test
+    public void testGetTrendsRejectsInvalidRanges() {
+        dashboardService.setMaxTrendPoints(10);
+        StepVerifier.create(dashboardService.getTrends("abc", LocalDate.of(2021, 2, 1),
+                LocalDate.of(2020, 11, 1), TrendGranularity.MONTH))
+                .expectErrorMatches(throwable -> ((DashboardException) throwable).getStatus() == 400)
+                .verify();
+        StepVerifier.create(dashboardService.getTrends("abc", LocalDate.of(2020, 1, 1),
+                LocalDate.of(2020, 12, 31), TrendGranularity.MONTH))
+                .expectErrorMatches(throwable -> ((DashboardException) throwable).getStatus() == 400)
+                .verify();
+        Mockito.when(dashboardMetricRepository.findRollup("abc", TrendGranularity.YEAR)).thenReturn(Mono.empty());
+        StepVerifier.create(dashboardService.getTrends("abc", LocalDate.of(2015, 1, 1),
+                LocalDate.of(2020, 12, 31), TrendGranularity.YEAR))
+                .expectErrorMatches(throwable -> ((DashboardException) throwable).getStatus() == 404)
+                .verify();
+    }
+    @Test
     public void testGetMetricsNotFound() {
 
         Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.empty());
@@ -96,8 +399,8 @@ class DashboardServiceTest {
         Mockito.when(dashboardMetricRepository.save(any(DashboardMetric.class))).thenReturn(Mono.just(dashboardMetric));
         StepVerifier.create(dashboardService.initMetrics("abc"))
                 .expectSubscription()
-                .expectNextMatches(dashboardMetric -> dashboardMetric.getUserId().equals("abc"))
                 .verifyComplete();
+        verify(dashboardMetricRepository).save(Mockito.argThat(dashboardMetric -> dashboardMetric.getUserId().equals("abc")));
 
     }
     @Test
@@ -111,11 +414,23 @@ class DashboardServiceTest {
 
 
         Event event = new Event(Event.Type.USER_ADDED, "abc", goal);
-        dashboardService.initializeUser(event);
+        StepVerifier.create(dashboardService.initializeUser(event))
+                .verifyComplete();
         verify(dashboardMetricRepository, times(1)).save(any(DashboardMetric.class));
 
     }
     @Test
+    public void testInitMetricsThroughOnboardingBuffer()   {
+        Mockito.when(dashboardMetricRepository.initializeUsers(Mockito.anyCollection())).thenReturn(Mono.just(Set.of("abc", "xyz")));
+        dashboardService.userOnboardingBuffer = new UserOnboardingBuffer(dashboardMetricRepository, new SimpleMeterRegistry(), 60000, 2);
+
+        StepVerifier.create(Flux.merge(dashboardService.initMetrics("abc"),
+                dashboardService.initializeUser(new Event(Event.Type.USER_ADDED, "xyz", null))))
+                .verifyComplete();
+        verify(dashboardMetricRepository).initializeUsers(Mockito.argThat(userIds -> userIds.containsAll(Arrays.asList("abc", "xyz"))));
+        verify(dashboardMetricRepository, never()).save(any(DashboardMetric.class));
+    }
+    @Test
     public void testInitMetricsError()   {
         Mockito.when(dashboardMetricRepository.save(any(DashboardMetric.class)))
                 .thenReturn(Mono.error(new RuntimeException()));
@@ -125,16 +440,33 @@ class DashboardServiceTest {
                 .verify();
 
     }
+    @Test
+    public void testInitMetricsForExistingUser()   {
+        dashboardService.leaderboard = new Leaderboard(dashboardMetricRepository, new SimpleMeterRegistry());
+        dashboardService.scorePercentiles = Mockito.mock(ScorePercentiles.class);
+        Mockito.when(dashboardMetricRepository.save(any(DashboardMetric.class)))
+                .thenReturn(Mono.error(new DuplicateKeyException("E11000 duplicate key error")));
+        StepVerifier.create(dashboardService.initMetrics("abc"))
+                .verifyComplete();
+        assertEquals(0, dashboardService.leaderboard.size());
+        verifyNoInteractions(dashboardService.scorePercentiles);
+    }
+    @Test
+    public void testNewUserSeededOnce()   {
+        dashboardService.leaderboard = new Leaderboard(dashboardMetricRepository, new SimpleMeterRegistry());
+        dashboardService.scorePercentiles = Mockito.mock(ScorePercentiles.class);
+        Mockito.when(dashboardMetricRepository.save(any(DashboardMetric.class))).thenReturn(Mono.just(dashboardMetric));
+        StepVerifier.create(dashboardService.initMetrics("abc"))
+                .verifyComplete();
+        assertEquals(1, dashboardService.leaderboard.size());
+        verify(dashboardService.scorePercentiles).add(0, 0.0);
+    }
 
     @Test
     public void testComputeScoreOnGoalAdd(){
 
-        ArgumentCaptor<DashboardMetric> captor = ArgumentCaptor.forClass(DashboardMetric.class);
-        dashboardMetric.setTotalGoalsInProgress(4L);
-
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(dashboardMetric));
-
-        Mockito.when(dashboardMetricRepository.save(captor.capture())).thenReturn(Mono.just(dashboardMetric));
+        ArgumentCaptor<MetricDelta> captor = ArgumentCaptor.forClass(MetricDelta.class);
+        Mockito.when(dashboardMetricRepository.applyDelta(captor.capture())).thenReturn(Mono.just(dashboardMetric));
         Goal goal = new Goal();
         goal.setUserId("abc");
         goal.setName("A new goal");
@@ -146,14 +478,16 @@ class DashboardServiceTest {
                 .expectNext(dashboardMetric)
                 .verifyComplete();
 
-        DashboardMetric metric = captor.getValue();
-        assertEquals(metric.getTotalGoalsInProgress(), dashboardMetric.getTotalGoalsInProgress() + 1);
+        MetricDelta delta = captor.getValue();
+        assertEquals("abc", delta.getUserId());
+        assertEquals(1, delta.getTotalGoalsInProgress());
+        assertEquals(1, summaryOf(delta, goal.getDueDate()).getGoalsPlanned());
+        verify(dashboardMetricRepository, never()).save(any(DashboardMetric.class));
     }
     @Test
     public void testComputeScoreOnGoalAddInvalid(){
 
-
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.empty());
+        Mockito.when(dashboardMetricRepository.applyDelta(any(MetricDelta.class))).thenReturn(Mono.empty());
 
         Goal goal = new Goal();
         goal.setUserId("abc");
@@ -169,13 +503,32 @@ class DashboardServiceTest {
 
     }
     @Test
-    public void testComputeScoreOnGoalComplete(){
+    public void testDeltasScoredOnOneThreadDoNotShareState() {
+        dashboardService.setEasyGoalScore(10);
+        Goal goal = new Goal();
+        goal.setUserId("abc");
+        goal.setLevel(GoalLevel.EASY);
+        goal.setDueDate(LocalDate.now());
+        Task task = new Task();
+        task.setUserId("abc");
+        task.setDueDate(LocalDate.now());
 
-        ArgumentCaptor<DashboardMetric> captor = ArgumentCaptor.forClass(DashboardMetric.class);
+        MetricDelta completed = dashboardService.deltaOnGoalComplete(goal, null, LocalDate.now());
+        MetricDelta added = dashboardService.deltaOnTaskAdd(task, null);
 
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(dashboardMetric));
+        assertEquals(10, completed.getGoalScore());
+        assertEquals(1, completed.getEasyGoalsCompleted());
+        assertEquals(0, added.getGoalScore());
+        assertEquals(0, added.getEasyGoalsCompleted());
+        assertEquals(0, summaryOf(added, LocalDate.now()).getGoalsAccomplished());
+        assertEquals(1, summaryOf(added, LocalDate.now()).getTasksPlanned());
+    }
+    @Test
+    public void testComputeScoreOnGoalComplete(){
 
-        Mockito.when(dashboardMetricRepository.save(captor.capture())).thenReturn(Mono.just(dashboardMetric));
+        dashboardService.setEasyGoalScore(10);
+        ArgumentCaptor<MetricDelta> captor = ArgumentCaptor.forClass(MetricDelta.class);
+        Mockito.when(dashboardMetricRepository.applyDelta(captor.capture())).thenReturn(Mono.just(dashboardMetric));
         Goal goal = new Goal();
         goal.setUserId("abc");
         goal.setName("A new goal");
@@ -187,44 +540,44 @@ class DashboardServiceTest {
                 .expectNext(dashboardMetric)
                 .verifyComplete();
 
-        DashboardMetric metric = captor.getValue();
-        assertEquals(metric.getEasyGoalsCompleted(), dashboardMetric.getEasyGoalsCompleted() + 1);
+        MetricDelta delta = captor.getValue();
+        assertEquals(1, delta.getEasyGoalsCompleted());
+        assertEquals(1, delta.getGoalsCompletedOnTime());
+        assertEquals(1, delta.getTotalGoalsCompleted());
+        assertEquals(-1, delta.getTotalGoalsInProgress());
+        assertEquals(10, delta.getGoalScore());
+        MetricSummary summary = summaryOf(delta, LocalDate.now());
+        assertEquals(1, summary.getGoalsAccomplished());
+        assertEquals(10, summary.getScore());
     }
     @Test
     public void testComputeScoreOnGoalCompleteModerate(){
 
         dashboardService.setModerateGoalScore(25);
-        ArgumentCaptor<DashboardMetric> captor = ArgumentCaptor.forClass(DashboardMetric.class);
-
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(dashboardMetric));
-
-        Mockito.when(dashboardMetricRepository.save(captor.capture())).thenReturn(Mono.just(dashboardMetric));
+        ArgumentCaptor<MetricDelta> captor = ArgumentCaptor.forClass(MetricDelta.class);
+        Mockito.when(dashboardMetricRepository.applyDelta(captor.capture())).thenReturn(Mono.just(dashboardMetric));
         Goal goal = new Goal();
         goal.setUserId("abc");
         goal.setName("A new goal");
         goal.setLevel(GoalLevel.MODERATE);
         goal.setDueDate(LocalDate.now().minusDays(5L));
-        long initialGoalScore = 100;
-        dashboardMetric.setGoalScore(initialGoalScore);
-
 
         StepVerifier.create(dashboardService.computeScoreOnGoalComplete(goal))
                 .expectSubscription()
                 .expectNext(dashboardMetric)
                 .verifyComplete();
 
-        DashboardMetric metric = captor.getValue();
-        assertEquals(metric.getModerateGoalsCompleted(), dashboardMetric.getModerateGoalsCompleted() + 1);
-        assertEquals(120, metric.getGoalScore());
+        MetricDelta delta = captor.getValue();
+        assertEquals(1, delta.getModerateGoalsCompleted());
+        assertEquals(1, delta.getGoalsCompletedAfterTime());
+        assertEquals(20, delta.getGoalScore());
+        assertEquals(20, summaryOf(delta, LocalDate.now()).getScore());
     }
     @Test
     public void testComputeScoreOnGoalCompleteExtreme(){
 
-        ArgumentCaptor<DashboardMetric> captor = ArgumentCaptor.forClass(DashboardMetric.class);
-
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(dashboardMetric));
-
-        Mockito.when(dashboardMetricRepository.save(captor.capture())).thenReturn(Mono.just(dashboardMetric));
+        ArgumentCaptor<MetricDelta> captor = ArgumentCaptor.forClass(MetricDelta.class);
+        Mockito.when(dashboardMetricRepository.applyDelta(captor.capture())).thenReturn(Mono.just(dashboardMetric));
         Goal goal = new Goal();
         goal.setUserId("abc");
         goal.setName("A new goal");
@@ -236,13 +589,12 @@ class DashboardServiceTest {
                 .expectNext(dashboardMetric)
                 .verifyComplete();
 
-        DashboardMetric metric = captor.getValue();
-        assertEquals(metric.getExtremeGoalsCompleted(), dashboardMetric.getExtremeGoalsCompleted() + 1);
+        assertEquals(1, captor.getValue().getExtremeGoalsCompleted());
     }
     @Test
     public void testComputeScoreOnGoalCompleteInvalid(){
 
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.empty());
+        Mockito.when(dashboardMetricRepository.applyDelta(any(MetricDelta.class))).thenReturn(Mono.empty());
         Goal goal = new Goal();
         goal.setUserId("abc");
         goal.setName("A new goal");
@@ -262,141 +614,97 @@ class DashboardServiceTest {
         dashboardService.setDeferPenalty(6);
         dashboardService.setExtremeGoalScore(50);
 
-        log.info("total deferred " + dashboardMetric.getTotalGoalsDeferred());
-
-        ArgumentCaptor<DashboardMetric> captor = ArgumentCaptor.forClass(DashboardMetric.class);
-
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(dashboardMetric));
-
-        Mockito.when(dashboardMetricRepository.save(captor.capture())).thenReturn(Mono.just(dashboardMetric));
+        ArgumentCaptor<MetricDelta> captor = ArgumentCaptor.forClass(MetricDelta.class);
+        Mockito.when(dashboardMetricRepository.applyDelta(captor.capture())).thenReturn(Mono.just(dashboardMetric));
         Goal goal = new Goal();
         goal.setUserId("abc");
         goal.setName("A new goal");
         goal.setLevel(GoalLevel.EXTREME);
         goal.setStatus(GoalStatus.DEFERRED);
         goal.setDueDate(LocalDate.now().minusDays(4L));
-        long initialGoalScore = 100;
-        dashboardMetric.setGoalScore(initialGoalScore);
 
         StepVerifier.create(dashboardService.computeScoreOnGoalDeferred(goal))
                 .expectSubscription()
                 .expectNext(dashboardMetric)
                 .verifyComplete();
 
-        DashboardMetric metric = captor.getValue();
-        assertEquals(metric.getTotalGoalsDeferred(), dashboardMetric.getTotalGoalsDeferred() + 1);
-        assertEquals(90, metric.getGoalScore());
+        MetricDelta delta = captor.getValue();
+        assertEquals(1, delta.getTotalGoalsDeferred());
+        assertEquals(-1, delta.getTotalGoalsInProgress());
+        assertEquals(-10, delta.getGoalScore());
+        MetricSummary summary = summaryOf(delta, goal.getDueDate());
+        assertEquals(-1, summary.getGoalsPlanned());
+        assertEquals(-10, summary.getScore());
     }
     @Test
     public void testComputeScoreOnGoalResumed(){
 
         dashboardService.setResumeBonus(1);
         dashboardService.setEasyGoalScore(10);
-        log.info("total resumed " + dashboardMetric.getTotalGoalsInProgress());
-
-        ArgumentCaptor<DashboardMetric> captor = ArgumentCaptor.forClass(DashboardMetric.class);
-
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(dashboardMetric));
 
-        Mockito.when(dashboardMetricRepository.save(captor.capture())).thenReturn(Mono.just(dashboardMetric));
+        ArgumentCaptor<MetricDelta> captor = ArgumentCaptor.forClass(MetricDelta.class);
+        Mockito.when(dashboardMetricRepository.applyDelta(captor.capture())).thenReturn(Mono.just(dashboardMetric));
         Goal goal = new Goal();
         goal.setUserId("abc");
         goal.setName("A new goal");
         goal.setLevel(GoalLevel.EASY);
         goal.setStatus(GoalStatus.DEFERRED);
         goal.setDueDate(LocalDate.now().minusDays(2L));
-        long initialGoalScore = 100;
-        dashboardMetric.setGoalScore(initialGoalScore);
+
         StepVerifier.create(dashboardService.computeScoreOnGoalResumed(goal))
                 .expectSubscription()
                 .expectNext(dashboardMetric)
                 .verifyComplete();
 
-        DashboardMetric metric = captor.getValue();
-        assertEquals(metric.getTotalGoalsInProgress(), dashboardMetric.getTotalGoalsInProgress() + 1);
-        assertEquals(99, metric.getGoalScore());
+        MetricDelta delta = captor.getValue();
+        assertEquals(1, delta.getTotalGoalsInProgress());
+        assertEquals(-1, delta.getTotalGoalsDeferred());
+        assertEquals(-1, delta.getGoalScore());
+        assertEquals(1, summaryOf(delta, goal.getDueDate()).getGoalsPlanned());
     }
     @Test
     public void testComputeScoreOnTaskAdd(){
-        LocalDate currentMonth = LocalDate.now();
 
-        DashboardMetric metric = new DashboardMetric();
-        MetricSummary metricSummary = new MetricSummary();
-        metricSummary.setTasksCompleted(3L);
-        metricSummary.setTasksPlanned(5L);
-        metricSummary.setGoalsPlanned(10);
-        metricSummary.setMonth(LocalDate.of(currentMonth.getYear(), currentMonth.getMonth(), 2));
-        metric.getMetricSummaryList().add(metricSummary);
-
-        log.info("initial summary " + metricSummary);
-        long initialTasksPlanned = metricSummary.getTasksPlanned();
-        ArgumentCaptor<DashboardMetric> captor = ArgumentCaptor.forClass(DashboardMetric.class);
-
-
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(metric));
-
-        Mockito.when(dashboardMetricRepository.save(captor.capture())).thenReturn(Mono.just(dashboardMetric));
+        ArgumentCaptor<MetricDelta> captor = ArgumentCaptor.forClass(MetricDelta.class);
+        Mockito.when(dashboardMetricRepository.applyDelta(captor.capture())).thenReturn(Mono.just(dashboardMetric));
         Task task = new Task();
         task.setUserId("abc");
         task.setName("A new task");
-        task.setDueDate(LocalDate.now());
+        task.setDueDate(LocalDate.now().plusMonths(1L));
 
         StepVerifier.create(dashboardService.computeScoreOnTaskAdd(task))
                 .expectSubscription()
                 .expectNext(dashboardMetric)
                 .verifyComplete();
 
-        DashboardMetric captorMetric = captor.getValue();
-
-        MetricSummary computedSummary = captorMetric.getMetricSummaryList().stream()
-                .filter(summary -> summary.getMonth()
-                        .equals(LocalDate.of(currentMonth.getYear(), currentMonth.getMonth(), 2)))
-                .findAny().get();
-        assertEquals(initialTasksPlanned + 1, computedSummary.getTasksPlanned());
+        MetricDelta delta = captor.getValue();
+        assertEquals(1, delta.getSummaries().size());
+        assertEquals(1, summaryOf(delta, task.getDueDate()).getTasksPlanned());
     }
     @Test
     public void testComputeScoreOnTaskComplete(){
-        LocalDate currentMonth = LocalDate.now();
-
-        DashboardMetric metric = new DashboardMetric();
-        MetricSummary metricSummary = new MetricSummary();
-        metricSummary.setTasksCompleted(3L);
-        metricSummary.setTasksPlanned(5L);
-        metricSummary.setGoalsPlanned(10);
-        metricSummary.setMonth(LocalDate.of(currentMonth.getYear(), currentMonth.getMonth(), 2));
-        metric.getMetricSummaryList().add(metricSummary);
 
-        log.info("initial summary " + metricSummary);
-        long initialTasksCompleted = metricSummary.getTasksCompleted();
-        ArgumentCaptor<DashboardMetric> captor = ArgumentCaptor.forClass(DashboardMetric.class);
-
-
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.just(metric));
-
-        Mockito.when(dashboardMetricRepository.save(captor.capture())).thenReturn(Mono.just(dashboardMetric));
+        ArgumentCaptor<MetricDelta> captor = ArgumentCaptor.forClass(MetricDelta.class);
+        Mockito.when(dashboardMetricRepository.applyDelta(captor.capture())).thenReturn(Mono.just(dashboardMetric));
         Task task = new Task();
         task.setUserId("abc");
         task.setName("A new task");
-        task.setDueDate(LocalDate.now());
+        task.setDueDate(LocalDate.now().minusMonths(1L));
 
         StepVerifier.create(dashboardService.computeScoreOnTaskComplete(task))
                 .expectSubscription()
                 .expectNext(dashboardMetric)
                 .verifyComplete();
 
-        DashboardMetric captorMetric = captor.getValue();
-
-        MetricSummary computedSummary = captorMetric.getMetricSummaryList().stream()
-                .filter(summary -> summary.getMonth()
-                        .equals(LocalDate.of(currentMonth.getYear(), currentMonth.getMonth(), 2)))
-                .findAny().get();
-        assertEquals(initialTasksCompleted + 1, computedSummary.getTasksCompleted());
+        MetricDelta delta = captor.getValue();
+        assertEquals(1, delta.getSummaries().size());
+        assertEquals(1, summaryOf(delta, LocalDate.now()).getTasksCompleted());
     }
 
     @Test
     public void testComputeScoreOnTaskCompleteInvalid(){
 
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.empty());
+        Mockito.when(dashboardMetricRepository.applyDelta(any(MetricDelta.class))).thenReturn(Mono.empty());
         Task task = new Task();
         task.setUserId("abc");
         task.setName("A new task");
@@ -412,7 +720,7 @@ class DashboardServiceTest {
     public void testComputeScoreOnTaskAddInvalid(){
 
 
-        Mockito.when(dashboardMetricRepository.findByUserId("abc")).thenReturn(Mono.empty());
+        Mockito.when(dashboardMetricRepository.applyDelta(any(MetricDelta.class))).thenReturn(Mono.empty());
 
         Task task = new Task();
         task.setUserId("abc");
@@ -427,5 +735,15 @@ class DashboardServiceTest {
 
     }
 
+    private MetricSummary summaryOf(MetricDelta delta, LocalDate date) {
+        return delta.getSummaries().get(MetricSummary.monthKey(date));
+    }
 
+    private MetricResponse response(long goalScore, long version) {
+        MetricResponse response = new MetricResponse();
+        response.setGoalScore(goalScore);
+        response.setVersion(version);
+        response.setActiveMonth(LocalDate.now());
+        return response;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EpochDayClockTest {
+
+    @Test
+    public void testDayRollsOverAtMidnightOfZone() {
+        ZoneId zone = ZoneId.of("Asia/Kolkata");
+        Instant beforeMidnight = LocalDate.of(2020, 11, 3).plusDays(1).atStartOfDay(zone).toInstant().minusMillis(1);
+        AtomicLong millis = new AtomicLong(beforeMidnight.toEpochMilli());
+        EpochDayClock epochDayClock = new EpochDayClock(new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return zone;
+            }
+
+            @Override
+            public Clock withZone(ZoneId zoneId) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long millis() {
+                return millis.get();
+            }
+
+            @Override
+            public Instant instant() {
+                return Instant.ofEpochMilli(millis.get());
+            }
+        });
+
+        assertEquals(LocalDate.of(2020, 11, 3), epochDayClock.todayDate());
+        millis.incrementAndGet();
+        assertEquals(LocalDate.of(2020, 11, 4).toEpochDay(), epochDayClock.today());
+        assertEquals(LocalDate.of(2020, 11, 4), epochDayClock.todayDate());
+        // Clocks can be set back.
+        millis.addAndGet(-2);
+        assertEquals(LocalDate.of(2020, 11, 3), epochDayClock.todayDate());
+    }
+
+    @Test
+    public void testMatchesLocalDateNow() {
+        Clock clock = Clock.fixed(Instant.parse("2020-11-03T20:00:00Z"), ZoneOffset.ofHours(5));
+        assertEquals(LocalDate.now(clock), new EpochDayClock(clock).todayDate());
+    }
+}
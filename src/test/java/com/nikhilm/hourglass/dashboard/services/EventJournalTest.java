@@ -0,0 +1,146 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventJournalTest {
+
+    static final long DAY = LocalDate.of(2020, 11, 20).toEpochDay();
+
+    @TempDir
+    Path directory;
+
+    MeterRegistry meterRegistry;
+
+    EventJournal eventJournal;
+
+    @BeforeEach
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        if (eventJournal != null) {
+            eventJournal.close();
+        }
+    }
+
+    private EventJournal open(int segmentBytes, int retainSegments) throws IOException {
+        eventJournal = new EventJournal(meterRegistry, directory.toString(), segmentBytes, 1, retainSegments, 1000);
+        eventJournal.open();
+        return eventJournal;
+    }
+
+    @Test
+    public void testRecordsReadBackInOrderAcrossSegments() throws IOException, InterruptedException {
+        open(256, 100);
+        List<String> appended = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String event = "{\"eventType\":\"GOAL_ADDED\",\"key\":\"g" + i + "\"}";
+            appended.add(event);
+            assertTrue(eventJournal.append(DAY + i, event.getBytes(StandardCharsets.UTF_8)));
+        }
+        eventJournal.close();
+
+        assertTrue(EventJournal.segments(directory).size() > 10);
+        assertEquals(appended, read());
+        assertEquals(LongStream.range(DAY, DAY + 100).boxed().collect(Collectors.toList()),
+                new EventJournalReader(directory).records().map(EventJournal.Record::getProcessedOn).collect(Collectors.toList()));
+        assertEquals(100, meterRegistry.counter("dashboard.journal.appended").count());
+    }
+
+    @Test
+    public void testOldSegmentsDeletedAndRestartContinuesLastSegment() throws IOException, InterruptedException {
+        open(64, 3);
+        for (int i = 0; i < 20; i++) {
+            eventJournal.append(DAY, ("event-" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        eventJournal.close();
+        List<Path> segments = EventJournal.segments(directory);
+        assertEquals(3, segments.size());
+
+        open(64, 3).append(DAY, "restart".getBytes(StandardCharsets.UTF_8));
+        eventJournal.close();
+        segments = EventJournal.segments(directory);
+        open(64, 3).close();
+
+        List<String> records = read();
+        assertEquals("restart", records.get(records.size() - 1));
+        assertEquals("event-19", records.get(records.size() - 2));
+        assertEquals(segments, EventJournal.segments(directory));
+    }
+
+    @Test
+    public void testRestartOverwritesTornRecord() throws IOException, InterruptedException {
+        open(1024, 10);
+        eventJournal.append(DAY, "first".getBytes(StandardCharsets.UTF_8));
+        eventJournal.append(DAY, "second-record".getBytes(StandardCharsets.UTF_8));
+        eventJournal.close();
+        Path segment = EventJournal.segments(directory).get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(EventJournal.HEADER_BYTES + 5 + EventJournal.HEADER_BYTES + 2);
+            file.write('X');
+        }
+
+        open(1024, 10).append(DAY, "third".getBytes(StandardCharsets.UTF_8));
+        eventJournal.close();
+
+        EventJournalReader reader = new EventJournalReader(directory);
+        List<String> records = reader.records().map(record -> new String(record.getPayload(), StandardCharsets.UTF_8)).collect(Collectors.toList());
+        assertEquals(List.of("first", "third"), records);
+        assertEquals(0, reader.getCorrupt());
+        assertEquals(1, EventJournal.segments(directory).size());
+    }
+
+    @Test
+    public void testTornRecordEndsSegment() throws IOException, InterruptedException {
+        open(1024, 10);
+        eventJournal.append(DAY, "first".getBytes(StandardCharsets.UTF_8));
+        eventJournal.append(DAY, "second".getBytes(StandardCharsets.UTF_8));
+        eventJournal.close();
+        Path segment = EventJournal.segments(directory).get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            // Flip a byte of the second record's body, as a crash halfway through writing it would.
+            file.seek(EventJournal.HEADER_BYTES + 5 + EventJournal.HEADER_BYTES + 2);
+            file.write('X');
+        }
+
+        EventJournalReader reader = new EventJournalReader(directory);
+        List<String> records = reader.records().map(record -> new String(record.getPayload(), StandardCharsets.UTF_8)).collect(Collectors.toList());
+
+        assertEquals(List.of("first"), records);
+        assertEquals(1, reader.getCorrupt());
+    }
+
+    @Test
+    public void testAppendAfterCloseIsDropped() throws IOException, InterruptedException {
+        open(1024, 10);
+        eventJournal.close();
+
+        assertFalse(eventJournal.append(DAY, "late".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(1, meterRegistry.counter("dashboard.journal.dropped").count());
+    }
+
+    private List<String> read() throws IOException {
+        return new EventJournalReader(directory).records()
+                .map(record -> new String(record.getPayload(), StandardCharsets.UTF_8))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,70 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventRetryQueueTest {
+
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    EventRetryQueue queue;
+
+    @AfterEach
+    public void stop() {
+        queue.stop();
+    }
+
+    @Test
+    public void testAttemptRunsWhenDueUntilAttemptsUsedUp() throws InterruptedException {
+        queue = new EventRetryQueue(meterRegistry, 3, 200, 200, 1, 64);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        assertTrue(queue.schedule("abc", 2, ran::countDown));
+        assertEquals(1, queue.waiting());
+
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+        assertFalse(queue.schedule("abc", 3, () -> fail("attempts were used up")));
+        assertEquals(0, queue.waiting());
+        assertEquals(1.0, meterRegistry.get("dashboard.retry.exhausted").counter().count());
+    }
+
+    @Test
+    public void testReleaseStartsWaitingAttemptsOfUserOnce() throws InterruptedException {
+        queue = new EventRetryQueue(meterRegistry, 3, 200, 200, 1, 64);
+        AtomicInteger abc = new AtomicInteger();
+        AtomicInteger xyz = new AtomicInteger();
+        queue.schedule("abc", 1, abc::incrementAndGet);
+        queue.schedule("abc", 1, abc::incrementAndGet);
+        queue.schedule("xyz", 1, xyz::incrementAndGet);
+
+        assertEquals(2, queue.release("abc"));
+        assertEquals(2, abc.get());
+        assertEquals(0, xyz.get());
+        assertEquals(0, queue.release("abc"));
+
+        Thread.sleep(500);
+        assertEquals(2, abc.get());
+        assertEquals(1, xyz.get());
+    }
+
+    @Test
+    public void testBackOffDoublesUpToMaximum() {
+        queue = new EventRetryQueue(meterRegistry, 10, 1000, 5000, 100, 64);
+
+        for (int i = 0; i < 100; i++) {
+            long first = queue.delayOf(1);
+            long third = queue.delayOf(3);
+            long last = queue.delayOf(40);
+            assertTrue(first >= 500 && first <= 1000, "first " + first);
+            assertTrue(third >= 2000 && third <= 4000, "third " + third);
+            assertTrue(last >= 2500 && last <= 5000, "last " + last);
+        }
+    }
+}
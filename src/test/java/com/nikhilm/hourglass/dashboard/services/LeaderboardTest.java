@@ -0,0 +1,87 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.LeaderboardEntry;
+import com.nikhilm.hourglass.dashboard.models.LeaderboardScore;
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LeaderboardTest {
+
+    DashboardMetricRepository dashboardMetricRepository = Mockito.mock(DashboardMetricRepository.class);
+
+    Leaderboard leaderboard;
+
+    @BeforeEach
+    public void setup() {
+        leaderboard = new Leaderboard(dashboardMetricRepository, new SimpleMeterRegistry());
+        leaderboard.update("abc", 40, 10.0);
+        leaderboard.update("pqr", 55, 5.5);
+        leaderboard.update("xyz", 40, 20.0);
+        leaderboard.update("def", 10, 2.0);
+    }
+
+    @Test
+    public void testTopUsersShareRanksOnEqualScores() {
+        List<LeaderboardEntry> top = leaderboard.top(LeaderboardScore.GOAL, 3);
+
+        assertEquals(List.of("pqr", "abc", "xyz"), userIds(top));
+        assertEquals(List.of(1L, 2L, 2L), top.stream().map(LeaderboardEntry::getRank).collect(Collectors.toList()));
+        assertEquals(List.of("xyz", "abc", "pqr", "def"), userIds(leaderboard.top(LeaderboardScore.AVERAGE, 10)));
+    }
+
+    @Test
+    public void testOnlyCreatedWhenOneInstanceConsumesEveryUser() {
+        ApplicationContextRunner contextRunner = new ApplicationContextRunner()
+                .withBean(DashboardMetricRepository.class, () -> dashboardMetricRepository)
+                .withBean(MeterRegistry.class, SimpleMeterRegistry::new)
+                .withUserConfiguration(Leaderboard.class, MetricUpdateBroadcaster.class)
+                .withPropertyValues("dashboard.leaderboard.enabled=true", "dashboard.stream.enabled=true");
+
+        contextRunner.run(context -> {
+            assertNotNull(context.getBean(Leaderboard.class));
+            assertNotNull(context.getBean(MetricUpdateBroadcaster.class));
+        });
+        contextRunner.withPropertyValues("spring.cloud.stream.instanceCount=4").run(context -> {
+            assertTrue(context.getBeansOfType(Leaderboard.class).isEmpty());
+            assertTrue(context.getBeansOfType(MetricUpdateBroadcaster.class).isEmpty());
+        });
+    }
+
+    @Test
+    public void testRankFollowsUpdates() {
+        assertEquals(2, leaderboard.rank("xyz", LeaderboardScore.GOAL).getRank());
+        assertEquals(4, leaderboard.rank("def", LeaderboardScore.GOAL).getRank());
+
+        leaderboard.update("def", 60, 2.0);
+
+        LeaderboardEntry def = leaderboard.rank("def", LeaderboardScore.GOAL);
+        assertEquals(1, def.getRank());
+        assertEquals(60, def.getGoalScore());
+        assertEquals(2, leaderboard.rank("pqr", LeaderboardScore.GOAL).getRank());
+        assertEquals(4, leaderboard.size());
+        assertNull(leaderboard.rank("unknown", LeaderboardScore.GOAL));
+    }
+
+    @Test
+    public void testSeedKeepsScoresOfLaterWrites() {
+        leaderboard.seed("abc", 0, 0.0);
+        leaderboard.seed("new", 45, 1.0);
+
+        assertEquals(40, leaderboard.rank("abc", LeaderboardScore.GOAL).getGoalScore());
+        assertEquals(2, leaderboard.rank("new", LeaderboardScore.GOAL).getRank());
+    }
+
+    private List<String> userIds(List<LeaderboardEntry> entries) {
+        return entries.stream().map(LeaderboardEntry::getUserId).collect(Collectors.toList());
+    }
+}
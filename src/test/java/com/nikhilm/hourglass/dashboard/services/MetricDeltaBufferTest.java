@@ -0,0 +1,227 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricDelta;
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class MetricDeltaBufferTest {
+
+    @Mock
+    DashboardMetricRepository dashboardMetricRepository;
+
+    MeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    public void testMergesDeltasPerUserIntoOneBulkWrite() {
+        MetricDeltaBuffer buffer = new MetricDeltaBuffer(dashboardMetricRepository, meterRegistry, 60000, 3, 100, 100);
+        ArgumentCaptor<Collection<MetricDelta>> captor = ArgumentCaptor.forClass(Collection.class);
+        Mockito.when(dashboardMetricRepository.applyDeltas(captor.capture())).thenReturn(Mono.empty());
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection()))
+                .thenReturn(Flux.just(metric("abc"), metric("xyz")));
+
+        LocalDate month = LocalDate.of(2020, 11, 2);
+        MetricDelta first = new MetricDelta("abc");
+        first.summaryFor(month).setTasksPlanned(1);
+        MetricDelta second = new MetricDelta("abc");
+        second.summaryFor(month).setTasksCompleted(1);
+        second.setGoalScore(10);
+        MetricDelta third = new MetricDelta("xyz");
+        third.setTotalGoalsInProgress(1);
+
+        List<DashboardMetric> results = new ArrayList<>();
+        buffer.submit(first).subscribe(results::add);
+        buffer.submit(second).subscribe(results::add);
+        buffer.submit(third).subscribe(results::add);
+
+        verify(dashboardMetricRepository, times(1)).applyDeltas(any());
+        assertEquals(3, results.size());
+        List<MetricDelta> written = new ArrayList<>(captor.getValue());
+        assertEquals(2, written.size());
+        MetricDelta merged = written.stream().filter(delta -> delta.getUserId().equals("abc")).findAny().get();
+        assertEquals(10, merged.getGoalScore());
+        assertEquals(1, merged.getSummaries().get(202011).getTasksPlanned());
+        assertEquals(1, merged.getSummaries().get(202011).getTasksCompleted());
+        assertEquals(1.5, meterRegistry.get("dashboard.coalescing.ratio").gauge().value());
+    }
+
+    @Test
+    public void testFlushesWhenWindowElapses() {
+        MetricDeltaBuffer buffer = new MetricDeltaBuffer(dashboardMetricRepository, meterRegistry, 20, 1000, 100, 100);
+        Mockito.when(dashboardMetricRepository.applyDeltas(anyCollection())).thenReturn(Mono.empty());
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection())).thenReturn(Flux.just(metric("abc")));
+
+        StepVerifier.create(buffer.submit(new MetricDelta("abc")))
+                .expectNextMatches(metric -> metric.getUserId().equals("abc"))
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+        assertEquals(1, meterRegistry.get("dashboard.coalescing.flush").timer().count());
+    }
+
+    @Test
+    public void testUnknownUserCompletesEmpty() {
+        MetricDeltaBuffer buffer = new MetricDeltaBuffer(dashboardMetricRepository, meterRegistry, 60000, 1000, 100, 100);
+        Mockito.when(dashboardMetricRepository.applyDeltas(anyCollection())).thenReturn(Mono.empty());
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection())).thenReturn(Flux.empty());
+
+        Mono<DashboardMetric> result = buffer.submit(new MetricDelta("abc")).cache();
+        result.subscribe();
+        buffer.flush();
+
+        StepVerifier.create(result)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testWriteFailurePropagatesToCallers() {
+        MetricDeltaBuffer buffer = new MetricDeltaBuffer(dashboardMetricRepository, meterRegistry, 60000, 1, 100, 100);
+        Mockito.when(dashboardMetricRepository.applyDeltas(anyCollection()))
+                .thenReturn(Mono.error(new RuntimeException("write failed")));
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection())).thenReturn(Flux.empty());
+
+        StepVerifier.create(buffer.submit(new MetricDelta("abc")))
+                .expectErrorMessage("write failed")
+                .verify();
+    }
+
+    @Test
+    public void testReplayedEventInMergedUpdateAppliesOthersOneByOne() {
+        MetricDeltaBuffer buffer = new MetricDeltaBuffer(dashboardMetricRepository, meterRegistry, 60000, 2, 100, 100);
+        DashboardMetric skipped = metric("abc");
+        skipped.getAppliedEventIds().add("t1:TASK_ADDED:2020-11-20T10:00");
+        DashboardMetric applied = metric("abc");
+        applied.getAppliedEventIds().addAll(List.of("t1:TASK_ADDED:2020-11-20T10:00", "t2:TASK_ADDED:2020-11-20T10:01"));
+        ArgumentCaptor<MetricDelta> captor = ArgumentCaptor.forClass(MetricDelta.class);
+        Mockito.when(dashboardMetricRepository.applyDeltas(anyCollection())).thenReturn(Mono.empty());
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection())).thenReturn(Flux.just(skipped));
+        Mockito.when(dashboardMetricRepository.applyDelta(captor.capture())).thenReturn(Mono.just(applied));
+
+        List<DashboardMetric> results = new ArrayList<>();
+        buffer.submit(new MetricDelta("abc", "t1:TASK_ADDED:2020-11-20T10:00")).subscribe(results::add);
+        buffer.submit(new MetricDelta("abc", "t2:TASK_ADDED:2020-11-20T10:01")).subscribe(results::add);
+
+        verify(dashboardMetricRepository, times(1)).applyDelta(any());
+        assertEquals(List.of("t2:TASK_ADDED:2020-11-20T10:01"), captor.getValue().getEventIds());
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isReplayed());
+        assertSame(applied, results.get(1));
+    }
+
+    @Test
+    public void testEventsAppliedBeforeReportedReplayed() {
+        MetricDeltaBuffer buffer = new MetricDeltaBuffer(dashboardMetricRepository, meterRegistry, 60000, 2, 100, 100);
+        DashboardMetric skipped = metric("abc");
+        skipped.getAppliedEventIds().addAll(List.of("e1", "e2"));
+        Mockito.when(dashboardMetricRepository.applyDeltas(anyCollection())).thenReturn(Mono.empty());
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection())).thenReturn(Flux.just(skipped));
+
+        List<DashboardMetric> results = new ArrayList<>();
+        buffer.submit(new MetricDelta("abc", "e1")).subscribe(results::add);
+        buffer.submit(new MetricDelta("abc", "e2")).subscribe(results::add);
+
+        verify(dashboardMetricRepository, times(0)).applyDelta(any());
+        assertEquals(2, results.size());
+        assertTrue(results.stream().allMatch(DashboardMetric::isReplayed));
+        assertFalse(skipped.isReplayed());
+    }
+
+    @Test
+    public void testWindowClosedDuringWriteWaitsForIt() {
+        MetricDeltaBuffer buffer = new MetricDeltaBuffer(dashboardMetricRepository, meterRegistry, 60000, 1, 100, 100);
+        MonoProcessor<Void> firstWrite = MonoProcessor.create();
+        List<String> written = readBackWrites("abc");
+        Mockito.when(dashboardMetricRepository.applyDeltas(anyCollection())).thenAnswer(invocation -> {
+            Collection<MetricDelta> deltas = invocation.getArgument(0);
+            deltas.forEach(delta -> written.addAll(delta.getEventIds()));
+            return written.size() == 2 ? firstWrite : Mono.empty();
+        });
+
+        List<DashboardMetric> results = new ArrayList<>();
+        buffer.submit(new MetricDelta("abc", "e1")).subscribe(results::add);
+        buffer.submit(new MetricDelta("abc", "e2")).subscribe(results::add);
+        buffer.submit(new MetricDelta("abc", "e3")).subscribe(results::add);
+
+        verify(dashboardMetricRepository, times(1)).applyDeltas(any());
+        firstWrite.onComplete();
+
+        ArgumentCaptor<Collection<MetricDelta>> captor = ArgumentCaptor.forClass(Collection.class);
+        verify(dashboardMetricRepository, times(2)).applyDeltas(captor.capture());
+        assertEquals(List.of("e2", "e3"), captor.getValue().iterator().next().getEventIds().subList(0, 2));
+        assertEquals(3, results.size());
+        assertTrue(results.stream().noneMatch(DashboardMetric::isReplayed));
+    }
+
+    @Test
+    public void testSecondCopyOfEventInWindowMergedOnce() {
+        MetricDeltaBuffer buffer = new MetricDeltaBuffer(dashboardMetricRepository, meterRegistry, 60000, 2, 100, 100);
+        List<String> written = readBackWrites("abc");
+        MetricDelta delta = new MetricDelta("abc", "e1");
+        delta.setTotalGoalsInProgress(1);
+
+        List<DashboardMetric> results = new ArrayList<>();
+        buffer.submit(delta).subscribe(results::add);
+        buffer.submit(delta).subscribe(results::add);
+
+        assertEquals(2, written.size());
+        assertEquals("e1", written.get(0));
+        assertTrue(written.get(1).startsWith("flush:"));
+        assertEquals(2, results.size());
+        assertFalse(results.get(0).isReplayed());
+        assertTrue(results.get(1).isReplayed());
+    }
+
+    /**
+     * Records the event ids of every written delta and reads the user's document back with them, as
+     * the server would have applied each write.
+     */
+    private List<String> readBackWrites(String userId) {
+        List<String> written = new ArrayList<>();
+        Mockito.lenient().when(dashboardMetricRepository.applyDeltas(anyCollection())).thenAnswer(invocation -> {
+            Collection<MetricDelta> deltas = invocation.getArgument(0);
+            deltas.forEach(delta -> written.addAll(delta.getEventIds()));
+            return Mono.empty();
+        });
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection())).thenAnswer(invocation -> {
+            DashboardMetric metric = metric(userId);
+            metric.getAppliedEventIds().addAll(written);
+            return Flux.just(metric);
+        });
+        return written;
+    }
+
+    private DashboardMetric metric(String userId) {
+        DashboardMetric metric = new DashboardMetric();
+        metric.setUserId(userId);
+        return metric;
+    }
+}
@@ -0,0 +1,61 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import com.nikhilm.hourglass.dashboard.models.MetricResponseView;
+import com.nikhilm.hourglass.dashboard.repositories.MetricResponseViewRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.LocalDate;
+
+import static org.mockito.ArgumentMatchers.any;
+
+@ExtendWith(MockitoExtension.class)
+class MetricReadModelTest {
+
+    @Mock
+    MetricResponseViewRepository metricResponseViewRepository;
+
+    @InjectMocks
+    MetricReadModel metricReadModel;
+
+    @Test
+    public void testFindCurrentResponse() {
+        Mockito.when(metricResponseViewRepository.findById("abc"))
+                .thenReturn(Mono.just(new MetricResponseView("abc", response(LocalDate.now()))));
+
+        StepVerifier.create(metricReadModel.find("abc"))
+                .expectNextCount(1)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testResponseOfEarlierMonthIsNotServed() {
+        Mockito.when(metricResponseViewRepository.findById("abc"))
+                .thenReturn(Mono.just(new MetricResponseView("abc", response(LocalDate.now().minusMonths(1)))));
+
+        StepVerifier.create(metricReadModel.find("abc"))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSaveFailureIsNotPropagated() {
+        Mockito.when(metricResponseViewRepository.saveIfNewer(any(MetricResponseView.class)))
+                .thenReturn(Mono.error(new RuntimeException("write failed")));
+
+        StepVerifier.create(metricReadModel.save("abc", response(LocalDate.now())))
+                .verifyComplete();
+    }
+
+    private MetricResponse response(LocalDate activeMonth) {
+        MetricResponse response = new MetricResponse();
+        response.setActiveMonth(activeMonth);
+        return response;
+    }
+}
@@ -0,0 +1,117 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricResponseCacheTest {
+
+    MeterRegistry meterRegistry;
+
+    MetricResponseCache cache;
+
+    @BeforeEach
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new MetricResponseCache(meterRegistry, 100, 600);
+    }
+
+    @Test
+    public void testSecondReadIsServedFromCache() {
+        AtomicInteger loads = new AtomicInteger();
+        Mono<MetricResponse> loader = Mono.fromCallable(() -> {
+            loads.incrementAndGet();
+            return response(10);
+        });
+
+        StepVerifier.create(cache.get("abc", 0L, loader)).expectNextMatches(r -> r.getGoalScore() == 10).verifyComplete();
+        StepVerifier.create(cache.get("abc", 0L, loader)).expectNextMatches(r -> r.getGoalScore() == 10).verifyComplete();
+
+        assertEquals(1, loads.get());
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "metricResponses").tag("result", "hit")
+                .functionCounter().count());
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "metricResponses").tag("result", "miss")
+                .functionCounter().count());
+    }
+
+    @Test
+    public void testReadDoesNotOverwriteNewerWrite() {
+        Mono<MetricResponse> slowRead = Mono.fromCallable(() -> {
+            cache.put("abc", response(20));
+            return response(10);
+        });
+
+        StepVerifier.create(cache.get("abc", 0L, slowRead)).expectNextMatches(r -> r.getGoalScore() == 10).verifyComplete();
+
+        StepVerifier.create(cache.get("abc", 0L, Mono.error(new IllegalStateException())))
+                .expectNextMatches(r -> r.getGoalScore() == 20)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testResponseOfEarlierMonthIsReloaded() {
+        MetricResponse lastMonth = response(10);
+        lastMonth.setActiveMonth(LocalDate.now().minusMonths(1));
+        cache.put("abc", lastMonth);
+
+        StepVerifier.create(cache.get("abc", 0L, Mono.just(response(15))))
+                .expectNextMatches(r -> r.getGoalScore() == 15)
+                .verifyComplete();
+        StepVerifier.create(cache.get("abc", 0L, Mono.error(new IllegalStateException())))
+                .expectNextMatches(r -> r.getGoalScore() == 15)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testEntryBehindKnownVersionIsReloaded() {
+        cache.put("abc", response(10));
+
+        StepVerifier.create(cache.get("abc", 1L, Mono.fromCallable(() -> {
+            MetricResponse applied = response(14);
+            applied.setVersion(1);
+            return applied;
+        })))
+                .expectNextMatches(r -> r.getGoalScore() == 14)
+                .verifyComplete();
+        StepVerifier.create(cache.get("abc", 1L, Mono.error(new IllegalStateException())))
+                .expectNextMatches(r -> r.getGoalScore() == 14)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testEntryServedWhileVersionIsUnknown() {
+        cache.put("abc", response(10));
+
+        StepVerifier.create(cache.get("abc", null, Mono.error(new IllegalStateException())))
+                .expectNextMatches(r -> r.getGoalScore() == 10)
+                .verifyComplete();
+        assertSame(cache.getIfCurrent("abc", null), cache.getIfCurrent("abc", 0L));
+        assertNull(cache.getIfCurrent("abc", 1L));
+    }
+
+    @Test
+    public void testInvalidatedEntryIsReloaded() {
+        cache.put("abc", response(10));
+        cache.invalidate("abc");
+
+        StepVerifier.create(cache.get("abc", 0L, Mono.just(response(12))))
+                .expectNextMatches(r -> r.getGoalScore() == 12)
+                .verifyComplete();
+    }
+
+    private MetricResponse response(long goalScore) {
+        MetricResponse response = new MetricResponse();
+        response.setGoalScore(goalScore);
+        response.setActiveMonth(LocalDate.now());
+        return response;
+    }
+}
@@ -0,0 +1,67 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.MetricResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricUpdateBroadcasterTest {
+
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    MetricUpdateBroadcaster broadcaster = new MetricUpdateBroadcaster(meterRegistry, 15);
+
+    @Test
+    public void testPublishReachesOnlySubscribersOfUser() {
+        MetricResponse response = response(5);
+
+        StepVerifier.create(broadcaster.updates("abc"))
+                .then(() -> {
+                    broadcaster.publish("xyz", response(1));
+                    broadcaster.publish("abc", response);
+                })
+                .expectNext(response)
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    public void testChannelRemovedWhenLastSubscriberLeaves() {
+        assertFalse(broadcaster.hasSubscribers("abc"));
+
+        StepVerifier.create(broadcaster.updates("abc"))
+                .then(() -> {
+                    assertTrue(broadcaster.hasSubscribers("abc"));
+                    assertEquals(1, meterRegistry.get("dashboard.stream.subscribers").gauge().value());
+                })
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+
+        assertFalse(broadcaster.hasSubscribers("abc"));
+        assertEquals(0, meterRegistry.get("dashboard.stream.subscribers").gauge().value());
+    }
+
+    @Test
+    public void testSlowSubscriberKeepsOnlyLatest() {
+        StepVerifier.create(broadcaster.updates("abc"), 0)
+                .then(() -> {
+                    broadcaster.publish("abc", response(1));
+                    broadcaster.publish("abc", response(2));
+                    broadcaster.publish("abc", response(3));
+                })
+                .thenRequest(1)
+                .expectNextMatches(metricResponse -> metricResponse.getGoalsPlanned() == 3)
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    private MetricResponse response(long goalsPlanned) {
+        MetricResponse response = new MetricResponse();
+        response.setGoalsPlanned(goalsPlanned);
+        return response;
+    }
+}
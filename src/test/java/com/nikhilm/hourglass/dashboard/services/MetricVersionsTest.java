@@ -0,0 +1,37 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricVersionsTest {
+
+    MetricVersions versions;
+
+    @BeforeEach
+    public void setup() {
+        versions = new MetricVersions(new SimpleMeterRegistry(), 100, 60);
+    }
+
+    @Test
+    public void testVersionOnlyMovesForward() {
+        versions.record("abc", 5);
+        versions.record("abc", 3);
+
+        assertEquals(5L, versions.get("abc"));
+        versions.record("abc", 6);
+        assertEquals(6L, versions.get("abc"));
+        assertNull(versions.get("xyz"));
+    }
+
+    @Test
+    public void testInvalidateAllForgetsVersions() {
+        versions.record("abc", 5);
+
+        versions.invalidateAll();
+
+        assertNull(versions.get("abc"));
+    }
+}
@@ -0,0 +1,60 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderStatisticTreeTest {
+
+    @Test
+    public void testMatchesSortedSetUnderRandomUpdates() {
+        Random random = new Random(17);
+        OrderStatisticTree<Integer> tree = new OrderStatisticTree<>(Comparator.naturalOrder());
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), tree.remove(key));
+            } else {
+                assertEquals(expected.add(key), tree.add(key));
+            }
+            if (i % 500 == 0) {
+                assertSameContents(expected, tree);
+            }
+        }
+        assertSameContents(expected, tree);
+    }
+
+    @Test
+    public void testRangeStopsAtEnd() {
+        OrderStatisticTree<String> tree = new OrderStatisticTree<>(Comparator.reverseOrder());
+        tree.add("a");
+        tree.add("c");
+        tree.add("b");
+
+        assertEquals(List.of("c", "b", "a"), tree.range(0, 10));
+        assertEquals(List.of("a"), tree.range(2, 10));
+        assertEquals(List.of(), tree.range(3, 10));
+        assertEquals(2, tree.countLess("a"));
+        assertEquals(3, tree.countLess(""));
+        assertThrows(IndexOutOfBoundsException.class, () -> tree.get(3));
+    }
+
+    private void assertSameContents(TreeSet<Integer> expected, OrderStatisticTree<Integer> tree) {
+        List<Integer> keys = new ArrayList<>(expected);
+        assertEquals(keys.size(), tree.size());
+        assertEquals(keys, tree.range(0, keys.size()));
+        for (int index = 0; index < keys.size(); index += 37) {
+            assertEquals(keys.get(index), tree.get(index));
+            assertEquals(index, tree.countLess(keys.get(index)));
+            assertEquals(keys.subList(index, Math.min(index + 5, keys.size())), tree.range(index, 5));
+        }
+        assertEquals(expected.headSet(1000).size(), tree.countLess(1000));
+    }
+}
@@ -0,0 +1,44 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.Event;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelineMetricsTest {
+
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    PipelineMetrics pipelineMetrics = new PipelineMetrics(meterRegistry);
+
+    @Test
+    public void testRepositoryCallsTimedByOutcome() {
+        StepVerifier.create(pipelineMetrics.timeRepository("findByUserId", Mono.just("abc")))
+                .expectNext("abc")
+                .verifyComplete();
+        StepVerifier.create(pipelineMetrics.timeRepository("findByUserId", Mono.error(new RuntimeException())))
+                .verifyError();
+
+        assertEquals(1, meterRegistry.get("dashboard.repository")
+                .tags("method", "findByUserId", "outcome", "success").timer().count());
+        assertEquals(1, meterRegistry.get("dashboard.repository")
+                .tags("method", "findByUserId", "outcome", "failure").timer().count());
+    }
+
+    @Test
+    public void testFreshnessIgnoresMissingAndFutureTimestamps() {
+        pipelineMetrics.persisted(Event.Type.TASK_ADDED, LocalDateTime.now().minusSeconds(2));
+        pipelineMetrics.persisted(Event.Type.TASK_ADDED, LocalDateTime.now().plusMinutes(1));
+        pipelineMetrics.persisted(Event.Type.TASK_ADDED, null);
+
+        assertEquals(1, meterRegistry.get("dashboard.events.freshness").tag("type", "TASK_ADDED").timer().count());
+        assertTrue(meterRegistry.get("dashboard.events.freshness").tag("type", "TASK_ADDED").timer()
+                .totalTime(TimeUnit.MILLISECONDS) >= 2000);
+    }
+}
@@ -0,0 +1,156 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricSummary;
+import com.nikhilm.hourglass.dashboard.models.ScoreSketch;
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import com.nikhilm.hourglass.dashboard.repositories.ScoreSketchRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class ScorePercentilesTest {
+
+    @Mock
+    DashboardMetricRepository dashboardMetricRepository;
+
+    @Mock
+    ScoreSketchRepository scoreSketchRepository;
+
+    private ScorePercentiles scorePercentiles(double rebuildRatio) {
+        return scorePercentiles(rebuildRatio, 0);
+    }
+
+    private ScorePercentiles scorePercentiles(double rebuildRatio, long minRebuildIntervalSeconds) {
+        return new ScorePercentiles(dashboardMetricRepository, scoreSketchRepository, new SimpleMeterRegistry(), 100,
+                rebuildRatio, minRebuildIntervalSeconds);
+    }
+
+    @Test
+    public void testPercentilesWithinDocumentedErrorBound() {
+        ScorePercentiles scorePercentiles = scorePercentiles(Double.MAX_VALUE);
+        Random random = new Random(42);
+        int users = 100000;
+        long[] goalScores = new long[users];
+        double[] averageScores = new double[users];
+        for (int i = 0; i < users; i++) {
+            // Skewed with many ties, like real scores: most users have a few goals, some defer a lot.
+            goalScores[i] = i % 10 == 0 ? -random.nextInt(50) : (long) (-Math.log(1 - random.nextDouble()) * 80);
+            averageScores[i] = Math.round(random.nextGaussian() * 1500 + 2000) / 100.0;
+            scorePercentiles.add(goalScores[i], averageScores[i]);
+        }
+
+        double worstGoal = 0;
+        double worstAverage = 0;
+        for (int probe = 0; probe < 500; probe++) {
+            int user = random.nextInt(users);
+            worstGoal = Math.max(worstGoal, Math.abs(scorePercentiles.goalScorePercentile(goalScores[user])
+                    - exactPercentile(goalScores, goalScores[user])));
+            worstAverage = Math.max(worstAverage, Math.abs(scorePercentiles.averageScorePercentile(averageScores[user])
+                    - exactPercentile(averageScores, averageScores[user])));
+        }
+        assertTrue(worstGoal <= 1.0, "goal score percentile off by " + worstGoal);
+        assertTrue(worstAverage <= 1.0, "average score percentile off by " + worstAverage);
+        long top = Arrays.stream(goalScores).max().getAsLong();
+        assertTrue(scorePercentiles.goalScorePercentile(top) >= 99.9);
+    }
+
+    @Test
+    public void testRebuiltFromStoreAndRestoredFromCheckpoint() {
+        Mockito.when(dashboardMetricRepository.findAllScores()).thenReturn(Flux.just(
+                metric("a", 10, 10), metric("b", 20, 30), metric("c", 30, 20), metric("d", 40, 40)));
+        ArgumentCaptor<ScoreSketch> saved = ArgumentCaptor.forClass(ScoreSketch.class);
+        Mockito.when(scoreSketchRepository.save(saved.capture())).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        ScorePercentiles scorePercentiles = scorePercentiles(0.5);
+        assertNull(scorePercentiles.goalScorePercentile(20));
+
+        StepVerifier.create(scorePercentiles.rebuild())
+                .expectNext(4L)
+                .verifyComplete();
+        assertEquals(37.5, scorePercentiles.goalScorePercentile(20));
+        assertEquals(62.5, scorePercentiles.averageScorePercentile(30));
+
+        Mockito.when(scoreSketchRepository.findById(ScorePercentiles.CHECKPOINT_ID)).thenReturn(Mono.just(saved.getValue()));
+        ScorePercentiles restored = scorePercentiles(0.5);
+        StepVerifier.create(restored.restore())
+                .expectNext(4L)
+                .verifyComplete();
+        assertEquals(37.5, restored.goalScorePercentile(20));
+        assertEquals(62.5, restored.averageScorePercentile(30));
+    }
+
+    @Test
+    public void testRebuiltOnceWritesExceedRatio() {
+        Mockito.when(dashboardMetricRepository.findAllScores()).thenReturn(Flux.just(
+                metric("a", 10, 10), metric("b", 20, 30), metric("c", 30, 20), metric("d", 40, 40)));
+        Mockito.when(scoreSketchRepository.save(any(ScoreSketch.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        ScorePercentiles scorePercentiles = scorePercentiles(0.5);
+        scorePercentiles.rebuild().block();
+
+        scorePercentiles.record(50, 5.0);
+        scorePercentiles.record(60, 5.0);
+        verify(dashboardMetricRepository, times(1)).findAllScores();
+
+        scorePercentiles.record(70, 5.0);
+        verify(dashboardMetricRepository, times(2)).findAllScores();
+        assertEquals(87.5, scorePercentiles.goalScorePercentile(40));
+    }
+
+    @Test
+    public void testNewUsersAndRebuildIntervalHoldOffRebuilds() {
+        Mockito.when(dashboardMetricRepository.findAllScores()).thenReturn(Flux.just(
+                metric("a", 10, 10), metric("b", 20, 30), metric("c", 30, 20), metric("d", 40, 40)));
+        Mockito.when(scoreSketchRepository.save(any(ScoreSketch.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        ScorePercentiles scorePercentiles = scorePercentiles(0.5, 3600);
+        scorePercentiles.rebuild().block();
+
+        for (int i = 0; i < 100; i++) {
+            scorePercentiles.add(0, 0.0);
+        }
+        for (int i = 0; i < 100; i++) {
+            scorePercentiles.record(50, 5.0);
+        }
+
+        verify(dashboardMetricRepository, times(1)).findAllScores();
+    }
+
+    private DashboardMetric metric(String userId, long goalScore, long monthScore) {
+        DashboardMetric dashboardMetric = new DashboardMetric();
+        dashboardMetric.setUserId(userId);
+        dashboardMetric.setGoalScore(goalScore);
+        MetricSummary summary = new MetricSummary();
+        summary.setMonth(LocalDate.of(2020, 11, 1));
+        summary.setScore(monthScore);
+        dashboardMetric.getMetricSummaries().put(MetricSummary.monthKey(summary.getMonth()), summary);
+        return dashboardMetric;
+    }
+
+    private double exactPercentile(long[] scores, long score) {
+        long below = Arrays.stream(scores).filter(value -> value < score).count();
+        long equal = Arrays.stream(scores).filter(value -> value == score).count();
+        return 100.0 * (below + equal / 2.0) / scores.length;
+    }
+
+    private double exactPercentile(double[] scores, double score) {
+        long below = Arrays.stream(scores).filter(value -> value < score).count();
+        long equal = Arrays.stream(scores).filter(value -> value == score).count();
+        return 100.0 * (below + equal / 2.0) / scores.length;
+    }
+}
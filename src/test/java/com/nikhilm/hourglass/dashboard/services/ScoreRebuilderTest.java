@@ -0,0 +1,333 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.EventDecoder;
+import com.nikhilm.hourglass.dashboard.models.DashboardMetric;
+import com.nikhilm.hourglass.dashboard.models.MetricDelta;
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyMap;
+
+@ExtendWith(MockitoExtension.class)
+class ScoreRebuilderTest {
+
+    @Mock
+    DashboardMetricRepository dashboardMetricRepository;
+
+    @TempDir
+    Path directory;
+
+    DashboardService dashboardService;
+
+    List<MetricDelta> written;
+
+    @BeforeEach
+    public void setup() {
+        dashboardService = new DashboardService();
+        dashboardService.setEasyGoalScore(10);
+        dashboardService.setModerateGoalScore(20);
+        dashboardService.setExtremeGoalScore(30);
+        dashboardService.setDeferPenalty(5);
+        dashboardService.setResumeBonus(2);
+        written = new ArrayList<>();
+    }
+
+    private ScoreRebuilder rebuilder(int batchSize) {
+        return new ScoreRebuilder(dashboardService, new EventDecoder(), dashboardMetricRepository,
+                directory.toString(), directory.toString(), 4, batchSize, 1, 2);
+    }
+
+    @Test
+    public void testScoresSummedPerUserAndWritten() throws Exception {
+        Mockito.when(dashboardMetricRepository.replaceScores(anyCollection(), anyMap())).thenAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return Mono.just((long) ((Collection<?>) invocation.getArgument(0)).size());
+        });
+        Path events = eventFile(
+                goal("GOAL_COMPLETED", "abc", "Easy", "2020-11-20", "[2020,11,20,10,0]"),
+                goal("GOAL_COMPLETED", "abc", "Extreme", "2020-11-18", "[2020,11,20,11,0]"),
+                goal("GOAL_DEFERRED", "xyz", "Moderate", "2020-12-01", "[2020,11,25,9,0]"),
+                "not an event",
+                "{\"eventType\":\"USER_ADDED\",\"key\":\"pqr\",\"eventCreatedAt\":[2020,11,1,9,0]}");
+        storedAs(events);
+        ScoreRebuilder scoreRebuilder = rebuilder(1);
+
+        assertEquals(2, scoreRebuilder.rebuild(events));
+
+        MetricDelta abc = written.get(0);
+        // 10 on time, plus 30 less 2 days late, both in November.
+        assertEquals("abc", abc.getUserId());
+        assertEquals(38, abc.getGoalScore());
+        assertEquals(38, abc.getSummaries().get(202011).getScore());
+        assertEquals(-5, written.get(1).getGoalScore());
+        Map<String, Object> progress = scoreRebuilder.progress();
+        assertEquals(ScoreRebuilder.Phase.DONE, progress.get("phase"));
+        assertEquals(3L, progress.get("eventsScored"));
+        assertEquals(2L, progress.get("eventsSkipped"));
+        assertFalse(Files.exists(directory.resolve(ScoreRebuilder.CHECKPOINT_FILE)));
+    }
+
+    @Test
+    public void testResumesAfterCheckpoint() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Mockito.when(dashboardMetricRepository.replaceScores(anyCollection(), anyMap())).thenAnswer(invocation -> {
+            if (calls.incrementAndGet() == 2) {
+                return Mono.error(new RuntimeException("down"));
+            }
+            written.addAll(invocation.getArgument(0));
+            return Mono.just(1L);
+        });
+        Path events = eventFile(
+                goal("GOAL_ADDED", "a", "Easy", "2020-11-20", "[2020,11,20,10,0]"),
+                goal("GOAL_ADDED", "b", "Easy", "2020-11-20", "[2020,11,20,10,0]"),
+                goal("GOAL_ADDED", "c", "Easy", "2020-11-20", "[2020,11,20,10,0]"));
+        storedAs(events);
+        ScoreRebuilder scoreRebuilder = rebuilder(1);
+
+        scoreRebuilder.rebuild(events);
+        assertEquals(ScoreRebuilder.Phase.FAILED, scoreRebuilder.progress().get("phase"));
+        assertTrue(Files.exists(directory.resolve(ScoreRebuilder.CHECKPOINT_FILE)));
+
+        assertEquals(2, scoreRebuilder.rebuild(events));
+        assertEquals(1L, scoreRebuilder.progress().get("resumedAfter"));
+        assertEquals(Arrays.asList("a", "b", "c"), userIds());
+    }
+
+    @Test
+    public void testCheckpointOfOtherSettingsIgnored() throws Exception {
+        Mockito.when(dashboardMetricRepository.replaceScores(anyCollection(), anyMap())).thenAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return Mono.just(1L);
+        });
+        Path events = eventFile(goal("GOAL_ADDED", "a", "Easy", "2020-11-20", "[2020,11,20,10,0]"));
+        storedAs(events);
+        Files.write(directory.resolve(ScoreRebuilder.CHECKPOINT_FILE),
+                Arrays.asList("signature=" + events.toAbsolutePath() + "|0|0|easy=1", "lastUserId=z"));
+
+        assertEquals(1, rebuilder(10).rebuild(events));
+        assertEquals(Arrays.asList("a"), userIds());
+    }
+
+    @Test
+    public void testReplaysEventJournal() throws Exception {
+        Mockito.when(dashboardMetricRepository.replaceScores(anyCollection(), anyMap())).thenAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return Mono.just(1L);
+        });
+        Path journalDirectory = directory.resolve("journal");
+        EventJournal eventJournal = new EventJournal(new SimpleMeterRegistry(), journalDirectory.toString(), 256, 1, 100, 100);
+        eventJournal.open();
+        long processedOn = LocalDate.of(2020, 11, 20).toEpochDay();
+        eventJournal.append(processedOn, goal("GOAL_COMPLETED", "abc", "Easy", "2020-11-20", "[2020,11,20,10,0]").getBytes(StandardCharsets.UTF_8));
+        eventJournal.append(processedOn, goal("GOAL_COMPLETED", "abc", "Extreme", "2020-11-18", "[2020,11,20,11,0]").getBytes(StandardCharsets.UTF_8));
+        eventJournal.close();
+        storedAs(journalDirectory);
+        ScoreRebuilder scoreRebuilder = rebuilder(10);
+        scoreRebuilder.eventJournal = eventJournal;
+
+        assertEquals(journalDirectory.toAbsolutePath(), scoreRebuilder.journalDirectory());
+        assertEquals(1, scoreRebuilder.rebuild(scoreRebuilder.journalDirectory()));
+        assertEquals(38, written.get(0).getGoalScore());
+        assertEquals(2L, scoreRebuilder.progress().get("eventsScored"));
+        assertEquals("2020-11-20", scoreRebuilder.progress().get("journalFrom"));
+        assertEquals(ScoreRebuilder.JOURNAL_COVERAGE, scoreRebuilder.progress().get("coverage"));
+    }
+
+    @Test
+    public void testJournaledEventScoredOnTheDayItWasApplied() throws Exception {
+        // Created on the 20th but only consumed on the 25th, a week after it was due.
+        String event = goal("GOAL_COMPLETED", "abc", "Extreme", "2020-11-18", "[2020,11,20,11,0]");
+        LocalDate processedOn = LocalDate.of(2020, 11, 25);
+        Path journalDirectory = directory.resolve("journal");
+        EventJournal eventJournal = new EventJournal(new SimpleMeterRegistry(), journalDirectory.toString(), 256, 1, 100, 100);
+        eventJournal.open();
+        eventJournal.append(processedOn.toEpochDay(), event.getBytes(StandardCharsets.UTF_8));
+        eventJournal.close();
+
+        Map<String, MetricDelta> deltas = rebuilder(10).score(journalDirectory);
+
+        MetricDelta live = dashboardService.deltaFor(new EventDecoder().decodeEvent(event.getBytes(StandardCharsets.UTF_8)), null, processedOn);
+        assertEquals(live.getGoalScore(), deltas.get("abc").getGoalScore());
+        assertNotEquals(rebuilder(10).score(eventFile(event)).get("abc").getGoalScore(), deltas.get("abc").getGoalScore());
+    }
+
+    @Test
+    public void testUsersWithEventsMissingFromSourceKeepScores() throws Exception {
+        Mockito.when(dashboardMetricRepository.replaceScores(anyCollection(), anyMap())).thenAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return Mono.just(1L);
+        });
+        Path events = eventFile(
+                goal("GOAL_COMPLETED", "abc", "Easy", "2020-11-20", "[2020,11,20,10,0]"),
+                goal("GOAL_COMPLETED", "xyz", "Easy", "2020-11-20", "[2020,11,20,10,0]"),
+                goal("GOAL_ADDED", "pqr", "Easy", "2020-11-20", "[2020,11,20,10,0]"));
+        Map<String, MetricDelta> deltas = rebuilder(10).score(events);
+        // xyz completed a goal before the source was started, pqr has no document.
+        DashboardMetric xyz = documentOf(deltas.get("xyz"));
+        xyz.setTotalGoalsCompleted(2);
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection()))
+                .thenReturn(Flux.just(documentOf(deltas.get("abc")), xyz));
+        ScoreRebuilder scoreRebuilder = rebuilder(10);
+
+        assertEquals(1, scoreRebuilder.rebuild(events));
+
+        assertEquals(Arrays.asList("abc"), userIds());
+        assertEquals(2L, scoreRebuilder.progress().get("usersSkipped"));
+        assertEquals(ScoreRebuilder.Phase.DONE, scoreRebuilder.progress().get("phase"));
+    }
+
+    @Test
+    public void testUserChangedWhileWritingIsCheckedAgain() throws Exception {
+        List<Long> versions = new ArrayList<>();
+        Mockito.when(dashboardMetricRepository.replaceScores(anyCollection(), anyMap())).thenAnswer(invocation -> {
+            Map<String, Long> read = invocation.getArgument(1);
+            versions.add(read.get("abc"));
+            // The first write loses to an event that changed the document but none of its counters.
+            if (versions.size() == 1) {
+                return Mono.just(0L);
+            }
+            written.addAll(invocation.getArgument(0));
+            return Mono.just(1L);
+        });
+        Path events = eventFile(goal("GOAL_COMPLETED", "abc", "Easy", "2020-11-20", "[2020,11,20,10,0]"));
+        DashboardMetric before = documentOf(rebuilder(10).score(events).get("abc"));
+        DashboardMetric after = documentOf(rebuilder(10).score(events).get("abc"));
+        after.setVersion(1);
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection()))
+                .thenReturn(Flux.just(before), Flux.just(after));
+        ScoreRebuilder scoreRebuilder = rebuilder(10);
+
+        assertEquals(1, scoreRebuilder.rebuild(events));
+
+        assertEquals(Arrays.asList(0L, 1L), versions);
+        assertEquals(Arrays.asList("abc"), userIds());
+        assertEquals(0L, scoreRebuilder.progress().get("usersConflicted"));
+    }
+
+    @Test
+    public void testUserChangedByAnEventMissingFromSourceKeepsScores() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Mockito.when(dashboardMetricRepository.replaceScores(anyCollection(), anyMap())).thenAnswer(invocation -> {
+            calls.incrementAndGet();
+            return Mono.just(0L);
+        });
+        Path events = eventFile(goal("GOAL_COMPLETED", "abc", "Easy", "2020-11-20", "[2020,11,20,10,0]"));
+        DashboardMetric before = documentOf(rebuilder(10).score(events).get("abc"));
+        // Consumed while the rebuild wrote, the event is not in the file.
+        DashboardMetric after = documentOf(rebuilder(10).score(events).get("abc"));
+        after.setTotalGoalsCompleted(2);
+        after.setVersion(1);
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection()))
+                .thenReturn(Flux.just(before), Flux.just(after));
+        ScoreRebuilder scoreRebuilder = rebuilder(10);
+
+        assertEquals(0, scoreRebuilder.rebuild(events));
+
+        assertEquals(2, calls.get());
+        assertEquals(1L, scoreRebuilder.progress().get("usersSkipped"));
+        assertEquals(0L, scoreRebuilder.progress().get("usersConflicted"));
+    }
+
+    @Test
+    public void testConflictRetriesAreBounded() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Mockito.when(dashboardMetricRepository.replaceScores(anyCollection(), anyMap())).thenAnswer(invocation -> {
+            calls.incrementAndGet();
+            return Mono.just(0L);
+        });
+        Path events = eventFile(goal("GOAL_COMPLETED", "abc", "Easy", "2020-11-20", "[2020,11,20,10,0]"));
+        storedAs(events);
+        ScoreRebuilder scoreRebuilder = rebuilder(10);
+
+        assertEquals(0, scoreRebuilder.rebuild(events));
+
+        assertEquals(3, calls.get());
+        assertEquals(1L, scoreRebuilder.progress().get("usersConflicted"));
+        assertEquals(0L, scoreRebuilder.progress().get("usersSkipped"));
+        assertEquals(ScoreRebuilder.Phase.DONE, scoreRebuilder.progress().get("phase"));
+    }
+
+    @Test
+    public void testEventsOfOtherMonthDoNotAccountForDocument() throws Exception {
+        Path events = eventFile(goal("GOAL_ADDED", "abc", "Easy", "2020-11-20", "[2020,11,20,10,0]"));
+        MetricDelta delta = rebuilder(10).score(events).get("abc");
+        DashboardMetric document = documentOf(delta);
+        assertTrue(ScoreRebuilder.accountsFor(delta, document));
+
+        document.getMetricSummaries().put(202010, document.getMetricSummaries().get(202011));
+
+        assertFalse(ScoreRebuilder.accountsFor(delta, document));
+    }
+
+    @Test
+    public void testEventFileMustBeInEventDirectory() {
+        ScoreRebuilder scoreRebuilder = rebuilder(10);
+
+        assertEquals(directory.resolve("events.ndjson"), scoreRebuilder.eventFile("events.ndjson"));
+        assertThrows(IllegalArgumentException.class, () -> scoreRebuilder.eventFile("../secrets"));
+    }
+
+    /**
+     * Has the repository return documents that counted exactly the events of the source.
+     */
+    private void storedAs(Path events) throws IOException, InterruptedException, ExecutionException {
+        Map<String, MetricDelta> deltas = rebuilder(10).score(events);
+        Mockito.when(dashboardMetricRepository.findByUserIdIn(anyCollection())).thenAnswer(invocation -> {
+            Collection<String> userIds = invocation.getArgument(0);
+            return Flux.fromIterable(userIds).filter(deltas::containsKey).map(userId -> documentOf(deltas.get(userId)));
+        });
+    }
+
+    private DashboardMetric documentOf(MetricDelta delta) {
+        DashboardMetric document = new DashboardMetric();
+        document.setUserId(delta.getUserId());
+        document.setTotalGoalsCompleted(delta.getTotalGoalsCompleted());
+        document.setTotalGoalsInProgress(delta.getTotalGoalsInProgress());
+        document.setTotalGoalsDeferred(delta.getTotalGoalsDeferred());
+        document.setEasyGoalsCompleted(delta.getEasyGoalsCompleted());
+        document.setModerateGoalsCompleted(delta.getModerateGoalsCompleted());
+        document.setExtremeGoalsCompleted(delta.getExtremeGoalsCompleted());
+        document.setMetricSummaries(new TreeMap<>(delta.getSummaries()));
+        return document;
+    }
+
+    private List<String> userIds() {
+        List<String> userIds = new ArrayList<>();
+        written.forEach(delta -> userIds.add(delta.getUserId()));
+        return userIds;
+    }
+
+    private Path eventFile(String... lines) throws IOException {
+        return Files.write(directory.resolve("events.ndjson"), Arrays.asList(lines));
+    }
+
+    private String goal(String type, String userId, String level, String dueDate, String createdAt) {
+        return "{\"eventType\":\"" + type + "\",\"key\":\"g-" + userId + "\",\"eventCreatedAt\":" + createdAt
+                + ",\"data\":{\"userId\":\"" + userId + "\",\"level\":\"" + level + "\",\"dueDate\":\"" + dueDate + "\"}}";
+    }
+}
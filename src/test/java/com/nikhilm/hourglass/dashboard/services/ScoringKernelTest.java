@@ -0,0 +1,70 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.models.Goal;
+import com.nikhilm.hourglass.dashboard.models.GoalLevel;
+import com.nikhilm.hourglass.dashboard.models.MetricSummary;
+import com.nikhilm.hourglass.dashboard.models.Operation;
+import com.nikhilm.hourglass.dashboard.models.ScoreDelta;
+import com.nikhilm.hourglass.dashboard.models.Task;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScoringKernelTest {
+
+    ScoringKernel scoringKernel = new ScoringKernel(10, 25, 50, 1, 6);
+
+    LocalDate today = LocalDate.of(2020, 11, 3);
+
+    @Test
+    public void testLateGoalCompletionScoredOnToday() {
+        Goal goal = new Goal();
+        goal.setLevel(GoalLevel.MODERATE);
+        goal.setDueDate(LocalDate.of(2020, 10, 30));
+
+        ScoreDelta delta = scoringKernel.score(Operation.GOAL_COMPLETED, goal, today.toEpochDay(), new ScoreDelta());
+
+        assertEquals(21, delta.getScore());
+        assertEquals(1, delta.getModerateGoalsCompleted());
+        assertEquals(1, delta.getGoalsCompletedAfterTime());
+        assertEquals(0, delta.getGoalsCompletedOnTime());
+        assertEquals(1, delta.getTotalGoalsCompleted());
+        assertEquals(-1, delta.getTotalGoalsInProgress());
+        assertEquals(1, delta.getGoalsAccomplished());
+        assertEquals(today.toEpochDay(), delta.getEpochDay());
+        assertEquals(202011, delta.getMonthKey());
+    }
+
+    @Test
+    public void testReusedDeltaKeepsNothingFromPreviousEvent() {
+        Goal goal = new Goal();
+        goal.setLevel(GoalLevel.EXTREME);
+        goal.setDueDate(LocalDate.of(2020, 10, 30));
+        Task task = new Task();
+        task.setDueDate(LocalDate.of(2020, 12, 1));
+        ScoreDelta delta = new ScoreDelta();
+
+        scoringKernel.score(Operation.GOAL_DEFERRED, goal, today.toEpochDay(), delta);
+        assertEquals(-10, delta.getScore());
+        assertEquals(1, delta.getTotalGoalsDeferred());
+        assertEquals(-1, delta.getGoalsPlanned());
+        assertEquals(202010, delta.getMonthKey());
+
+        scoringKernel.score(Operation.TASK_ADDED, task, today.toEpochDay(), delta);
+        assertEquals(0, delta.getScore());
+        assertEquals(0, delta.getTotalGoalsDeferred());
+        assertEquals(0, delta.getGoalsPlanned());
+        assertEquals(1, delta.getTasksPlanned());
+        assertEquals(task.getDueDate().toEpochDay(), delta.getEpochDay());
+        assertEquals(202012, delta.getMonthKey());
+    }
+
+    @Test
+    public void testMonthKeyMatchesCalendar() {
+        for (long epochDay = LocalDate.of(1600, 1, 1).toEpochDay(); epochDay < LocalDate.of(2400, 1, 1).toEpochDay(); epochDay++) {
+            assertEquals(MetricSummary.monthKey(LocalDate.ofEpochDay(epochDay)), ScoringKernel.monthKeyOf(epochDay));
+        }
+    }
+}
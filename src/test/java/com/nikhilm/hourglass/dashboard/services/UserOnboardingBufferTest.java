@@ -0,0 +1,105 @@
+package com.nikhilm.hourglass.dashboard.services;
+
+import com.nikhilm.hourglass.dashboard.repositories.DashboardMetricRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class UserOnboardingBufferTest {
+
+    @Mock
+    DashboardMetricRepository dashboardMetricRepository;
+
+    MeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    public void testWindowWrittenAsOneBulkUpsert() {
+        UserOnboardingBuffer buffer = new UserOnboardingBuffer(dashboardMetricRepository, meterRegistry, 60000, 3);
+        ArgumentCaptor<Collection<String>> captor = ArgumentCaptor.forClass(Collection.class);
+        Mockito.when(dashboardMetricRepository.initializeUsers(captor.capture())).thenReturn(Mono.just(Set.of("abc", "pqr")));
+
+        // The redelivered "abc" shares the window with its first copy and is written once.
+        StepVerifier.create(Flux.mergeSequential(buffer.submit("abc"), buffer.submit("abc"), buffer.submit("xyz"), buffer.submit("pqr"))
+                .collectList())
+                .expectNext(Arrays.asList(true, false, false, true))
+                .verifyComplete();
+
+        assertEquals(Arrays.asList("abc", "xyz", "pqr"), new ArrayList<>(captor.getValue()));
+        assertEquals(4, meterRegistry.counter("dashboard.onboarding.users").count());
+        assertEquals(2, meterRegistry.counter("dashboard.onboarding.created").count());
+    }
+
+    @Test
+    public void testWindowFlushedAfterTimeout() {
+        UserOnboardingBuffer buffer = new UserOnboardingBuffer(dashboardMetricRepository, meterRegistry, 20, 1000);
+        Mockito.when(dashboardMetricRepository.initializeUsers(anyCollection())).thenReturn(Mono.just(Set.of("abc")));
+
+        StepVerifier.create(buffer.submit("abc"))
+                .expectNext(true)
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+        verify(dashboardMetricRepository, times(1)).initializeUsers(anyCollection());
+    }
+
+    @Test
+    public void testWindowClosedDuringWriteWaitsForIt() {
+        UserOnboardingBuffer buffer = new UserOnboardingBuffer(dashboardMetricRepository, meterRegistry, 60000, 1);
+        MonoProcessor<Set<String>> firstWrite = MonoProcessor.create();
+        ArgumentCaptor<Collection<String>> captor = ArgumentCaptor.forClass(Collection.class);
+        Mockito.when(dashboardMetricRepository.initializeUsers(captor.capture())).thenReturn(firstWrite, Mono.just(Set.of("xyz")));
+
+        AtomicInteger initialized = new AtomicInteger();
+        buffer.submit("abc").subscribe(null, null, initialized::incrementAndGet);
+        buffer.submit("xyz").subscribe(null, null, initialized::incrementAndGet);
+
+        verify(dashboardMetricRepository, times(1)).initializeUsers(anyCollection());
+        firstWrite.onNext(Set.of("abc"));
+
+        verify(dashboardMetricRepository, times(2)).initializeUsers(anyCollection());
+        assertEquals(Arrays.asList("xyz"), new ArrayList<>(captor.getValue()));
+        assertEquals(2, initialized.get());
+    }
+
+    @Test
+    public void testFailedWriteFailsEveryWaiter() {
+        UserOnboardingBuffer buffer = new UserOnboardingBuffer(dashboardMetricRepository, meterRegistry, 60000, 2);
+        Mockito.when(dashboardMetricRepository.initializeUsers(anyCollection()))
+                .thenReturn(Mono.error(new RuntimeException("down")));
+
+        AtomicInteger failed = new AtomicInteger();
+        StepVerifier.create(Flux.mergeDelayError(2,
+                buffer.submit("abc").doOnError(throwable -> failed.incrementAndGet()),
+                buffer.submit("xyz").doOnError(throwable -> failed.incrementAndGet())))
+                .expectError()
+                .verify();
+        assertEquals(2, failed.get());
+    }
+}